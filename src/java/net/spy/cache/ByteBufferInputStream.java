@@ -0,0 +1,51 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.cache;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An InputStream reading the remaining bytes of a ByteBuffer.
+ */
+final class ByteBufferInputStream extends InputStream {
+
+	private final ByteBuffer buf;
+
+	/**
+	 * Get a stream over the given buffer.  Reading advances its position.
+	 */
+	public ByteBufferInputStream(ByteBuffer b) {
+		super();
+		buf=b;
+	}
+
+	@Override
+	public int read() {
+		return buf.hasRemaining() ? buf.get() & 0xff : -1;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		int rv=-1;
+		if(len == 0) {
+			rv=0;
+		} else if(buf.hasRemaining()) {
+			rv=Math.min(len, buf.remaining());
+			buf.get(b, off, rv);
+		}
+		return rv;
+	}
+
+	@Override
+	public long skip(long n) {
+		int rv=(int)Math.min(Math.max(n, 0), buf.remaining());
+		buf.position(buf.position() + rv);
+		return rv;
+	}
+
+	@Override
+	public int available() {
+		return buf.remaining();
+	}
+}
@@ -6,20 +6,63 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
 
 import net.spy.SpyThread;
 
 /**
  * Listen for multicast request to clear cache for a given prefix.
+ *
+ * <p>
+ *  Each datagram carries one or more UTF-8 encoded key prefixes separated
+ *  by newlines, so a datagram containing a single prefix is the same as it
+ *  always was.  All of the prefixes in a datagram are applied to the cache
+ *  together.  Empty prefixes between separators are ignored, but an empty
+ *  datagram is the empty prefix and clears the whole cache, as it always
+ *  has.  The receive and decode buffers are reused for every packet.
+ * </p>
+ *
+ * @see CacheClearRequestSender
  */
 public class CacheClearRequestListener extends SpyThread {
 
+	/**
+	 * The character set prefixes are encoded in.
+	 */
+	static final String CHARSET="UTF-8";
+	/**
+	 * The separator between prefixes in a datagram.
+	 */
+	static final char SEPARATOR='\n';
+	/**
+	 * The largest datagram a sender should produce (an ethernet frame less
+	 * the IP and UDP headers).
+	 */
+	static final int MAX_DATAGRAM=1472;
+
+	// Large enough for any UDP datagram.
+	private static final int BUFFER_SIZE=65536;
+
 	private final MulticastSocket s;
 	private final InetAddress group;
 	private final int port;
-	private int requests=0;
+	private volatile int requests=0;
 	private volatile boolean running=true;
 
+	private final byte[] buffer=new byte[BUFFER_SIZE];
+	private final ByteBuffer bytes=ByteBuffer.wrap(buffer);
+	private final CharBuffer chars=CharBuffer.allocate(BUFFER_SIZE);
+	private final CharsetDecoder decoder=Charset.forName(CHARSET).newDecoder()
+		.onMalformedInput(CodingErrorAction.REPLACE)
+		.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	private final List<String> prefixes=new ArrayList<String>();
+
 	/**
 	 * Get an instance of CacheClearRequestListener.
 	 */
@@ -71,18 +114,45 @@ public class CacheClearRequestListener extends SpyThread {
 	/**
 	 * Do that crazy flush thing.
 	 */
-	public void flush(DatagramPacket recv) {
-		byte[] data=recv.getData();
-		byte[] tmp=new byte[recv.getLength()];
-		System.arraycopy(data, 0, tmp, 0, tmp.length);
-		String prefix=new String(tmp);
-		getLogger().info("CacheClearRequestListener flushing ``%s''"
-					+ " per mcast req from %s", prefix, recv.getAddress());
-		requests++;
+	public synchronized void flush(DatagramPacket recv) {
+		ByteBuffer in=bytes;
+		if(recv.getData() != buffer) {
+			in=ByteBuffer.wrap(recv.getData());
+		}
+		in.limit(recv.getOffset() + recv.getLength());
+		in.position(recv.getOffset());
+		parse(in);
+		getLogger().info("CacheClearRequestListener flushing %s"
+					+ " per mcast req from %s", prefixes, recv.getAddress());
+		requests+=prefixes.size();
 
 		// Do it.
 		SpyCache cache=SpyCache.getInstance();
-		cache.uncacheLike(prefix);
+		cache.uncacheLike(prefixes);
+	}
+
+	// Decode the prefixes in the given buffer into the prefix list.
+	private void parse(ByteBuffer in) {
+		prefixes.clear();
+		chars.clear();
+		decoder.reset();
+		decoder.decode(in, chars, true);
+		decoder.flush(chars);
+		char[] c=chars.array();
+		int end=chars.position();
+		// An empty datagram clears everything.
+		if(end == 0) {
+			prefixes.add("");
+		}
+		int start=0;
+		for(int i=0; i<=end; i++) {
+			if(i == end || c[i] == SEPARATOR) {
+				if(i > start) {
+					prefixes.add(new String(c, start, i - start));
+				}
+				start=i + 1;
+			}
+		}
 	}
 
 	/**
@@ -90,10 +160,10 @@ public class CacheClearRequestListener extends SpyThread {
 	 */
 	@Override
 	public void run() {
+		DatagramPacket recv=new DatagramPacket(buffer, buffer.length);
 		while(running) {
 			try {
-				byte[] data=new byte[1500];
-				DatagramPacket recv = new DatagramPacket(data, data.length);
+				recv.setData(buffer);
 				s.receive(recv);
 				flush(recv);
 			} catch(IOException e) {
@@ -0,0 +1,220 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.cache;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import net.spy.SpyObject;
+
+/**
+ * Send requests to clear cache entries by prefix to
+ * {@link CacheClearRequestListener}s.
+ *
+ * <p>
+ *  Requests are queued and sent together every flush interval, packed as
+ *  many to a datagram as will fit.  Duplicate prefixes within an interval
+ *  are only sent once.  A single channel and buffer are used for the life
+ *  of the sender.
+ * </p>
+ *
+ * <p>
+ *  Clearing the empty prefix clears every entry.  It's sent as an empty
+ *  datagram, which listeners have always taken to mean that, and since it
+ *  covers everything else queued, nothing else is sent with it.
+ * </p>
+ */
+public class CacheClearRequestSender extends SpyObject {
+
+	private final InetSocketAddress destination;
+	private final DatagramChannel channel;
+	private final Timer timer=new Timer("CacheClearRequestSender", true);
+
+	private Set<String> pending=new LinkedHashSet<String>();
+
+	// Only used while holding sendLock.
+	private final Object sendLock=new Object();
+	private final ByteBuffer buffer=ByteBuffer.allocate(
+		CacheClearRequestListener.MAX_DATAGRAM);
+	private final CharsetEncoder encoder=Charset.forName(
+		CacheClearRequestListener.CHARSET).newEncoder();
+	private int packetsSent=0;
+	private int prefixesSent=0;
+
+	/**
+	 * Get a CacheClearRequestSender.
+	 *
+	 * @param group the multicast group (or host) to send to
+	 * @param port the port the listeners are on
+	 * @param flushInterval how often (in milliseconds) queued requests are
+	 *	sent
+	 * @throws IOException if the channel can't be opened
+	 */
+	public CacheClearRequestSender(InetAddress group, int port,
+		long flushInterval) throws IOException {
+		super();
+		if(flushInterval < 1) {
+			throw new IllegalArgumentException("Invalid flush interval:  "
+				+ flushInterval);
+		}
+		destination=new InetSocketAddress(group, port);
+		channel=DatagramChannel.open();
+		timer.schedule(new Flusher(), flushInterval, flushInterval);
+	}
+
+	/**
+	 * Queue a request to clear all cache entries beginning with the given
+	 * prefix.
+	 *
+	 * @param prefix the key prefix, or the empty string to clear everything
+	 */
+	public void clear(String prefix) {
+		if(prefix.indexOf(CacheClearRequestListener.SEPARATOR) >= 0) {
+			throw new IllegalArgumentException("Invalid prefix:  " + prefix);
+		}
+		synchronized(this) {
+			pending.add(prefix);
+		}
+	}
+
+	/**
+	 * Send all queued requests now.
+	 *
+	 * @throws IOException if a datagram can't be sent
+	 */
+	public void flush() throws IOException {
+		Set<String> toSend=null;
+		synchronized(this) {
+			toSend=pending;
+			pending=new LinkedHashSet<String>();
+		}
+		if(!toSend.isEmpty()) {
+			synchronized(sendLock) {
+				send(toSend);
+			}
+		}
+	}
+
+	private void send(Set<String> prefixes) throws IOException {
+		buffer.clear();
+		if(prefixes.contains("")) {
+			// The empty datagram clears everything.
+			sendBuffer(1);
+		} else {
+			sendPrefixes(prefixes);
+		}
+	}
+
+	private void sendPrefixes(Set<String> prefixes) throws IOException {
+		int inBuffer=0;
+		for(String prefix : prefixes) {
+			boolean fits=false;
+			if(inBuffer > 0) {
+				int mark=buffer.position();
+				if(buffer.hasRemaining()) {
+					buffer.put((byte)CacheClearRequestListener.SEPARATOR);
+					fits=encode(prefix);
+				}
+				if(!fits) {
+					// Send what we have and start this one in a new datagram.
+					buffer.position(mark);
+					sendBuffer(inBuffer);
+					inBuffer=0;
+				}
+			}
+			if(inBuffer == 0) {
+				fits=encode(prefix);
+			}
+			if(fits) {
+				inBuffer++;
+			} else {
+				getLogger().warn("Can't send prefix %s", prefix);
+				buffer.clear();
+			}
+		}
+		if(inBuffer > 0) {
+			sendBuffer(inBuffer);
+		}
+	}
+
+	// Encode a prefix into the buffer, returning false if it didn't fit.
+	private boolean encode(String prefix) {
+		encoder.reset();
+		CoderResult cr=encoder.encode(CharBuffer.wrap(prefix), buffer, true);
+		return cr.isUnderflow();
+	}
+
+	private void sendBuffer(int count) throws IOException {
+		buffer.flip();
+		channel.send(buffer, destination);
+		buffer.clear();
+		packetsSent++;
+		prefixesSent+=count;
+	}
+
+	/**
+	 * Send anything still queued and release the channel.
+	 */
+	public void close() throws IOException {
+		timer.cancel();
+		try {
+			flush();
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Get the number of datagrams sent.
+	 */
+	public int getPacketsSent() {
+		synchronized(sendLock) {
+			return packetsSent;
+		}
+	}
+
+	/**
+	 * Get the number of prefixes sent.
+	 */
+	public int getPrefixesSent() {
+		synchronized(sendLock) {
+			return prefixesSent;
+		}
+	}
+
+	/**
+	 * String me.
+	 */
+	@Override
+	public String toString() {
+		return super.toString() + " to " + destination + " sent "
+			+ getPrefixesSent() + " requests in " + getPacketsSent()
+			+ " packets";
+	}
+
+	// Sends whatever's been queued since the last run.
+	private class Flusher extends TimerTask {
+		public Flusher() {
+			super();
+		}
+		@Override
+		public void run() {
+			try {
+				flush();
+			} catch(IOException e) {
+				getLogger().warn("Problem sending cache clear requests", e);
+			}
+		}
+	}
+}
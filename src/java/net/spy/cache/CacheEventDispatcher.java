@@ -0,0 +1,322 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.cache;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.spy.SpyObject;
+import net.spy.SpyThread;
+
+/**
+ * Delivers cache lifecycle events on background threads.
+ *
+ * <p>
+ *  Events are spread over a fixed number of worker threads by key, each
+ *  with its own bounded queue, so events for any one key are delivered in
+ *  the order they happened while different keys proceed in parallel.
+ *  Workers drain their queues in batches.  What happens when a queue is
+ *  full is decided by the {@link OverflowPolicy}.
+ * </p>
+ *
+ * <p>
+ *  The policies that drop events only ever drop cached events.  An
+ *  uncached event is always delivered, waiting for room if need be, so a
+ *  delegate that keeps its own index of the cache may miss entries being
+ *  added but never keeps an entry that's been removed.  It may be told
+ *  about the removal of an entry it was never told about.
+ * </p>
+ *
+ * @see SpyCache#setEventDispatcher(CacheEventDispatcher)
+ */
+public class CacheEventDispatcher extends SpyObject {
+
+	/**
+	 * What to do with an event when its queue is full.
+	 */
+	public enum OverflowPolicy {
+		/**
+		 * Wait for room in the queue.
+		 */
+		BLOCK,
+		/**
+		 * Discard the new event if it's a cached event, otherwise wait for
+		 * room.
+		 */
+		DROP_NEWEST,
+		/**
+		 * Discard the oldest queued cached event to make room.  If there
+		 * isn't one, discard the new event if it's a cached event, otherwise
+		 * wait for room.
+		 */
+		DROP_OLDEST,
+		/**
+		 * Deliver the event on the calling thread.  It may then be
+		 * delivered ahead of queued events for the same key.
+		 */
+		CALLER_RUNS
+	}
+
+	/**
+	 * The default maximum number of events a worker delivers per batch.
+	 */
+	public static final int DEFAULT_BATCH_SIZE=64;
+
+	private final Worker[] workers;
+	private final OverflowPolicy overflow;
+	private final int batchSize;
+	private final AtomicLong dispatched=new AtomicLong(0);
+	private final AtomicLong dropped=new AtomicLong(0);
+
+	/**
+	 * Get a CacheEventDispatcher with the default batch size.
+	 *
+	 * @param threads the number of worker threads
+	 * @param capacity the maximum number of events queued per worker
+	 * @param policy what to do when a worker's queue is full
+	 */
+	public CacheEventDispatcher(int threads, int capacity,
+		OverflowPolicy policy) {
+		this(threads, capacity, DEFAULT_BATCH_SIZE, policy);
+	}
+
+	/**
+	 * Get a CacheEventDispatcher.
+	 *
+	 * @param threads the number of worker threads
+	 * @param capacity the maximum number of events queued per worker
+	 * @param batch the maximum number of events a worker delivers at once
+	 * @param policy what to do when a worker's queue is full
+	 */
+	public CacheEventDispatcher(int threads, int capacity, int batch,
+		OverflowPolicy policy) {
+		super();
+		if(threads < 1) {
+			throw new IllegalArgumentException("Invalid thread count:  "
+				+ threads);
+		}
+		if(capacity < 1) {
+			throw new IllegalArgumentException("Invalid capacity:  "
+				+ capacity);
+		}
+		if(batch < 1) {
+			throw new IllegalArgumentException("Invalid batch size:  "
+				+ batch);
+		}
+		if(policy == null) {
+			throw new NullPointerException("Invalid overflow policy <null>");
+		}
+		overflow=policy;
+		batchSize=batch;
+		workers=new Worker[threads];
+		for(int i=0; i<threads; i++) {
+			workers[i]=new Worker(i, capacity);
+		}
+	}
+
+	/**
+	 * Queue the events for an object having been cached.
+	 */
+	void cached(String key, Cachable value, CacheDelegate delegate) {
+		submit(new Event(key, value, delegate, true));
+	}
+
+	/**
+	 * Queue the events for an object having been uncached.
+	 */
+	void uncached(String key, Cachable value, CacheDelegate delegate) {
+		submit(new Event(key, value, delegate, false));
+	}
+
+	private void submit(Event e) {
+		int h=e.key.hashCode();
+		h^=(h >>> 16);
+		BlockingQueue<Event> q=workers[(h & 0x7fffffff) % workers.length].queue;
+		if(!q.offer(e)) {
+			switch(overflow) {
+				case BLOCK:
+					putUninterruptibly(q, e);
+					break;
+				case DROP_NEWEST:
+					if(e.cached) {
+						dropped.incrementAndGet();
+					} else {
+						putUninterruptibly(q, e);
+					}
+					break;
+				case DROP_OLDEST:
+					dropOldest(q, e);
+					break;
+				case CALLER_RUNS:
+					deliver(e);
+					break;
+				default:
+					assert false : "Unhandled overflow policy " + overflow;
+			}
+		}
+	}
+
+	// Make room for an event by dropping the oldest cached event queued.
+	private void dropOldest(BlockingQueue<Event> q, Event e) {
+		boolean done=false;
+		while(!done) {
+			if(q.offer(e)) {
+				done=true;
+			} else if(removeOldestCached(q)) {
+				dropped.incrementAndGet();
+			} else if(e.cached) {
+				dropped.incrementAndGet();
+				done=true;
+			} else {
+				putUninterruptibly(q, e);
+				done=true;
+			}
+		}
+	}
+
+	private boolean removeOldestCached(BlockingQueue<Event> q) {
+		boolean rv=false;
+		for(Iterator<Event> i=q.iterator(); !rv && i.hasNext();) {
+			if(i.next().cached) {
+				i.remove();
+				rv=true;
+			}
+		}
+		return rv;
+	}
+
+	private void putUninterruptibly(BlockingQueue<Event> q, Event e) {
+		boolean interrupted=false;
+		boolean done=false;
+		while(!done) {
+			try {
+				q.put(e);
+				done=true;
+			} catch(InterruptedException ie) {
+				interrupted=true;
+			}
+		}
+		if(interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	void deliver(Event e) {
+		try {
+			e.run();
+		} catch(RuntimeException re) {
+			getLogger().warn("Problem delivering cache event for %s", e.key,
+				re);
+		}
+		dispatched.incrementAndGet();
+	}
+
+	/**
+	 * Get the number of events currently waiting to be delivered.
+	 */
+	public int getQueueDepth() {
+		int rv=0;
+		for(Worker w : workers) {
+			rv+=w.queue.size();
+		}
+		return rv;
+	}
+
+	/**
+	 * Get the number of events that have been delivered.
+	 */
+	public long getDispatched() {
+		return dispatched.get();
+	}
+
+	/**
+	 * Get the number of events discarded because a queue was full.
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Stop the workers once they've delivered everything already queued.
+	 */
+	public void shutdown() {
+		for(Worker w : workers) {
+			w.requestStop();
+		}
+	}
+
+	/**
+	 * String me.
+	 */
+	@Override
+	public String toString() {
+		return super.toString() + " " + workers.length + " workers, depth:  "
+			+ getQueueDepth() + ", dispatched:  " + getDispatched()
+			+ ", dropped:  " + getDropped();
+	}
+
+	// A cache event to be delivered to the Cachable and the delegate.
+	static final class Event {
+		final String key;
+		final Cachable value;
+		final CacheDelegate delegate;
+		final boolean cached;
+		public Event(String k, Cachable v, CacheDelegate d, boolean c) {
+			super();
+			key=k;
+			value=v;
+			delegate=d;
+			cached=c;
+		}
+		public void run() {
+			if(cached) {
+				delegate.cachedObject(key, value);
+			} else {
+				value.uncachedEvent(key);
+				delegate.uncachedObject(key, value);
+			}
+		}
+	}
+
+	// Delivers the events from one queue.
+	private class Worker extends SpyThread {
+		final BlockingQueue<Event> queue;
+		private volatile boolean running=true;
+
+		public Worker(int id, int capacity) {
+			super("CacheEventDispatcher worker " + id);
+			queue=new LinkedBlockingQueue<Event>(capacity);
+			setDaemon(true);
+			start();
+		}
+
+		public void requestStop() {
+			running=false;
+			interrupt();
+		}
+
+		@Override
+		public void run() {
+			List<Event> batch=new ArrayList<Event>(batchSize);
+			while(running || !queue.isEmpty()) {
+				try {
+					if(queue.isEmpty()) {
+						batch.add(queue.take());
+					}
+					queue.drainTo(batch, batchSize - batch.size());
+					for(Event e : batch) {
+						deliver(e);
+					}
+					batch.clear();
+				} catch(InterruptedException e) {
+					// Check whether we've been asked to stop.
+				}
+			}
+			getLogger().info("Thread finishing.");
+		}
+	}
+}
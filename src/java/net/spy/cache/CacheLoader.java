@@ -0,0 +1,22 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.cache;
+
+/**
+ * Computes a value to be cached when a lookup misses.
+ *
+ * @param <T> the type of value loaded
+ * @param <E> the type of exception the load may throw
+ */
+public interface CacheLoader<T, E extends Exception> {
+
+	/**
+	 * Load the value.
+	 *
+	 * @return the value to cache, or null if there is none (in which case
+	 *	nothing will be cached)
+	 * @throws E if the value can't be loaded
+	 */
+	T load() throws E;
+
+}
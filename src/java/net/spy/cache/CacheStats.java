@@ -0,0 +1,261 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.cache;
+
+import java.util.Locale;
+
+import net.spy.stat.ComputingStat;
+import net.spy.stat.CounterStat;
+import net.spy.stat.GaugeStat;
+import net.spy.stat.Stat;
+import net.spy.stat.Stats;
+
+/**
+ * Statistics kept by a cache.
+ *
+ * <p>
+ *  A cache's statistics are private to it until it's published under a
+ *  name, after which they're registered with {@link Stats} as:
+ * </p>
+ *
+ * <ul>
+ *  <li><code>net.spy.cache.<i>name</i>.hits</code></li>
+ *  <li><code>net.spy.cache.<i>name</i>.misses</code></li>
+ *  <li><code>net.spy.cache.<i>name</i>.loads</code></li>
+ *  <li><code>net.spy.cache.<i>name</i>.loads.failed</code></li>
+ *  <li><code>net.spy.cache.<i>name</i>.loads.time</code> (milliseconds per
+ *	load, successful or not)</li>
+ *  <li><code>net.spy.cache.<i>name</i>.evictions.size</code>,
+ *	<code>.evictions.expired</code> and <code>.evictions.collected</code>
+ *	(see {@link EvictionCause})</li>
+ *  <li><code>net.spy.cache.<i>name</i>.size</code></li>
+ *  <li><code>net.spy.cache.<i>name</i>.weight</code></li>
+ * </ul>
+ *
+ * <p>
+ *  Every statistic may be updated from any thread.  Entries removed by
+ *  the caller aren't counted as evictions.
+ * </p>
+ */
+public class CacheStats {
+
+	/**
+	 * The prefix of the names of published cache statistics.
+	 */
+	public static final String PREFIX="net.spy.cache.";
+
+	/**
+	 * Why an entry was evicted.
+	 */
+	public enum EvictionCause {
+		/**
+		 * To keep the cache within its size or weight limit.
+		 */
+		SIZE,
+		/**
+		 * Its timeout passed.
+		 */
+		EXPIRED,
+		/**
+		 * Its value was held by a reference the garbage collector cleared.
+		 */
+		COLLECTED
+	}
+
+	private final String name;
+	private final CounterStat hits;
+	private final CounterStat misses;
+	private final CounterStat loads;
+	private final CounterStat loadFailures;
+	private final ComputingStat loadTime;
+	private final CounterStat[] evictions;
+	private final GaugeStat size;
+	private final GaugeStat weight;
+
+	/**
+	 * Get private statistics for a cache.
+	 *
+	 * @param s the source of the cache's size
+	 * @param w the source of the cache's weight
+	 */
+	CacheStats(GaugeStat.Source s, GaugeStat.Source w) {
+		this(null, s, w);
+	}
+
+	/**
+	 * Get statistics for a cache published under the given name.  Caches
+	 * published under the same name share their counters.
+	 *
+	 * @param n the name, or null to keep the statistics private
+	 * @param s the source of the cache's size
+	 * @param w the source of the cache's weight
+	 */
+	CacheStats(String n, GaugeStat.Source s, GaugeStat.Source w) {
+		super();
+		name=n;
+		hits=counter("hits");
+		misses=counter("misses");
+		loads=counter("loads");
+		loadFailures=counter("loads.failed");
+		loadTime=(ComputingStat)stat("loads.time", ComputingStat.class);
+		EvictionCause[] causes=EvictionCause.values();
+		evictions=new CounterStat[causes.length];
+		for(EvictionCause c : causes) {
+			evictions[c.ordinal()]=counter(
+				"evictions." + c.name().toLowerCase(Locale.ENGLISH));
+		}
+		size=(GaugeStat)stat("size", GaugeStat.class);
+		size.setSource(s);
+		weight=(GaugeStat)stat("weight", GaugeStat.class);
+		weight.setSource(w);
+	}
+
+	private CounterStat counter(String s) {
+		return (CounterStat)stat(s, CounterStat.class);
+	}
+
+	private Stat stat(String s, Class<? extends Stat> kind) {
+		Stat rv=null;
+		if(name == null) {
+			try {
+				rv=kind.newInstance();
+			} catch(Exception e) {
+				throw new RuntimeException("Couldn't create a " + kind, e);
+			}
+			rv.setName(s);
+		} else {
+			rv=Stats.getStat(PREFIX + name + "." + s, kind);
+		}
+		return rv;
+	}
+
+	/**
+	 * Get the name these statistics are published under, or null if they
+	 * aren't.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	void hit() {
+		hits.increment();
+	}
+
+	void miss() {
+		misses.increment();
+	}
+
+	// Run a loader, recording how long it took and whether it worked.
+	<T, E extends Exception> T load(CacheLoader<T, E> loader) throws E {
+		T rv=null;
+		long start=System.nanoTime();
+		boolean loaded=false;
+		try {
+			rv=loader.load();
+			loaded=true;
+		} finally {
+			if(loaded) {
+				loads.increment();
+			} else {
+				loadFailures.increment();
+			}
+			loadTime.add((System.nanoTime() - start) / 1000000.0);
+		}
+		return rv;
+	}
+
+	void evicted(EvictionCause c) {
+		evictions[c.ordinal()].increment();
+	}
+
+	void evicted(EvictionCause c, int n) {
+		evictions[c.ordinal()].increment(n);
+	}
+
+	/**
+	 * Get the number of lookups that found a value.
+	 */
+	public long getHits() {
+		return hits.getCount();
+	}
+
+	/**
+	 * Get the number of lookups that didn't find a value.
+	 */
+	public long getMisses() {
+		return misses.getCount();
+	}
+
+	/**
+	 * Get the fraction of lookups that found a value.
+	 *
+	 * @return the hit rate, or NaN if there haven't been any lookups
+	 */
+	public double getHitRate() {
+		long h=getHits();
+		long total=h + getMisses();
+		return total == 0 ? Double.NaN : (double)h / total;
+	}
+
+	/**
+	 * Get the number of values loaded on a miss.
+	 */
+	public long getLoads() {
+		return loads.getCount();
+	}
+
+	/**
+	 * Get the number of loads that threw an exception.
+	 */
+	public long getLoadFailures() {
+		return loadFailures.getCount();
+	}
+
+	/**
+	 * Get the distribution of the time (in milliseconds) loads took.
+	 */
+	public ComputingStat getLoadTime() {
+		return loadTime;
+	}
+
+	/**
+	 * Get the number of entries evicted for the given reason.
+	 */
+	public long getEvictions(EvictionCause c) {
+		return evictions[c.ordinal()].getCount();
+	}
+
+	/**
+	 * Get the number of entries currently in the cache.
+	 */
+	public long getSize() {
+		return size.getValue();
+	}
+
+	/**
+	 * Get the current weight of the cache's entries, as the cache measures
+	 * it.
+	 */
+	public long getWeight() {
+		return weight.getValue();
+	}
+
+	/**
+	 * String me.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb=new StringBuilder(64);
+		sb.append("hits:  ").append(getHits());
+		sb.append(", misses:  ").append(getMisses());
+		sb.append(", loads:  ").append(getLoads());
+		sb.append(", failed loads:  ").append(getLoadFailures());
+		for(EvictionCause c : EvictionCause.values()) {
+			sb.append(", ").append(c.name().toLowerCase(Locale.ENGLISH));
+			sb.append(" evictions:  ").append(getEvictions(c));
+		}
+		sb.append(", size:  ").append(getSize());
+		sb.append(", weight:  ").append(getWeight());
+		return sb.toString();
+	}
+}
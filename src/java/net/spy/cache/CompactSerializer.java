@@ -0,0 +1,379 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.cache;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Serializer with a compact encoding for common value types.
+ *
+ * <p>
+ *  Strings, byte arrays, boxed primitives, dates (<code>java.util</code>
+ *  and <code>java.sql</code>), <code>BigDecimal</code>s,
+ *  <code>BigInteger</code>s and <code>Object[]</code>s of any of these are
+ *  written as a one byte type tag followed by the value, with no class
+ *  descriptors.  Anything else falls back to java serialization.
+ * </p>
+ *
+ * <p>
+ *  Strings are written as their length in characters followed by each
+ *  character in one to three bytes, as in <code>DataOutput.writeUTF</code>
+ *  but without its length limit.  Lengths and counts are written as
+ *  variable length integers.
+ * </p>
+ */
+public class CompactSerializer implements Serializer {
+
+	private static final byte NULL=0;
+	private static final byte STRING=1;
+	private static final byte BYTES=2;
+	private static final byte BOOLEAN=3;
+	private static final byte BYTE=4;
+	private static final byte SHORT=5;
+	private static final byte CHARACTER=6;
+	private static final byte INTEGER=7;
+	private static final byte LONG=8;
+	private static final byte FLOAT=9;
+	private static final byte DOUBLE=10;
+	private static final byte DATE=11;
+	private static final byte SQL_DATE=12;
+	private static final byte SQL_TIME=13;
+	private static final byte SQL_TIMESTAMP=14;
+	private static final byte BIG_DECIMAL=15;
+	private static final byte BIG_INTEGER=16;
+	private static final byte ARRAY=17;
+	private static final byte SERIALIZED=18;
+
+	private static final Map<Class<?>, Byte> TYPES=
+		new HashMap<Class<?>, Byte>();
+
+	static {
+		TYPES.put(String.class, STRING);
+		TYPES.put(byte[].class, BYTES);
+		TYPES.put(Boolean.class, BOOLEAN);
+		TYPES.put(Byte.class, BYTE);
+		TYPES.put(Short.class, SHORT);
+		TYPES.put(Character.class, CHARACTER);
+		TYPES.put(Integer.class, INTEGER);
+		TYPES.put(Long.class, LONG);
+		TYPES.put(Float.class, FLOAT);
+		TYPES.put(Double.class, DOUBLE);
+		TYPES.put(java.util.Date.class, DATE);
+		TYPES.put(java.sql.Date.class, SQL_DATE);
+		TYPES.put(java.sql.Time.class, SQL_TIME);
+		TYPES.put(java.sql.Timestamp.class, SQL_TIMESTAMP);
+		TYPES.put(BigDecimal.class, BIG_DECIMAL);
+		TYPES.put(BigInteger.class, BIG_INTEGER);
+		TYPES.put(Object[].class, ARRAY);
+	}
+
+	private final Serializer fallback=new JavaSerializer();
+
+	/**
+	 * Get a CompactSerializer.
+	 */
+	public CompactSerializer() {
+		super();
+	}
+
+	public byte[] serialize(Object o) throws IOException {
+		Output out=new Output();
+		write(out, o);
+		return out.toByteArray();
+	}
+
+	private void write(Output out, Object o) throws IOException {
+		byte type=NULL;
+		if(o != null) {
+			Byte t=TYPES.get(o.getClass());
+			type=t == null ? SERIALIZED : t.byteValue();
+		}
+		out.write(type);
+		switch(type) {
+			case NULL:
+				break;
+			case STRING:
+				out.writeString((String)o);
+				break;
+			case BYTES:
+				out.writeBytes((byte[])o);
+				break;
+			case BOOLEAN:
+				out.write(((Boolean)o).booleanValue() ? 1 : 0);
+				break;
+			case BYTE:
+				out.write(((Byte)o).byteValue());
+				break;
+			case SHORT:
+				out.writeVarLong(((Short)o).shortValue());
+				break;
+			case CHARACTER:
+				out.writeVarLong(((Character)o).charValue());
+				break;
+			case INTEGER:
+				out.writeVarLong(((Integer)o).intValue());
+				break;
+			case LONG:
+				out.writeVarLong(((Long)o).longValue());
+				break;
+			case FLOAT:
+				out.writeInt(Float.floatToIntBits(((Float)o).floatValue()));
+				break;
+			case DOUBLE:
+				out.writeLong(
+					Double.doubleToLongBits(((Double)o).doubleValue()));
+				break;
+			case DATE:
+			case SQL_DATE:
+			case SQL_TIME:
+				out.writeVarLong(((java.util.Date)o).getTime());
+				break;
+			case SQL_TIMESTAMP:
+				java.sql.Timestamp ts=(java.sql.Timestamp)o;
+				out.writeVarLong(ts.getTime());
+				out.writeVarLong(ts.getNanos());
+				break;
+			case BIG_DECIMAL:
+				BigDecimal bd=(BigDecimal)o;
+				out.writeVarLong(bd.scale());
+				out.writeBytes(bd.unscaledValue().toByteArray());
+				break;
+			case BIG_INTEGER:
+				out.writeBytes(((BigInteger)o).toByteArray());
+				break;
+			case ARRAY:
+				Object[] a=(Object[])o;
+				out.writeVarLong(a.length);
+				for(Object e : a) {
+					write(out, e);
+				}
+				break;
+			case SERIALIZED:
+				out.writeBytes(fallback.serialize(o));
+				break;
+			default:
+				assert false : "Unhandled type " + type;
+		}
+	}
+
+	public Object deserialize(ByteBuffer b) throws IOException {
+		try {
+			return read(b);
+		} catch(BufferUnderflowException e) {
+			IOException toThrow=new IOException("Truncated value");
+			toThrow.initCause(e);
+			throw toThrow;
+		}
+	}
+
+	private Object read(ByteBuffer b) throws IOException {
+		Object rv=null;
+		byte type=b.get();
+		switch(type) {
+			case NULL:
+				break;
+			case STRING:
+				rv=readString(b);
+				break;
+			case BYTES:
+				rv=readBytes(b);
+				break;
+			case BOOLEAN:
+				rv=Boolean.valueOf(b.get() != 0);
+				break;
+			case BYTE:
+				rv=Byte.valueOf(b.get());
+				break;
+			case SHORT:
+				rv=Short.valueOf((short)readVarLong(b));
+				break;
+			case CHARACTER:
+				rv=Character.valueOf((char)readVarLong(b));
+				break;
+			case INTEGER:
+				rv=Integer.valueOf((int)readVarLong(b));
+				break;
+			case LONG:
+				rv=Long.valueOf(readVarLong(b));
+				break;
+			case FLOAT:
+				rv=new Float(Float.intBitsToFloat(b.getInt()));
+				break;
+			case DOUBLE:
+				rv=new Double(Double.longBitsToDouble(b.getLong()));
+				break;
+			case DATE:
+				rv=new java.util.Date(readVarLong(b));
+				break;
+			case SQL_DATE:
+				rv=new java.sql.Date(readVarLong(b));
+				break;
+			case SQL_TIME:
+				rv=new java.sql.Time(readVarLong(b));
+				break;
+			case SQL_TIMESTAMP:
+				java.sql.Timestamp ts=new java.sql.Timestamp(readVarLong(b));
+				ts.setNanos((int)readVarLong(b));
+				rv=ts;
+				break;
+			case BIG_DECIMAL:
+				int scale=(int)readVarLong(b);
+				rv=new BigDecimal(new BigInteger(readBytes(b)), scale);
+				break;
+			case BIG_INTEGER:
+				rv=new BigInteger(readBytes(b));
+				break;
+			case ARRAY:
+				Object[] a=new Object[readLength(b)];
+				for(int i=0; i<a.length; i++) {
+					a[i]=read(b);
+				}
+				rv=a;
+				break;
+			case SERIALIZED:
+				int length=readLength(b);
+				ByteBuffer sub=b.slice();
+				sub.limit(length);
+				rv=fallback.deserialize(sub);
+				b.position(b.position() + length);
+				break;
+			default:
+				throw new IOException("Invalid type:  " + type);
+		}
+		return rv;
+	}
+
+	private String readString(ByteBuffer b) throws IOException {
+		char[] chars=new char[readLength(b)];
+		for(int i=0; i<chars.length; i++) {
+			int c=b.get() & 0xff;
+			if(c >= 0xe0) {
+				c=((c & 0x0f) << 12) | ((b.get() & 0x3f) << 6)
+					| (b.get() & 0x3f);
+			} else if(c >= 0xc0) {
+				c=((c & 0x1f) << 6) | (b.get() & 0x3f);
+			}
+			chars[i]=(char)c;
+		}
+		return new String(chars);
+	}
+
+	private byte[] readBytes(ByteBuffer b) throws IOException {
+		byte[] rv=new byte[readLength(b)];
+		b.get(rv);
+		return rv;
+	}
+
+	// Read a length, making sure the buffer could hold that many bytes.
+	private int readLength(ByteBuffer b) throws IOException {
+		long rv=readVarLong(b);
+		if(rv < 0 || rv > b.remaining()) {
+			throw new IOException("Invalid length:  " + rv);
+		}
+		return (int)rv;
+	}
+
+	// Variable length integers are zigzag encoded, seven bits at a time.
+	private long readVarLong(ByteBuffer b) throws IOException {
+		long v=0;
+		int shift=0;
+		byte in=0;
+		do {
+			if(shift > 63) {
+				throw new IOException("Invalid variable length integer");
+			}
+			in=b.get();
+			v|=(long)(in & 0x7f) << shift;
+			shift+=7;
+		} while((in & 0x80) != 0);
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	// A growable byte array.
+	private static final class Output {
+		private byte[] buf=new byte[64];
+		private int count=0;
+
+		public Output() {
+			super();
+		}
+
+		private void ensure(int n) {
+			if(count + n > buf.length) {
+				buf=copyOf(buf, Math.max(buf.length * 2, count + n));
+			}
+		}
+
+		void write(int b) {
+			ensure(1);
+			buf[count++]=(byte)b;
+		}
+
+		void writeInt(int v) {
+			ensure(4);
+			for(int shift=24; shift >= 0; shift-=8) {
+				buf[count++]=(byte)(v >>> shift);
+			}
+		}
+
+		void writeLong(long v) {
+			ensure(8);
+			for(int shift=56; shift >= 0; shift-=8) {
+				buf[count++]=(byte)(v >>> shift);
+			}
+		}
+
+		void writeVarLong(long v) {
+			ensure(10);
+			long z=(v << 1) ^ (v >> 63);
+			while((z & ~0x7fL) != 0) {
+				buf[count++]=(byte)((z & 0x7f) | 0x80);
+				z>>>=7;
+			}
+			buf[count++]=(byte)z;
+		}
+
+		void writeBytes(byte[] b) {
+			writeVarLong(b.length);
+			ensure(b.length);
+			System.arraycopy(b, 0, buf, count, b.length);
+			count+=b.length;
+		}
+
+		void writeString(String s) {
+			int length=s.length();
+			writeVarLong(length);
+			ensure(length * 3);
+			for(int i=0; i<length; i++) {
+				char c=s.charAt(i);
+				if(c > 0 && c < 0x80) {
+					buf[count++]=(byte)c;
+				} else if(c < 0x800) {
+					buf[count++]=(byte)(0xc0 | (c >> 6));
+					buf[count++]=(byte)(0x80 | (c & 0x3f));
+				} else {
+					buf[count++]=(byte)(0xe0 | (c >> 12));
+					buf[count++]=(byte)(0x80 | ((c >> 6) & 0x3f));
+					buf[count++]=(byte)(0x80 | (c & 0x3f));
+				}
+			}
+		}
+
+		byte[] toByteArray() {
+			return copyOf(buf, count);
+		}
+
+		// Arrays.copyOf isn't available before java 6.
+		private static byte[] copyOf(byte[] b, int length) {
+			byte[] rv=new byte[length];
+			System.arraycopy(b, 0, rv, 0, Math.min(b.length, length));
+			return rv;
+		}
+	}
+}
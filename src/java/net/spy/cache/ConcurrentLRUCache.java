@@ -0,0 +1,394 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.cache;
+
+import java.lang.ref.Reference;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.spy.cache.CacheStats.EvictionCause;
+import net.spy.stat.GaugeStat;
+
+/**
+ * A fixed-size least-recently-used cache that may be shared between
+ * threads.
+ *
+ * <p>
+ *  Entries live in a concurrent map, so lookups don't lock.  Rather than
+ *  reordering the recency list on every read, a read is recorded in a
+ *  buffer and the buffered reads are applied in a batch by whichever
+ *  thread finds enough of them waiting and the list's lock free.  Writes
+ *  apply the buffer too, before they evict.  Reads arriving while the
+ *  buffer is full aren't recorded, so under heavy load the order is
+ *  approximate.
+ * </p>
+ *
+ * <p>
+ *  As with {@link LRUCache}, values that are {@link CacheListener}s are
+ *  told when they're cached and when they're evicted, and values that are
+ *  References are dereferenced by {@link #get(Object)}.  Hits, misses and
+ *  evictions are counted in the cache's {@link CacheStats}.  Keys may not
+ *  be null.
+ * </p>
+ *
+ * <p>
+ *  Values that are soft or weak references are watched (see
+ *  {@link ReferenceWatcher}), and entries whose values the garbage
+ *  collector has reclaimed are removed on the next put.
+ * </p>
+ */
+public class ConcurrentLRUCache<K, V> extends AbstractMap<K, V> {
+
+	// Buffered reads that prompt a thread to apply them.
+	private static final int DRAIN_THRESHOLD=64;
+	// Buffered reads beyond which reads aren't recorded.
+	private static final int MAX_BUFFERED=DRAIN_THRESHOLD * 16;
+
+	private final int maxSize;
+	private final ConcurrentMap<K, Node<K, V>> data;
+	private final Queue<Node<K, V>> reads=
+		new ConcurrentLinkedQueue<Node<K, V>>();
+	private final AtomicInteger buffered=new AtomicInteger(0);
+	private volatile CacheStats stats=newStats(null);
+	private final ReferenceWatcher<K, Node<K, V>> watcher=
+		new ReferenceWatcher<K, Node<K, V>>();
+
+	// Guards the recency list.
+	private final Lock lock=new ReentrantLock();
+	// The list's sentinel; head.next is the least recently used entry.
+	private final Node<K, V> head=new Node<K, V>(null, null);
+	private int linked=0;
+
+	/**
+	 * Get a ConcurrentLRUCache holding up to the given number of entries.
+	 */
+	public ConcurrentLRUCache(int size) {
+		super();
+		if(size < 0) {
+			throw new IllegalArgumentException("Invalid size:  " + size);
+		}
+		maxSize=size;
+		data=new ConcurrentHashMap<K, Node<K, V>>(Math.max(size, 16));
+		head.prev=head;
+		head.next=head;
+	}
+
+	/**
+	 * Get the object from the cache, and dereference it if it's a
+	 * reference.
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public V get(Object o) {
+		V rv=null;
+		Node<K, V> n=data.get(o);
+		if(n != null) {
+			recordRead(n);
+			rv=n.value;
+			if(rv instanceof Reference) {
+				rv=(V) ((Reference)rv).get();
+			}
+		}
+		if(rv == null) {
+			stats.miss();
+		} else {
+			stats.hit();
+		}
+		return rv;
+	}
+
+	private void recordRead(Node<K, V> n) {
+		int b=buffered.incrementAndGet();
+		if(b > MAX_BUFFERED) {
+			buffered.decrementAndGet();
+		} else {
+			reads.add(n);
+		}
+		if(b >= DRAIN_THRESHOLD && lock.tryLock()) {
+			try {
+				drainReads();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	@Override
+	public V put(K key, V val) {
+		if(val instanceof CacheListener) {
+			CacheListener cl=(CacheListener)val;
+			cl.cachedEvent(key);
+		}
+		purge();
+		Node<K, V> n=new Node<K, V>(key, val);
+		Node<K, V> old=data.put(key, n);
+		watcher.watch(key, n, val);
+		List<Node<K, V>> evicted=null;
+		lock.lock();
+		try {
+			drainReads();
+			if(old != null) {
+				unlink(old);
+			}
+			// It may have been replaced or removed in the meantime.
+			if(data.get(key) == n) {
+				link(n);
+			}
+			evicted=evict();
+		} finally {
+			lock.unlock();
+		}
+		for(Node<K, V> e : evicted) {
+			sendRemovedEvent(e.key, e.value);
+		}
+		return old == null ? null : old.value;
+	}
+
+	@Override
+	public V remove(Object key) {
+		V rv=null;
+		Node<K, V> n=data.remove(key);
+		if(n != null) {
+			removed(n);
+			rv=n.value;
+		}
+		return rv;
+	}
+
+	// Take an entry that's been removed from the map out of the list.
+	private void removed(Node<K, V> n) {
+		watcher.forget(n.key, n);
+		lock.lock();
+		try {
+			unlink(n);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return data.containsKey(key);
+	}
+
+	@Override
+	public int size() {
+		return data.size();
+	}
+
+	@Override
+	public void clear() {
+		lock.lock();
+		try {
+			drainReads();
+			for(Node<K, V> n=head.next; n != head; n=n.next) {
+				data.remove(n.key, n);
+				n.linked=false;
+			}
+			head.prev=head;
+			head.next=head;
+			linked=0;
+			watcher.clear();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Set<Map.Entry<K, V>> entrySet() {
+		return new EntrySet();
+	}
+
+	/**
+	 * Get this cache's statistics.
+	 */
+	public CacheStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * Publish this cache's statistics under the given name.  Counts from
+	 * before it's published aren't carried over.
+	 *
+	 * @param name the name
+	 * @see CacheStats
+	 */
+	public void publishStats(String name) {
+		if(name == null) {
+			throw new NullPointerException("Invalid stats name <null>");
+		}
+		stats=newStats(name);
+	}
+
+	private CacheStats newStats(String name) {
+		GaugeStat.Source s=new GaugeStat.Source() {
+			public long getValue() {
+				return size();
+			}
+		};
+		// Every entry weighs one.
+		return new CacheStats(name, s, s);
+	}
+
+	// Remove the entries whose referenced values have been collected.
+	private void purge() {
+		ReferenceWatcher.Watch<K, Node<K, V>> w=null;
+		while((w=watcher.poll()) != null) {
+			if(data.remove(w.key, w.entry)) {
+				removed(w.entry);
+				stats.evicted(EvictionCause.COLLECTED);
+			}
+		}
+	}
+
+	// Move the buffered reads' entries to the end of the list.  The lock
+	// must be held.
+	private void drainReads() {
+		Node<K, V> n=null;
+		while((n=reads.poll()) != null) {
+			buffered.decrementAndGet();
+			if(n.linked) {
+				unlink(n);
+				link(n);
+			}
+		}
+	}
+
+	// Remove the least recently used entries beyond the maximum size.  The
+	// lock must be held.
+	private List<Node<K, V>> evict() {
+		List<Node<K, V>> rv=new ArrayList<Node<K, V>>(1);
+		while(linked > maxSize) {
+			Node<K, V> n=head.next;
+			unlink(n);
+			if(data.remove(n.key, n)) {
+				watcher.forget(n.key, n);
+				stats.evicted(EvictionCause.SIZE);
+				rv.add(n);
+			}
+		}
+		return rv;
+	}
+
+	// The lock must be held.
+	private void link(Node<K, V> n) {
+		n.prev=head.prev;
+		n.next=head;
+		head.prev.next=n;
+		head.prev=n;
+		n.linked=true;
+		linked++;
+	}
+
+	// The lock must be held.
+	private void unlink(Node<K, V> n) {
+		if(n.linked) {
+			n.prev.next=n.next;
+			n.next.prev=n.prev;
+			n.prev=null;
+			n.next=null;
+			n.linked=false;
+			linked--;
+		}
+	}
+
+	// When an object is evicted from the cache, send a removed event if it
+	// wants to hear it
+	private void sendRemovedEvent(Object key, Object value) {
+		if(value instanceof CacheListener) {
+			CacheListener cl=(CacheListener)value;
+			cl.uncachedEvent(key);
+		}
+	}
+
+	// An entry, which is also its place in the recency list.
+	private static final class Node<K, V> implements Map.Entry<K, V> {
+		final K key;
+		final V value;
+		// Guarded by the cache's lock
+		Node<K, V> prev=null;
+		Node<K, V> next=null;
+		boolean linked=false;
+		public Node(K k, V v) {
+			super();
+			key=k;
+			value=v;
+		}
+		public K getKey() {
+			return key;
+		}
+		public V getValue() {
+			return value;
+		}
+		public V setValue(V v) {
+			throw new UnsupportedOperationException();
+		}
+		@Override
+		public boolean equals(Object o) {
+			boolean rv=false;
+			if(o instanceof Map.Entry) {
+				Map.Entry<?, ?> e=(Map.Entry<?, ?>)o;
+				rv=eq(key, e.getKey()) && eq(value, e.getValue());
+			}
+			return rv;
+		}
+		@Override
+		public int hashCode() {
+			return (key == null ? 0 : key.hashCode())
+				^ (value == null ? 0 : value.hashCode());
+		}
+		@Override
+		public String toString() {
+			return key + "=" + value;
+		}
+		private static boolean eq(Object a, Object b) {
+			return a == null ? b == null : a.equals(b);
+		}
+	}
+
+	// The entries, in no particular order.
+	private final class EntrySet extends AbstractSet<Map.Entry<K, V>> {
+		public EntrySet() {
+			super();
+		}
+		@Override
+		public int size() {
+			return ConcurrentLRUCache.this.size();
+		}
+		@Override
+		public Iterator<Map.Entry<K, V>> iterator() {
+			final Iterator<Node<K, V>> i=data.values().iterator();
+			return new Iterator<Map.Entry<K, V>>() {
+				private Node<K, V> current=null;
+				public boolean hasNext() {
+					return i.hasNext();
+				}
+				public Map.Entry<K, V> next() {
+					current=i.next();
+					return current;
+				}
+				public void remove() {
+					if(current == null) {
+						throw new IllegalStateException();
+					}
+					if(data.remove(current.key, current)) {
+						removed(current);
+					}
+					current=null;
+				}
+			};
+		}
+	}
+}
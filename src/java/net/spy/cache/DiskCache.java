@@ -3,41 +3,114 @@
 package net.spy.cache;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.lang.ref.SoftReference;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
 import java.util.AbstractMap;
-import java.util.HashSet;
+import java.util.AbstractSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.spy.SpyThread;
+import net.spy.cache.CacheStats.EvictionCause;
+import net.spy.stat.GaugeStat;
 
 import net.spy.log.Logger;
 import net.spy.log.LoggerFactory;
-import net.spy.util.CloseUtil;
-import net.spy.util.SpyUtil;
 
 /**
  * Simple local disk caching.
  *
  * This is used for terribly simple caches with no expiration dates on
  * objects.  Things go in and they stay in.
+ *
+ * <p>
+ *  Entries are appended to a log of segment files under the base
+ *  directory (see {@link SegmentStore}) rather than written to a file
+ *  each, and an in-memory index of keys serves lookups, iteration and
+ *  size.  Superseded records are compacted away in the background.  The
+ *  index is periodically saved to a manifest file, so opening the cache
+ *  only has to read that and whatever was written after it.  Values in
+ *  sealed segments are read from memory mappings (see
+ *  {@link #setMaxMappedSegments(int)}).
+ * </p>
+ *
+ * <p>
+ *  Entries may be given a time to live, and the cache may be limited to a
+ *  number of entries and a number of bytes.  The index tracks when each
+ *  entry was last read or written, and an evictor periodically removes
+ *  expired entries and then approximately the least recently used ones
+ *  until the cache is within its limits.  Each run does a bounded amount
+ *  of work, so a cache far over its limits gets back within them over a
+ *  few runs.
+ * </p>
+ *
+ * <p>
+ *  Keys and values are encoded with a {@link Serializer}; by default a
+ *  {@link CompactSerializer}.  Values may also be compressed (see
+ *  {@link #setCompressionThreshold(int)}).
+ * </p>
+ *
+ * <p>
+ *  In write-behind mode (see {@link #setWriteBehind(long)}) puts and
+ *  removals are staged in memory, where they're immediately visible, and a
+ *  background thread writes them to disk in batches.  Repeated writes to
+ *  a key before it's written only write the latest value.  Values must
+ *  not be modified once they're stored.  {@link #flush()} and
+ *  {@link #close()} write everything staged.
+ * </p>
+ *
+ * <p>
+ *  Hits, misses and evictions are counted in the cache's
+ *  {@link CacheStats}, whose size and weight are the number of entries
+ *  and bytes of live records on disk.
+ * </p>
  */
 public class DiskCache extends AbstractMap<Serializable, Serializable> {
 
 	// Base directory for hashing
 	final String basedir;
-	private final LRUCache<Serializable, SoftReference<Serializable>> lruCache;
+	private final ConcurrentLRUCache<Serializable,
+		SoftReference<Serializable>> lruCache;
+	final SegmentStore store;
+	private final Serializer serializer;
+	private final Timer timer=new Timer("DiskCacheCompactor", true);
 
 	private static final int DEFAULT_LRU_CACHE_SIZE=100;
 
+	/**
+	 * Segments are sealed once they reach this size.
+	 */
+	public static final long DEFAULT_SEGMENT_SIZE=16*1024*1024;
+	// How often to look for segments to compact.
+	private static final long COMPACTION_INTERVAL=60000;
+	// Compact segments with at least this fraction of dead records.
+	private static final double COMPACTION_THRESHOLD=0.5;
+	// How often to evict expired entries and enforce the limits.
+	private static final long EVICTION_INTERVAL=1000;
+
+	// Staged writes beyond which puts write on the calling thread.
+	private static final int MAX_STAGED=10000;
+
+	private volatile int maxEntries=0;
+	private volatile long maxBytes=0;
+
+	private final ConcurrentMap<Serializable, Pending> staged=
+		new ConcurrentHashMap<Serializable, Pending>();
+	// Serializes writing staged values.
+	private final Object writerLock=new Object();
+	private volatile long writeDelay=0;
+	// Only running while write-behind is on; guarded by writerLock.
+	Writer writer=null;
+	private volatile boolean returnPrevious=true;
+	private volatile CacheStats stats=newStats(null);
+
 	private transient Logger logger = null;
 
 	/**
@@ -56,10 +129,48 @@ public class DiskCache extends AbstractMap<Serializable, Serializable> {
 	 *		objects
 	 */
 	public DiskCache(String base, int lruCacheSize) {
+		this(base, lruCacheSize, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * Get a DiskCache using the given directory, LRU cache size and segment
+	 * size.
+	 *
+	 * @param base the base directory for the disk cache
+	 * @param lruCacheSize the size of the LRU cache holding recently accessed
+	 *		objects
+	 * @param segmentSize the size at which a segment file is sealed
+	 */
+	public DiskCache(String base, int lruCacheSize, long segmentSize) {
+		this(base, lruCacheSize, segmentSize, new CompactSerializer());
+	}
+
+	/**
+	 * Get a DiskCache using the given directory, LRU cache size, segment
+	 * size and serializer.  A cache must always be opened with the
+	 * serializer it was written with.
+	 *
+	 * @param base the base directory for the disk cache
+	 * @param lruCacheSize the size of the LRU cache holding recently accessed
+	 *		objects
+	 * @param segmentSize the size at which a segment file is sealed
+	 * @param s the serializer for keys and values
+	 */
+	public DiskCache(String base, int lruCacheSize, long segmentSize,
+		Serializer s) {
 		super();
 		this.basedir=base;
-		lruCache=new LRUCache<Serializable,
+		serializer=s;
+		lruCache=new ConcurrentLRUCache<Serializable,
 			SoftReference<Serializable>>(lruCacheSize);
+		try {
+			store=new SegmentStore(new File(base), segmentSize, serializer);
+		} catch(IOException e) {
+			throw new RuntimeException("Error opening disk cache", e);
+		}
+		timer.schedule(new Compactor(), COMPACTION_INTERVAL,
+			COMPACTION_INTERVAL);
+		timer.schedule(new Evictor(), EVICTION_INTERVAL, EVICTION_INTERVAL);
 	}
 
 	/**
@@ -69,35 +180,6 @@ public class DiskCache extends AbstractMap<Serializable, Serializable> {
 		return(basedir);
 	}
 
-	// Get the path of an object for the given key
-	private String getPath(Object key) {
-		MessageDigest md=null;
-		try {
-			md=MessageDigest.getInstance("SHA");
-		} catch(NoSuchAlgorithmException e) {
-			throw new AssertionError("There's no SHA?");
-		}
-		if(key instanceof String) {
-			String k=(String)key;
-			md.update(k.getBytes());
-		} else {
-			String tmpkey=key.getClass().getName() + key.hashCode();
-			md.update(tmpkey.getBytes());
-		}
-
-		String hashed=SpyUtil.byteAToHexString(md.digest());
-
-		String base=basedir+"/"+hashed.substring(0,2);
-		String path=base+"/"+hashed;
-
-		File f=new File(base);
-		if(!f.isDirectory()) {
-			f.mkdirs();
-		}
-
-		return(path);
-	}
-
 	/**
 	 * Store an object in the cache.
 	 *
@@ -107,24 +189,27 @@ public class DiskCache extends AbstractMap<Serializable, Serializable> {
 	 */
     @Override
 	public Serializable put(Serializable k, Serializable v) {
-		Serializable rv=get(k);
-
-		String pathto=getPath(k);
+		return(put(k, v, 0));
+	}
 
-		FileOutputStream ostream=null;
-		ObjectOutputStream p=null;
-		try {
-			ostream = new FileOutputStream(pathto);
-			p = new ObjectOutputStream(ostream);
-			p.writeObject(k);
-			p.writeObject(v);
-			p.flush();
-		} catch(IOException e) {
-			throw new RuntimeException("Error storing object", e);
-		} finally {
-			CloseUtil.close(p);
-			CloseUtil.close(ostream);
+	/**
+	 * Store an object in the cache for a limited time.
+	 *
+	 * @param k object key
+	 * @param v value
+	 * @param ttl how long (in milliseconds) the object should be kept, or 0
+	 *		to keep it until it's removed or evicted
+	 * @return the old object stored in that location (if any)
+	 */
+	public Serializable put(Serializable k, Serializable v, long ttl) {
+		if(ttl < 0) {
+			throw new IllegalArgumentException("Invalid TTL:  " + ttl);
 		}
+		Serializable rv=returnPrevious ? lookup(k) : null;
+
+		long expires=ttl == 0 ? 0 : System.currentTimeMillis() + ttl;
+		write(k, new Pending(v, expires));
+		lruCache.put(k, new SoftReference<Serializable>(v));
 
 		return(rv);
 	}
@@ -136,22 +221,365 @@ public class DiskCache extends AbstractMap<Serializable, Serializable> {
 	 */
     @Override
 	public Serializable get(Object key) {
+		Serializable rv=lookup(key);
+		if(rv == null) {
+			stats.miss();
+		} else {
+			stats.hit();
+		}
+		return(rv);
+	}
+
+	// Get an object without counting a hit or miss.
+	private Serializable lookup(Object key) {
 		Serializable rv=null;
 
 		if(key==null) {
 			throw new NullPointerException("Name not provided");
 		}
 
+		Pending p=staged.isEmpty() ? null : staged.get(key);
+		if(p == null) {
+			rv=getStored(key);
+		} else if(p.isLive(System.currentTimeMillis())) {
+			rv=p.value;
+		}
+
+		return(rv);
+	}
+
+	// Get a value from the LRU cache or the disk.
+	private Serializable getStored(Object key) {
+		Serializable rv=null;
+
 		rv=(Serializable) lruCache.get(key);
-		if(rv==null) {
+		if(rv != null && !store.touch(key)) {
+			// Expired or evicted since it was cached here.
+			lruCache.remove(key);
+			rv=null;
+		} else if(rv==null) {
 			rv=(Serializable) getFromDiskCache(key);
-			lruCache.put((Serializable) key,
+			if(rv != null) {
+				lruCache.put((Serializable) key,
 					new SoftReference<Serializable>(rv));
+			}
+		}
+
+		return(rv);
+	}
+
+	// Get when the entry for a key expires, or 0 if it doesn't (or isn't
+	// there).
+	long getExpiration(Object key) {
+		Pending p=staged.isEmpty() ? null : staged.get(key);
+		return(p == null ? store.getExpiration(key) : p.expires);
+	}
+
+	/**
+	 * Remove an object from the cache.
+	 *
+	 * @return the object that was removed, or null if there wasn't one
+	 */
+	@Override
+	public Serializable remove(Object key) {
+		Serializable rv=returnPrevious ? lookup(key) : null;
+		lruCache.remove(key);
+		write((Serializable)key, Pending.REMOVED);
+		return(rv);
+	}
+
+	// Write a value or removal, or stage it in write-behind mode.
+	private void write(Serializable key, Pending p) {
+		try {
+			if(writeDelay > 0) {
+				staged.put(key, p);
+				// Write-behind may have been turned off after the check, in
+				// which case nothing else will write this.
+				if(writeDelay == 0 || staged.size() > MAX_STAGED) {
+					writeStaged();
+				}
+			} else if(staged.isEmpty()) {
+				writeToStore(key, p);
+			} else {
+				// Something's still staged, maybe for this key.  It mustn't
+				// hide this write or be written over it later.
+				synchronized(writerLock) {
+					staged.remove(key);
+					writeToStore(key, p);
+				}
+			}
+		} catch(IOException e) {
+			throw new RuntimeException("Error storing object", e);
 		}
+	}
+
+	private void writeToStore(Serializable key, Pending p)
+		throws IOException {
+		if(p == Pending.REMOVED) {
+			store.remove(key, serializer.serialize(key));
+		} else {
+			store.put(key, serializer.serialize(key),
+				serializer.serialize(p.value), p.expires);
+		}
+	}
+
+	// Write everything currently staged.  Anything that can't be written
+	// stays staged, and the first failure is thrown.
+	private void writeStaged() throws IOException {
+		IOException failure=null;
+		synchronized(writerLock) {
+			for(Map.Entry<Serializable, Pending> me : staged.entrySet()) {
+				Pending p=me.getValue();
+				try {
+					writeToStore(me.getKey(), p);
+					// Only if it hasn't been replaced in the meantime.
+					staged.remove(me.getKey(), p);
+				} catch(IOException e) {
+					if(failure == null) {
+						failure=e;
+					}
+				}
+			}
+		}
+		if(failure != null) {
+			throw failure;
+		}
+	}
 
+	/**
+	 * Write everything staged and force it to disk.
+	 *
+	 * @throws IOException if something can't be written
+	 */
+	public void flush() throws IOException {
+		writeStaged();
+		store.force();
+	}
+
+	/**
+	 * Set how long puts and removals may be held in memory before they're
+	 * written to disk.  Turning off write-behind mode stops the background
+	 * writer and writes everything that's staged.
+	 *
+	 * @param delay the delay in milliseconds, or 0 to write on the calling
+	 *		thread
+	 */
+	public void setWriteBehind(long delay) throws IOException {
+		if(delay < 0) {
+			throw new IllegalArgumentException("Invalid write delay:  "
+				+ delay);
+		}
+		synchronized(writerLock) {
+			writeDelay=delay;
+			if(delay > 0 && writer == null) {
+				writer=new Writer();
+			} else if(delay == 0 && writer != null) {
+				writer.requestStop();
+				writer=null;
+			}
+			// Before any direct write can get in.
+			if(delay == 0) {
+				writeStaged();
+			}
+		}
+	}
+
+	/**
+	 * Set whether put and remove return the previous value.  When they
+	 * don't, they return null without reading it.
+	 */
+	public void setReturnPrevious(boolean to) {
+		returnPrevious=to;
+	}
+
+	/**
+	 * True if there's an object stored under the given key.
+	 */
+	@Override
+	public boolean containsKey(Object key) {
+		Pending p=staged.isEmpty() ? null : staged.get(key);
+		boolean rv=false;
+		if(p == null) {
+			rv=store.containsKey(key);
+		} else {
+			rv=p.isLive(System.currentTimeMillis());
+		}
 		return(rv);
 	}
 
+	/**
+	 * Get the number of objects in the cache.  Anything staged is written
+	 * first.
+	 */
+	@Override
+	public int size() {
+		writeStagedUnchecked();
+		return(store.size());
+	}
+
+	private void writeStagedUnchecked() {
+		if(!staged.isEmpty()) {
+			try {
+				writeStaged();
+			} catch(IOException e) {
+				throw new RuntimeException("Error storing object", e);
+			}
+		}
+	}
+
+	/**
+	 * Remove everything from the cache.
+	 */
+	@Override
+	public void clear() {
+		lruCache.clear();
+		synchronized(writerLock) {
+			staged.clear();
+			try {
+				store.clear();
+			} catch(IOException e) {
+				throw new RuntimeException("Error clearing cache", e);
+			}
+		}
+	}
+
+	/**
+	 * Set the maximum number of sealed segment files kept mapped into
+	 * memory for reading.
+	 *
+	 * @param max the number of mappings, or 0 to read without mapping
+	 */
+	public void setMaxMappedSegments(int max) {
+		store.setMaxMappings(max);
+	}
+
+	/**
+	 * Set the encoded size at which values are compressed when they're
+	 * stored.  Values that don't get smaller are stored as they are.
+	 *
+	 * @param threshold the size in bytes, or 0 to not compress values
+	 */
+	public void setCompressionThreshold(int threshold) {
+		store.setCompressionThreshold(threshold);
+	}
+
+	/**
+	 * Set the maximum number of entries the evictor allows in the cache.
+	 *
+	 * @param max the number of entries, or 0 for no limit
+	 */
+	public void setMaximumSize(int max) {
+		if(max < 0) {
+			throw new IllegalArgumentException("Invalid maximum size:  "
+				+ max);
+		}
+		maxEntries=max;
+	}
+
+	/**
+	 * Get the maximum number of entries, or 0 if there's no limit.
+	 */
+	public int getMaximumSize() {
+		return(maxEntries);
+	}
+
+	/**
+	 * Set the maximum number of bytes of live records the evictor allows
+	 * on disk.  Superseded records are not counted, as compaction reclaims
+	 * them.
+	 *
+	 * @param max the number of bytes, or 0 for no limit
+	 */
+	public void setMaximumBytes(long max) {
+		if(max < 0) {
+			throw new IllegalArgumentException("Invalid maximum bytes:  "
+				+ max);
+		}
+		maxBytes=max;
+	}
+
+	/**
+	 * Get the maximum number of bytes, or 0 if there's no limit.
+	 */
+	public long getMaximumBytes() {
+		return(maxBytes);
+	}
+
+	/**
+	 * Remove expired entries, and then the least recently used entries
+	 * until the cache is within its limits.  This is done periodically in
+	 * the background.  One call does a bounded amount of work, so it may
+	 * take a few to get within the limits.
+	 *
+	 * @return the number of entries removed
+	 */
+	public int evict() throws IOException {
+		long now=System.currentTimeMillis();
+		int expired=store.expire(now);
+		stats.evicted(EvictionCause.EXPIRED, expired);
+		int shrunk=store.shrink(maxBytes, maxEntries, now);
+		stats.evicted(EvictionCause.SIZE, shrunk);
+		return(expired + shrunk);
+	}
+
+	/**
+	 * Get this cache's statistics.
+	 */
+	public CacheStats getStats() {
+		return(stats);
+	}
+
+	/**
+	 * Publish this cache's statistics under the given name.  Counts from
+	 * before it's published aren't carried over.
+	 *
+	 * @param name the name
+	 * @see CacheStats
+	 */
+	public void publishStats(String name) {
+		if(name == null) {
+			throw new NullPointerException("Invalid stats name <null>");
+		}
+		stats=newStats(name);
+	}
+
+	private CacheStats newStats(String name) {
+		return(new CacheStats(name, new GaugeStat.Source() {
+			public long getValue() {
+				return(store.size());
+			}
+		}, new GaugeStat.Source() {
+			public long getValue() {
+				return(store.getLiveBytes());
+			}
+		}));
+	}
+
+	/**
+	 * Compact any segments that are mostly superseded records.
+	 *
+	 * @return the number of segments compacted
+	 */
+	public int compact() throws IOException {
+		return(store.compact(COMPACTION_THRESHOLD));
+	}
+
+	/**
+	 * Stop background work, write anything staged and close the segment
+	 * files.
+	 */
+	public void close() throws IOException {
+		timer.cancel();
+		synchronized(writerLock) {
+			if(writer != null) {
+				writer.requestStop();
+				writer=null;
+			}
+		}
+		writeStaged();
+		store.close();
+	}
+
 	private Logger getLogger() {
 		if(logger==null) {
 			logger=LoggerFactory.getLogger(getClass());
@@ -163,29 +591,13 @@ public class DiskCache extends AbstractMap<Serializable, Serializable> {
 
 		Object rv=null;
 
-		FileInputStream istream=null;
-		ObjectInputStream p=null;
 		try {
-			istream = new FileInputStream(getPath(key));
-			p = new ObjectInputStream(istream);
-			Object storedKey = p.readObject();
-			Object o = p.readObject();
-
-			if(!key.equals(storedKey)) {
-				throw new Exception("Key value did not match ("
-					+ storedKey + " != " + key + ")");
-			}
-
-			rv=o;
-		} catch(FileNotFoundException e) {
-			if(getLogger().isDebugEnabled()) {
-				getLogger().debug("File not found loading disk cache", e);
+			ByteBuffer b=store.get(key);
+			if(b != null) {
+				rv=serializer.deserialize(b);
 			}
-		} catch(Exception e) {
+		} catch(IOException e) {
 			getLogger().warn("Error getting ``%s'' from disk cache", key, e);
-		} finally {
-			CloseUtil.close(p);
-			CloseUtil.close(istream);
 		}
 
 		return(rv);
@@ -193,53 +605,20 @@ public class DiskCache extends AbstractMap<Serializable, Serializable> {
 
 	@Override
 	public Set<Map.Entry<Serializable, Serializable>> entrySet() {
-		Set<Map.Entry<Serializable, Serializable>> rv=null;
-
-		try {
-			rv=new WalkerDiskCacheRanger();
-		} catch(ClassNotFoundException e) {
-			throw new RuntimeException("Error getting set", e);
-		} catch(IOException e) {
-			throw new RuntimeException("Error getting set", e);
-		}
-
-		return(rv);
+		return(new EntrySet());
 	}
 
-	private class WalkerDiskCacheRanger
-		extends HashSet<Map.Entry<Serializable, Serializable>> {
+	// The entries, straight from the index.
+	private class EntrySet
+		extends AbstractSet<Map.Entry<Serializable, Serializable>> {
 
-		public WalkerDiskCacheRanger()
-			throws IOException, ClassNotFoundException {
+		public EntrySet() {
 			super();
-
-			init(new File(basedir));
 		}
 
-		private void init(File f) throws IOException, ClassNotFoundException {
-			if(f.isDirectory()) {
-				// If it's a directory, recurse
-				File[] stuff=f.listFiles();
-				for(int i=0; i<stuff.length; i++) {
-					init(stuff[i]);
-				}
-			} else {
-				// Regular file, open it and read it
-				FileInputStream istream = null;
-				ObjectInputStream p = null;
-				Serializable key=null;
-				try {
-					istream = new FileInputStream(f);
-					p = new ObjectInputStream(istream);
-					key=(Serializable) p.readObject();
-				} finally {
-					CloseUtil.close(p);
-					CloseUtil.close(istream);
-				}
-
-				// Add the new entry.
-				add(new E(key, f));
-			}
+		@Override
+		public int size() {
+			return(DiskCache.this.size());
 		}
 
 		/**
@@ -247,21 +626,22 @@ public class DiskCache extends AbstractMap<Serializable, Serializable> {
 		 */
 		@Override
 		public Iterator<Entry<Serializable, Serializable>> iterator() {
-			return(new I(super.iterator()));
+			writeStagedUnchecked();
+			return(new I(store.keys().iterator()));
 		}
 
 	}
 
 	// Iterator implementation
-	private static class I extends
+	private class I extends
 		Object implements Iterator<Entry<Serializable, Serializable>> {
 
-		private final Iterator<Map.Entry<Serializable, Serializable>> i;
+		private final Iterator<Object> i;
 		private E current=null;
 		private boolean begun=false;
 
-		// Instatiate the iterator over the default iterator implementation
-		public I(Iterator<Map.Entry<Serializable, Serializable>> it) {
+		// Instatiate the iterator over the index's keys
+		public I(Iterator<Object> it) {
 			super();
 			i=it;
 		}
@@ -271,7 +651,7 @@ public class DiskCache extends AbstractMap<Serializable, Serializable> {
 		 */
 		public E next() {
 			begun=true;
-			current=(E) i.next();
+			current=new E((Serializable)i.next());
 			return(current);
 		}
 
@@ -290,24 +670,20 @@ public class DiskCache extends AbstractMap<Serializable, Serializable> {
 				throw new IllegalStateException("Have not yet begun walking.");
 			}
 
-			File f=current.getPath();
-			f.delete();
-			i.remove();
+			DiskCache.this.remove(current.getKey());
 		}
 
 	}
 
 	// Map entry implementation
-	private static class E extends Object
+	private class E extends Object
 		implements Map.Entry<Serializable, Serializable> {
 
-		final File path;
 		final Serializable k;
 
-		public E(Serializable key, File p) {
+		public E(Serializable key) {
 			super();
 			k=key;
-			path=p;
 		}
 
 		/**
@@ -325,13 +701,6 @@ public class DiskCache extends AbstractMap<Serializable, Serializable> {
 			return(rv);
 		}
 
-		/**
-		 * Get the path to the file.
-		 */
-		public File getPath() {
-			return(path);
-		}
-
 		/**
 		 * Get the key.
 		 */
@@ -351,26 +720,7 @@ public class DiskCache extends AbstractMap<Serializable, Serializable> {
 		 * Get the value.
 		 */
 		public Serializable getValue() {
-			Serializable rv=null;
-
-			FileInputStream istream=null;
-			ObjectInputStream p=null;
-			try {
-				istream = new FileInputStream(path);
-				p = new ObjectInputStream(istream);
-				Object key=p.readObject();
-				assert(key.equals(k));
-				rv=(Serializable) p.readObject();
-			} catch(IOException e) {
-				throw new RuntimeException("Error getting object",e);
-			} catch(ClassNotFoundException e) {
-				throw new RuntimeException("Error getting object",e);
-			} finally {
-				CloseUtil.close(p);
-				CloseUtil.close(istream);
-			}
-
-			return(rv);
+			return(lookup(k));
 		}
 
 		/**
@@ -382,4 +732,90 @@ public class DiskCache extends AbstractMap<Serializable, Serializable> {
 
 	}
 
+	// A staged value or removal.
+	private static final class Pending {
+		static final Pending REMOVED=new Pending(null, 0);
+		final Serializable value;
+		final long expires;
+		public Pending(Serializable v, long e) {
+			super();
+			value=v;
+			expires=e;
+		}
+		boolean isLive(long now) {
+			return(this != REMOVED && (expires == 0 || expires > now));
+		}
+	}
+
+	// Writes staged values in the background.  It waits on writerLock
+	// rather than sleeping so stopping it doesn't need an interrupt, which
+	// would close any file channel it was in the middle of using.
+	class Writer extends SpyThread {
+		private volatile boolean running=true;
+
+		public Writer() {
+			super("DiskCacheWriter");
+			setDaemon(true);
+			start();
+		}
+
+		// Called holding writerLock.
+		public void requestStop() {
+			running=false;
+			writerLock.notifyAll();
+		}
+
+		@Override
+		public void run() {
+			while(running) {
+				try {
+					synchronized(writerLock) {
+						// writeDelay is never 0 while this is running.
+						if(running) {
+							writerLock.wait(writeDelay);
+						}
+					}
+					if(running) {
+						writeStaged();
+					}
+				} catch(InterruptedException e) {
+					// Check whether we've been asked to stop.
+				} catch(IOException e) {
+					getLogger().warn("Problem writing to disk cache", e);
+				}
+			}
+		}
+	}
+
+	// Removes expired and excess entries in the background.
+	private class Evictor extends TimerTask {
+		public Evictor() {
+			super();
+		}
+		@Override
+		public void run() {
+			try {
+				evict();
+			} catch(IOException e) {
+				getLogger().warn("Problem evicting from disk cache", e);
+			}
+		}
+	}
+
+	// Compacts segments and saves the index in the background.
+	private class Compactor extends TimerTask {
+		public Compactor() {
+			super();
+		}
+		@Override
+		public void run() {
+			try {
+				compact();
+				store.checkpoint();
+			} catch(IOException e) {
+				getLogger().warn("Problem maintaining disk cache", e);
+			}
+		}
+	}
+
 }
@@ -0,0 +1,24 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.cache;
+
+/**
+ * Notified when a cache evicts an entry to stay within its bounds.
+ * Entries that expire or are removed explicitly aren't reported.
+ *
+ * @see SimpleCache#setEvictionListener(EvictionListener)
+ */
+public interface EvictionListener {
+
+	/**
+	 * Called after an entry has been evicted, on the thread whose store
+	 * caused the eviction.
+	 *
+	 * @param key the entry's key
+	 * @param value the entry's value
+	 * @param expires when the entry would have expired (in milliseconds
+	 *	since the epoch), or Long.MAX_VALUE if it wouldn't have
+	 */
+	void evicted(String key, Object value, long expires);
+
+}
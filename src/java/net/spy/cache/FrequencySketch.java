@@ -0,0 +1,136 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.cache;
+
+/**
+ * A count-min sketch estimating how often keys have been seen recently.
+ *
+ * <p>
+ *  Each key maps onto four 4-bit counters spread over a table of longs, and
+ *  its estimated frequency is the smallest of the four.  Once the number of
+ *  recorded increments reaches ten times the cache's maximum size every
+ *  counter is halved, so the estimates favor recent history.
+ * </p>
+ *
+ * <p>
+ *  The table can be grown with {@link #ensureCapacity(int)} without losing
+ *  what's been counted.
+ * </p>
+ *
+ * <p>
+ *  This class is not thread safe.
+ * </p>
+ */
+final class FrequencySketch {
+
+	private static final long[] SEEDS={
+		0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+		0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+	private static final long RESET_MASK=0x7777777777777777L;
+	private static final int MAX_COUNT=15;
+
+	private long[] table;
+	private int tableMask;
+	private int sampleSize;
+	private int additions=0;
+
+	/**
+	 * Get a FrequencySketch sized for a cache of the given maximum size.
+	 */
+	public FrequencySketch(int maximum) {
+		super();
+		table=new long[tableSize(maximum)];
+		tableMask=table.length - 1;
+		sampleSize=10 * Math.max(maximum, 1);
+	}
+
+	private static int tableSize(int maximum) {
+		int max=Math.max(maximum, 1);
+		int rv=Integer.highestOneBit(max);
+		if(rv < max) {
+			rv<<=1;
+		}
+		return rv;
+	}
+
+	/**
+	 * Grow the sketch for a cache of the given maximum size, keeping every
+	 * key's estimate.  A key's counters are found by masking a hash with
+	 * the table size, so in a table twice the size they're at the same
+	 * index or that plus the old size.  Copying the old table into both
+	 * halves leaves them where they'll be looked for.
+	 */
+	public void ensureCapacity(int maximum) {
+		int n=tableSize(maximum);
+		if(n > table.length) {
+			long[] t=new long[n];
+			for(int i=0; i<n; i+=table.length) {
+				System.arraycopy(table, 0, t, i, table.length);
+			}
+			table=t;
+			tableMask=n - 1;
+		}
+		sampleSize=Math.max(sampleSize, 10 * Math.max(maximum, 1));
+	}
+
+	/**
+	 * Get the estimated number of times the given key has been seen.
+	 */
+	public int frequency(Object k) {
+		int hash=spread(k.hashCode());
+		int start=(hash & 3) << 2;
+		int rv=MAX_COUNT;
+		for(int i=0; i<4; i++) {
+			int index=indexOf(hash, i);
+			int count=(int)((table[index] >>> ((start + i) << 2)) & 0xfL);
+			rv=Math.min(rv, count);
+		}
+		return rv;
+	}
+
+	/**
+	 * Record an occurrence of the given key.
+	 */
+	public void increment(Object k) {
+		int hash=spread(k.hashCode());
+		int start=(hash & 3) << 2;
+		boolean added=false;
+		for(int i=0; i<4; i++) {
+			added |= incrementAt(indexOf(hash, i), start + i);
+		}
+		if(added && ++additions == sampleSize) {
+			reset();
+		}
+	}
+
+	private boolean incrementAt(int i, int j) {
+		int offset=j << 2;
+		long mask=0xfL << offset;
+		boolean rv=false;
+		if((table[i] & mask) != mask) {
+			table[i]+=1L << offset;
+			rv=true;
+		}
+		return rv;
+	}
+
+	// Age all of the counters by half.
+	private void reset() {
+		for(int i=0; i<table.length; i++) {
+			table[i]=(table[i] >>> 1) & RESET_MASK;
+		}
+		additions/=2;
+	}
+
+	private int indexOf(int item, int i) {
+		long hash=(item + SEEDS[i]) * SEEDS[i];
+		hash+=hash >>> 32;
+		return ((int)hash) & tableMask;
+	}
+
+	private static int spread(int x) {
+		int h=((x >>> 16) ^ x) * 0x45d9f3b;
+		h=((h >>> 16) ^ h) * 0x45d9f3b;
+		return (h >>> 16) ^ h;
+	}
+}
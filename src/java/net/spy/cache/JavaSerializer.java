@@ -0,0 +1,35 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Serializer using java object serialization.
+ */
+public final class JavaSerializer implements Serializer {
+
+	public byte[] serialize(Object o) throws IOException {
+		ByteArrayOutputStream bos=new ByteArrayOutputStream(256);
+		ObjectOutputStream oos=new ObjectOutputStream(bos);
+		oos.writeObject(o);
+		oos.close();
+		return bos.toByteArray();
+	}
+
+	public Object deserialize(ByteBuffer b) throws IOException {
+		ObjectInputStream ois=new ObjectInputStream(
+			new ByteBufferInputStream(b));
+		try {
+			return ois.readObject();
+		} catch(ClassNotFoundException e) {
+			IOException toThrow=new IOException("Can't load stored class");
+			toThrow.initCause(e);
+			throw toThrow;
+		}
+	}
+}
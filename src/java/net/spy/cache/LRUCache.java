@@ -2,16 +2,36 @@
 
 package net.spy.cache;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.lang.ref.Reference;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
+import net.spy.cache.CacheStats.EvictionCause;
+import net.spy.stat.GaugeStat;
+
 /**
  * A fixed-size least-recently-used cache.
+ *
+ * <p>
+ *  Hits, misses and evictions are counted in the cache's
+ *  {@link CacheStats}.  Entries whose references have been cleared are
+ *  counted as misses.
+ * </p>
+ *
+ * <p>
+ *  Values that are soft or weak references are watched (see
+ *  {@link ReferenceWatcher}), and entries whose values the garbage
+ *  collector has reclaimed are removed on the next put.
+ * </p>
  */
 public class LRUCache<K,V> extends LinkedHashMap<K,V> {
 
 	private final int maxSize;
+	private transient volatile CacheStats stats=newStats(null);
+	private transient ReferenceWatcher<K, V> watcher=
+		new ReferenceWatcher<K, V>();
 
 	/**
 	 * Get an instance of LRUCache.
@@ -31,16 +51,87 @@ public class LRUCache<K,V> extends LinkedHashMap<K,V> {
 		if(rv instanceof Reference) {
 			rv=(V) ((Reference)rv).get();
 		}
+		if(rv == null) {
+			stats.miss();
+		} else {
+			stats.hit();
+		}
 		return rv;
 	}
 
+	/**
+	 * Get this cache's statistics.
+	 */
+	public CacheStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * Publish this cache's statistics under the given name.  Counts from
+	 * before it's published aren't carried over.
+	 *
+	 * @param name the name
+	 * @see CacheStats
+	 */
+	public void publishStats(String name) {
+		if(name == null) {
+			throw new NullPointerException("Invalid stats name <null>");
+		}
+		stats=newStats(name);
+	}
+
+	private CacheStats newStats(String name) {
+		GaugeStat.Source s=new GaugeStat.Source() {
+			public long getValue() {
+				return size();
+			}
+		};
+		// Every entry weighs one.
+		return new CacheStats(name, s, s);
+	}
+
+	// Statistics and watches aren't serialized.
+	private void readObject(ObjectInputStream in)
+		throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		stats=newStats(null);
+		watcher=new ReferenceWatcher<K, V>();
+	}
+
 	@Override
 	public V put(K key, V val) {
+		purge();
 		if(val instanceof CacheListener) {
 			CacheListener cl=(CacheListener)val;
 			cl.cachedEvent(key);
 		}
-		return super.put(key, val);
+		V rv=super.put(key, val);
+		watcher.watch(key, val, val);
+		return rv;
+	}
+
+	@Override
+	public V remove(Object key) {
+		V rv=super.remove(key);
+		watcher.forget(key, rv);
+		return rv;
+	}
+
+	@Override
+	public void clear() {
+		super.clear();
+		watcher.clear();
+	}
+
+	// Remove the entries whose referenced values have been collected.
+	private void purge() {
+		ReferenceWatcher.Watch<K, V> w=null;
+		while((w=watcher.poll()) != null) {
+			if(containsKey(w.key) && super.get(w.key) == w.entry) {
+				remove(w.key);
+				stats.evicted(EvictionCause.COLLECTED);
+			}
+		}
 	}
 
 	// When an object is removed from the cache, send a removed event if it
@@ -57,6 +148,8 @@ public class LRUCache<K,V> extends LinkedHashMap<K,V> {
 		boolean shouldRemove=false;
 		shouldRemove=size() > maxSize;
 		if(shouldRemove) {
+			stats.evicted(EvictionCause.SIZE);
+			watcher.forget(e.getKey(), e.getValue());
 			sendRemovedEvent(e.getKey(), e.getValue());
 		}
 		return shouldRemove;
@@ -0,0 +1,317 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.cache;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A concurrent radix tree of keys supporting lookup by prefix.
+ *
+ * <p>
+ *  Finding the keys with a given prefix costs time proportional to the
+ *  length of the prefix and the number of matches, regardless of how many
+ *  keys are indexed.  Lookups take no locks.  Writers lock their way down
+ *  the tree hand over hand, so writes only contend when they touch the
+ *  same nodes.  A node's edge label never changes; splitting an edge
+ *  publishes a new pair of nodes, so readers always see a consistent path.
+ * </p>
+ *
+ * <p>
+ *  Removing a key prunes the nodes it leaves behind:  nodes that hold no
+ *  key and have no children are unlinked, and a node that holds no key
+ *  and has one child is merged with it, so the tree only ever has nodes
+ *  for the keys it holds and the places they branch.  A removal keeps
+ *  the locks on the part of its path that pruning might change, from the
+ *  deepest node that can't be pruned down.
+ * </p>
+ *
+ * <p>
+ *  Lookups are weakly consistent:  keys added or removed while a lookup is
+ *  in progress may or may not be seen.
+ * </p>
+ */
+final class PrefixIndex {
+
+	private static final Node[] NO_CHILDREN=new Node[0];
+
+	private final Node root=new Node("", false, NO_CHILDREN);
+
+	/**
+	 * Get an empty PrefixIndex.
+	 */
+	public PrefixIndex() {
+		super();
+	}
+
+	/**
+	 * Add a key to the index.
+	 */
+	public void add(String key) {
+		Node n=root;
+		n.lock.lock();
+		int pos=0;
+		boolean done=false;
+		while(!done) {
+			// n is locked and its path matches key up to pos
+			if(pos == key.length()) {
+				n.present=true;
+				done=true;
+			} else {
+				Node child=n.getChild(key.charAt(pos));
+				if(child == null) {
+					n.putChild(new Node(key.substring(pos), true, NO_CHILDREN));
+					done=true;
+				} else {
+					child.lock.lock();
+					int common=commonLength(child.label, key, pos);
+					if(common == child.label.length()) {
+						n.lock.unlock();
+						n=child;
+						pos+=common;
+					} else {
+						n.putChild(split(child, common, key, pos));
+						child.lock.unlock();
+						done=true;
+					}
+				}
+			}
+		}
+		n.lock.unlock();
+	}
+
+	// Replace child with a node for the common part of its label, holding
+	// a copy of child under the rest of its label and the new key.
+	private Node split(Node child, int common, String key, int pos) {
+		Node tail=new Node(child.label.substring(common), child.present,
+			child.children);
+		Node rv=null;
+		if(pos + common == key.length()) {
+			rv=new Node(child.label.substring(0, common), true,
+				new Node[]{tail});
+		} else {
+			Node leaf=new Node(key.substring(pos + common), true, NO_CHILDREN);
+			Node[] kids=tail.label.charAt(0) < leaf.label.charAt(0)
+				? new Node[]{tail, leaf} : new Node[]{leaf, tail};
+			rv=new Node(child.label.substring(0, common), false, kids);
+		}
+		return rv;
+	}
+
+	/**
+	 * Remove a key from the index.
+	 */
+	public void remove(String key) {
+		// The locked nodes, from one that won't be pruned down to the
+		// deepest reached.
+		LinkedList<Node> path=new LinkedList<Node>();
+		root.lock.lock();
+		path.add(root);
+		int pos=0;
+		boolean found=false;
+		boolean done=false;
+		while(!done) {
+			Node n=path.getLast();
+			if(pos == key.length()) {
+				found=n.present;
+				done=true;
+			} else {
+				Node child=n.getChild(key.charAt(pos));
+				if(child == null || !key.startsWith(child.label, pos)) {
+					done=true;
+				} else {
+					child.lock.lock();
+					pos+=child.label.length();
+					if(isSafe(child, pos == key.length())) {
+						unlockAll(path);
+					}
+					path.add(child);
+				}
+			}
+		}
+		if(found) {
+			path.getLast().present=false;
+			prune(path);
+		}
+		unlockAll(path);
+	}
+
+	// True if removing a key from under the given locked node (or the node's
+	// own key, if it's the last on the path) can't leave it needing to be
+	// pruned, so its ancestors needn't stay locked.
+	private boolean isSafe(Node n, boolean last) {
+		boolean rv=false;
+		if(last) {
+			rv=n.children.length >= 2;
+		} else {
+			rv=n.present || n.children.length >= 3;
+		}
+		return rv;
+	}
+
+	// Prune from the end of the locked path up.  The first node on the path
+	// is never pruned.
+	private void prune(LinkedList<Node> path) {
+		boolean done=false;
+		for(int i=path.size() - 1; !done && i > 0; i--) {
+			Node n=path.get(i);
+			Node parent=path.get(i - 1);
+			Node[] kids=n.children;
+			if(n.present || kids.length > 1) {
+				done=true;
+			} else if(kids.length == 0) {
+				parent.removeChild(n);
+			} else {
+				Node child=kids[0];
+				child.lock.lock();
+				try {
+					parent.putChild(new Node(n.label + child.label,
+						child.present, child.children));
+				} finally {
+					child.lock.unlock();
+				}
+				done=true;
+			}
+		}
+	}
+
+	private void unlockAll(LinkedList<Node> path) {
+		while(!path.isEmpty()) {
+			path.removeFirst().lock.unlock();
+		}
+	}
+
+	// The number of nodes in the tree, including the root.
+	int nodeCount() {
+		return count(root);
+	}
+
+	private int count(Node n) {
+		int rv=1;
+		for(Node child : n.children) {
+			rv+=count(child);
+		}
+		return rv;
+	}
+
+	/**
+	 * Get all of the keys beginning with the given prefix.
+	 */
+	public List<String> keysStartingWith(String prefix) {
+		List<String> rv=new ArrayList<String>();
+		Node n=root;
+		StringBuilder path=new StringBuilder(prefix.length() + 32);
+		int pos=0;
+		while(n != null && pos < prefix.length()) {
+			Node child=n.getChild(prefix.charAt(pos));
+			if(child != null) {
+				int len=Math.min(child.label.length(), prefix.length() - pos);
+				if(child.label.regionMatches(0, prefix, pos, len)) {
+					path.append(child.label);
+					pos+=child.label.length();
+				} else {
+					child=null;
+				}
+			}
+			n=child;
+		}
+		if(n != null) {
+			collect(n, path, rv);
+		}
+		return rv;
+	}
+
+	private void collect(Node n, StringBuilder path, List<String> rv) {
+		if(n.present) {
+			rv.add(path.toString());
+		}
+		int len=path.length();
+		for(Node child : n.children) {
+			path.append(child.label);
+			collect(child, path, rv);
+			path.setLength(len);
+		}
+	}
+
+	private static int commonLength(String label, String key, int pos) {
+		int max=Math.min(label.length(), key.length() - pos);
+		int rv=0;
+		while(rv < max && label.charAt(rv) == key.charAt(pos + rv)) {
+			rv++;
+		}
+		return rv;
+	}
+
+	// A node in the tree.  Children are kept sorted by the first character
+	// of their labels and replaced wholesale on modification.
+	private static final class Node {
+		final String label;
+		final ReentrantLock lock=new ReentrantLock();
+		volatile boolean present;
+		volatile Node[] children;
+
+		public Node(String l, boolean p, Node[] c) {
+			super();
+			label=l;
+			present=p;
+			children=c;
+		}
+
+		private int indexOf(Node[] kids, char c) {
+			int low=0;
+			int high=kids.length - 1;
+			int rv=-1;
+			while(rv < 0 && low <= high) {
+				int mid=(low + high) >>> 1;
+				char m=kids[mid].label.charAt(0);
+				if(m < c) {
+					low=mid + 1;
+				} else if(m > c) {
+					high=mid - 1;
+				} else {
+					rv=mid;
+				}
+			}
+			return rv < 0 ? -(low + 1) : rv;
+		}
+
+		public Node getChild(char c) {
+			Node[] kids=children;
+			int i=indexOf(kids, c);
+			return i < 0 ? null : kids[i];
+		}
+
+		// Add or replace the child starting with the same character.
+		// Must hold the lock.
+		public void putChild(Node child) {
+			Node[] kids=children;
+			int i=indexOf(kids, child.label.charAt(0));
+			Node[] newKids=null;
+			if(i >= 0) {
+				newKids=kids.clone();
+				newKids[i]=child;
+			} else {
+				int at=-(i + 1);
+				newKids=new Node[kids.length + 1];
+				System.arraycopy(kids, 0, newKids, 0, at);
+				newKids[at]=child;
+				System.arraycopy(kids, at, newKids, at + 1, kids.length - at);
+			}
+			children=newKids;
+		}
+
+		// Must hold the lock.
+		public void removeChild(Node child) {
+			Node[] kids=children;
+			int i=indexOf(kids, child.label.charAt(0));
+			if(i >= 0 && kids[i] == child) {
+				Node[] newKids=new Node[kids.length - 1];
+				System.arraycopy(kids, 0, newKids, 0, i);
+				System.arraycopy(kids, i + 1, newKids, i, kids.length - i - 1);
+				children=newKids;
+			}
+		}
+	}
+}
@@ -0,0 +1,102 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.cache;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Finds cache entries whose values are references the garbage collector
+ * has cleared.
+ *
+ * <p>
+ *  The references are supplied by callers, so they can't be registered
+ *  with a queue themselves.  Instead, a weak reference to the same object
+ *  is registered, which is cleared once the object is no longer strongly
+ *  or softly reachable, i.e. when the caller's reference is cleared.  The
+ *  watches are held by key, so storing a new entry replaces the old
+ *  entry's watch.  Caches should forget an entry's watch when it's
+ *  removed, and remove an entry {@link #poll()} returns only if it's still
+ *  the current one for its key.
+ * </p>
+ */
+final class ReferenceWatcher<K, E> {
+
+	private final ReferenceQueue<Object> queue=new ReferenceQueue<Object>();
+	private final ConcurrentMap<K, Watch<K, E>> watches=
+		new ConcurrentHashMap<K, Watch<K, E>>();
+
+	/**
+	 * Get a ReferenceWatcher.
+	 */
+	public ReferenceWatcher() {
+		super();
+	}
+
+	/**
+	 * Watch a newly stored entry's value, if it's a reference.
+	 *
+	 * @param key the entry's key
+	 * @param entry the entry
+	 * @param value the entry's value
+	 */
+	public void watch(K key, E entry, Object value) {
+		Object o=null;
+		if(value instanceof Reference) {
+			o=((Reference<?>)value).get();
+		}
+		if(o == null) {
+			watches.remove(key);
+		} else {
+			watches.put(key, new Watch<K, E>(o, key, entry, queue));
+		}
+	}
+
+	/**
+	 * Stop watching a removed entry.
+	 */
+	public void forget(Object key, E entry) {
+		Watch<K, E> w=watches.get(key);
+		if(w != null && w.entry == entry) {
+			watches.remove(key, w);
+		}
+	}
+
+	/**
+	 * Stop watching everything.
+	 */
+	public void clear() {
+		watches.clear();
+	}
+
+	/**
+	 * Get the next entry whose value has been collected.
+	 *
+	 * @return the watch for the entry, or null if there isn't one
+	 */
+	@SuppressWarnings("unchecked")
+	public Watch<K, E> poll() {
+		Watch<K, E> rv=(Watch<K, E>)queue.poll();
+		// Skip watches that were replaced or forgotten.
+		while(rv != null && !watches.remove(rv.key, rv)) {
+			rv=(Watch<K, E>)queue.poll();
+		}
+		return rv;
+	}
+
+	/**
+	 * A watched entry.
+	 */
+	static final class Watch<K, E> extends WeakReference<Object> {
+		final K key;
+		final E entry;
+		public Watch(Object o, K k, E e, ReferenceQueue<Object> q) {
+			super(o, q);
+			key=k;
+			entry=e;
+		}
+	}
+}
@@ -0,0 +1,187 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import net.spy.util.CloseUtil;
+
+/**
+ * A checkpoint of a {@link SegmentStore}'s index.
+ *
+ * <p>
+ *  The manifest records the size and dead byte count of every segment and
+ *  the location, flags, expiration and last access time of every key's
+ *  latest record as of the checkpoint, so a store can be opened by reading
+ *  one file sequentially and replaying only what was appended since.  It's
+ *  written to a temporary file and renamed into place, and carries a CRC
+ *  over its contents; one that's incomplete or doesn't match is ignored and
+ *  the index is rebuilt from the segments.
+ * </p>
+ */
+final class SegmentManifest {
+
+	/**
+	 * The manifest's file name within the store's directory.
+	 */
+	static final String NAME="index.manifest";
+
+	private static final int MAGIC=0x53504d03;
+
+	// Segments, as of the checkpoint
+	final int[] segmentIds;
+	final long[] sizes;
+	final long[] dead;
+
+	// Index entries
+	final byte[][] keys;
+	final int[] entrySegments;
+	final long[] offsets;
+	final int[] lengths;
+	final int[] keyLengths;
+	final long[] expires;
+	final long[] accessed;
+	final byte[] flags;
+
+	/**
+	 * Get a manifest for the given segments and sized for the given number
+	 * of index entries.
+	 */
+	public SegmentManifest(int numSegments, int numEntries) {
+		super();
+		segmentIds=new int[numSegments];
+		sizes=new long[numSegments];
+		dead=new long[numSegments];
+		keys=new byte[numEntries][];
+		entrySegments=new int[numEntries];
+		offsets=new long[numEntries];
+		lengths=new int[numEntries];
+		keyLengths=new int[numEntries];
+		expires=new long[numEntries];
+		accessed=new long[numEntries];
+		flags=new byte[numEntries];
+	}
+
+	/**
+	 * Read the manifest in the given directory.
+	 *
+	 * @param dir the store's directory
+	 * @return the manifest, or null if there isn't one
+	 * @throws IOException if the manifest is unreadable or corrupt
+	 */
+	public static SegmentManifest read(File dir) throws IOException {
+		SegmentManifest rv=null;
+		File f=new File(dir, NAME);
+		if(f.exists()) {
+			FileInputStream fis=new FileInputStream(f);
+			try {
+				CheckedInputStream cis=new CheckedInputStream(
+					new BufferedInputStream(fis), new CRC32());
+				DataInputStream in=new DataInputStream(cis);
+				if(in.readInt() != MAGIC) {
+					throw new IOException("Invalid manifest header");
+				}
+				int numSegments=in.readInt();
+				int numEntries=in.readInt();
+				// Each segment and entry takes at least 20 bytes.
+				long max=f.length() / 20;
+				if(numSegments < 0 || numEntries < 0
+					|| numSegments > max || numEntries > max) {
+					throw new IOException("Invalid manifest counts");
+				}
+				rv=new SegmentManifest(numSegments, numEntries);
+				for(int i=0; i<numSegments; i++) {
+					rv.segmentIds[i]=in.readInt();
+					rv.sizes[i]=in.readLong();
+					rv.dead[i]=in.readLong();
+				}
+				for(int i=0; i<numEntries; i++) {
+					rv.entrySegments[i]=in.readInt();
+					rv.offsets[i]=in.readLong();
+					rv.lengths[i]=in.readInt();
+					rv.keyLengths[i]=in.readInt();
+					rv.expires[i]=in.readLong();
+					rv.accessed[i]=in.readLong();
+					rv.flags[i]=in.readByte();
+					if(rv.keyLengths[i] < 0 || rv.keyLengths[i] > f.length()) {
+						throw new IOException("Invalid manifest key length");
+					}
+					rv.keys[i]=new byte[rv.keyLengths[i]];
+					in.readFully(rv.keys[i]);
+				}
+				long sum=cis.getChecksum().getValue();
+				if(in.readLong() != sum) {
+					throw new IOException("Manifest checksum mismatch");
+				}
+			} finally {
+				CloseUtil.close(fis);
+			}
+		}
+		return rv;
+	}
+
+	/**
+	 * Write this manifest into the given directory, replacing any that's
+	 * there.
+	 */
+	public void write(File dir) throws IOException {
+		File tmp=new File(dir, NAME + ".tmp");
+		FileOutputStream fos=new FileOutputStream(tmp);
+		try {
+			CheckedOutputStream cos=new CheckedOutputStream(
+				new BufferedOutputStream(fos), new CRC32());
+			DataOutputStream out=new DataOutputStream(cos);
+			out.writeInt(MAGIC);
+			out.writeInt(segmentIds.length);
+			out.writeInt(keys.length);
+			for(int i=0; i<segmentIds.length; i++) {
+				out.writeInt(segmentIds[i]);
+				out.writeLong(sizes[i]);
+				out.writeLong(dead[i]);
+			}
+			for(int i=0; i<keys.length; i++) {
+				out.writeInt(entrySegments[i]);
+				out.writeLong(offsets[i]);
+				out.writeInt(lengths[i]);
+				out.writeInt(keyLengths[i]);
+				out.writeLong(expires[i]);
+				out.writeLong(accessed[i]);
+				out.writeByte(flags[i]);
+				out.write(keys[i]);
+			}
+			out.writeLong(cos.getChecksum().getValue());
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			CloseUtil.close(fos);
+		}
+		File f=new File(dir, NAME);
+		if(!tmp.renameTo(f)) {
+			// Some platforms won't rename over an existing file.
+			remove(dir);
+			if(!tmp.renameTo(f)) {
+				throw new IOException("Can't rename " + tmp + " to " + f);
+			}
+		}
+	}
+
+	/**
+	 * Remove the manifest from the given directory.
+	 */
+	public static void remove(File dir) {
+		File f=new File(dir, NAME);
+		if(f.exists() && !f.delete()) {
+			f.deleteOnExit();
+		}
+	}
+}
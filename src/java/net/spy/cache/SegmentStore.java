@@ -0,0 +1,1158 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.cache;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import net.spy.SpyObject;
+import net.spy.util.CloseUtil;
+
+/**
+ * An append-only log of key/value records spread over segment files.
+ *
+ * <p>
+ *  Every write is appended to the active segment, and an in-memory index
+ *  maps each key to the location of its latest record, so a read is a
+ *  single positional read and never opens a file.  Removals append a
+ *  tombstone.  Once the active segment reaches its maximum size a new one
+ *  is started.  Sealed segments whose records are mostly superseded are
+ *  compacted by copying their live records to the active segment and
+ *  deleting the file.  A tombstone is copied only while a segment that
+ *  may hold a record it removed is still around.
+ * </p>
+ *
+ * <p>
+ *  Each record carries a CRC.  The index is checkpointed to a
+ *  {@link SegmentManifest}, so opening a store reads the manifest and
+ *  replays only the records appended since.  Without a usable manifest the
+ *  index is rebuilt by scanning all of the segments in order.  A record
+ *  that's incomplete or doesn't match its CRC (e.g. from a crash in the
+ *  middle of a write) ends its segment, and the segment is truncated
+ *  there.
+ * </p>
+ *
+ * <p>
+ *  Reads take no locks.  Writes, removals and compaction steps are
+ *  serialized on the store.
+ * </p>
+ *
+ * <p>
+ *  A record may carry an expiration time, after which the key reads as
+ *  absent.  The index also remembers when each key was last read or
+ *  written, and {@link #evict(long, int, long)} uses that to remove
+ *  expired keys and then approximately the least recently used ones until
+ *  the store is within a budget.  Each call does a bounded amount of work,
+ *  picking up where the last one left off.
+ * </p>
+ *
+ * <p>
+ *  Values at least as large as the compression threshold (if one is set)
+ *  are deflated before they're written, and flagged as such in their
+ *  record.
+ * </p>
+ *
+ * <p>
+ *  Sealed segments never change, so they're read through memory mappings
+ *  kept in a bounded LRU cache.  Values are decoded straight out of the
+ *  mapped buffer, and reading a hot value makes no system calls.  The
+ *  active segment is read with positional reads.
+ * </p>
+ */
+final class SegmentStore extends SpyObject {
+
+	/**
+	 * File name suffix for segment files.
+	 */
+	static final String SUFFIX=".seg";
+
+	// Identifies a segment file and the format of its records.
+	private static final int MAGIC=0x53505903;
+	private static final int FILE_HEADER=4;
+
+	private static final byte PUT=1;
+	private static final byte DELETE=2;
+
+	// Record flags
+	private static final byte DEFLATED=1;
+
+	// Record:  length(4) crc(4) type(1) flags(1) expires(8) key length(4)
+	// key value
+	// The length and CRC cover everything after the CRC.  In a tombstone,
+	// expires holds the id of the segment the removed record was in (or 0
+	// if that isn't known).
+	private static final int RECORD_HEADER=22;
+	// Offsets within the body of a record (everything after the CRC).
+	private static final int EXPIRES=2;
+	private static final int KEY_LENGTH=10;
+	private static final int KEY=14;
+
+	private static final byte[] EMPTY=new byte[0];
+
+	private final File dir;
+	private final long maxSegmentSize;
+	private final Serializer keySerializer;
+
+	private final ConcurrentMap<Object, Location> index=
+		new ConcurrentHashMap<Object, Location>();
+	// Guarded by this
+	private final TreeMap<Integer, Segment> segments=
+		new TreeMap<Integer, Segment>();
+	private Segment active=null;
+	// Changes to the index since it was opened, and as of the last
+	// checkpoint.  Guarded by this.
+	private long modCount=0;
+	private long checkpointed=0;
+	// Serializes checkpoints and compaction.
+	private final Object maintenance=new Object();
+
+	/**
+	 * The default maximum number of segments mapped at once.
+	 */
+	static final int DEFAULT_MAX_MAPPINGS=16;
+
+	// Guarded by mappingLock
+	private final Object mappingLock=new Object();
+	private LRUCache<Segment, MappedByteBuffer> mappings=
+		new LRUCache<Segment, MappedByteBuffer>(DEFAULT_MAX_MAPPINGS);
+	private volatile int maxMappings=DEFAULT_MAX_MAPPINGS;
+
+	private volatile int compressionThreshold=0;
+
+	/**
+	 * The most index entries one call to {@link #expire(long)} checks.
+	 */
+	static final int EXPIRY_SCAN_LIMIT=16384;
+	/**
+	 * The most keys one call to {@link #expire(long)} or
+	 * {@link #shrink(long, int, long)} removes.
+	 */
+	static final int EVICTION_LIMIT=4096;
+	// Keys compared to choose each least recently used one to remove.
+	private static final int EVICTION_SAMPLE=16;
+
+	// Where the last expiry scan or eviction sample left off.  Guarded by
+	// cursorLock.
+	private final Object cursorLock=new Object();
+	private Iterator<Map.Entry<Object, Location>> cursor=null;
+
+	/**
+	 * Open (or create) a store in the given directory.
+	 *
+	 * @param d the directory holding the segment files
+	 * @param maxSize the size at which a segment is sealed
+	 * @param s the serializer used to decode keys during recovery
+	 * @throws IOException if the segments can't be read
+	 */
+	public SegmentStore(File d, long maxSize, Serializer s)
+		throws IOException {
+		super();
+		if(maxSize < 1) {
+			throw new IllegalArgumentException("Invalid segment size:  "
+				+ maxSize);
+		}
+		dir=d;
+		maxSegmentSize=maxSize;
+		keySerializer=s;
+		if(!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Can't create " + dir);
+		}
+		recover();
+		checkpoint();
+	}
+
+	// Load every segment in order, rebuilding the index.
+	private synchronized void recover() throws IOException {
+		File[] files=dir.listFiles(new FileFilter() {
+			public boolean accept(File f) {
+				return f.isFile() && f.getName().endsWith(SUFFIX);
+			}});
+		int[] ids=new int[files.length];
+		int n=0;
+		for(File f : files) {
+			String name=f.getName();
+			try {
+				ids[n]=Integer.parseInt(
+					name.substring(0, name.length() - SUFFIX.length()));
+				n++;
+			} catch(NumberFormatException e) {
+				getLogger().warn("Ignoring unexpected file %s", f);
+			}
+		}
+		Arrays.sort(ids, 0, n);
+		for(int i=0; i<n; i++) {
+			Segment s=new Segment(ids[i], segmentFile(ids[i]), false);
+			if(s.checkHeader()) {
+				segments.put(s.id, s);
+			} else {
+				getLogger().warn("Discarding unreadable segment %s", s.file);
+				s.delete();
+			}
+		}
+		SegmentManifest m=null;
+		try {
+			m=SegmentManifest.read(dir);
+		} catch(IOException e) {
+			getLogger().warn("Rebuilding index from segments", e);
+		}
+		if(m == null || !apply(m)) {
+			index.clear();
+			for(Segment s : segments.values()) {
+				s.dead=0;
+				load(s, FILE_HEADER);
+			}
+			// Save the rebuilt index.
+			modCount++;
+		}
+		if(segments.isEmpty()
+			|| segments.get(segments.lastKey()).size >= maxSegmentSize) {
+			roll();
+		} else {
+			active=segments.get(segments.lastKey());
+			active.reopen(true);
+			active.sealed=false;
+		}
+	}
+
+	// Load the index from a manifest and replay whatever was written after
+	// it.  Returns false if the manifest doesn't match the segments.
+	private boolean apply(SegmentManifest m) throws IOException {
+		Map<Integer, Long> recorded=new HashMap<Integer, Long>();
+		int newest=0;
+		for(int i=0; i<m.segmentIds.length; i++) {
+			Segment s=segments.get(m.segmentIds[i]);
+			if(s == null || s.size < m.sizes[i]) {
+				getLogger().warn("Manifest doesn't match segment %d",
+					m.segmentIds[i]);
+				return false;
+			}
+			recorded.put(s.id, m.sizes[i]);
+			s.dead=m.dead[i];
+			newest=Math.max(newest, s.id);
+		}
+		for(Segment s : segments.values()) {
+			if(s.id < newest && !recorded.containsKey(s.id)) {
+				getLogger().warn("Manifest is missing segment %d", s.id);
+				return false;
+			}
+		}
+		for(int i=0; i<m.keys.length; i++) {
+			Segment s=segments.get(m.entrySegments[i]);
+			if(s == null) {
+				getLogger().warn("Manifest refers to missing segment %d",
+					m.entrySegments[i]);
+				return false;
+			}
+			Object key=keySerializer.deserialize(ByteBuffer.wrap(m.keys[i]));
+			Location loc=new Location(s, m.offsets[i], m.lengths[i],
+				m.keyLengths[i], m.expires[i], m.flags[i]);
+			loc.accessed=m.accessed[i];
+			index.put(key, loc);
+		}
+		int replayed=0;
+		for(Segment s : segments.values()) {
+			Long from=recorded.get(s.id);
+			replayed+=load(s, from == null ? FILE_HEADER : from);
+		}
+		if(replayed > 0) {
+			modCount++;
+		}
+		return true;
+	}
+
+	// Apply the records of a segment from the given position to the index,
+	// returning the number of records.
+	private int load(Segment s, long from) throws IOException {
+		int rv=0;
+		long pos=from;
+		ByteBuffer body=readRecord(s, pos);
+		while(body != null) {
+			int length=body.limit() + 8;
+			byte type=body.get(0);
+			int keyLength=body.getInt(KEY_LENGTH);
+			body.position(KEY);
+			body.limit(KEY + keyLength);
+			Object key=keySerializer.deserialize(body);
+			Location loc=new Location(s, pos, length, keyLength,
+				body.getLong(EXPIRES), body.get(1));
+			Location old=null;
+			if(type == PUT) {
+				old=index.put(key, loc);
+			} else {
+				old=index.remove(key);
+				s.dead+=length;
+			}
+			if(old != null) {
+				old.segment.dead+=old.length;
+			}
+			pos+=length;
+			rv++;
+			body=readRecord(s, pos);
+		}
+		if(pos < s.size) {
+			getLogger().warn("Truncating %s at %d of %d", s.file, pos, s.size);
+			s.truncate(pos);
+		}
+		return rv;
+	}
+
+	// Read the body of the record (everything after the length and CRC)
+	// at the given position, or null if there isn't a valid one.
+	private ByteBuffer readRecord(Segment s, long pos) throws IOException {
+		ByteBuffer rv=null;
+		if(pos + RECORD_HEADER <= s.size) {
+			ByteBuffer header=ByteBuffer.allocate(8);
+			s.read(header, pos);
+			int length=header.getInt(0);
+			if(length >= RECORD_HEADER - 4 && pos + 4 + length <= s.size) {
+				ByteBuffer body=ByteBuffer.allocate(length - 4);
+				s.read(body, pos + 8);
+				CRC32 crc=new CRC32();
+				crc.update(body.array());
+				int keyLength=body.getInt(KEY_LENGTH);
+				if((int)crc.getValue() == header.getInt(4)
+					&& keyLength >= 0
+					&& keyLength <= body.limit() - KEY) {
+					rv=body;
+				}
+			}
+		}
+		return rv;
+	}
+
+	private File segmentFile(int id) {
+		return new File(dir, String.format("%08d", id) + SUFFIX);
+	}
+
+	// Seal the active segment (if any) and start a new one.
+	private void roll() throws IOException {
+		int id=segments.isEmpty() ? 1 : segments.lastKey() + 1;
+		Segment s=new Segment(id, segmentFile(id), true);
+		s.writeHeader();
+		if(active != null) {
+			active.force();
+			active.sealed=true;
+		}
+		segments.put(id, s);
+		active=s;
+	}
+
+	/**
+	 * Get the number of keys in the store.  This includes keys that have
+	 * expired but haven't yet been evicted.
+	 */
+	public int size() {
+		return index.size();
+	}
+
+	/**
+	 * Get the number of bytes of live records; that is, the size of the
+	 * segment files less their headers and superseded records.
+	 */
+	public synchronized long getLiveBytes() {
+		long rv=0;
+		for(Segment s : segments.values()) {
+			rv+=s.size - FILE_HEADER - s.dead;
+		}
+		return rv;
+	}
+
+	/**
+	 * True if there's an unexpired record for the given key.
+	 */
+	public boolean containsKey(Object key) {
+		Location loc=index.get(key);
+		return loc != null && !loc.isExpired(System.currentTimeMillis());
+	}
+
+	/**
+	 * Get when the record for the given key expires.
+	 *
+	 * @return the time in milliseconds since the epoch, or 0 if the key
+	 *	doesn't expire or isn't there
+	 */
+	public long getExpiration(Object key) {
+		Location loc=index.get(key);
+		return loc == null ? 0 : loc.expires;
+	}
+
+	/**
+	 * Record an access to the given key.
+	 *
+	 * @param key the key
+	 * @return true if there's an unexpired record for the key
+	 */
+	public boolean touch(Object key) {
+		boolean rv=false;
+		Location loc=index.get(key);
+		if(loc != null) {
+			long now=System.currentTimeMillis();
+			rv=!loc.isExpired(now);
+			if(rv) {
+				loc.accessed=now;
+			}
+		}
+		return rv;
+	}
+
+	/**
+	 * Get the keys in the store.  The collection is live and weakly
+	 * consistent.
+	 */
+	public Collection<Object> keys() {
+		return index.keySet();
+	}
+
+	/**
+	 * Store the encoded value for a key.
+	 *
+	 * @param key the key
+	 * @param k the encoded key
+	 * @param v the encoded value
+	 * @throws IOException if the record can't be written
+	 */
+	public void put(Object key, byte[] k, byte[] v) throws IOException {
+		put(key, k, v, 0);
+	}
+
+	/**
+	 * Store the encoded value for a key that expires at the given time.
+	 *
+	 * @param key the key
+	 * @param k the encoded key
+	 * @param v the encoded value
+	 * @param expires when the value expires (in milliseconds since the
+	 *	epoch), or 0 if it doesn't
+	 * @throws IOException if the record can't be written
+	 */
+	public void put(Object key, byte[] k, byte[] v, long expires)
+		throws IOException {
+		int threshold=compressionThreshold;
+		byte[] data=v;
+		byte flags=0;
+		if(threshold > 0 && v.length >= threshold) {
+			byte[] d=deflate(v);
+			if(d.length < v.length) {
+				data=d;
+				flags=DEFLATED;
+			}
+		}
+		put(key, k, data, expires, flags);
+	}
+
+	private synchronized void put(Object key, byte[] k, byte[] v,
+		long expires, byte flags) throws IOException {
+		Location loc=append(PUT, flags, k, v, expires);
+		Location old=index.put(key, loc);
+		modCount++;
+		if(old != null) {
+			old.segment.dead+=old.length;
+		}
+	}
+
+	/**
+	 * Remove the value for a key.
+	 *
+	 * @param key the key
+	 * @param k the encoded key
+	 * @return true if there was a value
+	 * @throws IOException if the tombstone can't be written
+	 */
+	public synchronized boolean remove(Object key, byte[] k)
+		throws IOException {
+		Location old=index.remove(key);
+		if(old != null) {
+			modCount++;
+			old.segment.dead+=old.length;
+			Location tombstone=append(DELETE, (byte)0, k, EMPTY,
+				old.segment.id);
+			tombstone.segment.dead+=tombstone.length;
+		}
+		return old != null;
+	}
+
+	// Remove a key only if its record is still the one given.
+	private synchronized boolean remove(Object key, Location loc)
+		throws IOException {
+		boolean rv=false;
+		if(index.get(key) == loc) {
+			rv=remove(key, keySerializer.serialize(key));
+		}
+		return rv;
+	}
+
+	// Append a record to the active segment.
+	private Location append(byte type, byte flags, byte[] k, byte[] v,
+		long expires) throws IOException {
+		if(active.size >= maxSegmentSize) {
+			roll();
+		}
+		int length=RECORD_HEADER - 4 + k.length + v.length;
+		ByteBuffer b=ByteBuffer.allocate(length + 4);
+		b.putInt(length);
+		b.putInt(0);
+		b.put(type);
+		b.put(flags);
+		b.putLong(expires);
+		b.putInt(k.length);
+		b.put(k);
+		b.put(v);
+		CRC32 crc=new CRC32();
+		crc.update(b.array(), 8, length - 4);
+		b.putInt(4, (int)crc.getValue());
+		b.flip();
+		Segment s=active;
+		long pos=s.size;
+		s.write(b, pos);
+		s.size=pos + b.limit();
+		return new Location(s, pos, b.limit(), k.length, expires, flags);
+	}
+
+	/**
+	 * Get the encoded value for a key.
+	 *
+	 * @param key the key
+	 * @return the value's bytes, or null if there's no such key or it has
+	 *	expired
+	 * @throws IOException if the value can't be read
+	 */
+	public ByteBuffer get(Object key) throws IOException {
+		ByteBuffer rv=null;
+		boolean done=false;
+		while(!done) {
+			Location loc=index.get(key);
+			long now=System.currentTimeMillis();
+			if(loc == null || loc.isExpired(now)) {
+				done=true;
+			} else {
+				loc.accessed=now;
+				try {
+					rv=readValue(loc);
+					done=true;
+				} catch(ClosedByInterruptException e) {
+					throw e;
+				} catch(ClosedChannelException e) {
+					// If the segment was compacted away, the key has moved.
+					// Otherwise the next read will reopen it.
+					if(index.get(key) == loc && loc.segment.deleted) {
+						throw e;
+					}
+				}
+			}
+		}
+		return rv;
+	}
+
+	private ByteBuffer readValue(Location loc) throws IOException {
+		int skip=RECORD_HEADER + loc.keyLength;
+		ByteBuffer rv=null;
+		MappedByteBuffer m=mapping(loc.segment);
+		if(m != null) {
+			rv=m.duplicate();
+			rv.limit((int)loc.offset + loc.length);
+			rv.position((int)loc.offset + skip);
+		} else {
+			rv=ByteBuffer.allocate(loc.length - skip);
+			loc.segment.read(rv, loc.offset + skip);
+			rv.flip();
+		}
+		if((loc.flags & DEFLATED) != 0) {
+			rv=inflate(rv);
+		}
+		return rv;
+	}
+
+	// Compressed values are the original length followed by the deflated
+	// bytes.
+	private byte[] deflate(byte[] v) {
+		Deflater d=new Deflater(Deflater.BEST_SPEED);
+		try {
+			d.setInput(v);
+			d.finish();
+			ByteBuffer rv=ByteBuffer.allocate(v.length + 4);
+			rv.putInt(v.length);
+			byte[] a=rv.array();
+			int n=4;
+			while(!d.finished() && n < a.length) {
+				n+=d.deflate(a, n, a.length - n);
+			}
+			byte[] out=a;
+			if(d.finished()) {
+				out=new byte[n];
+				System.arraycopy(a, 0, out, 0, n);
+			}
+			return out;
+		} finally {
+			d.end();
+		}
+	}
+
+	private ByteBuffer inflate(ByteBuffer b) throws IOException {
+		int length=b.getInt();
+		byte[] in=new byte[b.remaining()];
+		b.get(in);
+		byte[] out=new byte[length];
+		Inflater i=new Inflater();
+		try {
+			i.setInput(in);
+			int n=0;
+			while(n < length && !i.finished()) {
+				int got=i.inflate(out, n, length - n);
+				if(got == 0 && (i.needsInput() || i.needsDictionary())) {
+					throw new IOException("Truncated compressed value");
+				}
+				n+=got;
+			}
+		} catch(DataFormatException e) {
+			IOException toThrow=new IOException("Corrupt compressed value");
+			toThrow.initCause(e);
+			throw toThrow;
+		} finally {
+			i.end();
+		}
+		return ByteBuffer.wrap(out);
+	}
+
+	/**
+	 * Set the size at which values are compressed.
+	 *
+	 * @param threshold the size in bytes, or 0 to not compress values
+	 */
+	public void setCompressionThreshold(int threshold) {
+		if(threshold < 0) {
+			throw new IllegalArgumentException(
+				"Invalid compression threshold:  " + threshold);
+		}
+		compressionThreshold=threshold;
+	}
+
+	// Get the mapping of a sealed segment, or null if it's not to be mapped.
+	private MappedByteBuffer mapping(Segment s) throws IOException {
+		MappedByteBuffer rv=null;
+		if(s.sealed && maxMappings > 0 && s.size <= Integer.MAX_VALUE) {
+			synchronized(mappingLock) {
+				rv=mappings.get(s);
+				if(rv == null) {
+					rv=s.map();
+					mappings.put(s, rv);
+				}
+			}
+		}
+		return rv;
+	}
+
+	/**
+	 * Set the maximum number of sealed segments mapped into memory at once.
+	 *
+	 * @param max the number of mappings, or 0 to read without mapping
+	 */
+	public void setMaxMappings(int max) {
+		if(max < 0) {
+			throw new IllegalArgumentException("Invalid mapping count:  "
+				+ max);
+		}
+		synchronized(mappingLock) {
+			LRUCache<Segment, MappedByteBuffer> m=
+				new LRUCache<Segment, MappedByteBuffer>(Math.max(max, 1));
+			if(max > 0) {
+				m.putAll(mappings);
+			}
+			mappings=m;
+			maxMappings=max;
+		}
+	}
+
+	/**
+	 * Get the number of segments currently mapped.
+	 */
+	public int getMappingCount() {
+		synchronized(mappingLock) {
+			return mappings.size();
+		}
+	}
+
+	private void unmap(Segment s) {
+		synchronized(mappingLock) {
+			mappings.remove(s);
+		}
+	}
+
+	/**
+	 * Remove expired keys, and then the least recently used keys until the
+	 * store is within the given budget.  Keys are removed one at a time, so
+	 * readers are never held up and writers only for a single removal.
+	 * The work is bounded (see {@link #expire(long)} and
+	 * {@link #shrink(long, int, long)}), so a large store may take a few
+	 * calls to get within its budget.
+	 *
+	 * @param maxBytes the maximum number of live bytes, or 0 for no limit
+	 * @param maxEntries the maximum number of keys, or 0 for no limit
+	 * @param now the current time
+	 * @return the number of keys removed
+	 * @throws IOException if a removal can't be written
+	 */
+	public int evict(long maxBytes, int maxEntries, long now)
+		throws IOException {
+		return expire(now) + shrink(maxBytes, maxEntries, now);
+	}
+
+	/**
+	 * Remove keys that have expired.  Up to {@link #EXPIRY_SCAN_LIMIT}
+	 * keys are checked, continuing from where the last call stopped, and
+	 * at most {@link #EVICTION_LIMIT} are removed.
+	 *
+	 * @param now the current time
+	 * @return the number of keys removed
+	 * @throws IOException if a removal can't be written
+	 */
+	public int expire(long now) throws IOException {
+		int rv=0;
+		synchronized(cursorLock) {
+			int n=Math.min(index.size(), EXPIRY_SCAN_LIMIT);
+			for(int i=0; i<n && rv < EVICTION_LIMIT; i++) {
+				Map.Entry<Object, Location> me=nextEntry();
+				if(me != null && me.getValue().isExpired(now)
+					&& remove(me.getKey(), me.getValue())) {
+					rv++;
+				}
+			}
+		}
+		return rv;
+	}
+
+	/**
+	 * Remove approximately the least recently used keys until the store is
+	 * within the given budget.  Each key removed is the least recently used
+	 * (or an expired one) of a small sample of keys, and at most
+	 * {@link #EVICTION_LIMIT} are removed.
+	 *
+	 * @param maxBytes the maximum number of live bytes, or 0 for no limit
+	 * @param maxEntries the maximum number of keys, or 0 for no limit
+	 * @param now the current time
+	 * @return the number of keys removed
+	 * @throws IOException if a removal can't be written
+	 */
+	public int shrink(long maxBytes, int maxEntries, long now)
+		throws IOException {
+		int rv=0;
+		long bytes=getLiveBytes();
+		int entries=index.size();
+		synchronized(cursorLock) {
+			boolean found=true;
+			for(int i=0; found && i<EVICTION_LIMIT
+				&& overBudget(bytes, entries, maxBytes, maxEntries); i++) {
+				Map.Entry<Object, Location> victim=sample(
+					Math.min(entries, EVICTION_SAMPLE), now);
+				found=victim != null;
+				if(found && remove(victim.getKey(), victim.getValue())) {
+					bytes-=victim.getValue().length;
+					entries--;
+					rv++;
+				}
+			}
+		}
+		return rv;
+	}
+
+	// Get the next index entry, starting over at the end, or null if the
+	// index is empty.  Called holding cursorLock.
+	private Map.Entry<Object, Location> nextEntry() {
+		if(cursor == null || !cursor.hasNext()) {
+			cursor=index.entrySet().iterator();
+		}
+		return cursor.hasNext() ? cursor.next() : null;
+	}
+
+	// Of the next n current index entries, get an expired one or else the
+	// least recently used.  Called holding cursorLock.
+	private Map.Entry<Object, Location> sample(int n, long now) {
+		Map.Entry<Object, Location> rv=null;
+		long oldest=Long.MAX_VALUE;
+		int seen=0;
+		// Entries removed since the cursor passed them don't count.
+		for(int i=0; seen < n && i < n * 2; i++) {
+			Map.Entry<Object, Location> me=nextEntry();
+			if(me != null && index.get(me.getKey()) == me.getValue()) {
+				Location loc=me.getValue();
+				long age=loc.isExpired(now) ? Long.MIN_VALUE : loc.accessed;
+				if(rv == null || age < oldest) {
+					rv=me;
+					oldest=age;
+				}
+				seen++;
+			}
+		}
+		return rv;
+	}
+
+	private boolean overBudget(long bytes, int entries, long maxBytes,
+		int maxEntries) {
+		return (maxBytes > 0 && bytes > maxBytes)
+			|| (maxEntries > 0 && entries > maxEntries);
+	}
+
+	/**
+	 * Compact every sealed segment in which at least the given fraction of
+	 * the bytes belong to records that have been superseded.
+	 *
+	 * @param threshold the fraction of dead bytes warranting compaction
+	 * @return the number of segments compacted
+	 * @throws IOException if a segment can't be compacted
+	 */
+	public int compact(double threshold) throws IOException {
+		int rv=0;
+		synchronized(maintenance) {
+			for(Segment s : candidates(threshold)) {
+				compact(s);
+				rv++;
+			}
+		}
+		if(rv > 0) {
+			// The old manifest refers to the segments that are gone.
+			checkpoint();
+		}
+		return rv;
+	}
+
+	/**
+	 * Write a manifest of the index if it has changed since the last one.
+	 *
+	 * @throws IOException if the manifest can't be written
+	 */
+	public void checkpoint() throws IOException {
+		synchronized(maintenance) {
+			SegmentManifest m=null;
+			Object[] keys=null;
+			long mod=0;
+			synchronized(this) {
+				if(modCount != checkpointed) {
+					mod=modCount;
+					active.force();
+					m=new SegmentManifest(segments.size(), index.size());
+					int i=0;
+					for(Segment s : segments.values()) {
+						m.segmentIds[i]=s.id;
+						m.sizes[i]=s.size;
+						m.dead[i]=s.dead;
+						i++;
+					}
+					keys=new Object[index.size()];
+					i=0;
+					for(Map.Entry<Object, Location> me : index.entrySet()) {
+						Location loc=me.getValue();
+						keys[i]=me.getKey();
+						m.entrySegments[i]=loc.segment.id;
+						m.offsets[i]=loc.offset;
+						m.lengths[i]=loc.length;
+						m.keyLengths[i]=loc.keyLength;
+						m.expires[i]=loc.expires;
+						m.accessed[i]=loc.accessed;
+						m.flags[i]=loc.flags;
+						i++;
+					}
+				}
+			}
+			// Encoding and writing happens without holding up writers.
+			if(m != null) {
+				for(int i=0; i<keys.length; i++) {
+					m.keys[i]=keySerializer.serialize(keys[i]);
+				}
+				m.write(dir);
+				synchronized(this) {
+					checkpointed=mod;
+				}
+			}
+		}
+	}
+
+	private synchronized List<Segment> candidates(double threshold) {
+		List<Segment> rv=new ArrayList<Segment>();
+		for(Segment s : segments.values()) {
+			long data=s.size - FILE_HEADER;
+			if(s != active && (data == 0 || s.dead >= data * threshold)) {
+				rv.add(s);
+			}
+		}
+		return rv;
+	}
+
+	// Copy the live records of a segment forward and delete it.  Each
+	// record is moved under the lock, so writers are only held up for the
+	// duration of a single append.
+	private void compact(Segment s) throws IOException {
+		getLogger().debug("Compacting %s", s.file);
+		long pos=FILE_HEADER;
+		ByteBuffer body=readRecord(s, pos);
+		while(body != null) {
+			int length=body.limit() + 8;
+			byte type=body.get(0);
+			int keyLength=body.getInt(KEY_LENGTH);
+			byte[] k=new byte[keyLength];
+			body.position(KEY);
+			body.get(k);
+			byte[] v=new byte[body.remaining()];
+			body.get(v);
+			Object key=keySerializer.deserialize(ByteBuffer.wrap(k));
+			synchronized(this) {
+				modCount++;
+				Location cur=index.get(key);
+				if(type == PUT) {
+					if(cur != null && cur.segment == s && cur.offset == pos) {
+						Location loc=append(PUT, cur.flags, k, v,
+							cur.expires);
+						loc.accessed=cur.accessed;
+						index.put(key, loc);
+					}
+				} else if(cur == null) {
+					// Every earlier record for the key is in the segment the
+					// removed one was in or an older one.  Once those are
+					// gone, so is the need for the tombstone.
+					long removedFrom=body.getLong(EXPIRES);
+					if(removedFrom == 0) {
+						removedFrom=s.id - 1;
+					}
+					if(segments.firstKey() <= removedFrom) {
+						Location tombstone=append(DELETE, (byte)0, k, EMPTY,
+							removedFrom);
+						tombstone.segment.dead+=tombstone.length;
+					}
+				}
+			}
+			pos+=length;
+			body=readRecord(s, pos);
+		}
+		synchronized(this) {
+			active.force();
+			segments.remove(s.id);
+		}
+		unmap(s);
+		s.delete();
+	}
+
+	/**
+	 * Get the total size of the segment files.
+	 */
+	public synchronized long getDiskSize() {
+		long rv=0;
+		for(Segment s : segments.values()) {
+			rv+=s.size;
+		}
+		return rv;
+	}
+
+	/**
+	 * Get the number of segment files.
+	 */
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * Force everything written so far to disk.
+	 */
+	public synchronized void force() throws IOException {
+		active.force();
+	}
+
+	/**
+	 * Close all of the segment files.
+	 */
+	public void close() throws IOException {
+		checkpoint();
+		synchronized(this) {
+			closeSegments();
+		}
+	}
+
+	private void closeSegments() throws IOException {
+		active.force();
+		for(Segment s : segments.values()) {
+			unmap(s);
+			s.close();
+		}
+	}
+
+	/**
+	 * Remove all records and segment files.
+	 */
+	public synchronized void clear() throws IOException {
+		index.clear();
+		SegmentManifest.remove(dir);
+		modCount++;
+		for(Segment s : segments.values()) {
+			unmap(s);
+			s.delete();
+		}
+		segments.clear();
+		active=null;
+		roll();
+	}
+
+	// Where a key's latest record lives.
+	static final class Location {
+		final Segment segment;
+		final long offset;
+		final int length;
+		final int keyLength;
+		final long expires;
+		final byte flags;
+		// When the key was last read or written.
+		volatile long accessed=System.currentTimeMillis();
+		public Location(Segment s, long o, int l, int k, long e, byte f) {
+			super();
+			segment=s;
+			offset=o;
+			length=l;
+			keyLength=k;
+			expires=e;
+			flags=f;
+		}
+		boolean isExpired(long now) {
+			return expires != 0 && expires <= now;
+		}
+	}
+
+	// A segment file.
+	static final class Segment {
+		final int id;
+		final File file;
+		private volatile RandomAccessFile raf;
+		private volatile FileChannel channel;
+		private boolean writable;
+		// The end of the data in the file.
+		volatile long size;
+		// Bytes of records that have been superseded.  Guarded by the store.
+		long dead=0;
+		volatile boolean deleted=false;
+		// Nothing more will be written.
+		volatile boolean sealed;
+
+		public Segment(int i, File f, boolean w) throws IOException {
+			super();
+			id=i;
+			file=f;
+			writable=w;
+			sealed=!w;
+			open();
+			size=channel.size();
+		}
+
+		private void open() throws IOException {
+			raf=new RandomAccessFile(file, writable ? "rw" : "r");
+			channel=raf.getChannel();
+		}
+
+		// Reopen with the given access, or after the channel was closed by
+		// an interrupted reader.
+		synchronized void reopen(boolean w) throws IOException {
+			CloseUtil.close(raf);
+			writable=w;
+			open();
+		}
+
+		private FileChannel channel() throws IOException {
+			FileChannel rv=channel;
+			if(!rv.isOpen()) {
+				synchronized(this) {
+					if(deleted) {
+						throw new ClosedChannelException();
+					}
+					if(!channel.isOpen()) {
+						open();
+					}
+					rv=channel;
+				}
+			}
+			return rv;
+		}
+
+		boolean checkHeader() throws IOException {
+			boolean rv=false;
+			if(size >= FILE_HEADER) {
+				ByteBuffer b=ByteBuffer.allocate(FILE_HEADER);
+				read(b, 0);
+				rv=b.getInt(0) == MAGIC;
+			}
+			return rv;
+		}
+
+		void writeHeader() throws IOException {
+			ByteBuffer b=ByteBuffer.allocate(FILE_HEADER);
+			b.putInt(MAGIC);
+			b.flip();
+			write(b, 0);
+			size=FILE_HEADER;
+		}
+
+		// Fill the buffer from the given position.
+		void read(ByteBuffer b, long pos) throws IOException {
+			FileChannel c=channel();
+			long p=pos;
+			while(b.hasRemaining()) {
+				int n=c.read(b, p);
+				if(n < 0) {
+					throw new IOException("Unexpected end of " + file
+						+ " at " + p);
+				}
+				p+=n;
+			}
+		}
+
+		void write(ByteBuffer b, long pos) throws IOException {
+			FileChannel c=channel();
+			long p=pos;
+			while(b.hasRemaining()) {
+				p+=c.write(b, p);
+			}
+		}
+
+		void truncate(long pos) throws IOException {
+			boolean w=writable;
+			reopen(true);
+			channel.truncate(pos);
+			size=pos;
+			reopen(w);
+		}
+
+		MappedByteBuffer map() throws IOException {
+			return channel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+		}
+
+		void force() throws IOException {
+			channel().force(false);
+		}
+
+		synchronized void close() {
+			CloseUtil.close(raf);
+		}
+
+		synchronized void delete() {
+			deleted=true;
+			CloseUtil.close(raf);
+			if(!file.delete()) {
+				file.deleteOnExit();
+			}
+		}
+	}
+}
@@ -0,0 +1,37 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Converts keys and values to and from bytes for storage on disk.
+ *
+ * <p>
+ *  Implementations must be safe for concurrent use, and must be able to
+ *  decode anything they've encoded, including in another process.
+ * </p>
+ *
+ * @see DiskCache#DiskCache(String, int, long, Serializer)
+ */
+public interface Serializer {
+
+	/**
+	 * Encode an object.
+	 *
+	 * @param o the object
+	 * @return its encoded form
+	 * @throws IOException if the object can't be encoded
+	 */
+	byte[] serialize(Object o) throws IOException;
+
+	/**
+	 * Decode an object from the remaining bytes of a buffer.
+	 *
+	 * @param b the buffer
+	 * @return the object
+	 * @throws IOException if the bytes can't be decoded
+	 */
+	Object deserialize(ByteBuffer b) throws IOException;
+}
@@ -2,30 +2,112 @@
 
 package net.spy.cache;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.ref.Reference;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
 
 import net.spy.SpyObject;
+import net.spy.cache.CacheStats.EvictionCause;
+import net.spy.stat.GaugeStat;
 
 /**
  * A simple time-based cache.
+ *
+ * <p>
+ *  Expiration is tracked on a {@link TimingWheel} rather than with a task
+ *  per stored value, so storing, replacing or removing an entry is a
+ *  constant time operation (a replaced or removed entry is taken off the
+ *  wheel right away) and expired entries are removed in batches, once per
+ *  tick.
+ *  Entries are also checked for expiration when they're retrieved, so a
+ *  value is never returned after its timeout even if the sweep hasn't
+ *  gotten to it yet.
+ * </p>
+ *
+ * <p>
+ *  By default the cache is unbounded.  {@link #setMaximumSize(int)} bounds
+ *  the number of entries and {@link #setMaximumWeight(long, Weigher)} bounds
+ *  their total weight (e.g. estimated bytes), with admission and eviction
+ *  decided by a
+ *  {@link TinyLfuPolicy} so that a burst of keys that are only ever seen
+ *  once can't displace the entries that are in regular use.  An
+ *  {@link EvictionListener} may be told about evicted entries.
+ * </p>
+ *
+ * <p>
+ *  Values stored as soft or weak references are watched (see
+ *  {@link ReferenceWatcher}), and entries whose values the garbage
+ *  collector has reclaimed are removed by the expiration sweep.
+ * </p>
+ *
+ * <p>
+ *  Entries may be stored with tags and removed as a group with
+ *  {@link #invalidateTag(String)}.
+ * </p>
+ *
+ * <p>
+ *  The cache's contents can be saved to a snapshot file with
+ *  {@link #snapshot(File)} (or periodically) and restored into a new cache
+ *  with {@link #restore(File, int)}.
+ * </p>
+ *
+ * <p>
+ *  Hits, misses, loads and evictions are counted in the cache's
+ *  {@link CacheStats}.  The singleton instance publishes them under the
+ *  name <code>SimpleCache</code>.
+ * </p>
  */
 public class SimpleCache extends SpyObject {
 
 	private static SimpleCache instance=null;
 
-	private final ConcurrentMap<String, Object> storage=
-		new ConcurrentHashMap<String, Object>();
+	// How frequently the expiration sweep runs.
+	private static final long DEFAULT_TICK=100;
+	// Number of slots on the timing wheel.
+	private static final int DEFAULT_WHEEL_SIZE=512;
+
+	private static final String[] NO_TAGS=new String[0];
+
+	private final ConcurrentMap<String, CacheEntry> storage=
+		new ConcurrentHashMap<String, CacheEntry>();
+	private final TimingWheel<CacheEntry> wheel;
 	private final Timer timer=new Timer("SimpleCacheTimer", true);
+	private volatile TinyLfuPolicy<String> policy=null;
+	private volatile Weigher weigher=null;
+	private volatile EvictionListener evictionListener=null;
+	private final SingleFlight loads=new SingleFlight();
+	private final ReferenceWatcher<String, CacheEntry> watcher=
+		new ReferenceWatcher<String, CacheEntry>();
+	private volatile CacheStats stats=newStats(null);
+	final TagIndex<CacheEntry> tagIndex=new TagIndex<CacheEntry>();
 
 	/**
 	 * Get an instance of SimpleCache.
 	 */
 	protected SimpleCache() {
+		this(DEFAULT_TICK, DEFAULT_WHEEL_SIZE);
+	}
+
+	/**
+	 * Get an instance of SimpleCache with the given expiration resolution.
+	 *
+	 * @param tick how often (in milliseconds) expired entries are swept
+	 * @param wheelSize the number of slots on the timing wheel
+	 */
+	protected SimpleCache(long tick, int wheelSize) {
 		super();
+		wheel=new TimingWheel<CacheEntry>(tick, wheelSize);
+		timer.schedule(new Sweeper(), tick, tick);
 	}
 
 	/**
@@ -34,6 +116,7 @@ public class SimpleCache extends SpyObject {
 	public static synchronized SimpleCache getInstance() {
 		if(instance == null) {
 			instance=new SimpleCache();
+			instance.publishStats("SimpleCache");
 		}
 		return instance;
 	}
@@ -44,11 +127,132 @@ public class SimpleCache extends SpyObject {
 	 */
 	public static synchronized void setInstance(SimpleCache to) {
 		if(instance != null) {
-			instance.timer.cancel();
+			instance.shutdown();
 		}
 		instance=to;
 	}
 
+	// Stop the expiration sweep.
+	void shutdown() {
+		timer.cancel();
+	}
+
+	/**
+	 * Get this cache's statistics.
+	 */
+	public CacheStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * Publish this cache's statistics under the given name.  Counts from
+	 * before it's published aren't carried over.
+	 *
+	 * @param name the name
+	 * @see CacheStats
+	 */
+	public void publishStats(String name) {
+		if(name == null) {
+			throw new NullPointerException("Invalid stats name <null>");
+		}
+		stats=newStats(name);
+	}
+
+	private CacheStats newStats(String name) {
+		return new CacheStats(name, new GaugeStat.Source() {
+			public long getValue() {
+				return size();
+			}
+		}, new GaugeStat.Source() {
+			public long getValue() {
+				return getWeight();
+			}
+		});
+	}
+
+	/**
+	 * Set the listener told about entries evicted to keep the cache within
+	 * its bounds.
+	 *
+	 * @param l the listener, or null for none
+	 */
+	public void setEvictionListener(EvictionListener l) {
+		evictionListener=l;
+	}
+
+	/**
+	 * Set the maximum number of entries this cache will hold.
+	 *
+	 * @param max the maximum number of entries, or 0 for no limit
+	 */
+	public void setMaximumSize(int max) {
+		setMaximumWeight(max, null);
+	}
+
+	/**
+	 * Bound the cache by the total weight of its entries.
+	 *
+	 * @param max the maximum total weight, or 0 for no limit
+	 * @param w the weigher computing each entry's weight, or null to count
+	 *	every entry as one
+	 */
+	public synchronized void setMaximumWeight(long max, Weigher w) {
+		if(max < 0) {
+			throw new IllegalArgumentException("Invalid maximum size:  " + max);
+		}
+		weigher=w;
+		if(max == 0) {
+			policy=null;
+		} else {
+			TinyLfuPolicy<String> p=new TinyLfuPolicy<String>(max);
+			policy=p;
+			for(Map.Entry<String, CacheEntry> me : storage.entrySet()) {
+				evict(p.recordWrite(me.getKey(),
+					weigh(me.getKey(), me.getValue().value)));
+			}
+		}
+	}
+
+	/**
+	 * Get the maximum total weight of the entries this cache will hold.
+	 * Unless a Weigher was given, this is the maximum number of entries.
+	 *
+	 * @return the maximum, or 0 if the cache is unbounded
+	 */
+	public long getMaximumWeight() {
+		TinyLfuPolicy<String> p=policy;
+		return p == null ? 0 : p.getMaximum();
+	}
+
+	/**
+	 * Get the total weight of the entries currently in the cache.
+	 *
+	 * @return the weight, or 0 if the cache is unbounded
+	 */
+	public long getWeight() {
+		TinyLfuPolicy<String> p=policy;
+		return p == null ? 0 : p.weight();
+	}
+
+	// Compute the weight of an entry for the eviction policy.
+	private int weigh(String key, Object value) {
+		Weigher w=weigher;
+		return w == null ? 1 : w.weigh(key, value);
+	}
+
+	/**
+	 * Get the number of entries currently in the cache.  This may include
+	 * entries that have expired but not yet been swept.
+	 */
+	public int size() {
+		return storage.size();
+	}
+
+	// True if there's an entry for the key, without counting an access.
+	boolean contains(String key) {
+		return storage.containsKey(key);
+	}
+
 	/**
 	 * Get an object from the cache.
 	 * If the stored object is a reference, it'll be dereferenced before
@@ -58,17 +262,104 @@ public class SimpleCache extends SpyObject {
 	 * @return the cached object
 	 */
 	public Object get(String key) {
-		Object rv=storage.get(key);
-		if(rv != null && rv instanceof Reference) {
-			Reference<?> ref=(Reference<?>)rv;
-			rv=ref.get();
-			if(rv == null) {
-				storage.remove(key, ref);
+		Object rv=lookup(key);
+		if(rv == null) {
+			stats.miss();
+		} else {
+			stats.hit();
+		}
+		return rv;
+	}
+
+	// Get an object from the cache without counting a hit or miss.
+	private Object lookup(String key) {
+		Object rv=null;
+		CacheEntry e=storage.get(key);
+		if(e != null) {
+			if(e.isExpired(System.currentTimeMillis())) {
+				if(removeEntry(e)) {
+					stats.evicted(EvictionCause.EXPIRED);
+				}
+			} else {
+				rv=e.value;
+				if(rv instanceof Reference) {
+					Reference<?> ref=(Reference<?>)rv;
+					rv=ref.get();
+					if(rv == null) {
+						collected(e);
+					}
+				}
+				TinyLfuPolicy<String> p=policy;
+				if(rv != null && p != null) {
+					p.recordAccess(key);
+				}
 			}
 		}
 		return rv;
 	}
 
+	/**
+	 * Get an object from the cache, loading and storing it if it's not
+	 * there.
+	 *
+	 * <p>
+	 *  Only one load per key runs at a time.  Other callers missing on the
+	 *  same key wait for it and get its result (or its exception).  Failed
+	 *  and null loads aren't cached.  A loader may load other keys, but
+	 *  not the one it's loading.
+	 * </p>
+	 *
+	 * @param key the cache key
+	 * @param loader computes the value on a miss
+	 * @param timeout how long until a loaded value is deleted
+	 * @return the cached or loaded value
+	 * @throws E if the loader fails
+	 * @throws IllegalStateException if called for the key being loaded
+	 *	from within its own load
+	 */
+	public <T, E extends Exception> T getOrLoad(String key,
+		CacheLoader<T, E> loader, long timeout) throws E {
+		return getOrLoad(key, loader, timeout, false);
+	}
+
+	/**
+	 * Get an object from the cache, loading and storing it if it's not
+	 * there.
+	 *
+	 * @param key the cache key
+	 * @param loader computes the value on a miss
+	 * @param timeout how long until a loaded value is deleted
+	 * @param softly if true, a loaded value is stored via a SoftReference
+	 * @return the cached or loaded value
+	 * @throws E if the loader fails
+	 * @see #getOrLoad(String, CacheLoader, long)
+	 */
+	@SuppressWarnings("unchecked")
+	public <T, E extends Exception> T getOrLoad(final String key,
+		final CacheLoader<T, E> loader, final long timeout,
+		final boolean softly) throws E {
+		Object rv=get(key);
+		if(rv == null) {
+			rv=loads.<E>run(key, new Callable<Object>() {
+				public Object call() throws Exception {
+					// It may have been stored while we waited our turn.
+					Object v=lookup(key);
+					if(v == null) {
+						v=stats.load(loader);
+						if(v != null) {
+							Object o=v;
+							if(softly) {
+								o=new SoftReference<Object>(v);
+							}
+							store(key, o, timeout);
+						}
+					}
+					return v;
+				}});
+		}
+		return (T)rv;
+	}
+
 	/**
 	 * Store an object in the cache.
 	 *
@@ -77,13 +368,106 @@ public class SimpleCache extends SpyObject {
 	 * @param value the value to cache
 	 */
 	public void store(String key, Object value, long timeout) {
-		storage.put(key, value);
+		store(key, value, timeout, NO_TAGS);
+	}
+
+	/**
+	 * Store an object in the cache with the given tags.
+	 *
+	 * @param key the cache key
+	 * @param value the value to cache
+	 * @param timeout how long until it's deleted
+	 * @param tags tags by which this entry may be invalidated
+	 * @see #invalidateTag(String)
+	 */
+	public void store(String key, Object value, long timeout,
+		String... tags) {
+		long expires=Long.MAX_VALUE;
 		if(timeout != Long.MAX_VALUE) {
-			ClearTimer c=new ClearTimer(key, value);
-			timer.schedule(c, timeout);
+			expires=System.currentTimeMillis() + timeout;
+		}
+		CacheEntry e=new CacheEntry(key, value, expires);
+		CacheEntry old=storage.put(key, e);
+		if(old != null) {
+			unschedule(old);
+		}
+		tagIndex.update(key, e, tags);
+		// If it was removed before its tags were recorded, they'd never be
+		// cleaned up.
+		if(tags.length > 0 && storage.get(key) != e) {
+			tagIndex.remove(key, e);
+		}
+		added(e);
+	}
+
+	// Schedule a newly stored entry's expiration and tell the policy.
+	private void added(CacheEntry e) {
+		if(e.expires != Long.MAX_VALUE) {
+			e.node=wheel.schedule(e, e.expires);
+			// If it was removed or replaced before it was scheduled, it
+			// couldn't be unscheduled then.
+			if(storage.get(e.key) != e) {
+				unschedule(e);
+			}
+		}
+		watcher.watch(e.key, e, e.value);
+		TinyLfuPolicy<String> p=policy;
+		if(p != null) {
+			evict(p.recordWrite(e.key, weigh(e.key, e.value)));
 		}
 	}
 
+	/**
+	 * Write the unexpired entries whose values are serializable to a
+	 * snapshot file, replacing it.  Tags aren't saved.
+	 *
+	 * @param f the snapshot file
+	 * @return the number of entries written
+	 * @throws IOException if the snapshot can't be written
+	 */
+	public int snapshot(File f) throws IOException {
+		List<SnapshotFile.Entry> entries=new ArrayList<SnapshotFile.Entry>();
+		for(CacheEntry e : storage.values()) {
+			entries.add(new SnapshotFile.Entry(e.key, e.value, e.expires));
+		}
+		return new SnapshotFile(f).write(entries);
+	}
+
+	/**
+	 * Write a snapshot periodically until the cache is shut down.
+	 *
+	 * @param f the snapshot file
+	 * @param interval how often (in milliseconds) to write it
+	 */
+	public void scheduleSnapshots(File f, long interval) {
+		new SnapshotFile(f).schedule(timer, new SnapshotFile.Source() {
+			public int snapshot(File file) throws IOException {
+				return SimpleCache.this.snapshot(file);
+			}}, interval);
+	}
+
+	/**
+	 * Restore the entries in a snapshot file in the background.  The cache
+	 * may be used while this runs.  Entries that have expired since the
+	 * snapshot was written are skipped, and none replaces an entry that's
+	 * already been stored.
+	 *
+	 * @param f the snapshot file
+	 * @param threads the number of threads decoding and storing entries
+	 * @return the number of entries restored, once it's done
+	 */
+	public Future<Integer> restore(File f, int threads) {
+		return new SnapshotFile(f).restore(threads, new SnapshotFile.Sink() {
+			public boolean restore(String key, Object value, long expires) {
+				CacheEntry e=new CacheEntry(key, value, expires);
+				boolean rv=storage.putIfAbsent(key, e) == null;
+				if(rv) {
+					added(e);
+				}
+				return rv;
+			}});
+	}
+
 	/**
 	 * Remove an object from the cache.
 	 *
@@ -91,7 +475,13 @@ public class SimpleCache extends SpyObject {
 	 * @return the previous object under this key (null if there wasn't one)
 	 */
 	public Object remove(String key) {
-		return storage.remove(key);
+		CacheEntry e=storage.remove(key);
+		Object rv=null;
+		if(e != null) {
+			forget(e);
+			rv=e.value;
+		}
+		return rv;
 	}
 
 	/**
@@ -103,21 +493,135 @@ public class SimpleCache extends SpyObject {
 	 * @return true if a value was removed
 	 */
 	public boolean remove(String key, Object value) {
-		return storage.remove(key, value);
+		CacheEntry e=storage.get(key);
+		return e != null && e.value.equals(value) && removeEntry(e);
 	}
 
-	// timer that fires to clear stuff
-	private static class ClearTimer extends TimerTask {
-		private final String key;
-		private final Object value;
-		public ClearTimer(String k, Object v) {
+	// Remove the given entry if it's still the current one for its key.
+	private boolean removeEntry(CacheEntry e) {
+		boolean rv=storage.remove(e.key, e);
+		if(rv) {
+			forget(e);
+		}
+		return rv;
+	}
+
+	/**
+	 * Remove all objects from the cache that were stored with the given tag.
+	 * This costs time proportional to the number of entries carrying the
+	 * tag.
+	 *
+	 * @param tag the tag
+	 */
+	public void invalidateTag(String tag) {
+		for(CacheEntry e : tagIndex.get(tag).values()) {
+			removeEntry(e);
+		}
+	}
+
+	// Take an entry off the timing wheel so the wheel doesn't keep its
+	// value reachable until it would have expired.
+	private void unschedule(CacheEntry e) {
+		TimingWheel.Node<CacheEntry> n=e.node;
+		if(n != null) {
+			wheel.cancel(n);
+		}
+	}
+
+	// Tell the timing wheel, the eviction policy (if any) and the tag index
+	// that an entry is gone.
+	private void forget(CacheEntry e) {
+		unschedule(e);
+		tagIndex.remove(e.key, e);
+		watcher.forget(e.key, e);
+		TinyLfuPolicy<String> p=policy;
+		if(p != null) {
+			p.recordRemoval(e.key);
+		}
+	}
+
+	// Remove entries the eviction policy has chosen.
+	private void evict(List<String> keys) {
+		EvictionListener l=evictionListener;
+		for(String k : keys) {
+			CacheEntry e=storage.remove(k);
+			if(e != null) {
+				unschedule(e);
+				tagIndex.remove(k, e);
+				watcher.forget(k, e);
+				stats.evicted(EvictionCause.SIZE);
+				if(l != null) {
+					try {
+						l.evicted(k, e.value, e.expires);
+					} catch(RuntimeException re) {
+						getLogger().warn("Problem reporting eviction of %s",
+							k, re);
+					}
+				}
+			}
+		}
+	}
+
+	// Remove everything from the wheel that's expired by now.  An entry that
+	// was replaced since it was scheduled won't match its key any longer,
+	// so the conditional remove leaves the new value alone.
+	void expire(long now) {
+		for(CacheEntry e : wheel.advance(now)) {
+			if(removeEntry(e)) {
+				stats.evicted(EvictionCause.EXPIRED);
+			}
+		}
+	}
+
+	// Remove the entries whose referenced values have been collected.
+	void purge() {
+		ReferenceWatcher.Watch<String, CacheEntry> w=null;
+		while((w=watcher.poll()) != null) {
+			collected(w.entry);
+		}
+	}
+
+	// Remove an entry whose referenced value has been collected.
+	private void collected(CacheEntry e) {
+		if(removeEntry(e)) {
+			stats.evicted(EvictionCause.COLLECTED);
+		}
+	}
+
+	// A stored value along with its absolute expiration time.
+	static final class CacheEntry implements TimingWheel.Timed {
+		final String key;
+		final Object value;
+		final long expires;
+		// Where it's scheduled to expire, if it is
+		volatile TimingWheel.Node<CacheEntry> node=null;
+		public CacheEntry(String k, Object v, long exp) {
 			super();
 			key=k;
 			value=v;
+			expires=exp;
+		}
+		public long getExpiration() {
+			return expires;
+		}
+		boolean isExpired(long now) {
+			return now >= expires;
+		}
+	}
+
+	// timer that fires to clear stuff
+	private class Sweeper extends TimerTask {
+		public Sweeper() {
+			super();
 		}
 		@Override
 		public void run() {
-			SimpleCache.getInstance().remove(key, value);
+			try {
+				expire(System.currentTimeMillis());
+				purge();
+			} catch(RuntimeException e) {
+				getLogger().warn("Problem expiring cache entries", e);
+			}
 		}
 	}
 }
@@ -0,0 +1,103 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.cache;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Makes sure only one load per key is in progress at a time.
+ *
+ * <p>
+ *  The first caller for a key runs the load on its own thread.  Anyone
+ *  asking for the same key while that's in progress waits for that load
+ *  and gets the same result, or the same exception.  Nothing is remembered
+ *  once the load completes, so a failed load is retried by the next caller.
+ * </p>
+ *
+ * <p>
+ *  A load that asks for its own key on its own thread (directly or through
+ *  other loads) would wait for itself forever, so that fails with an
+ *  IllegalStateException instead.
+ * </p>
+ */
+final class SingleFlight {
+
+	private final ConcurrentMap<String, Flight> inFlight=
+		new ConcurrentHashMap<String, Flight>();
+
+	/**
+	 * Get an instance of SingleFlight.
+	 */
+	public SingleFlight() {
+		super();
+	}
+
+	/**
+	 * Run the given task unless one is already running for this key, in
+	 * which case wait for that one instead.
+	 *
+	 * @param key the key being loaded
+	 * @param c the load to run
+	 * @return the result of whichever load ran
+	 * @throws E whatever the load threw
+	 * @throws IllegalStateException if this thread is already running the
+	 *	load for this key
+	 */
+	@SuppressWarnings("unchecked")
+	public <E extends Exception> Object run(String key, Callable<Object> c)
+		throws E {
+		Flight f=new Flight(c);
+		Flight existing=inFlight.putIfAbsent(key, f);
+		if(existing == null) {
+			try {
+				f.run();
+			} finally {
+				inFlight.remove(key, f);
+			}
+		} else if(existing.owner == Thread.currentThread()) {
+			throw new IllegalStateException("Recursive load of " + key);
+		} else {
+			f=existing;
+		}
+
+		Object rv=null;
+		boolean interrupted=false;
+		boolean done=false;
+		try {
+			while(!done) {
+				try {
+					rv=f.get();
+					done=true;
+				} catch(InterruptedException e) {
+					// The loader isn't ours to abandon, so keep waiting.
+					interrupted=true;
+				}
+			}
+		} catch(ExecutionException e) {
+			Throwable t=e.getCause();
+			if(t instanceof RuntimeException) {
+				throw (RuntimeException)t;
+			} else if(t instanceof Error) {
+				throw (Error)t;
+			}
+			throw (E)t;
+		} finally {
+			if(interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return rv;
+	}
+
+	// A load, and the thread running it.
+	private static final class Flight extends FutureTask<Object> {
+		final Thread owner=Thread.currentThread();
+		public Flight(Callable<Object> c) {
+			super(c);
+		}
+	}
+}
@@ -0,0 +1,103 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.cache;
+
+import java.lang.ref.Reference;
+
+/**
+ * A Weigher that estimates the number of heap bytes held by an entry.
+ *
+ * <p>
+ *  Strings and byte arrays are sized from their lengths, references are
+ *  sized by what they refer to, and anything else is assumed to cost
+ *  {@link #getDefaultSize()} bytes.  Subclasses can teach it about more
+ *  types by overriding {@link #estimate(Object)}.  The estimates assume a
+ *  64-bit VM and are only meant to be good enough to compare one entry
+ *  against another.
+ * </p>
+ */
+public class SizeEstimatingWeigher implements Weigher {
+
+	/**
+	 * Rough overhead of an object header and a reference or two.
+	 */
+	protected static final int OBJECT_OVERHEAD=16;
+
+	private static final int DEFAULT_SIZE=64;
+
+	private final int defaultSize;
+
+	/**
+	 * Get a SizeEstimatingWeigher that assumes unknown objects cost 64 bytes.
+	 */
+	public SizeEstimatingWeigher() {
+		this(DEFAULT_SIZE);
+	}
+
+	/**
+	 * Get a SizeEstimatingWeigher with the given size for unknown objects.
+	 *
+	 * @param defSize the number of bytes assumed for objects of unknown types
+	 */
+	public SizeEstimatingWeigher(int defSize) {
+		super();
+		if(defSize < 0) {
+			throw new IllegalArgumentException("Invalid default size:  "
+				+ defSize);
+		}
+		defaultSize=defSize;
+	}
+
+	/**
+	 * Get the number of bytes assumed for objects of unknown types.
+	 */
+	public int getDefaultSize() {
+		return defaultSize;
+	}
+
+	/**
+	 * Weigh the key and the value together.
+	 */
+	public int weigh(String key, Object value) {
+		long rv=sizeOf(key) + sizeOf(value);
+		return (int)Math.min(rv, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Get the estimated size of the given object in bytes.
+	 *
+	 * @param o the object (may be null)
+	 * @return the estimated size
+	 */
+	protected long sizeOf(Object o) {
+		long rv=0;
+		if(o instanceof Reference) {
+			rv=OBJECT_OVERHEAD + sizeOf(((Reference<?>)o).get());
+		} else if(o != null) {
+			rv=estimate(o);
+		}
+		return rv;
+	}
+
+	/**
+	 * Estimate the size of an object that is neither null nor a reference.
+	 * Override this to handle more types, deferring to this implementation
+	 * for anything unrecognized.
+	 *
+	 * @param o the object
+	 * @return the estimated size in bytes
+	 */
+	protected long estimate(Object o) {
+		long rv=defaultSize;
+		if(o instanceof String) {
+			// String object, its char array header, and two bytes a char.
+			rv=OBJECT_OVERHEAD * 3 + 2L * ((String)o).length();
+		} else if(o instanceof byte[]) {
+			rv=OBJECT_OVERHEAD + ((byte[])o).length;
+		} else if(o instanceof Number || o instanceof Boolean
+			|| o instanceof Character) {
+			rv=OBJECT_OVERHEAD;
+		}
+		return rv;
+	}
+}
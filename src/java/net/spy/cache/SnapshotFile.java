@@ -0,0 +1,392 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+import net.spy.SpyObject;
+import net.spy.util.CloseUtil;
+
+/**
+ * Reads and writes snapshots of cache entries.
+ *
+ * <p>
+ *  A snapshot holds each entry's key, absolute expiration time and value
+ *  encoded with a {@link CompactSerializer}.  It's written to a temporary
+ *  file and renamed into place, so a snapshot is never seen half written.
+ *  Entries whose values can't be serialized are left out.  A value held by
+ *  a SoftReference or WeakReference is saved with its kind of reference and
+ *  wrapped the same way again when it's restored.
+ * </p>
+ *
+ * <p>
+ *  Restoring reads the file sequentially on one thread and hands batches
+ *  of records to a pool of threads that decode and store them, so the
+ *  whole snapshot is never in memory at once.  Records that expired
+ *  since the snapshot was taken are skipped before they're decoded.
+ * </p>
+ */
+final class SnapshotFile extends SpyObject {
+
+	private static final int MAGIC=0x53505301;
+	// Records handed to a restoring thread at once.
+	private static final int BATCH_SIZE=256;
+	private static final String CHARSET="UTF-8";
+	// Each record starts with the kind of reference holding the value.
+	// END is the old end marker and STRONG the old record marker.
+	private static final byte END=0;
+	private static final byte STRONG=1;
+	private static final byte SOFT=2;
+	private static final byte WEAK=3;
+
+	private final File file;
+	private final Serializer serializer=new CompactSerializer();
+
+	/**
+	 * Get a SnapshotFile for the given path.
+	 */
+	public SnapshotFile(File f) {
+		super();
+		file=f;
+	}
+
+	/**
+	 * Write the given entries as the snapshot.
+	 *
+	 * @param entries the entries
+	 * @return the number of entries written
+	 * @throws IOException if the snapshot can't be written
+	 */
+	public int write(Iterable<Entry> entries) throws IOException {
+		int rv=0;
+		long now=System.currentTimeMillis();
+		File tmp=new File(file.getPath() + ".tmp");
+		FileOutputStream fos=new FileOutputStream(tmp);
+		try {
+			DataOutputStream out=new DataOutputStream(
+				new BufferedOutputStream(fos));
+			out.writeInt(MAGIC);
+			for(Entry e : entries) {
+				Object v=e.value;
+				byte kind=STRONG;
+				if(v instanceof SoftReference) {
+					kind=SOFT;
+				} else if(v instanceof WeakReference) {
+					kind=WEAK;
+				}
+				if(v instanceof Reference) {
+					v=((Reference<?>)v).get();
+				}
+				byte[] b=e.expires > now ? encode(e.key, v) : null;
+				if(b != null) {
+					byte[] k=e.key.getBytes(CHARSET);
+					out.writeByte(kind);
+					out.writeInt(k.length);
+					out.write(k);
+					out.writeLong(e.expires);
+					out.writeInt(b.length);
+					out.write(b);
+					rv++;
+				}
+			}
+			out.writeByte(END);
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			CloseUtil.close(fos);
+		}
+		if(!tmp.renameTo(file)) {
+			// Some platforms won't rename over an existing file.
+			if(!file.delete() || !tmp.renameTo(file)) {
+				throw new IOException("Can't rename " + tmp + " to " + file);
+			}
+		}
+		return rv;
+	}
+
+	// Encode a value, or return null if it can't be.
+	private byte[] encode(String key, Object v) {
+		byte[] rv=null;
+		if(v != null) {
+			try {
+				rv=serializer.serialize(v);
+			} catch(IOException e) {
+				getLogger().debug("Not saving %s", key, e);
+			}
+		}
+		return rv;
+	}
+
+	/**
+	 * Restore the snapshot in the background.
+	 *
+	 * @param threads the number of threads decoding and storing entries
+	 * @param sink where the entries go
+	 * @return the number of entries restored, once it's done (0 if there's
+	 *	no snapshot)
+	 */
+	public Future<Integer> restore(final int threads, final Sink sink) {
+		if(threads < 1) {
+			throw new IllegalArgumentException("Invalid thread count:  "
+				+ threads);
+		}
+		FutureTask<Integer> rv=new FutureTask<Integer>(
+			new Callable<Integer>() {
+				public Integer call() throws Exception {
+					int n=0;
+					if(file.exists()) {
+						n=restore(Executors.newFixedThreadPool(threads,
+							new RestoreThreadFactory()), threads, sink);
+					}
+					return n;
+				}
+			});
+		Thread t=new Thread(rv, "SnapshotFile reader " + file);
+		t.setDaemon(true);
+		t.start();
+		return rv;
+	}
+
+	private int restore(ExecutorService pool, int threads, Sink sink)
+		throws IOException, InterruptedException, ExecutionException {
+		int rv=0;
+		// Bounds the number of batches read ahead of the restoring threads.
+		Semaphore permits=new Semaphore(threads * 2);
+		List<Future<Integer>> results=new ArrayList<Future<Integer>>();
+		FileInputStream fis=new FileInputStream(file);
+		try {
+			DataInputStream in=new DataInputStream(
+				new BufferedInputStream(fis));
+			if(in.readInt() != MAGIC) {
+				throw new IOException("Invalid snapshot header in " + file);
+			}
+			List<Record> batch=new ArrayList<Record>(BATCH_SIZE);
+			boolean done=false;
+			while(!done) {
+				Record r=read(in);
+				if(r == null) {
+					done=true;
+				} else if(r.expires > System.currentTimeMillis()) {
+					batch.add(r);
+				}
+				if(batch.size() == BATCH_SIZE
+					|| (done && !batch.isEmpty())) {
+					permits.acquire();
+					results.add(pool.submit(
+						new Batch(batch, sink, permits)));
+					batch=new ArrayList<Record>(BATCH_SIZE);
+				}
+			}
+			for(Future<Integer> f : results) {
+				rv+=f.get();
+			}
+		} finally {
+			CloseUtil.close(fis);
+			pool.shutdown();
+		}
+		return rv;
+	}
+
+	// Read the next record, or null at the end.
+	private Record read(DataInputStream in) throws IOException {
+		Record rv=null;
+		try {
+			byte kind=in.readByte();
+			if(kind != END) {
+				if(kind < STRONG || kind > WEAK) {
+					throw new IOException("Invalid record type:  " + kind);
+				}
+				String key=new String(readBytes(in), CHARSET);
+				long expires=in.readLong();
+				rv=new Record(key, kind, expires, readBytes(in));
+			}
+		} catch(EOFException e) {
+			getLogger().warn("Snapshot %s ends unexpectedly", file);
+		}
+		return rv;
+	}
+
+	private byte[] readBytes(DataInputStream in) throws IOException {
+		int length=in.readInt();
+		if(length < 0) {
+			throw new IOException("Invalid length:  " + length);
+		}
+		byte[] rv=new byte[length];
+		in.readFully(rv);
+		return rv;
+	}
+
+	/**
+	 * Write snapshots from the given source periodically.
+	 *
+	 * @param t the timer to run on
+	 * @param s the source of the snapshots
+	 * @param interval how often (in milliseconds) to write a snapshot
+	 */
+	public void schedule(Timer t, Source s, long interval) {
+		if(interval < 1) {
+			throw new IllegalArgumentException("Invalid interval:  "
+				+ interval);
+		}
+		t.schedule(new Task(s), interval, interval);
+	}
+
+	/**
+	 * An entry to be written to a snapshot.
+	 */
+	static final class Entry {
+		final String key;
+		final Object value;
+		final long expires;
+		/**
+		 * Get an Entry.
+		 *
+		 * @param k the key
+		 * @param v the value (which may be a Reference)
+		 * @param e when it expires, or Long.MAX_VALUE if it doesn't
+		 */
+		public Entry(String k, Object v, long e) {
+			super();
+			key=k;
+			value=v;
+			expires=e;
+		}
+	}
+
+	/**
+	 * Receives restored entries.
+	 */
+	interface Sink {
+		/**
+		 * Store a restored entry unless there's already one for its key.
+		 *
+		 * @param key the key
+		 * @param value the value (a Reference if it was saved from one)
+		 * @param expires when it expires, or Long.MAX_VALUE if it doesn't
+		 * @return true if the entry was stored
+		 */
+		boolean restore(String key, Object value, long expires);
+	}
+
+	/**
+	 * Something that can write snapshots.
+	 */
+	interface Source {
+		/**
+		 * Write a snapshot to the given file.
+		 */
+		int snapshot(File f) throws IOException;
+	}
+
+	// Writes snapshots periodically.
+	private final class Task extends TimerTask {
+		private final Source source;
+		public Task(Source s) {
+			super();
+			source=s;
+		}
+		@Override
+		public void run() {
+			try {
+				source.snapshot(file);
+			} catch(IOException e) {
+				getLogger().warn("Problem writing snapshot %s", file, e);
+			}
+		}
+	}
+
+	// An undecoded record.
+	private static final class Record {
+		final String key;
+		final byte kind;
+		final long expires;
+		final byte[] value;
+		public Record(String k, byte r, long e, byte[] v) {
+			super();
+			key=k;
+			kind=r;
+			expires=e;
+			value=v;
+		}
+		// Wrap a decoded value the way it was held when it was saved.
+		Object wrap(Object v) {
+			Object rv=v;
+			if(kind == SOFT) {
+				rv=new SoftReference<Object>(v);
+			} else if(kind == WEAK) {
+				rv=new WeakReference<Object>(v);
+			}
+			return rv;
+		}
+	}
+
+	// Decodes and stores a batch of records.
+	private final class Batch implements Callable<Integer> {
+		private final List<Record> records;
+		private final Sink sink;
+		private final Semaphore permits;
+		public Batch(List<Record> r, Sink s, Semaphore p) {
+			super();
+			records=r;
+			sink=s;
+			permits=p;
+		}
+		public Integer call() {
+			int rv=0;
+			try {
+				for(Record r : records) {
+					if(r.expires > System.currentTimeMillis()) {
+						try {
+							Object v=r.wrap(serializer.deserialize(
+								ByteBuffer.wrap(r.value)));
+							if(sink.restore(r.key, v, r.expires)) {
+								rv++;
+							}
+						} catch(IOException e) {
+							getLogger().warn("Can't restore %s", r.key, e);
+						}
+					}
+				}
+			} finally {
+				permits.release();
+			}
+			return rv;
+		}
+	}
+
+	// Restoring threads don't keep the VM running.
+	private static final class RestoreThreadFactory implements ThreadFactory {
+		public RestoreThreadFactory() {
+			super();
+		}
+		public Thread newThread(Runnable r) {
+			Thread rv=new Thread(r, "SnapshotFile restore");
+			rv.setDaemon(true);
+			return rv;
+		}
+	}
+}
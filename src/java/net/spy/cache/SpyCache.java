@@ -4,15 +4,25 @@
 
 package net.spy.cache;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.ref.Reference;
+import java.lang.ref.SoftReference;
 import java.net.InetAddress;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Timer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 import net.spy.SpyObject;
 import net.spy.SpyThread;
-import net.spy.util.TimeStampedHashMap;
+import net.spy.cache.CacheStats.EvictionCause;
+import net.spy.stat.GaugeStat;
+import net.spy.util.TimeStampedConcurrentHashMap;
 
 /**
  * Spy in-memory cache object.
@@ -23,16 +33,75 @@ import net.spy.util.TimeStampedHashMap;
  * <tt>net.spy.cache.multi.port</tt> are both set, requests may be sent as
  * ASCII strings on that multicast group and port to clear cache entries
  * based on prefix.
+ *
+ * <p>
+ *
+ * The backing store is concurrent:  lookups never block, stores and removals
+ * only contend within a hash stripe, and the expiry sweep walks the store
+ * without stopping other threads.  Events are only delivered for entries a
+ * caller actually removed, so a racing removal never notifies twice.
+ *
+ * <p>
+ *
+ * The cache is unbounded unless {@link #setMaximumSize(int)} or
+ * {@link #setMaximumWeight(long, Weigher)} is called, in which case entries
+ * are admitted and evicted by a {@link TinyLfuPolicy}.
+ * Evicted entries receive the same uncached events as any other removal.
+ *
+ * <p>
+ *
+ * Entries may be stored with tags naming the things they depend on (e.g.
+ * the tables a query read) and removed as a group with
+ * {@link #invalidateTag(String)}.
+ *
+ * <p>
+ *
+ * Delegate notifications and uncached events are delivered on the thread
+ * that stored or removed the entry unless a {@link CacheEventDispatcher}
+ * is set, in which case they're queued and delivered in the background.
+ *
+ * <p>
+ *
+ * Entries stored with a timeout can be saved to a snapshot file with
+ * {@link #snapshot(File)} (or periodically) and restored into a new cache
+ * with {@link #restore(File, int)}.
+ *
+ * <p>
+ *
+ * Values stored as soft or weak references are watched (see
+ * {@link ReferenceWatcher}), and entries whose values the garbage collector
+ * has reclaimed are removed when the cache is next written to or cleaned.
+ *
+ * <p>
+ *
+ * Hits, misses, loads and evictions are counted in the cache's
+ * {@link CacheStats}.  The singleton instance publishes them under the
+ * name <code>SpyCache</code>.
  */
 public class SpyCache extends SpyObject {
 
-	final TimeStampedHashMap<String, Cachable> cacheStore;
+	final TimeStampedConcurrentHashMap<String, Cachable> cacheStore;
 	private SpyCacheCleaner cacheCleaner=null;
 
 	CacheDelegate delegate=null;
+	private volatile CacheEventDispatcher dispatcher=null;
+
+	private volatile TinyLfuPolicy<String> policy=null;
+	private volatile Weigher weigher=null;
+	private final SingleFlight loads=new SingleFlight();
+	private volatile CacheStats stats=newStats(null);
+	private final PrefixIndex keyIndex=new PrefixIndex();
+	private final ReferenceWatcher<String, Cachable> watcher=
+		new ReferenceWatcher<String, Cachable>();
+	final TagIndex<Cachable> tagIndex=new TagIndex<Cachable>();
 
 	private static SpyCache instance=null;
 
+	private static final String[] NO_TAGS=new String[0];
+
+	// Created when snapshots are scheduled.
+	private Timer snapshotTimer=null;
+
 	// how frequently to clean up the cache
 	private static final int CACHE_CLEAN_SLEEP_TIME=60000;
 
@@ -42,7 +111,7 @@ public class SpyCache extends SpyObject {
 	 */
 	protected SpyCache() {
 		super();
-		cacheStore=new TimeStampedHashMap<String, Cachable>();
+		cacheStore=new TimeStampedConcurrentHashMap<String, Cachable>();
 		delegate=new DummyDelegate();
 	}
 
@@ -60,6 +129,7 @@ public class SpyCache extends SpyObject {
 	public static synchronized SpyCache getInstance() {
 		if(instance==null) {
 			instance=new SpyCache();
+			instance.publishStats("SpyCache");
 		}
 
 		instance.checkThread();
@@ -74,9 +144,45 @@ public class SpyCache extends SpyObject {
 		if(instance != null && instance.cacheCleaner != null) {
 			instance.cacheCleaner.shutdown();
 		}
+		if(instance != null) {
+			instance.cancelSnapshots();
+		}
 		instance=null;
 	}
 
+	/**
+	 * Get this cache's statistics.
+	 */
+	public CacheStats getStats() {
+		return(stats);
+	}
+
+	/**
+	 * Publish this cache's statistics under the given name.  Counts from
+	 * before it's published aren't carried over.
+	 *
+	 * @param name the name
+	 * @see CacheStats
+	 */
+	public void publishStats(String name) {
+		if(name == null) {
+			throw new NullPointerException("Invalid stats name <null>");
+		}
+		stats=newStats(name);
+	}
+
+	private CacheStats newStats(String name) {
+		return new CacheStats(name, new GaugeStat.Source() {
+			public long getValue() {
+				return cacheStore.size();
+			}
+		}, new GaugeStat.Source() {
+			public long getValue() {
+				return getWeight();
+			}
+		});
+	}
+
 	/**
 	 * Set the delegate for this SpyCache.
 	 *
@@ -89,6 +195,82 @@ public class SpyCache extends SpyObject {
 		delegate=del;
 	}
 
+	/**
+	 * Set the dispatcher delivering cache events in the background.
+	 *
+	 * @param d the dispatcher, or null to deliver events synchronously
+	 */
+	public void setEventDispatcher(CacheEventDispatcher d) {
+		dispatcher=d;
+	}
+
+	/**
+	 * Get the dispatcher delivering cache events, if any.
+	 */
+	public CacheEventDispatcher getEventDispatcher() {
+		return(dispatcher);
+	}
+
+	/**
+	 * Set the maximum number of entries this cache will hold.
+	 *
+	 * @param max the maximum number of entries, or 0 for no limit
+	 */
+	public void setMaximumSize(int max) {
+		setMaximumWeight(max, null);
+	}
+
+	/**
+	 * Bound the cache by the total weight of its entries.
+	 *
+	 * @param max the maximum total weight, or 0 for no limit
+	 * @param w the weigher computing each entry's weight, or null to count
+	 *	every entry as one
+	 */
+	public synchronized void setMaximumWeight(long max, Weigher w) {
+		if(max < 0) {
+			throw new IllegalArgumentException("Invalid maximum size:  " + max);
+		}
+		weigher=w;
+		if(max == 0) {
+			policy=null;
+		} else {
+			TinyLfuPolicy<String> p=new TinyLfuPolicy<String>(max);
+			policy=p;
+			for(Map.Entry<String, Cachable> me : cacheStore.entrySet()) {
+				evict(p.recordWrite(me.getKey(),
+					weigh(me.getKey(), me.getValue().getCachedObject())));
+			}
+		}
+	}
+
+	/**
+	 * Get the maximum total weight of the entries this cache will hold.
+	 * Unless a Weigher was given, this is the maximum number of entries.
+	 *
+	 * @return the maximum, or 0 if the cache is unbounded
+	 */
+	public long getMaximumWeight() {
+		TinyLfuPolicy<String> p=policy;
+		return p == null ? 0 : p.getMaximum();
+	}
+
+	/**
+	 * Get the total weight of the entries currently in the cache.
+	 *
+	 * @return the weight, or 0 if the cache is unbounded
+	 */
+	public long getWeight() {
+		TinyLfuPolicy<String> p=policy;
+		return p == null ? 0 : p.weight();
+	}
+
+	// Compute the weight of an entry for the eviction policy.
+	private int weigh(String key, Object value) {
+		Weigher w=weigher;
+		return w == null ? 1 : w.weigh(key, value);
+	}
+
 	/**
 	 * Store a Cachable object in the cache.
 	 *
@@ -96,12 +278,45 @@ public class SpyCache extends SpyObject {
 	 * @param value the object to store
 	 */
 	public void store(String key, Cachable value) {
-		synchronized(cacheStore) {
-			// Send the cached event notify to the cachable itself
-			value.cachedEvent(key);
-			cacheStore.put(key, value);
+		store(key, value, NO_TAGS);
+	}
+
+	/**
+	 * Store a Cachable object in the cache with the given tags.
+	 *
+	 * @param key the key for storing this object
+	 * @param value the object to store
+	 * @param tags tags by which this entry may be invalidated
+	 * @see #invalidateTag(String)
+	 */
+	public void store(String key, Cachable value, String... tags) {
+		// Send the cached event notify to the cachable itself
+		value.cachedEvent(key);
+		cacheStore.put(key, value);
+		added(key, value, tags);
+		purge();
+	}
+
+	// Index a newly stored entry and tell everyone about it.
+	private void added(String key, Cachable value, String[] tags) {
+		keyIndex.add(key);
+		watcher.watch(key, value, value.getCachedObject());
+		tagIndex.update(key, value, tags);
+		// If it was removed before its tags were recorded, they'd never be
+		// cleaned up.
+		if(tags.length > 0 && cacheStore.get(key) != value) {
+			tagIndex.remove(key, value);
+		}
+		CacheEventDispatcher d=dispatcher;
+		if(d == null) {
+			delegate.cachedObject(key, value);
+		} else {
+			d.cached(key, value, delegate);
+		}
+		TinyLfuPolicy<String> p=policy;
+		if(p != null) {
+			evict(p.recordWrite(key, weigh(key, value.getCachedObject())));
 		}
-		delegate.cachedObject(key, value);
 	}
 
 	/**
@@ -117,8 +332,91 @@ public class SpyCache extends SpyObject {
 	 * @param cacheTime Amount of time (in milliseconds) to store object.
 	 */
 	public void store(String key, Object value, long cacheTime) {
+		store(key, value, cacheTime, NO_TAGS);
+	}
+
+	/**
+	 * Store an object in the cache with the specified timeout and tags.
+	 *
+	 * @param key Cache key
+	 * @param value Object to cache
+	 * @param cacheTime Amount of time (in milliseconds) to store object.
+	 * @param tags tags by which this entry may be invalidated
+	 * @see #invalidateTag(String)
+	 */
+	public void store(String key, Object value, long cacheTime,
+		String... tags) {
 		Cachable i=new SpyCacheItem(key, value, cacheTime);
-		store(key, i);
+		store(key, i, tags);
+	}
+
+	/**
+	 * Write the unexpired entries stored with a timeout (see
+	 * {@link #store(String, Object, long)}) whose values are serializable
+	 * to a snapshot file, replacing it.  Other entries and tags aren't
+	 * saved.
+	 *
+	 * @param f the snapshot file
+	 * @return the number of entries written
+	 * @throws IOException if the snapshot can't be written
+	 */
+	public int snapshot(File f) throws IOException {
+		List<SnapshotFile.Entry> entries=new ArrayList<SnapshotFile.Entry>();
+		for(Map.Entry<String, Cachable> me : cacheStore.entrySet()) {
+			Cachable c=me.getValue();
+			if(c instanceof SpyCacheItem && !c.isExpired()) {
+				entries.add(new SnapshotFile.Entry(me.getKey(),
+					c.getCachedObject(), ((SpyCacheItem)c).getExpiration()));
+			}
+		}
+		return new SnapshotFile(f).write(entries);
+	}
+
+	/**
+	 * Write a snapshot periodically until the cache is shut down.
+	 *
+	 * @param f the snapshot file
+	 * @param interval how often (in milliseconds) to write it
+	 */
+	public synchronized void scheduleSnapshots(File f, long interval) {
+		if(snapshotTimer == null) {
+			snapshotTimer=new Timer("SpyCache snapshots", true);
+		}
+		new SnapshotFile(f).schedule(snapshotTimer, new SnapshotFile.Source() {
+			public int snapshot(File file) throws IOException {
+				return SpyCache.this.snapshot(file);
+			}}, interval);
+	}
+
+	private synchronized void cancelSnapshots() {
+		if(snapshotTimer != null) {
+			snapshotTimer.cancel();
+			snapshotTimer=null;
+		}
+	}
+
+	/**
+	 * Restore the entries in a snapshot file in the background.  The cache
+	 * may be used while this runs.  Entries that have expired since the
+	 * snapshot was written are skipped, and none replaces an entry that's
+	 * already been stored.
+	 *
+	 * @param f the snapshot file
+	 * @param threads the number of threads decoding and storing entries
+	 * @return the number of entries restored, once it's done
+	 */
+	public Future<Integer> restore(File f, int threads) {
+		return new SnapshotFile(f).restore(threads, new SnapshotFile.Sink() {
+			public boolean restore(String key, Object value, long expires) {
+				SpyCacheItem i=new SpyCacheItem(key, value,
+					expires == Long.MAX_VALUE ? 0 : expires, true);
+				boolean rv=cacheStore.putIfAbsent(key, i) == null;
+				if(rv) {
+					i.cachedEvent(key);
+					added(key, i, NO_TAGS);
+				}
+				return rv;
+			}});
 	}
 
 	/**
@@ -129,65 +427,206 @@ public class SpyCache extends SpyObject {
 	 * @return the object, else null
 	 */
 	public Object get(String key) {
+		Object ret=lookup(key);
+		if(ret == null) {
+			stats.miss();
+		} else {
+			stats.hit();
+		}
+		return(ret);
+	}
+
+	// Get an object from the cache without counting a hit or miss.
+	private Object lookup(String key) {
 		Object ret=null;
 		long t=System.currentTimeMillis();
-		synchronized(cacheStore) {
-			Cachable i=cacheStore.get(key);
-			if(i!=null && (!i.isExpired())) {
-				// mark the object as seen
-				i.setAccessTime(t);
-				// get the object from the cache
-				ret=i.getCachedObject();
-				// If the stored object is a reference, dereference it.
-				if((ret!=null) && (ret instanceof Reference)) {
-					Reference<?> ref=(Reference<?>)ret;
-					ret=ref.get();
-				} // Object was a reference
-			} // Found object in cache
-		} // Locked the cache store
+		Cachable i=cacheStore.get(key);
+		if(i!=null && (!i.isExpired())) {
+			// mark the object as seen
+			i.setAccessTime(t);
+			// get the object from the cache
+			ret=i.getCachedObject();
+			// If the stored object is a reference, dereference it.
+			if((ret!=null) && (ret instanceof Reference)) {
+				Reference<?> ref=(Reference<?>)ret;
+				ret=ref.get();
+			} // Object was a reference
+			TinyLfuPolicy<String> p=policy;
+			if(ret != null && p != null) {
+				p.recordAccess(key);
+			}
+		} // Found object in cache
 		return(ret);
 	}
 
+	/**
+	 * Get an object from the cache, loading and storing it if it's not
+	 * there.  Only one load per key runs at a time; other callers missing
+	 * on the same key wait for it and share its result or exception.
+	 * Failed and null loads aren't cached.  A loader may load other keys,
+	 * but not the one it's loading.
+	 *
+	 * @param key the cache key
+	 * @param loader computes the value on a miss
+	 * @param cacheTime how long (in milliseconds) to store a loaded value
+	 * @return the cached or loaded value
+	 * @throws E if the loader fails
+	 * @throws IllegalStateException if called for the key being loaded
+	 *	from within its own load
+	 */
+	public <T, E extends Exception> T getOrLoad(String key,
+		CacheLoader<T, E> loader, long cacheTime) throws E {
+		return getOrLoad(key, loader, cacheTime, false);
+	}
+
+	/**
+	 * Get an object from the cache, loading and storing it if it's not
+	 * there.
+	 *
+	 * @param key the cache key
+	 * @param loader computes the value on a miss
+	 * @param cacheTime how long (in milliseconds) to store a loaded value
+	 * @param softly if true, a loaded value is stored via a SoftReference
+	 * @return the cached or loaded value
+	 * @throws E if the loader fails
+	 * @see #getOrLoad(String, CacheLoader, long)
+	 */
+	@SuppressWarnings("unchecked")
+	public <T, E extends Exception> T getOrLoad(final String key,
+		final CacheLoader<T, E> loader, final long cacheTime,
+		final boolean softly) throws E {
+		Object rv=get(key);
+		if(rv == null) {
+			rv=loads.<E>run(key, new Callable<Object>() {
+				public Object call() throws Exception {
+					// It may have been stored while we waited our turn.
+					Object v=lookup(key);
+					if(v == null) {
+						v=stats.load(loader);
+						if(v != null) {
+							Object o=v;
+							if(softly) {
+								o=new SoftReference<Object>(v);
+							}
+							store(key, o, cacheTime);
+						}
+					}
+					return v;
+				}});
+		}
+		return (T)rv;
+	}
+
 	/**
 	 * Manually remove an object from the cache.
 	 *
 	 * @param key key to remove
 	 */
 	public void uncache(String key) {
-		Cachable unc=null;
-		synchronized(cacheStore) {
-			unc=cacheStore.remove(key);
-		}
+		Cachable unc=cacheStore.remove(key);
 		if(unc!=null) {
-			unc.uncachedEvent(key);
-			delegate.uncachedObject(key, unc);
+			entryRemoved(key, unc);
+		}
+	}
+
+	// Remove the given entry if it's still the one mapped to its key and
+	// notify the interested parties if this caller was the one to remove it.
+	boolean uncache(String key, Cachable c) {
+		boolean removed=cacheStore.remove(key, c);
+		if(removed) {
+			entryRemoved(key, c);
+		}
+		return(removed);
+	}
+
+	// Remove the entries the eviction policy has chosen.
+	private void evict(List<String> keys) {
+		for(String k : keys) {
+			Cachable c=cacheStore.get(k);
+			if(c != null && uncache(k, c)) {
+				stats.evicted(EvictionCause.SIZE);
+			}
+		}
+	}
+
+	// Clean up after a removed entry and tell everyone about it.
+	private void entryRemoved(String key, Cachable c) {
+		keyIndex.remove(key);
+		// If it was stored again while we were removing it, the index
+		// needs to keep it.
+		if(cacheStore.containsKey(key)) {
+			keyIndex.add(key);
+		}
+		tagIndex.remove(key, c);
+		watcher.forget(key, c);
+		TinyLfuPolicy<String> p=policy;
+		if(p != null) {
+			p.recordRemoval(key);
+		}
+		CacheEventDispatcher d=dispatcher;
+		if(d == null) {
+			c.uncachedEvent(key);
+			delegate.uncachedObject(key, c);
+		} else {
+			d.uncached(key, c, delegate);
+		}
+	}
+
+	// Remove the entries whose referenced values have been collected.
+	void purge() {
+		ReferenceWatcher.Watch<String, Cachable> w=null;
+		while((w=watcher.poll()) != null) {
+			if(uncache(w.key, w.entry)) {
+				stats.evicted(EvictionCause.COLLECTED);
+			}
 		}
 	}
 
 	/**
 	 * Remove all objects from the cache that begin with the passed in
-	 * string.
+	 * string.  The matching keys are found through a prefix index, so this
+	 * costs time proportional to the number of matches rather than the
+	 * size of the cache, and doesn't block readers.
 	 *
 	 * @param keystart string to match in the key name
 	 */
 	public void uncacheLike(String keystart) {
-		synchronized(cacheStore) {
-			for(Iterator<Map.Entry<String, Cachable>> i
-					=cacheStore.entrySet().iterator(); i.hasNext();) {
-
-				Map.Entry<String, Cachable> me=i.next();
+		for(String key : keyIndex.keysStartingWith(keystart)) {
+			uncache(key);
+		}
+	}
 
-				String key=me.getKey();
+	/**
+	 * Remove all objects from the cache that begin with any of the given
+	 * strings.  Prefixes covered by a shorter prefix in the same batch are
+	 * skipped, so each matching key is only looked up once.
+	 *
+	 * @param prefixes strings to match in the key names
+	 */
+	public void uncacheLike(Collection<String> prefixes) {
+		List<String> sorted=new ArrayList<String>(prefixes);
+		Collections.sort(sorted);
+		String last=null;
+		for(String prefix : sorted) {
+			if(last == null || !prefix.startsWith(last)) {
+				uncacheLike(prefix);
+				last=prefix;
+			}
+		}
+	}
 
-				// If this matches, kill it.
-				if(key.startsWith(keystart)) {
-					i.remove();
-					Cachable c=me.getValue();
-					c.uncachedEvent(key);
-					delegate.uncachedObject(key, c);
-				}
-			} // for loop
-		} // lock
+	/**
+	 * Remove all objects from the cache that were stored with the given tag.
+	 * This costs time proportional to the number of entries carrying the
+	 * tag.  An entry replaced by an untagged one in the meantime is left
+	 * alone.
+	 *
+	 * @param tag the tag
+	 */
+	public void invalidateTag(String tag) {
+		for(Map.Entry<String, Cachable> me : tagIndex.get(tag).entrySet()) {
+			uncache(me.getKey(), me.getValue());
+		}
 	}
 
 	////////////////////////////////////////////////////////////////////
@@ -231,27 +670,21 @@ public class SpyCache extends SpyObject {
 		public String toString() {
 			return(super.toString() + " - "
 				+ passes + " runs, mod age:  " + cacheStore.getUseAge()
-				+ ", cur size:  " + cacheStore.size()
 				+ ", tot stored:  " + cacheStore.getNumPuts()
 				+ ", watermark:  " + cacheStore.getWatermark()
-				+ ", hits:  " + cacheStore.getHits()
-				+ ", misses:  " + cacheStore.getMisses()
+				+ ", " + stats
 				);
 		}
 
 		private void cleanup() throws Exception {
-			synchronized(cacheStore) {
-				for(Iterator<Map.Entry<String, Cachable>> i
-						=cacheStore.entrySet().iterator(); i.hasNext();){
-					Map.Entry<String, Cachable> me=i.next();
-					String key=me.getKey();
-					Cachable it=me.getValue();
-					if(it.isExpired()) {
-						getLogger().debug("%s expired", it.getCacheKey());
-						i.remove();
-						it.uncachedEvent(key);
-						delegate.uncachedObject(key, it);
-					}
+			purge();
+			// The store's iterators are weakly consistent, so this walks the
+			// cache without locking out readers or writers.
+			for(Map.Entry<String, Cachable> me : cacheStore.entrySet()) {
+				Cachable it=me.getValue();
+				if(it.isExpired() && uncache(me.getKey(), it)) {
+					stats.evicted(EvictionCause.EXPIRED);
+					getLogger().debug("%s expired", it.getCacheKey());
 				}
 			}
 			passes++;
@@ -324,16 +757,8 @@ public class SpyCache extends SpyObject {
 			getLogger().info("Shutting down.");
 
 			// OK, we're about to bail, let's dump the cache and go.
-			synchronized(cacheStore) {
-				for(Iterator<Map.Entry<String, Cachable>> i
-						=cacheStore.entrySet().iterator(); i.hasNext();){
-					Map.Entry<String, Cachable> me=i.next();
-					String key=me.getKey();
-					Cachable it=me.getValue();
-					i.remove();
-					it.uncachedEvent(key);
-					delegate.uncachedObject(key, it);
-				}
+			for(Map.Entry<String, Cachable> me : cacheStore.entrySet()) {
+				uncache(me.getKey(), me.getValue());
 			}
 
 			// Tell the multicast listener to stop if we have one
@@ -347,9 +772,20 @@ public class SpyCache extends SpyObject {
 		private final long exptime;
 
 		public SpyCacheItem(Object key, Object value, long cacheTime) {
+			this(key, value, cacheTime, false);
+		}
+
+		// If absolute, t is the expiration time rather than the time to
+		// cache.  A time that's not positive never expires.
+		SpyCacheItem(Object key, Object value, long t, boolean absolute) {
 			super(key, value);
 
-			exptime=getCacheTime()+cacheTime;
+			exptime=absolute ? t : getCacheTime()+t;
+		}
+
+		// When this expires, or Long.MAX_VALUE if it doesn't.
+		long getExpiration() {
+			return(exptime > 0 ? exptime : Long.MAX_VALUE);
 		}
 
 		@Override
@@ -375,7 +811,7 @@ public class SpyCache extends SpyObject {
 			if(v instanceof Reference) {
 				Reference<?> rvalue=(Reference<?>)v;
 				if(rvalue.get()==null) {
-					ret=false;
+					ret=true;
 				}
 			}
 			return(ret);
@@ -0,0 +1,164 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Reverse index from tags to the cache entries carrying them.
+ *
+ * <p>
+ *  Each tagged entry is recorded under its key along with the entry object
+ *  itself (the owner), so removing an entry that has since been replaced
+ *  leaves the replacement's tags alone.  Finding the entries with a tag
+ *  costs time proportional to the number of entries carrying it.  Untagged
+ *  entries cost nothing beyond a lookup when they're stored.
+ * </p>
+ *
+ * @param <T> the type of cache entry
+ */
+final class TagIndex<T> {
+
+	private final ConcurrentMap<String, Tagged<T>> tagsByKey=
+		new ConcurrentHashMap<String, Tagged<T>>();
+	private final ConcurrentMap<String, ConcurrentMap<String, Boolean>>
+		keysByTag=
+			new ConcurrentHashMap<String, ConcurrentMap<String, Boolean>>();
+
+	/**
+	 * Get an empty TagIndex.
+	 */
+	public TagIndex() {
+		super();
+	}
+
+	/**
+	 * Record the tags of a newly stored entry, replacing those of whatever
+	 * was previously stored under its key.
+	 *
+	 * @param key the cache key
+	 * @param owner the entry that was stored
+	 * @param tags the entry's tags (may be empty)
+	 */
+	public void update(String key, T owner, String[] tags) {
+		Tagged<T> prev=null;
+		if(tags.length == 0) {
+			prev=tagsByKey.remove(key);
+		} else {
+			prev=tagsByKey.put(key, new Tagged<T>(owner, tags));
+			for(String tag : tags) {
+				addKey(tag, key);
+			}
+		}
+		if(prev != null) {
+			List<String> current=Arrays.asList(tags);
+			for(String tag : prev.tags) {
+				if(!current.contains(tag)) {
+					removeKey(tag, key);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forget the tags of an entry that has been removed from the cache.
+	 * Nothing happens if a different entry has since been stored.
+	 *
+	 * @param key the cache key
+	 * @param owner the entry that was removed
+	 */
+	public void remove(String key, T owner) {
+		Tagged<T> t=tagsByKey.get(key);
+		if(t != null && t.owner == owner && tagsByKey.remove(key, t)) {
+			for(String tag : t.tags) {
+				removeKey(tag, key);
+			}
+		}
+	}
+
+	/**
+	 * Get the entries currently carrying the given tag.
+	 *
+	 * @param tag the tag
+	 * @return a map of keys to entries
+	 */
+	public Map<String, T> get(String tag) {
+		Map<String, T> rv=Collections.emptyMap();
+		ConcurrentMap<String, Boolean> keys=keysByTag.get(tag);
+		if(keys != null) {
+			rv=new HashMap<String, T>();
+			for(String key : keys.keySet()) {
+				Tagged<T> t=tagsByKey.get(key);
+				if(t != null && t.hasTag(tag)) {
+					rv.put(key, t.owner);
+				}
+			}
+		}
+		return rv;
+	}
+
+	/**
+	 * Get the number of distinct tags in use.
+	 */
+	public int size() {
+		return keysByTag.size();
+	}
+
+	private void addKey(String tag, String key) {
+		boolean done=false;
+		while(!done) {
+			ConcurrentMap<String, Boolean> keys=keysByTag.get(tag);
+			if(keys == null) {
+				keys=new ConcurrentHashMap<String, Boolean>(4, 0.75f, 1);
+				ConcurrentMap<String, Boolean> old=
+					keysByTag.putIfAbsent(tag, keys);
+				if(old != null) {
+					keys=old;
+				}
+			}
+			keys.put(key, Boolean.TRUE);
+			// If the set was dropped for being empty, try again.
+			done=keysByTag.get(tag) == keys;
+		}
+	}
+
+	private void removeKey(String tag, String key) {
+		ConcurrentMap<String, Boolean> keys=keysByTag.get(tag);
+		if(keys != null) {
+			keys.remove(key);
+			if(keys.isEmpty() && keysByTag.remove(tag, keys)) {
+				// Anything that slipped in while this was being dropped
+				// needs to go back.
+				List<String> stragglers=new ArrayList<String>(keys.keySet());
+				for(String k : stragglers) {
+					addKey(tag, k);
+				}
+			}
+		}
+	}
+
+	// An entry's tags.
+	private static final class Tagged<T> {
+		final T owner;
+		final String[] tags;
+		public Tagged(T o, String[] t) {
+			super();
+			owner=o;
+			tags=t;
+		}
+		boolean hasTag(String tag) {
+			boolean rv=false;
+			for(int i=0; !rv && i<tags.length; i++) {
+				rv=tags[i].equals(tag);
+			}
+			return rv;
+		}
+	}
+}
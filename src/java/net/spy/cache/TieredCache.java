@@ -0,0 +1,400 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.cache;
+
+import java.io.Serializable;
+import java.lang.ref.Reference;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.spy.SpyObject;
+
+/**
+ * A cache keeping its hottest entries in memory and the rest on disk.
+ *
+ * <p>
+ *  Entries are stored in a bounded {@link SimpleCache}.  When it evicts an
+ *  entry to make room, the entry is demoted to a {@link DiskCache} with
+ *  whatever remains of its timeout.  A lookup that misses in memory checks
+ *  the disk, and a value found there may be promoted back into memory
+ *  according to the {@link PromotionPolicy}.  An entry lives in only one
+ *  tier at a time, so a value stored in memory is never shadowed by an
+ *  older one on disk.
+ * </p>
+ *
+ * <p>
+ *  An evicted entry is demoted after the operation that evicted it lets go
+ *  of its lock, under the lock of the evicted key, so a concurrent remove
+ *  or store of that key can't be undone by the demotion.  Until then it's
+ *  still found by lookups.
+ * </p>
+ *
+ * <p>
+ *  Values that aren't <code>Serializable</code> are dropped rather than
+ *  demoted.  Each tier counts its own hits and misses, and keeps its own
+ *  {@link CacheStats}.
+ * </p>
+ */
+public class TieredCache extends SpyObject {
+
+	/**
+	 * When a value found on disk is moved into memory.
+	 */
+	public enum PromotionPolicy {
+		/**
+		 * Promote on every disk hit.
+		 */
+		ALWAYS,
+		/**
+		 * Promote keys that have been read from disk before recently.
+		 */
+		REPEATED,
+		/**
+		 * Leave values on disk.
+		 */
+		NEVER
+	}
+
+	private static final int LOCK_STRIPES=32;
+	// Bounds on the number of keys the REPEATED policy tracks closely.
+	private static final int MIN_SKETCH_SIZE=1024;
+	private static final int MAX_SKETCH_SIZE=1024*1024;
+
+	private final SimpleCache memory;
+	private final DiskCache disk;
+	private final boolean ownMemory;
+	private final Object[] locks=new Object[LOCK_STRIPES];
+	private volatile PromotionPolicy promotion=PromotionPolicy.ALWAYS;
+	// Guarded by itself
+	private final FrequencySketch diskReads;
+	// Evicted entries waiting to be demoted, and the latest one per key.
+	private final Queue<Demotion> demoting=
+		new ConcurrentLinkedQueue<Demotion>();
+	private final ConcurrentMap<String, Demotion> pending=
+		new ConcurrentHashMap<String, Demotion>();
+
+	private final AtomicLong memoryHits=new AtomicLong(0);
+	private final AtomicLong memoryMisses=new AtomicLong(0);
+	private final AtomicLong diskHits=new AtomicLong(0);
+	private final AtomicLong diskMisses=new AtomicLong(0);
+	private final AtomicLong promotions=new AtomicLong(0);
+	private final AtomicLong demotions=new AtomicLong(0);
+
+	/**
+	 * Get a TieredCache holding up to the given number of entries in
+	 * memory.
+	 *
+	 * @param maxInMemory the maximum number of entries kept in memory
+	 * @param d the cache holding everything else
+	 */
+	public TieredCache(int maxInMemory, DiskCache d) {
+		this(newMemoryTier(maxInMemory), d, true);
+	}
+
+	/**
+	 * Get a TieredCache in front of the given caches.  The memory tier
+	 * should be bounded (otherwise nothing is ever demoted) and not used
+	 * directly; its eviction listener is replaced.
+	 *
+	 * @param m the memory tier
+	 * @param d the disk tier
+	 */
+	public TieredCache(SimpleCache m, DiskCache d) {
+		this(m, d, false);
+	}
+
+	private TieredCache(SimpleCache m, DiskCache d, boolean own) {
+		super();
+		memory=m;
+		disk=d;
+		ownMemory=own;
+		for(int i=0; i<locks.length; i++) {
+			locks[i]=new Object();
+		}
+		diskReads=new FrequencySketch((int)Math.min(MAX_SKETCH_SIZE,
+			Math.max(MIN_SKETCH_SIZE, m.getMaximumWeight())));
+		memory.setEvictionListener(new Demoter());
+	}
+
+	private static SimpleCache newMemoryTier(int max) {
+		if(max < 1) {
+			throw new IllegalArgumentException("Invalid maximum size:  "
+				+ max);
+		}
+		SimpleCache rv=new SimpleCache();
+		rv.setMaximumSize(max);
+		return rv;
+	}
+
+	/**
+	 * Set when values found on disk are moved into memory.
+	 */
+	public void setPromotionPolicy(PromotionPolicy p) {
+		if(p == null) {
+			throw new NullPointerException("Invalid promotion policy <null>");
+		}
+		promotion=p;
+	}
+
+	private Object lockFor(String key) {
+		int h=key.hashCode();
+		h^=(h >>> 16);
+		return locks[(h & 0x7fffffff) % locks.length];
+	}
+
+	/**
+	 * Get an object from the cache.
+	 *
+	 * @param key the cache key
+	 * @return the object, or null if it's in neither tier
+	 */
+	public Object get(String key) {
+		Object rv=memory.get(key);
+		if(rv == null && !pending.isEmpty()) {
+			Demotion d=pending.get(key);
+			if(d != null && d.isLive(System.currentTimeMillis())) {
+				rv=d.value;
+			}
+		}
+		if(rv != null) {
+			memoryHits.incrementAndGet();
+		} else {
+			memoryMisses.incrementAndGet();
+			rv=disk.get(key);
+			if(rv == null) {
+				diskMisses.incrementAndGet();
+			} else {
+				diskHits.incrementAndGet();
+				if(shouldPromote(key)) {
+					promote(key, rv);
+				}
+			}
+		}
+		demote();
+		return rv;
+	}
+
+	private boolean shouldPromote(String key) {
+		boolean rv=false;
+		switch(promotion) {
+			case ALWAYS:
+				rv=true;
+				break;
+			case REPEATED:
+				synchronized(diskReads) {
+					rv=diskReads.frequency(key) > 0;
+					diskReads.increment(key);
+				}
+				break;
+			case NEVER:
+				break;
+			default:
+				assert false : "Unhandled promotion policy " + promotion;
+		}
+		return rv;
+	}
+
+	// Move a value from disk into memory, unless it was stored or removed
+	// in the meantime.  It leaves the disk first, so if memory won't admit
+	// it, it's demoted right back.
+	private void promote(String key, Object value) {
+		synchronized(lockFor(key)) {
+			long now=System.currentTimeMillis();
+			long expires=disk.getExpiration(key);
+			if(!memory.contains(key) && disk.containsKey(key)
+				&& (expires == 0 || expires > now)) {
+				disk.remove(key);
+				memory.store(key, value,
+					expires == 0 ? Long.MAX_VALUE : expires - now);
+				promotions.incrementAndGet();
+			}
+		}
+		demote();
+	}
+
+	/**
+	 * Store an object in the cache.
+	 *
+	 * @param key the cache key
+	 * @param value the value
+	 * @param timeout how long (in milliseconds) until it's deleted, or
+	 *	Long.MAX_VALUE to keep it until it's removed
+	 */
+	public void store(String key, Object value, long timeout) {
+		synchronized(lockFor(key)) {
+			pending.remove(key);
+			if(disk.containsKey(key)) {
+				disk.remove(key);
+			}
+			memory.store(key, value, timeout);
+		}
+		demote();
+	}
+
+	/**
+	 * Remove an object from both tiers.
+	 *
+	 * @param key the cache key
+	 * @return the object that was removed, or null if there wasn't one
+	 */
+	public Object remove(String key) {
+		Object rv=null;
+		synchronized(lockFor(key)) {
+			rv=dereference(memory.remove(key));
+			Demotion p=pending.remove(key);
+			if(rv == null && p != null
+				&& p.isLive(System.currentTimeMillis())) {
+				rv=p.value;
+			}
+			if(disk.containsKey(key)) {
+				Object d=disk.remove(key);
+				if(rv == null) {
+					rv=d;
+				}
+			}
+		}
+		demote();
+		return rv;
+	}
+
+	private static Object dereference(Object o) {
+		Object rv=o;
+		if(rv instanceof Reference) {
+			rv=((Reference<?>)rv).get();
+		}
+		return rv;
+	}
+
+	// Demote entries evicted from memory.  Callers must not hold a stripe.
+	// A demotion is skipped if its key was stored, removed or evicted
+	// again since.
+	void demote() {
+		Demotion d=null;
+		while((d=demoting.poll()) != null) {
+			synchronized(lockFor(d.key)) {
+				long now=System.currentTimeMillis();
+				if(pending.remove(d.key, d) && !memory.contains(d.key)
+					&& d.isLive(now)) {
+					disk.put(d.key, d.value, d.expires == Long.MAX_VALUE
+						? 0 : d.expires - now);
+					demotions.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stop maintaining the memory tier.  The disk tier is left open.
+	 */
+	public void shutdown() {
+		memory.setEvictionListener(null);
+		if(ownMemory) {
+			memory.shutdown();
+		}
+		demote();
+	}
+
+	/**
+	 * Publish the statistics of both tiers, as <i>name</i>.memory and
+	 * <i>name</i>.disk.
+	 *
+	 * @param name the name
+	 * @see CacheStats
+	 */
+	public void publishStats(String name) {
+		if(name == null) {
+			throw new NullPointerException("Invalid stats name <null>");
+		}
+		memory.publishStats(name + ".memory");
+		disk.publishStats(name + ".disk");
+	}
+
+	/**
+	 * Get the number of lookups answered from memory.
+	 */
+	public long getMemoryHits() {
+		return memoryHits.get();
+	}
+
+	/**
+	 * Get the number of lookups not found in memory.
+	 */
+	public long getMemoryMisses() {
+		return memoryMisses.get();
+	}
+
+	/**
+	 * Get the number of lookups answered from disk.
+	 */
+	public long getDiskHits() {
+		return diskHits.get();
+	}
+
+	/**
+	 * Get the number of lookups found in neither tier.
+	 */
+	public long getDiskMisses() {
+		return diskMisses.get();
+	}
+
+	/**
+	 * Get the number of values moved from disk into memory.
+	 */
+	public long getPromotions() {
+		return promotions.get();
+	}
+
+	/**
+	 * Get the number of values moved from memory to disk.
+	 */
+	public long getDemotions() {
+		return demotions.get();
+	}
+
+	/**
+	 * String me.
+	 */
+	@Override
+	public String toString() {
+		return super.toString() + " memory hits/misses:  " + getMemoryHits()
+			+ "/" + getMemoryMisses() + ", disk hits/misses:  "
+			+ getDiskHits() + "/" + getDiskMisses() + ", promotions:  "
+			+ getPromotions() + ", demotions:  " + getDemotions();
+	}
+
+	// An evicted entry waiting to be written to disk.
+	private static final class Demotion {
+		final String key;
+		final Serializable value;
+		final long expires;
+		Demotion(String k, Serializable v, long e) {
+			super();
+			key=k;
+			value=v;
+			expires=e;
+		}
+		boolean isLive(long now) {
+			return expires == Long.MAX_VALUE || expires > now;
+		}
+	}
+
+	// Queues entries evicted from memory for demotion.  Eviction happens
+	// while the evicting caller holds its own key's stripe, so taking the
+	// evicted key's stripe here could deadlock.
+	private class Demoter implements EvictionListener {
+		public Demoter() {
+			super();
+		}
+		public void evicted(String key, Object value, long expires) {
+			Object v=dereference(value);
+			if(v instanceof Serializable) {
+				Demotion d=new Demotion(key, (Serializable)v, expires);
+				pending.put(key, d);
+				demoting.add(d);
+			}
+		}
+	}
+}
@@ -0,0 +1,222 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A hashed timing wheel for tracking expiration of cached items.
+ *
+ * <p>
+ *  Time is divided into ticks of a fixed length and each tick maps onto
+ *  one of a fixed number of slots.  Scheduling an item is a constant time
+ *  append to the slot for its expiration tick, and returns the
+ *  {@link Node} that holds it there so it can be cancelled in constant
+ *  time too.  Advancing the wheel walks
+ *  the slots for the ticks that have passed and hands back everything that
+ *  has expired.  Items scheduled further out than one revolution of the
+ *  wheel are carried forward to their slot on the next pass.
+ * </p>
+ *
+ * <p>
+ *  Scheduling and cancelling may be done from any thread.  Advancing is
+ *  expected to be done by a single maintenance thread.
+ * </p>
+ */
+final class TimingWheel<T extends TimingWheel.Timed> {
+
+	private final long tick;
+	private final List<Slot<T>> slots;
+	// The last tick that has been processed.
+	private volatile long currentTick;
+
+	/**
+	 * Get a TimingWheel.
+	 *
+	 * @param t the length of a tick in milliseconds
+	 * @param size the number of slots on the wheel
+	 */
+	public TimingWheel(long t, int size) {
+		super();
+		if(t <= 0) {
+			throw new IllegalArgumentException("Invalid tick:  " + t);
+		}
+		if(size <= 0) {
+			throw new IllegalArgumentException("Invalid wheel size:  " + size);
+		}
+		tick=t;
+		slots=new ArrayList<Slot<T>>(size);
+		for(int i=0; i<size; i++) {
+			slots.add(new Slot<T>());
+		}
+		currentTick=System.currentTimeMillis() / tick;
+	}
+
+	private Slot<T> getSlot(long t) {
+		return slots.get((int)(t % slots.size()));
+	}
+
+	/**
+	 * Schedule an item to be expired at the given time.
+	 *
+	 * @param item the item
+	 * @param expires the absolute time (in milliseconds) of expiration
+	 * @return the node holding the item on the wheel
+	 */
+	public Node<T> schedule(T item, long expires) {
+		Node<T> rv=new Node<T>(item);
+		schedule(rv, expires);
+		return rv;
+	}
+
+	private void schedule(Node<T> n, long expires) {
+		long t=expires / tick;
+		long cur=currentTick;
+		if(t <= cur) {
+			t=cur+1;
+		}
+		getSlot(t).add(n);
+	}
+
+	/**
+	 * Unschedule an item that's gone before its expiration, so the wheel
+	 * no longer refers to it.  This takes constant time.  A cancelled item
+	 * is never handed back by {@link #advance(long)}, even if the wheel was
+	 * moving it when it was cancelled.
+	 *
+	 * @param n the node returned when the item was scheduled
+	 * @return true if this call took the item off the wheel
+	 */
+	public boolean cancel(Node<T> n) {
+		boolean rv=false;
+		n.cancelled=true;
+		// The wheel may be carrying it to another slot.
+		Slot<T> s=n.slot;
+		while(s != null && !(rv=s.remove(n))) {
+			s=n.slot;
+		}
+		return rv;
+	}
+
+	/**
+	 * Advance the wheel to the given time.
+	 *
+	 * @param now the current time in milliseconds
+	 * @return the items that have expired as of now
+	 */
+	public List<T> advance(long now) {
+		long target=now / tick;
+		long start=currentTick + 1;
+		if(start > target) {
+			return Collections.emptyList();
+		}
+		// There's no point in going around more than once.
+		long end=Math.min(target, start + slots.size() - 1);
+		List<T> rv=new ArrayList<T>();
+		List<Node<T>> later=new ArrayList<Node<T>>();
+		for(long t=start; t<=end; t++) {
+			for(Node<T> n : getSlot(t).drain()) {
+				if(n.item.getExpiration() <= now) {
+					if(!n.cancelled) {
+						rv.add(n.item);
+					}
+				} else {
+					later.add(n);
+				}
+			}
+		}
+		currentTick=target;
+		for(Node<T> n : later) {
+			schedule(n, n.item.getExpiration());
+		}
+		return rv;
+	}
+
+	/**
+	 * Items that can be scheduled on a timing wheel.
+	 */
+	interface Timed {
+		/**
+		 * Get the absolute time (in milliseconds) at which this item expires.
+		 */
+		long getExpiration();
+	}
+
+	/**
+	 * An item's place on the wheel.
+	 */
+	static final class Node<T> {
+		final T item;
+		// The slot it's linked into, or null if it's in none.  Only changed
+		// under the slot's lock.
+		volatile Slot<T> slot=null;
+		volatile boolean cancelled=false;
+		// Guarded by the slot
+		Node<T> prev=null;
+		Node<T> next=null;
+
+		Node(T i) {
+			super();
+			item=i;
+		}
+	}
+
+	// A single slot on the wheel, a list of nodes.
+	private static final class Slot<T> {
+		// The list's sentinel
+		private final Node<T> head=new Node<T>(null);
+
+		public Slot() {
+			super();
+			head.prev=head;
+			head.next=head;
+		}
+
+		public synchronized void add(Node<T> n) {
+			// Checked after it's marked, before it's linked, so either this
+			// sees the mark or the canceller sees the slot.
+			if(!n.cancelled) {
+				n.prev=head.prev;
+				n.next=head;
+				head.prev.next=n;
+				head.prev=n;
+				n.slot=this;
+			}
+		}
+
+		public synchronized boolean remove(Node<T> n) {
+			boolean rv=n.slot == this;
+			if(rv) {
+				n.prev.next=n.next;
+				n.next.prev=n.prev;
+				unlinked(n);
+			}
+			return rv;
+		}
+
+		public synchronized List<Node<T>> drain() {
+			if(head.next == head) {
+				return Collections.emptyList();
+			}
+			List<Node<T>> rv=new ArrayList<Node<T>>();
+			Node<T> n=head.next;
+			while(n != head) {
+				Node<T> next=n.next;
+				unlinked(n);
+				rv.add(n);
+				n=next;
+			}
+			head.prev=head;
+			head.next=head;
+			return rv;
+		}
+
+		private void unlinked(Node<T> n) {
+			n.prev=null;
+			n.next=null;
+			n.slot=null;
+		}
+	}
+}
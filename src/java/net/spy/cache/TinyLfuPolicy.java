@@ -0,0 +1,379 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Window TinyLFU admission and eviction for a bounded cache.
+ *
+ * <p>
+ *  New keys enter a small LRU window.  When the window overflows, its
+ *  eldest key becomes a candidate for the main space and is only admitted
+ *  if the {@link FrequencySketch} says it's been seen more often than the
+ *  key the main space would have to give up.  The main space is a
+ *  segmented LRU:  keys accessed again while on probation are promoted to
+ *  the protected segment, so a scan of one-hit wonders can't push out the
+ *  entries that are actually used.
+ * </p>
+ *
+ * <p>
+ *  Every key has a weight and the bound applies to the total weight.  A
+ *  count bound is just every key weighing one.  The policy only tracks
+ *  keys; the cache tells it about reads, writes and removals and removes
+ *  whatever keys it's told to evict.
+ * </p>
+ *
+ * <p>
+ *  Reads are called for on every cache hit, so they don't lock.  As in
+ *  {@link ConcurrentLRUCache}, a read is recorded in a buffer (one of
+ *  several, picked by thread) and the buffered reads are applied in a
+ *  batch by whichever thread finds enough of them waiting and the policy's
+ *  lock free.  Writes and removals apply them first.  Reads arriving while
+ *  a buffer is full aren't recorded, so under heavy load the frequencies
+ *  and recency order are approximate.
+ * </p>
+ */
+final class TinyLfuPolicy<K> {
+
+	// The sketch grows with the number of keys, starting here.
+	private static final int INITIAL_SKETCH_SIZE=64;
+
+	// Most read buffers a policy has.
+	private static final int MAX_READ_BUFFERS=16;
+	private static final int READ_BUFFERS=computeReadBuffers();
+	// Buffered reads that prompt a thread to apply them.
+	private static final int DRAIN_THRESHOLD=32;
+	// Buffered reads beyond which a buffer drops reads.
+	private static final int MAX_BUFFERED=DRAIN_THRESHOLD * 4;
+
+	private final long maximum;
+	private final long windowMax;
+	private final long protectedMax;
+
+	private final FrequencySketch sketch;
+	private int sketchSize;
+
+	private final ReadBuffer<K>[] reads;
+	// Guards everything but the read buffers.
+	private final Lock lock=new ReentrantLock();
+
+	private final Map<K, Integer> weights=new HashMap<K, Integer>();
+	private final LinkedHashSet<K> window=new LinkedHashSet<K>();
+	private final LinkedHashSet<K> probation=new LinkedHashSet<K>();
+	private final LinkedHashSet<K> protectedSegment=new LinkedHashSet<K>();
+	private long windowWeight=0;
+	private long protectedWeight=0;
+	private long totalWeight=0;
+
+	/**
+	 * Get a policy allowing at most the given total weight.
+	 */
+	@SuppressWarnings("unchecked")
+	public TinyLfuPolicy(long max) {
+		super();
+		if(max < 1) {
+			throw new IllegalArgumentException("Invalid maximum size:  " + max);
+		}
+		maximum=max;
+		windowMax=Math.max(1, max / 100);
+		protectedMax=(max - windowMax) * 8 / 10;
+		sketchSize=(int)Math.min(max, INITIAL_SKETCH_SIZE);
+		sketch=new FrequencySketch(sketchSize);
+		reads=new ReadBuffer[READ_BUFFERS];
+		for(int i=0; i<reads.length; i++) {
+			reads[i]=new ReadBuffer<K>();
+		}
+	}
+
+	// One buffer per processor, rounded up to a power of two.
+	private static int computeReadBuffers() {
+		int cpus=Runtime.getRuntime().availableProcessors();
+		int rv=1;
+		while(rv < cpus && rv < MAX_READ_BUFFERS) {
+			rv<<=1;
+		}
+		return rv;
+	}
+
+	/**
+	 * Get the maximum total weight this policy will allow.
+	 */
+	public long getMaximum() {
+		return maximum;
+	}
+
+	/**
+	 * Get the number of keys currently tracked.
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return weights.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the total weight of the keys currently tracked.
+	 */
+	public long weight() {
+		lock.lock();
+		try {
+			return totalWeight;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// The sketch's estimate for the given key, after applying buffered
+	// reads.
+	int sketchFrequency(K k) {
+		lock.lock();
+		try {
+			drainReads();
+			return sketch.frequency(k);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Record a read hit on the given key.  This doesn't wait for the
+	 * policy's lock, and may be dropped if the policy is too busy.
+	 */
+	public void recordAccess(K k) {
+		ReadBuffer<K> b=reads[(int)(Thread.currentThread().getId()
+			& (reads.length - 1))];
+		if(b.offer(k) >= DRAIN_THRESHOLD && lock.tryLock()) {
+			try {
+				drainReads();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	// Apply the buffered reads, at most a buffer's worth from each so
+	// readers can't keep the drain going.  The lock must be held.
+	private void drainReads() {
+		for(ReadBuffer<K> b : reads) {
+			K k=null;
+			for(int i=0; i<MAX_BUFFERED && (k=b.poll()) != null; i++) {
+				access(k);
+			}
+		}
+	}
+
+	// Apply a read of the given key.  The lock must be held.  A key that's
+	// been removed since it was read is still counted by the sketch.
+	private void access(K k) {
+		sketch.increment(k);
+		if(window.remove(k)) {
+			window.add(k);
+		} else if(probation.remove(k)) {
+			protectedSegment.add(k);
+			protectedWeight+=weights.get(k);
+			while(protectedWeight > protectedMax
+				&& protectedSegment.size() > 1) {
+				K demoted=removeEldest(protectedSegment);
+				protectedWeight-=weights.get(demoted);
+				probation.add(demoted);
+			}
+		} else if(protectedSegment.remove(k)) {
+			protectedSegment.add(k);
+		}
+	}
+
+	/**
+	 * Record a write of the given key with a weight of one.
+	 *
+	 * @return the keys that must be evicted to stay within the bounds
+	 */
+	public List<K> recordWrite(K k) {
+		return recordWrite(k, 1);
+	}
+
+	/**
+	 * Record a write of the given key.
+	 *
+	 * @param k the key
+	 * @param weight the weight of the value written
+	 * @return the keys that must be evicted to stay within the bounds
+	 */
+	public List<K> recordWrite(K k, int weight) {
+		if(weight < 0) {
+			throw new IllegalArgumentException("Invalid weight:  " + weight);
+		}
+		lock.lock();
+		try {
+			drainReads();
+			return write(k, weight);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// The lock must be held.
+	private List<K> write(K k, int weight) {
+		Integer old=weights.put(k, weight);
+		if(old != null) {
+			adjustWeight(k, weight - old);
+			access(k);
+		} else {
+			ensureSketchCapacity();
+			sketch.increment(k);
+			window.add(k);
+			windowWeight+=weight;
+			totalWeight+=weight;
+		}
+
+		// Move whatever no longer fits in the window to the main space as
+		// candidates for admission.
+		LinkedList<K> candidates=new LinkedList<K>();
+		while(windowWeight > windowMax && !window.isEmpty()) {
+			K c=removeEldest(window);
+			windowWeight-=weights.get(c);
+			probation.add(c);
+			candidates.add(c);
+		}
+
+		List<K> rv=Collections.emptyList();
+		while(totalWeight > maximum) {
+			K victim=findVictim(candidates);
+			K candidate=candidates.peek();
+			K evicted=victim;
+			if(candidate != null && !candidate.equals(victim)
+				&& sketch.frequency(candidate) <= sketch.frequency(victim)) {
+				evicted=candidate;
+			}
+			candidates.remove(evicted);
+			remove(evicted);
+			if(rv.isEmpty()) {
+				rv=new ArrayList<K>(1);
+			}
+			rv.add(evicted);
+		}
+		return rv;
+	}
+
+	/**
+	 * Forget about the given key.
+	 */
+	public void recordRemoval(K k) {
+		lock.lock();
+		try {
+			drainReads();
+			if(weights.containsKey(k)) {
+				remove(k);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void remove(K k) {
+		int w=weights.remove(k);
+		totalWeight-=w;
+		if(window.remove(k)) {
+			windowWeight-=w;
+		} else if(protectedSegment.remove(k)) {
+			protectedWeight-=w;
+		} else {
+			probation.remove(k);
+		}
+	}
+
+	private void adjustWeight(K k, int delta) {
+		totalWeight+=delta;
+		if(window.contains(k)) {
+			windowWeight+=delta;
+		} else if(protectedSegment.contains(k)) {
+			protectedWeight+=delta;
+		}
+	}
+
+	// The main space gives up its eldest probationary key first, then the
+	// eldest protected key, and only then anything left in the window.
+	// Candidates that were just moved out of the window aren't victims;
+	// they're what the victim is compared against.
+	private K findVictim(List<K> candidates) {
+		K rv=null;
+		for(Iterator<K> i=probation.iterator(); rv == null && i.hasNext();) {
+			K k=i.next();
+			if(!candidates.contains(k)) {
+				rv=k;
+			}
+		}
+		if(rv == null) {
+			if(!protectedSegment.isEmpty()) {
+				rv=protectedSegment.iterator().next();
+			} else if(!window.isEmpty()) {
+				rv=window.iterator().next();
+			} else {
+				rv=candidates.get(0);
+			}
+		}
+		return rv;
+	}
+
+	// Keep the sketch large enough to tell the tracked keys apart, without
+	// allocating it for a maximum weight it may never need.  Growing it
+	// keeps the counts.
+	private void ensureSketchCapacity() {
+		if(weights.size() > sketchSize && sketchSize < maximum) {
+			sketchSize=(int)Math.min(maximum, (long)sketchSize * 2);
+			sketch.ensureCapacity(sketchSize);
+		}
+	}
+
+	private K removeEldest(LinkedHashSet<K> segment) {
+		Iterator<K> i=segment.iterator();
+		K rv=i.next();
+		i.remove();
+		return rv;
+	}
+
+	// A lossy buffer of reads waiting to be applied.
+	private static final class ReadBuffer<K> {
+		private final Queue<K> keys=new ConcurrentLinkedQueue<K>();
+		private final AtomicInteger buffered=new AtomicInteger(0);
+
+		public ReadBuffer() {
+			super();
+		}
+
+		// Buffer a read unless the buffer's full, returning how many reads
+		// were waiting.
+		int offer(K k) {
+			int rv=buffered.incrementAndGet();
+			if(rv > MAX_BUFFERED) {
+				buffered.decrementAndGet();
+			} else {
+				keys.add(k);
+			}
+			return rv;
+		}
+
+		K poll() {
+			K rv=keys.poll();
+			if(rv != null) {
+				buffered.decrementAndGet();
+			}
+			return rv;
+		}
+	}
+}
@@ -0,0 +1,27 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.cache;
+
+/**
+ * Computes the relative cost of holding a value in a cache.
+ *
+ * <p>
+ *  Caches bounded by weight sum the weights of their entries and evict
+ *  until the total fits in their budget.  A weight is computed once, when
+ *  the value is stored.
+ * </p>
+ *
+ * @see SizeEstimatingWeigher
+ */
+public interface Weigher {
+
+	/**
+	 * Get the weight of the given entry.
+	 *
+	 * @param key the cache key
+	 * @param value the value being cached
+	 * @return a non-negative weight
+	 */
+	int weigh(String key, Object value);
+
+}
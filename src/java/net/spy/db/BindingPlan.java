@@ -0,0 +1,296 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.db;
+
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The parameters of a {@link DBSP} class, compiled for binding arguments.
+ *
+ * <p>
+ *  A plan holds each parameter's name, type and whether it's required in
+ *  parameter order, along with a {@link Binder} that sets a value of that
+ *  type on a statement.  Plans are immutable and built once per class;
+ *  an instance whose parameters differ from its class's plan gets one of
+ *  its own.
+ * </p>
+ */
+final class BindingPlan {
+
+	private static final ConcurrentMap<Class<?>, BindingPlan> PLANS=
+		new ConcurrentHashMap<Class<?>, BindingPlan>();
+
+	private final String[] names;
+	private final int[] types;
+	private final boolean[] required;
+	private final Binder[] binders;
+
+	private BindingPlan(Collection<DBSP.Parameter> params) {
+		super();
+		int n=params.size();
+		names=new String[n];
+		types=new int[n];
+		required=new boolean[n];
+		binders=new Binder[n];
+		int i=0;
+		for(DBSP.Parameter p : params) {
+			names[i]=p.getName();
+			types[i]=p.getJavaType();
+			required[i]=p.getParamType() == DBSP.Parameter.REQUIRED;
+			binders[i]=Binder.forType(types[i]);
+			i++;
+		}
+	}
+
+	/**
+	 * Get the plan for the given class with the given parameters.
+	 *
+	 * @param c the DBSP class
+	 * @param params the parameters, in order
+	 */
+	static BindingPlan get(Class<?> c, Collection<DBSP.Parameter> params) {
+		BindingPlan rv=PLANS.get(c);
+		if(rv == null || !rv.matches(params)) {
+			BindingPlan bp=new BindingPlan(params);
+			if(rv == null) {
+				PLANS.putIfAbsent(c, bp);
+			}
+			rv=bp;
+		}
+		return rv;
+	}
+
+	// True if this plan was built from an equivalent list of parameters.
+	private boolean matches(Collection<DBSP.Parameter> params) {
+		boolean rv=params.size() == names.length;
+		Iterator<DBSP.Parameter> it=params.iterator();
+		for(int i=0; rv && i<names.length; i++) {
+			DBSP.Parameter p=it.next();
+			rv=names[i].equals(p.getName()) && types[i] == p.getJavaType()
+				&& required[i] == (p.getParamType()
+					== DBSP.Parameter.REQUIRED);
+		}
+		return rv;
+	}
+
+	/**
+	 * Get the number of parameters.
+	 */
+	int size() {
+		return names.length;
+	}
+
+	/**
+	 * Get the name of the given parameter.
+	 */
+	String getName(int i) {
+		return names[i];
+	}
+
+	/**
+	 * Get the {@link java.sql.Types} type of the given parameter.
+	 */
+	int getType(int i) {
+		return types[i];
+	}
+
+	/**
+	 * True if the given parameter is required.
+	 */
+	boolean isRequired(int i) {
+		return required[i];
+	}
+
+	/**
+	 * Get the binder for the given parameter.
+	 */
+	Binder getBinder(int i) {
+		return binders[i];
+	}
+
+	/**
+	 * Sets a value of one type on a statement.
+	 */
+	abstract static class Binder {
+
+		// BigDecimal scale for doing data conversions
+		private static final int BD_SCALE=4;
+
+		private static final Binder BOOLEAN=new Binder() {
+			@Override
+			void bind(PreparedStatement pst, int i, Object o)
+				throws SQLException {
+				pst.setBoolean(i, ((Boolean)o).booleanValue());
+			}
+		};
+		private static final Binder DATE=new Binder() {
+			@Override
+			void bind(PreparedStatement pst, int i, Object o)
+				throws SQLException {
+				pst.setDate(i, (java.sql.Date)o);
+			}
+		};
+		private static final Binder DOUBLE=new Binder() {
+			@Override
+			void bind(PreparedStatement pst, int i, Object o)
+				throws SQLException {
+				pst.setDouble(i, ((Number)o).doubleValue());
+			}
+		};
+		private static final Binder FLOAT=new Binder() {
+			@Override
+			void bind(PreparedStatement pst, int i, Object o)
+				throws SQLException {
+				pst.setFloat(i, ((Number)o).floatValue());
+			}
+		};
+		private static final Binder INT=new Binder() {
+			@Override
+			void bind(PreparedStatement pst, int i, Object o)
+				throws SQLException {
+				pst.setInt(i, ((Number)o).intValue());
+			}
+		};
+		private static final Binder LONG=new Binder() {
+			@Override
+			void bind(PreparedStatement pst, int i, Object o)
+				throws SQLException {
+				pst.setLong(i, ((Number)o).longValue());
+			}
+		};
+		private static final Binder DECIMAL=new Binder() {
+			@Override
+			void bind(PreparedStatement pst, int i, Object o)
+				throws SQLException {
+				pst.setBigDecimal(i, ((BigDecimal)o).setScale(BD_SCALE,
+					BigDecimal.ROUND_HALF_UP));
+			}
+		};
+		private static final Binder SHORT=new Binder() {
+			@Override
+			void bind(PreparedStatement pst, int i, Object o)
+				throws SQLException {
+				pst.setShort(i, (short)((Number)o).intValue());
+			}
+		};
+		private static final Binder NULL=new Binder() {
+			@Override
+			void bind(PreparedStatement pst, int i, Object o)
+				throws SQLException {
+				pst.setNull(i, ((DBNull)o).getType());
+			}
+		};
+		private static final Binder OBJECT=new Binder() {
+			@Override
+			void bind(PreparedStatement pst, int i, Object o)
+				throws SQLException {
+				pst.setObject(i, o);
+			}
+		};
+		private static final Binder STRING=new Binder() {
+			@Override
+			void bind(PreparedStatement pst, int i, Object o)
+				throws SQLException {
+				pst.setString(i, (String)o);
+			}
+		};
+		private static final Binder TIME=new Binder() {
+			@Override
+			void bind(PreparedStatement pst, int i, Object o)
+				throws SQLException {
+				pst.setTime(i, (Time)o);
+			}
+		};
+		private static final Binder TIMESTAMP=new Binder() {
+			@Override
+			void bind(PreparedStatement pst, int i, Object o)
+				throws SQLException {
+				pst.setTimestamp(i, (Timestamp)o);
+			}
+		};
+
+		/**
+		 * Get the binder for the given {@link java.sql.Types} type.  Types
+		 * that can't be bound get a binder that throws SQLException.
+		 */
+		static Binder forType(final int type) {
+			Binder rv=null;
+			switch(type) {
+				case Types.BIT:
+					rv=BOOLEAN;
+					break;
+				case Types.DATE:
+					rv=DATE;
+					break;
+				case Types.DOUBLE:
+					rv=DOUBLE;
+					break;
+				case Types.FLOAT:
+					rv=FLOAT;
+					break;
+				case Types.INTEGER:
+					rv=INT;
+					break;
+				case Types.BIGINT:
+					rv=LONG;
+					break;
+				case Types.NUMERIC:
+				case Types.DECIMAL:
+					rv=DECIMAL;
+					break;
+				case Types.SMALLINT:
+				case Types.TINYINT:
+					rv=SHORT;
+					break;
+				case Types.NULL:
+					rv=NULL;
+					break;
+				case Types.OTHER:
+					rv=OBJECT;
+					break;
+				case Types.CLOB:
+				case Types.VARCHAR:
+					rv=STRING;
+					break;
+				case Types.TIME:
+					rv=TIME;
+					break;
+				case Types.TIMESTAMP:
+					rv=TIMESTAMP;
+					break;
+				default:
+					rv=new Binder() {
+						@Override
+						void bind(PreparedStatement pst, int i, Object o)
+							throws SQLException {
+							throw new SQLException("Whoops, type "
+								+ TypeNames.getTypeName(type)
+								+ "(" + type + ")"
+								+ " seems to have been overlooked.");
+						}
+					};
+			}
+			return rv;
+		}
+
+		/**
+		 * Set the given parameter of the statement to the given value.
+		 *
+		 * @param pst the statement
+		 * @param i the parameter index (starting at 1)
+		 * @param o the value
+		 * @throws SQLException if the statement rejects the value
+		 */
+		abstract void bind(PreparedStatement pst, int i, Object o)
+			throws SQLException;
+	}
+}
@@ -14,6 +14,7 @@ import java.sql.Timestamp;
 import java.sql.Types;
 import java.util.Arrays;
 
+import net.spy.cache.CacheLoader;
 import net.spy.cache.SimpleCache;
 
 /**
@@ -31,6 +32,10 @@ public class CachePreparedStatementStub extends GenericPreparedStatementStub {
 	private int timeout=0;
 	// Max rows
 	private int maxRows=0;
+	// Rows to fetch at a time
+	private int fetchSize=0;
+	// Largest dictionary for encoding result columns
+	private int maxDictionarySize=0;
 
 	/**
 	 * Create a CachePreparedStatement object for the given query (you
@@ -93,11 +98,12 @@ public class CachePreparedStatementStub extends GenericPreparedStatementStub {
 		int hc=hashCode();
 		String key="dbcache_prepared_" + hc;
 		SimpleCache cache=SimpleCache.getInstance();
-		CachedResultSet crs=(CachedResultSet)cache.get(key);
-		if(crs==null) {
-			crs=realExecuteQuery();
-			cache.store(key, crs, cacheTime*1000);
-		}
+		CachedResultSet crs=cache.getOrLoad(key,
+			new CacheLoader<CachedResultSet, SQLException>() {
+				public CachedResultSet load() throws SQLException {
+					return realExecuteQuery();
+				}
+			}, cacheTime*1000);
 		ResultSet crsret=(ResultSet)crs.newCopy();
 		return(crsret);
 	}
@@ -128,12 +134,39 @@ public class CachePreparedStatementStub extends GenericPreparedStatementStub {
 		maxRows=to;
 	}
 
+	/**
+	 * Set the number of rows to fetch at a time when the query is run.
+	 *
+	 * @param to the number of rows (0 leaves it up to the driver)
+	 * @throws SQLException (never)
+	 */
+	public void setFetchSize(int to) throws SQLException {
+		fetchSize=to;
+	}
+
+	/**
+	 * Set the largest dictionary used to encode a column of the results.
+	 *
+	 * @param to the largest dictionary size (0 encodes nothing)
+	 * @see SpyCacheDB#setMaxDictionarySize(int)
+	 */
+	public void setMaxDictionarySize(int to) {
+		if(to < 0 || to > ResultColumn.MAX_DICTIONARY_SIZE) {
+			throw new IllegalArgumentException(
+				"Invalid dictionary size:  " + to);
+		}
+		maxDictionarySize=to;
+	}
+
 	// OK, here's what happens when we determine that we really don't have
 	// the data and need to come up with it.
 	private CachedResultSet realExecuteQuery() throws SQLException {
 		PreparedStatement pst=db.prepareStatement(getQuery());
 		pst.setQueryTimeout(timeout);
 		pst.setMaxRows(maxRows);
+		if(fetchSize != 0) {
+			pst.setFetchSize(fetchSize);
+		}
 
 		// Set allllllll the types
 		Object[] args=getArgs();
@@ -195,7 +228,7 @@ public class CachePreparedStatementStub extends GenericPreparedStatementStub {
 
 		// OK, at this point, all the arguments should be set, proceed to
 		// execute the query.
-		return(new CachedResultSet(pst.executeQuery()));
+		return(new CachedResultSet(pst.executeQuery(), maxDictionarySize));
 
 	}
 
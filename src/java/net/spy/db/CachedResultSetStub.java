@@ -26,6 +26,21 @@ public class CachedResultSetStub extends GenericResultSetStub {
 		super(rs);
 	}
 
+	/**
+	 * Transform the passed in ResultSet to a CachedResultSet, dictionary
+	 * encoding columns with few distinct values.
+	 *
+	 * @param rs the ResultSet we want to transform
+	 * @param maxDict the largest dictionary to build for a column
+	 *
+	 * @exception SQLException if the ResultSet somehow fails us.
+	 * @see GenericResultSetStub#GenericResultSetStub(ResultSet, int)
+	 */
+	public CachedResultSetStub(ResultSet rs, int maxDict)
+		throws SQLException {
+		super(rs, maxDict);
+	}
+
 	/**
 	 * Make a copy of this object.
 	 */
@@ -13,6 +13,7 @@ import java.sql.Time;
 import java.sql.Timestamp;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedHashMap;
@@ -22,15 +23,20 @@ import net.spy.util.SpyUtil;
 
 /**
  * Super class for all stored procedure calls.
+ *
+ * <p>
+ *  The parameters are compiled into a {@link BindingPlan} shared by every
+ *  instance of a class, so checking and binding the arguments of each
+ *  execution doesn't rebuild any lists or look types up again.  To run the
+ *  same instance repeatedly, {@link #reset()} it and set new arguments;
+ *  the prepared statement is kept.
+ * </p>
  */
 public abstract class DBSP extends SpyCacheDB implements DBSPLike {
 
 	// Size for buffer for to stringing
 	private static final int TOSTRING_SB_SIZE=128;
 
-	// BigDecimal scale for doing data conversions
-	private static final int BD_SCALE=4;
-
 	// The set of parameters available to this DBSP (defined in the subclass)
 	private final LinkedHashMap<String, Parameter> parameters=
 		new LinkedHashMap<String, Parameter>();
@@ -49,6 +55,8 @@ public abstract class DBSP extends SpyCacheDB implements DBSPLike {
 	private int timeout=0;
 	// Max rows
 	private int maxRows=0;
+	// Rows to fetch at a time
+	private int fetchSize=0;
 
 	private boolean debug=false;
 
@@ -58,6 +66,13 @@ public abstract class DBSP extends SpyCacheDB implements DBSPLike {
 	// My prepared statement
 	private PreparedStatement pst=null;
 
+	// The compiled parameters, built when first needed
+	private BindingPlan plan=null;
+	// The plan, and which of its parameters had arguments, when the
+	// prepared statement was built here.
+	private BindingPlan preparedPlan=null;
+	private final BitSet preparedArgs=new BitSet();
+
 	// cursor name if cursors are enabled
 	private String cursorName=null;
 
@@ -109,6 +124,36 @@ public abstract class DBSP extends SpyCacheDB implements DBSPLike {
 		return(rs);
 	}
 
+	/**
+	 * Execute the query, handing each row to the given handler as it's read
+	 * instead of returning the results.  Together with
+	 * {@link #setFetchSize(int)}, this processes a large result without
+	 * holding all of it in memory.  The results are closed when the handler
+	 * stops or they run out.  Note that results with a cache time are
+	 * still read in full before the first row is handled.
+	 *
+	 * @param handler the handler for each row
+	 * @return the number of rows handled
+	 * @throws SQLException if the query or the handler fails
+	 */
+	public int executeQuery(RowHandler handler) throws SQLException {
+		if(handler == null) {
+			throw new NullPointerException("Invalid handler <null>");
+		}
+		int rv=0;
+		ResultSet rs=executeQuery();
+		try {
+			boolean more=true;
+			while(more && rs.next()) {
+				rv++;
+				more=handler.handleRow(rs);
+			}
+		} finally {
+			rs.close();
+		}
+		return(rv);
+	}
+
 	/**
 	 * Execute a query for update only.
 	 */
@@ -190,12 +235,16 @@ public abstract class DBSP extends SpyCacheDB implements DBSPLike {
 			getLogger().warn("Discarding old prepared statement %s", this.pst);
 		}
 		this.pst=to;
+		preparedPlan=null;
 
 		if(debug) {
 			getLogger().debug("Setting timeout to: %s", timeout);
 		}
 		pst.setQueryTimeout(timeout);
 		pst.setMaxRows(maxRows);
+		if(fetchSize != 0) {
+			pst.setFetchSize(fetchSize);
+		}
 
 		// Set the cursor name if there is one.
 		if(cursorName != null) {
@@ -224,6 +273,15 @@ public abstract class DBSP extends SpyCacheDB implements DBSPLike {
 
 		// Save it.
 		parameters.put(p.getName(), p);
+		plan=null;
+	}
+
+	// Get the binding plan for the current parameters.
+	private BindingPlan getPlan() {
+		if(plan == null) {
+			plan=BindingPlan.get(getClass(), parameters.values());
+		}
+		return(plan);
 	}
 
 	/**
@@ -321,6 +379,21 @@ public abstract class DBSP extends SpyCacheDB implements DBSPLike {
 		arguments.clear();
 	}
 
+	/**
+	 * Reset this DBSP to be run again with new arguments.  The arguments
+	 * and the prepared statement's parameters are cleared, but the
+	 * statement itself is kept.  It's rebuilt if the next run supplies a
+	 * different set of optional arguments.
+	 *
+	 * @throws SQLException if the statement's parameters can't be cleared
+	 */
+	public void reset() throws SQLException {
+		resetArgs();
+		if(pst != null) {
+			pst.clearParameters();
+		}
+	}
+
 	/**
 	 * Set the timeout for this query.  See JDCB Statement documentation.
 	 */
@@ -336,6 +409,31 @@ public abstract class DBSP extends SpyCacheDB implements DBSPLike {
 		this.maxRows=to;
 	}
 
+	/**
+	 * Set the number of rows the driver should fetch from the database at
+	 * a time.  See JDBC Statement documentation.  The default, 0, leaves
+	 * it up to the driver.  Some drivers only fetch incrementally with
+	 * autocommit off, or with a particular value (MySQL wants
+	 * Integer.MIN_VALUE).
+	 *
+	 * @param to the number of rows
+	 * @throws SQLException if the statement rejects the value
+	 * @see #executeQuery(RowHandler)
+	 */
+	public void setFetchSize(int to) throws SQLException {
+		this.fetchSize=to;
+		if(pst != null) {
+			pst.setFetchSize(fetchSize);
+		}
+	}
+
+	/**
+	 * Get the number of rows the driver should fetch at a time.
+	 */
+	public int getFetchSize() {
+		return(fetchSize);
+	}
+
 	/**
 	 * Get the timeout for this query
 	 */
@@ -370,6 +468,11 @@ public abstract class DBSP extends SpyCacheDB implements DBSPLike {
 			getLogger().debug("Args:  %s", arguments);
 		}
 
+		// The usual case needs nothing more.
+		if(argsMatchPlan(getPlan())) {
+			return;
+		}
+
 		// Now, verify all of the arguments we have are correctly typed.
 		for(Argument arg : arguments.values()) {
 			// Find the matching parameter.
@@ -412,15 +515,38 @@ public abstract class DBSP extends SpyCacheDB implements DBSPLike {
 		// Check complete.  :)
 	}
 
+	// True if there's an argument of the right type for every required
+	// parameter and no arguments for anything else.
+	private boolean argsMatchPlan(BindingPlan bp) {
+		boolean rv=true;
+		int found=0;
+		for(int i=0; rv && i<bp.size(); i++) {
+			Argument arg=arguments.get(bp.getName(i));
+			if(arg == null) {
+				rv=!bp.isRequired(i);
+			} else {
+				found++;
+				// A null's type is the type it was given.
+				int atype=arg.value == null ? arg.javaType : arg.getJavaType();
+				rv=atype == bp.getType(i);
+			}
+		}
+		return(rv && found == arguments.size());
+	}
+
 	/**
 	 * Prepare the statement for execution.
 	 */
 	protected void prepare() throws SQLException {
 
-		if(pst == null) {
+		// Make sure all the arguments are there.
+		checkArgs();
 
-			// Make sure all the arguments are there.
-			checkArgs();
+		BindingPlan bp=getPlan();
+		if(pst == null || !builtFor(bp)) {
+
+			// The statement names the arguments it was built with.
+			closeStatement();
 
 			// Get ready to build our query.
 			StringBuilder querySb=new StringBuilder(TOSTRING_SB_SIZE);
@@ -448,8 +574,28 @@ public abstract class DBSP extends SpyCacheDB implements DBSPLike {
 
 			// Fill in the arguments.
 			setQuery(tmpQuery);
+			preparedPlan=bp;
+			preparedArgs.clear();
+			for(int i=0; i<bp.size(); i++) {
+				if(arguments.containsKey(bp.getName(i))) {
+					preparedArgs.set(i);
+				}
+			}
 		}
-		applyArgs(getArguments());
+		bindArgs();
+	}
+
+	// True unless the prepared statement was built here for a different
+	// set of arguments.
+	private boolean builtFor(BindingPlan bp) {
+		boolean rv=true;
+		if(preparedPlan != null) {
+			rv=preparedPlan == bp;
+			for(int i=0; rv && i<bp.size(); i++) {
+				rv=arguments.containsKey(bp.getName(i)) == preparedArgs.get(i);
+			}
+		}
+		return(rv);
 	}
 
 	/**
@@ -493,6 +639,26 @@ public abstract class DBSP extends SpyCacheDB implements DBSPLike {
 		return(query);
 	}
 
+	/**
+	 * Fill in the current arguments using the binding plan.  This is what
+	 * {@link #applyArgs(Collection)} does for {@link #getArguments()},
+	 * without building the list.  The arguments must have been checked.
+	 */
+	protected void bindArgs() throws SQLException {
+		BindingPlan bp=getPlan();
+		int index=1;
+		for(int i=0; i<bp.size(); i++) {
+			Argument arg=arguments.get(bp.getName(i));
+			if(arg != null) {
+				int type=arg.getJavaType();
+				BindingPlan.Binder b=type == bp.getType(i)
+					? bp.getBinder(i) : BindingPlan.Binder.forType(type);
+				applyArg(index, arg, arg.getValue(), type, b);
+				index++;
+			}
+		}
+	}
+
 	/**
 	 * Fill in the arguments (with types) for the given list of parameters.
 	 *
@@ -503,82 +669,36 @@ public abstract class DBSP extends SpyCacheDB implements DBSPLike {
 		// Use this iterator for the now positional arguments
 		int i=1;
 		for(Argument arg : v) {
-			Object o=arg.getValue();
 			int type=arg.getJavaType();
-
-			if(isDebugEnabled()) {
-				getLogger().debug("arg[%d] = %s", i, arg);
-			}
-
-			try {
-				switch(type) {
-					case Types.BIT:
-						pst.setBoolean(i, ((Boolean)o).booleanValue());
-						break;
-					case Types.DATE:
-						pst.setDate(i, (java.sql.Date)o);
-						break;
-					case Types.DOUBLE:
-						pst.setDouble(i, ((Number)o).doubleValue());
-						break;
-					case Types.FLOAT:
-						pst.setFloat(i, ((Number)o).floatValue());
-						break;
-					case Types.INTEGER:
-						pst.setInt(i, ((Number)o).intValue());
-						break;
-					case Types.BIGINT:
-						pst.setLong(i, ((Number)o).longValue());
-						break;
-					case Types.NUMERIC:
-					case Types.DECIMAL:
-						BigDecimal bd=((BigDecimal)o).setScale(BD_SCALE,
-													BigDecimal.ROUND_HALF_UP);
-						pst.setBigDecimal(i, bd);
-						break;
-					case Types.SMALLINT:
-					case Types.TINYINT:
-						pst.setShort(i, (short)((Number)o).intValue());
-						break;
-					case Types.NULL:
-						pst.setNull(i, ((DBNull)o).getType());
-						break;
-					case Types.OTHER:
-						pst.setObject(i, o);
-						break;
-					case Types.CLOB:
-					case Types.VARCHAR:
-						pst.setString(i, (String)o);
-						break;
-					case Types.TIME:
-						pst.setTime(i, (Time)o);
-						break;
-					case Types.TIMESTAMP:
-						pst.setTimestamp(i, (Timestamp)o);
-						break;
-					default:
-						throw new SQLException("Whoops, type "
-							+ TypeNames.getTypeName(type) + "(" + type + ")"
-							+ " seems to have been overlooked.");
-				}
-			} catch(SQLException se) {
-				getLogger().warn("SQLException while applying %s"
-					+ " in prepared statement for type %s %s", arg,
-					TypeNames.getTypeName(type), o, se);
-				throw se;
-			} catch (Exception applyException) {
-				String msg="Problem setting " + arg
-					+ " in prepared statement for type "
-					+ TypeNames.getTypeName(type) + " "
-					+ String.valueOf(o) + " : " + applyException;
-				getLogger().warn(msg, applyException);
-				SQLException se=new SQLException(msg);
-				se.initCause(applyException);
-				throw se;
-			}
-
+			applyArg(i, arg, arg.getValue(), type,
+				BindingPlan.Binder.forType(type));
 			i++;
+		}
+	}
+
+	// Set one argument.
+	private void applyArg(int i, Argument arg, Object o, int type,
+		BindingPlan.Binder b) throws SQLException {
+		if(isDebugEnabled()) {
+			getLogger().debug("arg[%d] = %s", i, arg);
+		}
 
+		try {
+			b.bind(pst, i, o);
+		} catch(SQLException se) {
+			getLogger().warn("SQLException while applying %s"
+				+ " in prepared statement for type %s %s", arg,
+				TypeNames.getTypeName(type), o, se);
+			throw se;
+		} catch (Exception applyException) {
+			String msg="Problem setting " + arg
+				+ " in prepared statement for type "
+				+ TypeNames.getTypeName(type) + " "
+				+ String.valueOf(o) + " : " + applyException;
+			getLogger().warn(msg, applyException);
+			SQLException se=new SQLException(msg);
+			se.initCause(applyException);
+			throw se;
 		}
 	}
 
@@ -914,6 +1034,11 @@ public abstract class DBSP extends SpyCacheDB implements DBSPLike {
 	 */
 	@Override
 	public void close() {
+		closeStatement();
+		super.close();
+	}
+
+	private void closeStatement() {
 		if(pst!=null) {
 			try {
 				pst.close();
@@ -922,7 +1047,6 @@ public abstract class DBSP extends SpyCacheDB implements DBSPLike {
 			}
 			pst=null;
 		}
-		super.close();
 	}
 
 	/**
@@ -60,7 +60,7 @@ public abstract class DBSQL extends DBSP {
 		}
 		// Make sure all the arguments are there.
 		checkArgs();
-		applyArgs(getArguments());
+		bindArgs();
 	}
 
 	/**
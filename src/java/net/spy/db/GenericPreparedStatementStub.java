@@ -128,6 +128,16 @@ public abstract class GenericPreparedStatementStub extends SpyObject {
 		setArg(a0, a1, Types.TIMESTAMP);
 	}
 
+	/**
+	 * Clear all of the arguments.
+	 */
+	public void clearParameters() throws SQLException {
+		for(int i=0; i<args.length; i++) {
+			args[i]=null;
+			types[i]=0;
+		}
+	}
+
 	public void close() throws SQLException {
 		// nothing
 	}
@@ -9,9 +9,7 @@ import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.SQLWarning;
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -20,19 +18,40 @@ import net.spy.SpyObject;
 /**
  * This object contains all the common stuff required to stub a ResultSet
  * implementation.
+ *
+ * <p>
+ *  The results are held a column at a time, with numeric columns stored as
+ *  arrays of primitives where the driver's values allow it (see
+ *  {@link ResultColumn}), so reading them with getInt, getLong or
+ *  getDouble doesn't box.  The columns aren't modified once they're set,
+ *  so clones share them and each has its own position.
+ * </p>
+ *
+ * <p>
+ *  Optionally, columns of other types with few distinct values (status
+ *  codes, names of countries and the like) are dictionary encoded, so
+ *  each distinct value is held once however many rows it appears in.
+ * </p>
  */
 public abstract class GenericResultSetStub extends SpyObject
 	implements Cloneable {
 
 	// Here is where the ResultSet data gets stored.
-	private List<Object[]> results=null;
-	private Iterator<Object[]> resultIter=null;
+	private ResultColumn[] results=null;
+	private int numRows=0;
 
 	// Map column names to ints
 	private Map<String, Integer> columns=null;
+	private int numColumns=0;
+	// The SQL type of each column
+	private int[] types=null;
+	// The largest dictionary to encode a column with, or 0 for none
+	private int maxDictionarySize=0;
 
-	// This is the current result we're looking at.
-	private Object[] result=null;
+	// This is the current row we're looking at, and the one next() moves
+	// to.
+	private int row=-1;
+	private int nextRow=0;
 
 	// We're going to keep a copy of the ResultSetMetaData from the
 	// original query.  Let's find out if those things require an active
@@ -51,7 +70,30 @@ public abstract class GenericResultSetStub extends SpyObject
 	 * @exception SQLException if the ResultSet somehow fails us.
 	 */
 	public GenericResultSetStub(ResultSet rs) throws SQLException {
+		this(rs, 0);
+	}
+
+	/**
+	 * Transform the passed in ResultSet to a GenericResultSetStub,
+	 * dictionary encoding columns with no more than the given number of
+	 * distinct values.  Only columns that aren't held as primitives are
+	 * encoded, and only when they have fewer distinct values than half
+	 * their rows.
+	 *
+	 * @param rs the ResultSet we want to transform
+	 * @param maxDict the largest dictionary to build for a column (0 to
+	 *	not encode any, at most 65536)
+	 *
+	 * @exception SQLException if the ResultSet somehow fails us.
+	 */
+	public GenericResultSetStub(ResultSet rs, int maxDict)
+		throws SQLException {
 		super();
+		if(maxDict < 0 || maxDict > ResultColumn.MAX_DICTIONARY_SIZE) {
+			throw new IllegalArgumentException(
+				"Invalid dictionary size:  " + maxDict);
+		}
+		maxDictionarySize=maxDict;
 		setMetaData(rs.getMetaData());
 		initResults(rs);
 	}
@@ -71,50 +113,72 @@ public abstract class GenericResultSetStub extends SpyObject
 
 	// result set initializer
 	private void initResults(ResultSet rs) throws SQLException {
-		// Initialize the results vector
-		ArrayList<Object[]> r=new ArrayList<Object[]>();
-		int ncolumns=metadata.getColumnCount();
+		ResultColumn.Builder[] builders=newBuilders();
+		int nrows=0;
 
 		// Flip through each result
 		while(rs.next()) {
 
-			// Get an array to store them
-			Object[] ars=new Object[ncolumns];
-
 			// Flip through the columns
-			for(int i=1; i<=ncolumns; i++) {
+			for(int i=1; i<=numColumns; i++) {
 				// Get the object from the result set.
-				ars[i-1]=rs.getObject(i);
+				Object o=rs.getObject(i);
 
 				// If we did a numeric thingy
 				if(rs.wasNull()) {
-					ars[i-1]=null;
+					o=null;
 				}
+				builders[i-1]=builders[i-1].add(o);
 			} // columns
-
-			// Stick it in our resultset.
-			r.add(ars);
+			nrows++;
 
 		} // results
 
-		setResults(r);
+		setResults(builders, nrows);
 	} // initresults
 
+	private ResultColumn.Builder[] newBuilders() {
+		ResultColumn.Builder[] rv=new ResultColumn.Builder[numColumns];
+		for(int i=0; i<numColumns; i++) {
+			rv[i]=ResultColumn.builder(types[i]);
+		}
+		return(rv);
+	}
+
+	private void setResults(ResultColumn.Builder[] builders, int nrows) {
+		ResultColumn[] r=new ResultColumn[builders.length];
+		for(int i=0; i<builders.length; i++) {
+			r[i]=builders[i].build();
+			if(maxDictionarySize > 0) {
+				r[i]=r[i].encode(maxDictionarySize);
+			}
+		}
+		this.results=r;
+		this.numRows=nrows;
+		resetResults();
+	}
+
 	/**
 	 * Reset the results to the beginning.
 	 */
 	protected void resetResults() {
-		this.resultIter=null;
+		this.nextRow=0;
 	}
 
 	/**
-	 * Set the results for this ResultSet to use.
+	 * Set the results for this ResultSet to use.  The metadata must have
+	 * been set first.
 	 *
-	 * @param to results list to use
+	 * @param to results list to use, one array of column values per row
 	 */
 	protected void setResults(List<Object[]> to) {
-		this.results=to;
-		resetResults();
+		ResultColumn.Builder[] builders=newBuilders();
+		for(Object[] r : to) {
+			for(int i=0; i<numColumns; i++) {
+				builders[i]=builders[i].add(r[i]);
+			}
+		}
+		setResults(builders, to.size());
 	}
 
 	/**
@@ -128,15 +192,32 @@ public abstract class GenericResultSetStub extends SpyObject
 
 		// Get the column count
 		int ncolumns=metadata.getColumnCount();
+		numColumns=ncolumns;
 
 		// Initialize columns
 		columns=new HashMap<String, Integer>();
+		types=new int[ncolumns];
 		for(int i=1; i<=ncolumns; i++) {
 			String name=metadata.getColumnName(i).toLowerCase();
 			columns.put(name, new Integer(i));
+			types[i-1]=metadata.getColumnType(i);
 		}
 	}
 
+	/**
+	 * Get the number of rows held by this result set.
+	 */
+	public int getNumRows() {
+		return(numRows);
+	}
+
+	/**
+	 * Get the number of columns in each row of this result set.
+	 */
+	public int getNumColumns() {
+		return(numColumns);
+	}
+
 	/**
 	 * Get the Object at the given result column for the current result
 	 * row.
@@ -147,24 +228,46 @@ public abstract class GenericResultSetStub extends SpyObject
 	 * index is out of bounds
 	 */
 	protected Object getResultColumn(int index) throws SQLException {
+		return(getColumn(index).get(row));
+	}
+
+	// Get the given column, checking that there's a current row.
+	private ResultColumn getColumn(int index) throws SQLException {
 		// (jdbc is offset at 1, we're offset at 0)
 		index--;
-		if(result==null) {
+		if(row<0) {
 			throw new SQLException("No current result.");
 		}
 		if(index<0) {
 			throw new SQLException("ResultSets start at one, nothing less.");
 		}
-		if(index>=result.length) {
+		if(index>=results.length) {
 			throw new SQLException("There are only "
-				+ result.length + " columns in this set.");
+				+ results.length + " columns in this set.");
 		}
 
 		// Check for NULL
-		wasNull = result[index]==null;
+		wasNull = results[index].isNull(row);
 
 		// OK, return the column
-		return(result[index]);
+		return(results[index]);
+	}
+
+	/**
+	 * Get an estimate of the number of bytes held by this result set's
+	 * columns.
+	 *
+	 * @param objectSize the number of bytes assumed for each value that's
+	 *	held as an object
+	 */
+	long estimateSize(int objectSize) {
+		long rv=0;
+		if(results != null) {
+			for(ResultColumn c : results) {
+				rv+=c.estimateSize(objectSize);
+			}
+		}
+		return(rv);
 	}
 
 	/**
@@ -214,13 +317,8 @@ public abstract class GenericResultSetStub extends SpyObject
 	 */
 	public boolean next() throws SQLException {
 		boolean rv=true;
-		// Make sure we've got our enumeration going.
-		if(resultIter==null) {
-			resultIter=results.iterator();
-		}
-
-		if(resultIter.hasNext()) {
-			result=resultIter.next();
+		if(nextRow<numRows) {
+			row=nextRow++;
 		} else {
 			rv=false;
 		}
@@ -286,58 +384,35 @@ public abstract class GenericResultSetStub extends SpyObject
 	 * @see ResultSet
 	 */
 	public short getShort(int index) throws SQLException {
-		Number n=getNumber(index);
-		return(n.shortValue());
+		return(getColumn(index).getShort(row));
 	}
 
 	/**
 	 * @see ResultSet
 	 */
 	public int getInt(int index) throws SQLException {
-		Number n=getNumber(index);
-		return(n.intValue());
+		return(getColumn(index).getInt(row));
 	}
 
 	/**
 	 * @see ResultSet
 	 */
 	public long getLong(int index) throws SQLException {
-		Number n=getNumber(index);
-		return(n.longValue());
+		return(getColumn(index).getLong(row));
 	}
 
 	/**
 	 * @see ResultSet
 	 */
 	public float getFloat(int index) throws SQLException {
-		Number n=getNumber(index);
-		return(n.floatValue());
+		return(getColumn(index).getFloat(row));
 	}
 
 	/**
 	 * @see ResultSet
 	 */
 	public double getDouble(int index) throws SQLException {
-		Number n=getNumber(index);
-		return(n.doubleValue());
-	}
-
-	/**
-	 * @see ResultSet
-	 */
-	private Number getNumber(int index) throws SQLException {
-		Number n=null;
-		Object o=getResultColumn(index);
-		if(o!=null) {
-			try {
-				n=(Number)o;
-			} catch(ClassCastException e) {
-				throw new SQLException("Error getting Number value:  " + e);
-			}
-		} else {
-			n=new Integer(0);
-		}
-		return(n);
+		return(getColumn(index).getDouble(row));
 	}
 
 	/**
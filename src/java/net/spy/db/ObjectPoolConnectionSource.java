@@ -41,6 +41,10 @@ import net.spy.util.SpyConfig;
  *      default 6 hours</li>
  *  <li>dbPingOnCheckout - if true, ping on object pool checkout
  *      default: true</li>
+ *  <li>dbStatementCacheSize - number of prepared statements each
+ *      connection keeps open for reuse, by SQL and result set type -
+ *      default 0 (none).  Hits, misses and evictions are counted in
+ *      net.spy.stat as net.spy.pool.<i>poolName</i>.statements.*</li>
  * </ul>
  */
 public class ObjectPoolConnectionSource extends SpyObject
@@ -196,6 +200,12 @@ public class ObjectPoolConnectionSource extends SpyObject
 		tmp=conf.get("dbPingOnCheckout", "true");
 		rv.put(prefix + "pingOnCheckout", tmp);
 
+		// Prepared statements to cache per connection
+		int statementCacheSize=conf.getInt("dbStatementCacheSize", 0);
+		if(statementCacheSize > 0) {
+			rv.put(prefix + "statement_cache_size", "" + statementCacheSize);
+		}
+
 		// Driver name
 		tmp=conf.get("dbDriverName");
 		if(tmp==null) {
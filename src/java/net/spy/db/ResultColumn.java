@@ -0,0 +1,520 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.db;
+
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A column of values held by a {@link GenericResultSetStub}.
+ *
+ * <p>
+ *  INTEGER, SMALLINT and TINYINT columns whose values are
+ *  <code>Integer</code>s are stored in an <code>int[]</code>, BIGINT
+ *  columns of <code>Long</code>s in a <code>long[]</code> and DOUBLE and
+ *  FLOAT columns of <code>Double</code>s in a <code>double[]</code>, with
+ *  the rows that are null marked in a bitmap.  Their values are only boxed
+ *  when they're asked for as objects.  Anything else, including a column
+ *  the driver returns some other class for, is stored as objects.
+ * </p>
+ *
+ * <p>
+ *  An object column with few distinct values may be dictionary encoded
+ *  (see {@link #encode(int)}), storing each distinct value once and a one
+ *  or two byte code per row.
+ * </p>
+ *
+ * <p>
+ *  Columns are immutable once they're built.
+ * </p>
+ */
+abstract class ResultColumn {
+
+	// Estimated bytes of overhead per object and per array.
+	private static final int OBJECT_OVERHEAD=16;
+	private static final int ARRAY_OVERHEAD=16;
+
+	/**
+	 * The largest dictionary a column may be encoded with.
+	 */
+	static final int MAX_DICTIONARY_SIZE=65536;
+
+	// The rows holding null, or null if none do.
+	private final BitSet nulls;
+
+	protected ResultColumn(BitSet n) {
+		super();
+		nulls=n;
+	}
+
+	/**
+	 * Get a builder for a column of the given SQL type.
+	 *
+	 * @param sqlType the type (from java.sql.Types)
+	 */
+	static Builder builder(int sqlType) {
+		Builder rv=null;
+		switch(sqlType) {
+			case Types.INTEGER:
+			case Types.SMALLINT:
+			case Types.TINYINT:
+				rv=new IntBuilder();
+				break;
+			case Types.BIGINT:
+				rv=new LongBuilder();
+				break;
+			case Types.DOUBLE:
+			case Types.FLOAT:
+				rv=new DoubleBuilder();
+				break;
+			default:
+				rv=new ObjectBuilder();
+		}
+		return rv;
+	}
+
+	/**
+	 * True if the given row holds null.
+	 */
+	boolean isNull(int row) {
+		return nulls != null && nulls.get(row);
+	}
+
+	/**
+	 * Get the value in the given row.
+	 *
+	 * @return the value, or null
+	 */
+	abstract Object get(int row);
+
+	/**
+	 * Get this column dictionary encoded, if that's worthwhile.  A column
+	 * is encoded when it has no more than the given number of distinct
+	 * values (or {@link #MAX_DICTIONARY_SIZE}), and fewer than one for
+	 * every two rows.
+	 *
+	 * @param maxSize the largest dictionary to build
+	 * @return the encoded column, or this one
+	 */
+	ResultColumn encode(int maxSize) {
+		return this;
+	}
+
+	/**
+	 * Get an estimate of the number of bytes this column holds, assuming
+	 * the given size for each object it refers to.  The values themselves
+	 * aren't examined.
+	 */
+	long estimateSize(int objectSize) {
+		long rv=ARRAY_OVERHEAD;
+		if(nulls != null) {
+			rv+=OBJECT_OVERHEAD + ARRAY_OVERHEAD + nulls.size() / 8;
+		}
+		return rv;
+	}
+
+	int getInt(int row) throws SQLException {
+		return getNumber(row).intValue();
+	}
+
+	long getLong(int row) throws SQLException {
+		return getNumber(row).longValue();
+	}
+
+	short getShort(int row) throws SQLException {
+		return getNumber(row).shortValue();
+	}
+
+	float getFloat(int row) throws SQLException {
+		return getNumber(row).floatValue();
+	}
+
+	double getDouble(int row) throws SQLException {
+		return getNumber(row).doubleValue();
+	}
+
+	// Nulls read as zero.
+	private Number getNumber(int row) throws SQLException {
+		Number rv=null;
+		Object o=get(row);
+		if(o!=null) {
+			try {
+				rv=(Number)o;
+			} catch(ClassCastException e) {
+				throw new SQLException("Error getting Number value:  " + e);
+			}
+		} else {
+			rv=new Integer(0);
+		}
+		return rv;
+	}
+
+	/**
+	 * Accumulates a column's values.
+	 */
+	abstract static class Builder {
+		protected int size=0;
+		protected BitSet nulls=null;
+
+		/**
+		 * Add the next row's value.
+		 *
+		 * @param o the value, or null
+		 * @return the builder for the rest of the column, which is a new
+		 *	one if this one can't hold the value
+		 */
+		abstract Builder add(Object o);
+
+		/**
+		 * Build the column.
+		 */
+		abstract ResultColumn build();
+
+		protected void markNull() {
+			if(nulls == null) {
+				nulls=new BitSet();
+			}
+			nulls.set(size);
+		}
+
+		// Get a builder holding this one's values as objects.
+		protected Builder toObjects() {
+			ResultColumn c=build();
+			ObjectBuilder rv=new ObjectBuilder();
+			for(int i=0; i<size; i++) {
+				rv.add(c.get(i));
+			}
+			return rv;
+		}
+
+		protected static int grow(int length, int size) {
+			return size < length ? length : Math.max(16, length * 2);
+		}
+	}
+
+	static final class IntColumn extends ResultColumn {
+		private final int[] values;
+		IntColumn(int[] v, BitSet n) {
+			super(n);
+			values=v;
+		}
+		@Override
+		Object get(int row) {
+			return isNull(row) ? null : Integer.valueOf(values[row]);
+		}
+		@Override
+		int getInt(int row) {
+			return values[row];
+		}
+		@Override
+		long getLong(int row) {
+			return values[row];
+		}
+		@Override
+		short getShort(int row) {
+			return (short)values[row];
+		}
+		@Override
+		float getFloat(int row) {
+			return values[row];
+		}
+		@Override
+		double getDouble(int row) {
+			return values[row];
+		}
+		@Override
+		long estimateSize(int objectSize) {
+			return super.estimateSize(objectSize) + 4L * values.length;
+		}
+	}
+
+	static final class LongColumn extends ResultColumn {
+		private final long[] values;
+		LongColumn(long[] v, BitSet n) {
+			super(n);
+			values=v;
+		}
+		@Override
+		Object get(int row) {
+			return isNull(row) ? null : Long.valueOf(values[row]);
+		}
+		@Override
+		int getInt(int row) {
+			return (int)values[row];
+		}
+		@Override
+		long getLong(int row) {
+			return values[row];
+		}
+		@Override
+		short getShort(int row) {
+			return (short)values[row];
+		}
+		@Override
+		float getFloat(int row) {
+			return values[row];
+		}
+		@Override
+		double getDouble(int row) {
+			return values[row];
+		}
+		@Override
+		long estimateSize(int objectSize) {
+			return super.estimateSize(objectSize) + 8L * values.length;
+		}
+	}
+
+	static final class DoubleColumn extends ResultColumn {
+		private final double[] values;
+		DoubleColumn(double[] v, BitSet n) {
+			super(n);
+			values=v;
+		}
+		@Override
+		Object get(int row) {
+			return isNull(row) ? null : Double.valueOf(values[row]);
+		}
+		@Override
+		int getInt(int row) {
+			return (int)values[row];
+		}
+		@Override
+		long getLong(int row) {
+			return (long)values[row];
+		}
+		@Override
+		short getShort(int row) {
+			return (short)values[row];
+		}
+		@Override
+		float getFloat(int row) {
+			return (float)values[row];
+		}
+		@Override
+		double getDouble(int row) {
+			return values[row];
+		}
+		@Override
+		long estimateSize(int objectSize) {
+			return super.estimateSize(objectSize) + 8L * values.length;
+		}
+	}
+
+	static final class ObjectColumn extends ResultColumn {
+		private final Object[] values;
+		ObjectColumn(Object[] v) {
+			super(null);
+			values=v;
+		}
+		@Override
+		boolean isNull(int row) {
+			return values[row] == null;
+		}
+		@Override
+		Object get(int row) {
+			return values[row];
+		}
+		@Override
+		long estimateSize(int objectSize) {
+			return super.estimateSize(objectSize)
+				+ (8L + objectSize) * values.length;
+		}
+		@Override
+		ResultColumn encode(int maxSize) {
+			ResultColumn rv=this;
+			int limit=Math.min(Math.min(maxSize, MAX_DICTIONARY_SIZE),
+				(values.length - 1) / 2);
+			Map<Object, Integer> codes=new HashMap<Object, Integer>();
+			List<Object> dictionary=new ArrayList<Object>();
+			int[] c=new int[values.length];
+			boolean encodable=values.length > 0;
+			for(int i=0; encodable && i<values.length; i++) {
+				Object o=values[i];
+				Integer code=codes.get(o);
+				if(code == null) {
+					code=Integer.valueOf(dictionary.size());
+					codes.put(o, code);
+					dictionary.add(o);
+					encodable=dictionary.size() <= limit;
+				} else if(o != null) {
+					// Equal values of different classes (e.g. a Date and a
+					// Timestamp) can't share an entry.
+					encodable=dictionary.get(code).getClass() == o.getClass();
+				}
+				c[i]=code.intValue();
+			}
+			if(encodable) {
+				rv=new DictionaryColumn(dictionary.toArray(), c);
+			}
+			return rv;
+		}
+	}
+
+	static final class DictionaryColumn extends ResultColumn {
+		private final Object[] dictionary;
+		// One of these holds the codes, depending on the dictionary's size.
+		private final byte[] byteCodes;
+		private final short[] shortCodes;
+		DictionaryColumn(Object[] d, int[] c) {
+			super(null);
+			dictionary=d;
+			if(d.length <= 256) {
+				byteCodes=new byte[c.length];
+				shortCodes=null;
+				for(int i=0; i<c.length; i++) {
+					byteCodes[i]=(byte)c[i];
+				}
+			} else {
+				byteCodes=null;
+				shortCodes=new short[c.length];
+				for(int i=0; i<c.length; i++) {
+					shortCodes[i]=(short)c[i];
+				}
+			}
+		}
+		private int code(int row) {
+			return byteCodes != null
+				? byteCodes[row] & 0xff : shortCodes[row] & 0xffff;
+		}
+		/**
+		 * Get the number of distinct values in this column.
+		 */
+		int getDictionarySize() {
+			return dictionary.length;
+		}
+		@Override
+		boolean isNull(int row) {
+			return dictionary[code(row)] == null;
+		}
+		@Override
+		Object get(int row) {
+			return dictionary[code(row)];
+		}
+		@Override
+		long estimateSize(int objectSize) {
+			long rv=super.estimateSize(objectSize) + ARRAY_OVERHEAD
+				+ (8L + objectSize) * dictionary.length;
+			if(byteCodes != null) {
+				rv+=byteCodes.length;
+			} else {
+				rv+=2L * shortCodes.length;
+			}
+			return rv;
+		}
+	}
+
+	static final class IntBuilder extends Builder {
+		private int[] values=new int[16];
+		@Override
+		Builder add(Object o) {
+			Builder rv=this;
+			if(o == null || o.getClass() == Integer.class) {
+				if(size == values.length) {
+					int[] a=new int[grow(values.length, size + 1)];
+					System.arraycopy(values, 0, a, 0, size);
+					values=a;
+				}
+				if(o == null) {
+					markNull();
+				} else {
+					values[size]=((Integer)o).intValue();
+				}
+				size++;
+			} else {
+				rv=toObjects().add(o);
+			}
+			return rv;
+		}
+		@Override
+		ResultColumn build() {
+			int[] a=new int[size];
+			System.arraycopy(values, 0, a, 0, size);
+			return new IntColumn(a, nulls);
+		}
+	}
+
+	static final class LongBuilder extends Builder {
+		private long[] values=new long[16];
+		@Override
+		Builder add(Object o) {
+			Builder rv=this;
+			if(o == null || o.getClass() == Long.class) {
+				if(size == values.length) {
+					long[] a=new long[grow(values.length, size + 1)];
+					System.arraycopy(values, 0, a, 0, size);
+					values=a;
+				}
+				if(o == null) {
+					markNull();
+				} else {
+					values[size]=((Long)o).longValue();
+				}
+				size++;
+			} else {
+				rv=toObjects().add(o);
+			}
+			return rv;
+		}
+		@Override
+		ResultColumn build() {
+			long[] a=new long[size];
+			System.arraycopy(values, 0, a, 0, size);
+			return new LongColumn(a, nulls);
+		}
+	}
+
+	static final class DoubleBuilder extends Builder {
+		private double[] values=new double[16];
+		@Override
+		Builder add(Object o) {
+			Builder rv=this;
+			if(o == null || o.getClass() == Double.class) {
+				if(size == values.length) {
+					double[] a=new double[grow(values.length, size + 1)];
+					System.arraycopy(values, 0, a, 0, size);
+					values=a;
+				}
+				if(o == null) {
+					markNull();
+				} else {
+					values[size]=((Double)o).doubleValue();
+				}
+				size++;
+			} else {
+				rv=toObjects().add(o);
+			}
+			return rv;
+		}
+		@Override
+		ResultColumn build() {
+			double[] a=new double[size];
+			System.arraycopy(values, 0, a, 0, size);
+			return new DoubleColumn(a, nulls);
+		}
+	}
+
+	static final class ObjectBuilder extends Builder {
+		private Object[] values=new Object[16];
+		@Override
+		Builder add(Object o) {
+			if(size == values.length) {
+				Object[] a=new Object[grow(values.length, size + 1)];
+				System.arraycopy(values, 0, a, 0, size);
+				values=a;
+			}
+			values[size++]=o;
+			return this;
+		}
+		@Override
+		ResultColumn build() {
+			Object[] a=new Object[size];
+			System.arraycopy(values, 0, a, 0, size);
+			return new ObjectColumn(a);
+		}
+	}
+}
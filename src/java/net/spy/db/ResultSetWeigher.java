@@ -0,0 +1,55 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.db;
+
+import net.spy.cache.SizeEstimatingWeigher;
+
+/**
+ * A Weigher that also understands cached result sets.
+ *
+ * <p>
+ *  A {@link GenericResultSetStub} is sized by its columns:  primitive
+ *  columns by the width of their values, and other columns by their number
+ *  of rows times an assumed cell size.  It doesn't look at the cells
+ *  themselves, so weighing a large result is as cheap as weighing a small
+ *  one.
+ * </p>
+ */
+public class ResultSetWeigher extends SizeEstimatingWeigher {
+
+	private static final int DEFAULT_CELL_SIZE=32;
+
+	private final int cellSize;
+
+	/**
+	 * Get a ResultSetWeigher assuming each object cell costs 32 bytes.
+	 */
+	public ResultSetWeigher() {
+		this(DEFAULT_CELL_SIZE);
+	}
+
+	/**
+	 * Get a ResultSetWeigher with the given per cell size estimate.
+	 *
+	 * @param cs the number of bytes assumed for each object cell
+	 */
+	public ResultSetWeigher(int cs) {
+		super();
+		if(cs < 0) {
+			throw new IllegalArgumentException("Invalid cell size:  " + cs);
+		}
+		cellSize=cs;
+	}
+
+	@Override
+	protected long estimate(Object o) {
+		long rv=0;
+		if(o instanceof GenericResultSetStub) {
+			GenericResultSetStub rs=(GenericResultSetStub)o;
+			rv=OBJECT_OVERHEAD * 4 + rs.estimateSize(cellSize);
+		} else {
+			rv=super.estimate(o);
+		}
+		return rv;
+	}
+}
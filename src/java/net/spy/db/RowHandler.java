@@ -0,0 +1,25 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.db;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Interface for objects that process the rows of a query as they're read.
+ *
+ * @see DBSP#executeQuery(RowHandler)
+ */
+public interface RowHandler {
+
+	/**
+	 * Handle a row.  The ResultSet is positioned at the row, and must not
+	 * be moved or closed.
+	 *
+	 * @param rs the results, positioned at the current row
+	 * @return true to keep reading rows, false to stop
+	 * @throws SQLException if there's a problem reading the row
+	 */
+	boolean handleRow(ResultSet rs) throws SQLException;
+
+}
@@ -4,12 +4,12 @@
 
 package net.spy.db;
 
-import java.lang.ref.SoftReference;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 
+import net.spy.cache.CacheLoader;
 import net.spy.cache.SimpleCache;
 import net.spy.util.SpyConfig;
 
@@ -19,6 +19,8 @@ import net.spy.util.SpyConfig;
 
 public class SpyCacheDB extends SpyDB {
 
+	private int maxDictionarySize=0;
+
 	/**
 	 * Get a SpyCacheDB object as specified in the passed in config file.
 	 *
@@ -38,6 +40,30 @@ public class SpyCacheDB extends SpyDB {
 		super(conn);
 	}
 
+	/**
+	 * Set the largest dictionary used to encode a column of cached results.
+	 * Columns with few distinct values are then held as small codes
+	 * against a table of those values.  The default is 0, which encodes
+	 * nothing.
+	 *
+	 * @param to the largest dictionary size, at most 65536
+	 * @see GenericResultSetStub#GenericResultSetStub(ResultSet, int)
+	 */
+	public void setMaxDictionarySize(int to) {
+		if(to < 0 || to > ResultColumn.MAX_DICTIONARY_SIZE) {
+			throw new IllegalArgumentException(
+				"Invalid dictionary size:  " + to);
+		}
+		maxDictionarySize=to;
+	}
+
+	/**
+	 * Get the largest dictionary used to encode a column of cached results.
+	 */
+	public int getMaxDictionarySize() {
+		return(maxDictionarySize);
+	}
+
 	/**
 	 * Execute if we don't have valid cache.
 	 *
@@ -46,18 +72,18 @@ public class SpyCacheDB extends SpyDB {
 	 *
 	 * @exception SQLException when bad stuff happens
 	 */
-	public ResultSet executeQuery(String query, long lifetime)
+	public ResultSet executeQuery(final String query, long lifetime)
 		throws SQLException {
 
 		SimpleCache cache=SimpleCache.getInstance();
 		String key="cachedb_" + query;
-		CachedResultSet crs=(CachedResultSet)cache.get(key);
-		if(crs==null) {
-			ResultSet rs=executeQuery(query);
-			crs=new CachedResultSet(rs);
-			cache.store(key, new SoftReference<CachedResultSet>(crs),
-					lifetime*1000);
-		}
+		CachedResultSet crs=cache.getOrLoad(key,
+			new CacheLoader<CachedResultSet, SQLException>() {
+				public CachedResultSet load() throws SQLException {
+					return new CachedResultSet(executeQuery(query),
+						maxDictionarySize);
+				}
+			}, lifetime*1000, true);
 
 		ResultSet crsret=(ResultSet)crs.newCopy();
 		return(crsret);
@@ -74,6 +100,9 @@ public class SpyCacheDB extends SpyDB {
 	public PreparedStatement prepareStatement(String query, long lifetime)
 		throws SQLException {
 
-		return(new CachePreparedStatement(this, query, lifetime));
+		CachePreparedStatement rv=
+			new CachePreparedStatement(this, query, lifetime);
+		rv.setMaxDictionarySize(maxDictionarySize);
+		return(rv);
 	}
 }
@@ -6,6 +6,7 @@ import java.util.Collection;
 import java.util.TimerTask;
 
 import net.spy.SpyObject;
+import net.spy.cache.CacheLoader;
 import net.spy.cache.SimpleCache;
 
 /**
@@ -44,16 +45,18 @@ public abstract class GenFactoryImpl<T> extends SpyObject
 	 * uninitialized CacheEntry instance, and getInstances() will be called to
 	 * get a collection of instances to populate the cache.
 	 *
+	 * Concurrent callers finding the cache empty share a single load.
+	 *
 	 * @return a CacheEntry
 	 */
 	protected Storage<T> getCache() {
 		SimpleCache sc=SimpleCache.getInstance();
-		@SuppressWarnings("unchecked")
-		Storage<T> rv=(Storage)sc.get(cacheKey);
-		if(rv == null) {
-			rv=setCache();
-		}
-		return(rv);
+		return sc.getOrLoad(cacheKey,
+			new CacheLoader<Storage<T>, RuntimeException>() {
+				public Storage<T> load() {
+					return loadCache();
+				}
+			}, cacheTime);
 	}
 
 	/**
@@ -63,10 +66,16 @@ public abstract class GenFactoryImpl<T> extends SpyObject
 		return new MemStorageImpl<T>(c);
 	}
 
-	// Set the cache
-	private Storage<T> setCache() {
+	// Build a new cache
+	private Storage<T> loadCache() {
 		Storage<T> rv=getNewCacheEntry(getInstances());
 		lastRefresh=System.currentTimeMillis();
+		return(rv);
+	}
+
+	// Set the cache
+	private Storage<T> setCache() {
+		Storage<T> rv=loadCache();
 		SimpleCache sc=SimpleCache.getInstance();
 		sc.store(cacheKey, rv, cacheTime);
 		return(rv);
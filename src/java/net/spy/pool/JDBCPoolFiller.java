@@ -15,6 +15,7 @@ public class JDBCPoolFiller extends PoolFiller {
 	private String source=null;
 	private Properties dbProps=null;
 	private long maxAge=0;
+	private int statementCacheSize=0;
 
 	/**
 	 * Instantiate the JDBCPoolFiller.
@@ -62,6 +63,7 @@ public class JDBCPoolFiller extends PoolFiller {
 			setDBOptions(getConfig(), dbProps, getName()+".dboption.");
 
 			maxAge=getPropertyInt("max_age", 0);
+			statementCacheSize=getPropertyInt("statement_cache_size", 0);
 		} catch(Exception e) {
 			throw new PoolException("Problem initializing pool filler", e);
 		}
@@ -94,6 +96,10 @@ public class JDBCPoolFiller extends PoolFiller {
 		try {
 			// Grab a connection.
 			Connection db = DriverManager.getConnection(source, dbProps);
+			// Cache its prepared statements if asked to.
+			if(statementCacheSize > 0) {
+				db=StatementCache.wrap(db, statementCacheSize, getName());
+			}
 			// Create the PoolAble object
 			p=new JDBCPoolAble(db, maxAge, getPoolHash());
 		} catch(Exception e) {
@@ -0,0 +1,386 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.pool;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.spy.SpyObject;
+import net.spy.stat.CounterStat;
+import net.spy.stat.Stats;
+
+/**
+ * A least-recently-used cache of a connection's prepared statements.
+ *
+ * <p>
+ *  {@link #wrap(Connection, int, String)} returns a connection whose
+ *  <code>prepareStatement(sql)</code> and
+ *  <code>prepareStatement(sql, type, concurrency)</code> reuse a
+ *  statement prepared earlier with the same SQL, result set type and
+ *  concurrency.  Closing a statement the cache handed out clears its
+ *  parameters, puts back any limits that were changed on it, and leaves
+ *  it open for the next caller.  A statement that's still in use when the
+ *  same SQL is prepared again isn't shared; the second caller gets one
+ *  that isn't cached.
+ * </p>
+ *
+ * <p>
+ *  Statements are really closed when they're evicted (or when they're
+ *  returned, if they were evicted while in use) and when the connection is
+ *  closed.  Hits, misses and evictions are counted under
+ *  <code>net.spy.pool.&lt;name&gt;.statements.</code> in
+ *  {@link net.spy.stat.Stats}.
+ * </p>
+ *
+ * <p>
+ *  Like the connection it wraps, the cache is meant to be used by one
+ *  thread at a time, but it's synchronized so it can be closed from
+ *  another.
+ * </p>
+ */
+final class StatementCache extends SpyObject implements InvocationHandler {
+
+	private static final String STATS_PREFIX="net.spy.pool.";
+
+	// Statement limits that are put back when a statement is returned,
+	// by the name of their setter
+	private static final Map<String, String> RESTORABLE=
+		new HashMap<String, String>();
+	// Settings that can't be read back, so a statement they were changed
+	// on isn't reused
+	private static final Collection<String> UNRESTORABLE=
+		new HashSet<String>();
+
+	static {
+		RESTORABLE.put("setMaxRows", "getMaxRows");
+		RESTORABLE.put("setQueryTimeout", "getQueryTimeout");
+		RESTORABLE.put("setFetchSize", "getFetchSize");
+		RESTORABLE.put("setFetchDirection", "getFetchDirection");
+		RESTORABLE.put("setMaxFieldSize", "getMaxFieldSize");
+		UNRESTORABLE.add("setCursorName");
+		UNRESTORABLE.add("setEscapeProcessing");
+		UNRESTORABLE.add("setPoolable");
+	}
+
+	private final Connection conn;
+	private final Connection proxy;
+	private final int maxSize;
+	private final Map<Key, Entry> entries;
+
+	private final CounterStat hits;
+	private final CounterStat misses;
+	private final CounterStat evictions;
+
+	private boolean closed=false;
+
+	private StatementCache(Connection c, int size, String name) {
+		super();
+		conn=c;
+		maxSize=size;
+		entries=new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Entry> e) {
+				boolean rv=size() > maxSize;
+				if(rv) {
+					evictions.increment();
+					e.getValue().evict();
+				}
+				return rv;
+			}
+		};
+		String prefix=STATS_PREFIX + name + ".statements.";
+		hits=Stats.getCounterStat(prefix + "hits");
+		misses=Stats.getCounterStat(prefix + "misses");
+		evictions=Stats.getCounterStat(prefix + "evictions");
+		proxy=(Connection)Proxy.newProxyInstance(
+			StatementCache.class.getClassLoader(),
+			new Class<?>[]{Connection.class}, this);
+	}
+
+	/**
+	 * Get a connection that caches the given connection's prepared
+	 * statements.
+	 *
+	 * @param c the connection
+	 * @param size the most statements to cache
+	 * @param name the name to count statistics under (e.g. the pool's)
+	 * @return the caching connection
+	 */
+	static Connection wrap(Connection c, int size, String name) {
+		if(c == null) {
+			throw new NullPointerException("Invalid connection <null>");
+		}
+		if(size < 1) {
+			throw new IllegalArgumentException("Invalid size:  " + size);
+		}
+		return new StatementCache(c, size, name).proxy;
+	}
+
+	/**
+	 * Handle a call to the connection.
+	 */
+	public Object invoke(Object p, Method m, Object[] args)
+		throws Throwable {
+		Object rv=null;
+		String name=m.getName();
+		Class<?>[] params=m.getParameterTypes();
+		if(name.equals("prepareStatement") && params.length == 1) {
+			rv=prepare((String)args[0], ResultSet.TYPE_FORWARD_ONLY,
+				ResultSet.CONCUR_READ_ONLY);
+		} else if(name.equals("prepareStatement") && params.length == 3
+			&& params[1] == Integer.TYPE && params[2] == Integer.TYPE) {
+			rv=prepare((String)args[0], ((Integer)args[1]).intValue(),
+				((Integer)args[2]).intValue());
+		} else if(name.equals("close") && params.length == 0) {
+			close();
+		} else if(name.equals("equals") && params.length == 1) {
+			rv=Boolean.valueOf(p == args[0]);
+		} else if(name.equals("hashCode") && params.length == 0) {
+			rv=new Integer(System.identityHashCode(p));
+		} else if(name.equals("toString") && params.length == 0) {
+			rv="StatementCache for " + conn;
+		} else {
+			rv=delegate(conn, m, args);
+		}
+		return rv;
+	}
+
+	// Get a statement for the given query from the cache, or prepare it.
+	private synchronized PreparedStatement prepare(String sql, int type,
+		int concurrency) throws SQLException {
+		if(closed) {
+			throw new SQLException("Connection is closed");
+		}
+		Key k=new Key(sql, type, concurrency);
+		Entry e=entries.get(k);
+		if(e == null || e.inUse) {
+			misses.increment();
+			PreparedStatement pst=conn.prepareStatement(sql, type,
+				concurrency);
+			if(e == null) {
+				e=new Entry(pst);
+				entries.put(k, e);
+			} else {
+				// The cached one's busy, so this one isn't kept.
+				e=new Entry(pst);
+				e.evicted=true;
+			}
+		} else {
+			hits.increment();
+		}
+		e.inUse=true;
+		return e.checkOut();
+	}
+
+	// Close the cached statements and the connection.
+	private synchronized void close() throws SQLException {
+		closed=true;
+		for(Iterator<Entry> i=entries.values().iterator(); i.hasNext();) {
+			Entry e=i.next();
+			i.remove();
+			e.evict();
+		}
+		conn.close();
+	}
+
+	// A statement has been closed by whoever had it.
+	private synchronized void checkIn(Entry e) {
+		e.inUse=false;
+		boolean keep=!e.evicted && !closed && e.reset();
+		if(!keep) {
+			if(!e.evicted) {
+				entries.values().remove(e);
+				e.evicted=true;
+			}
+			e.close();
+		}
+	}
+
+	// Invoke the given method on the given object, unwrapping exceptions.
+	private static Object delegate(Object o, Method m, Object[] args)
+		throws Throwable {
+		try {
+			return m.invoke(o, args);
+		} catch(InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	// What identifies a cached statement.
+	private static final class Key {
+		private final String sql;
+		private final int type;
+		private final int concurrency;
+		public Key(String s, int t, int c) {
+			super();
+			if(s == null) {
+				throw new NullPointerException("Invalid sql <null>");
+			}
+			sql=s;
+			type=t;
+			concurrency=c;
+		}
+		@Override
+		public int hashCode() {
+			return (sql.hashCode() * 31 + type) * 31 + concurrency;
+		}
+		@Override
+		public boolean equals(Object o) {
+			boolean rv=false;
+			if(o instanceof Key) {
+				Key k=(Key)o;
+				rv=sql.equals(k.sql) && type == k.type
+					&& concurrency == k.concurrency;
+			}
+			return rv;
+		}
+	}
+
+	// A statement and what's been done to it.
+	private final class Entry {
+		final PreparedStatement pst;
+		// Guarded by the cache
+		boolean inUse=false;
+		boolean evicted=false;
+		// The original values of limits that have been changed, by setter
+		private Map<Method, Object> changed=null;
+		private boolean reusable=true;
+		// Whether a batch may have been left queued
+		private boolean batched=false;
+
+		public Entry(PreparedStatement p) {
+			super();
+			pst=p;
+		}
+
+		// Get a handle to the statement for one user.
+		PreparedStatement checkOut() {
+			return (PreparedStatement)Proxy.newProxyInstance(
+				StatementCache.class.getClassLoader(),
+				new Class<?>[]{PreparedStatement.class}, new Handle(this));
+		}
+
+		// Remember a limit's value before it's first changed.
+		void changing(Method setter) throws Throwable {
+			String getter=RESTORABLE.get(setter.getName());
+			if(getter != null) {
+				if(changed == null) {
+					changed=new HashMap<Method, Object>();
+				}
+				if(!changed.containsKey(setter)) {
+					Method g=PreparedStatement.class.getMethod(getter);
+					changed.put(setter, delegate(pst, g, null));
+				}
+			} else if(UNRESTORABLE.contains(setter.getName())) {
+				reusable=false;
+			}
+		}
+
+		// Get the statement ready for the next user.
+		boolean reset() {
+			boolean rv=reusable;
+			try {
+				pst.clearParameters();
+				if(batched) {
+					pst.clearBatch();
+					batched=false;
+				}
+				if(changed != null) {
+					for(Map.Entry<Method, Object> me : changed.entrySet()) {
+						delegate(pst, me.getKey(),
+							new Object[]{me.getValue()});
+					}
+					changed=null;
+				}
+			} catch(Throwable t) {
+				getLogger().info("Can't reuse statement", t);
+				rv=false;
+			}
+			return rv;
+		}
+
+		// Take this out of service, closing it now if nobody's using it.
+		void evict() {
+			evicted=true;
+			if(!inUse) {
+				close();
+			}
+		}
+
+		void close() {
+			try {
+				pst.close();
+			} catch(SQLException e) {
+				getLogger().info("Problem closing statement", e);
+			}
+		}
+	}
+
+	// One user's view of a statement.
+	private final class Handle implements InvocationHandler {
+		private final Entry entry;
+		// Only touched by the user
+		private boolean released=false;
+		// The last results, which are closed with the statement
+		private ResultSet results=null;
+
+		public Handle(Entry e) {
+			super();
+			entry=e;
+		}
+
+		public Object invoke(Object p, Method m, Object[] args)
+			throws Throwable {
+			Object rv=null;
+			String name=m.getName();
+			int nparams=m.getParameterTypes().length;
+			if(name.equals("close") && nparams == 0) {
+				if(!released) {
+					released=true;
+					try {
+						if(results != null) {
+							results.close();
+						}
+					} finally {
+						checkIn(entry);
+					}
+				}
+			} else if(name.equals("isClosed") && nparams == 0) {
+				rv=Boolean.valueOf(released);
+			} else if(name.equals("getConnection") && nparams == 0) {
+				rv=proxy;
+			} else if(name.equals("equals") && nparams == 1) {
+				rv=Boolean.valueOf(p == args[0]);
+			} else if(name.equals("hashCode") && nparams == 0) {
+				rv=new Integer(System.identityHashCode(p));
+			} else if(name.equals("toString") && nparams == 0) {
+				rv="Cached " + entry.pst;
+			} else if(released) {
+				throw new SQLException("Statement is closed");
+			} else {
+				if(name.startsWith("set") && nparams == 1) {
+					entry.changing(m);
+				} else if(name.equals("addBatch")) {
+					entry.batched=true;
+				}
+				rv=delegate(entry.pst, m, args);
+				if(rv instanceof ResultSet) {
+					results=(ResultSet)rv;
+				}
+			}
+			return rv;
+		}
+	}
+}
@@ -2,28 +2,55 @@
 
 package net.spy.stat;
 
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Simple counter stat.
+ *
+ * <p>
+ *  The count is striped across several cells picked by thread, so threads
+ *  counting at the same time mostly don't write the same memory.  Reading
+ *  the count adds the cells up.
+ * </p>
  */
 public class CounterStat extends Stat {
 
-    private final AtomicLong count;
+    // Most cells a counter has.
+    private static final int MAX_STRIPES=64;
+    // Longs from one cell to the next, so cells don't share a cache line.
+    private static final int PAD=8;
+    private static final int STRIPES=computeStripes();
+
+    private final AtomicLongArray cells;
 
     /**
      * Get an instance of CounterStat.
      */
     public CounterStat() {
         super();
-        count=new AtomicLong();
+        cells=new AtomicLongArray(STRIPES * PAD);
+    }
+
+    // One cell per processor, rounded up to a power of two.
+    private static int computeStripes() {
+        int cpus=Runtime.getRuntime().availableProcessors();
+        int rv=1;
+        while(rv < cpus && rv < MAX_STRIPES) {
+            rv<<=1;
+        }
+        return(rv);
+    }
+
+    // The cell the current thread counts in.
+    private static int cell() {
+        return((int)(Thread.currentThread().getId() & (STRIPES - 1)) * PAD);
     }
 
     /**
      * Increment the counter.
      */
     public void increment() {
-        count.incrementAndGet();
+        cells.incrementAndGet(cell());
     }
 
     /**
@@ -32,14 +59,18 @@ public class CounterStat extends Stat {
      * @param howmuch how much to increment the counter
      */
     public void increment(long howmuch) {
-        count.addAndGet(howmuch);
+        cells.addAndGet(cell(), howmuch);
     }
 
     /**
      * Get the current count for this counter.
      */
     public long getCount() {
-        return(count.longValue());
+        long rv=0;
+        for(int i=0; i<STRIPES; i++) {
+            rv+=cells.get(i * PAD);
+        }
+        return(rv);
     }
 
     /**
@@ -47,14 +78,18 @@ public class CounterStat extends Stat {
      */
     @Override
 	public String getStat() {
-        return(String.valueOf(count));
+        return(String.valueOf(getCount()));
     }
 
     /**
-     * Set the absolute value of this counter.
+     * Set the absolute value of this counter.  Increments made while this
+     * runs may be lost.
      */
     public void setValue(long to) {
-        count.set(to);
+        for(int i=1; i<STRIPES; i++) {
+            cells.set(i * PAD, 0);
+        }
+        cells.set(0, to);
     }
 
 }
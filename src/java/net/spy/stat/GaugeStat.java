@@ -0,0 +1,55 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.stat;
+
+/**
+ * Stat reporting a value computed when it's read, such as the current size
+ * of a collection.
+ */
+public class GaugeStat extends Stat {
+
+    private volatile Source source=null;
+
+    /**
+     * Get an instance of GaugeStat.
+     */
+    public GaugeStat() {
+        super();
+    }
+
+    /**
+     * Set where this gauge's value comes from.
+     *
+     * @param to the source, or null to report 0
+     */
+    public void setSource(Source to) {
+        source=to;
+    }
+
+    /**
+     * Get the current value of this gauge.
+     */
+    public long getValue() {
+        Source s=source;
+        return(s == null ? 0 : s.getValue());
+    }
+
+    /**
+     * Get the value as a string.
+     */
+    @Override
+	public String getStat() {
+        return(String.valueOf(getValue()));
+    }
+
+    /**
+     * Computes a gauge's value.
+     */
+    public interface Source {
+        /**
+         * Get the current value.
+         */
+        long getValue();
+    }
+
+}
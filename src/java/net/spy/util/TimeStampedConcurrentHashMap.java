@@ -0,0 +1,208 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A ConcurrentHashMap that remembers when it was accessed.
+ *
+ * <p>
+ *  This is the concurrent sibling of {@link TimeStampedHashMap}.  Reads do
+ *  not lock, and writes are striped across the map's segments.  So that
+ *  readers don't all write the same memory, access times are only updated
+ *  when they're older than the map's resolution, the watermark is sampled
+ *  every few puts (and whenever it's asked for), and hits and misses
+ *  aren't counted here; callers that want them count them themselves.
+ * </p>
+ */
+public class TimeStampedConcurrentHashMap<K, V>
+	extends ConcurrentHashMap<K, V> {
+
+	/**
+	 * The default resolution of the access times, in milliseconds.
+	 */
+	public static final long DEFAULT_RESOLUTION=1000;
+
+	// How many puts go by between samples of the watermark.
+	private static final int WATERMARK_INTERVAL=64;
+
+	private final long resolution;
+
+	// Where we keep up with usage.
+	private volatile long timestamp=0;
+	private volatile long lastPut=0;
+	private volatile long lastGet=0;
+	private final AtomicLong watermark=new AtomicLong(0);
+	private final AtomicLong puts=new AtomicLong(0);
+
+	/**
+	 * Get an instance of TimeStampedConcurrentHashMap with the default
+	 * resolution.
+	 */
+	public TimeStampedConcurrentHashMap() {
+		this(DEFAULT_RESOLUTION);
+	}
+
+	/**
+	 * Get an instance of TimeStampedConcurrentHashMap whose access times may
+	 * be up to the given number of milliseconds old.
+	 *
+	 * @param res the resolution, or 0 to record every access
+	 */
+	public TimeStampedConcurrentHashMap(long res) {
+		super();
+		if(res < 0) {
+			throw new IllegalArgumentException("Invalid resolution:  " + res);
+		}
+		resolution=res;
+		long now=System.currentTimeMillis();
+		timestamp=now;
+		lastPut=now;
+		lastGet=now;
+	}
+
+	/**
+	 * Get an object from the map.
+	 *
+	 * @param key the object to get
+	 * @return the object, or null if it's missing
+	 */
+	@Override
+	public V get(Object key) {
+		markGet();
+		return(super.get(key));
+	}
+
+	/**
+	 * Put an object into the map.
+	 *
+	 * @param key the key to store
+	 * @param value the value to store
+	 * @return the object that got displaced for this store, or null
+	 */
+	@Override
+	public V put(K key, V value) {
+		V rv=super.put(key, value);
+		markPut();
+		return(rv);
+	}
+
+	/**
+	 * Put an object into the map if there's not one there already.
+	 *
+	 * @param key the key to store
+	 * @param value the value to store
+	 * @return the object already stored under this key, or null
+	 */
+	@Override
+	public V putIfAbsent(K key, V value) {
+		V rv=super.putIfAbsent(key, value);
+		if(rv == null) {
+			markPut();
+		}
+		return(rv);
+	}
+
+	// Mark a put
+	private void markPut() {
+		long now=System.currentTimeMillis();
+		if(now - lastPut > resolution) {
+			lastPut=now;
+			markUse(now);
+		}
+
+		// Update the stats
+		if(puts.incrementAndGet() % WATERMARK_INTERVAL == 0) {
+			updateWatermark();
+		}
+	}
+
+	// Mark a get
+	private void markGet() {
+		long now=System.currentTimeMillis();
+		if(now - lastGet > resolution) {
+			lastGet=now;
+			markUse(now);
+		}
+	}
+
+	private void markUse(long now) {
+		if(now > timestamp) {
+			timestamp=now;
+		}
+	}
+
+	// Raise the watermark to the current size if it's higher.
+	private void updateWatermark() {
+		long s=size();
+		long w=watermark.get();
+		while(s > w && !watermark.compareAndSet(w, s)) {
+			w=watermark.get();
+		}
+	}
+
+	/**
+	 * Find out the last time this thing was used (put or get was called).
+	 */
+	public long getTimestamp() {
+		return(timestamp);
+	}
+
+	/**
+	 * Find out the last time this thing last had a Get.
+	 */
+	public long getLastGet() {
+		return(lastGet);
+	}
+
+	/**
+	 * Find out the last time this thing last had a Put.
+	 */
+	public long getLastPut() {
+		return(lastPut);
+	}
+
+	/**
+	 * How many milliseconds ago was the last put operation?
+	 */
+	public long getPutAge() {
+		long now=System.currentTimeMillis();
+		return(now-lastPut);
+	}
+
+	/**
+	 * How many milliseconds ago was the last get operation?
+	 */
+	public long getGetAge() {
+		long now=System.currentTimeMillis();
+		return(now-lastGet);
+	}
+
+	/**
+	 * How many milliseconds ago was the last put or get operation?
+	 */
+	public long getUseAge() {
+		long now=System.currentTimeMillis();
+		return(now-timestamp);
+	}
+
+	/**
+	 * Get the watermark (maximum number of objects seen at any one time).
+	 * The size is sampled every few puts and when this is called, so a
+	 * peak between samples may be missed.
+	 */
+	public long getWatermark() {
+		updateWatermark();
+		return(watermark.get());
+	}
+
+	/**
+	 * Get the total number of put() invocations.
+	 */
+	public long getNumPuts() {
+		return(puts.get());
+	}
+
+}
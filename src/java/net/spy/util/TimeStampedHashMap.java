@@ -3,21 +3,28 @@
 package net.spy.util;
 
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A HashMap that remembers when it was accessed.  Good for caching and
  * stuff like that.
+ *
+ * <p>
+ *  The map itself isn't synchronized, but its usage statistics are kept
+ *  atomically so they stay accurate when readers share it under a lock
+ *  that doesn't cover them.
+ * </p>
  */
 public class TimeStampedHashMap<K, V> extends HashMap<K, V> {
 
 	// Where we keep up with usage.
-	private long timestamp=0;
-	private long lastPut=0;
-	private long lastGet=0;
-	private long hits=0;
-	private long misses=0;
-	private long watermark=0;
-	private long puts=0;
+	private volatile long timestamp=0;
+	private volatile long lastPut=0;
+	private volatile long lastGet=0;
+	private final AtomicLong hits=new AtomicLong(0);
+	private final AtomicLong misses=new AtomicLong(0);
+	private final AtomicLong watermark=new AtomicLong(0);
+	private final AtomicLong puts=new AtomicLong(0);
 
 	/**
 	 * Get an instance of TimeStampedHashMap.
@@ -41,9 +48,9 @@ public class TimeStampedHashMap<K, V> extends HashMap<K, V> {
 		markGet();
 		V o=super.get(key);
 		if(o==null) {
-			misses++;
+			misses.incrementAndGet();
 		} else {
-			hits++;
+			hits.incrementAndGet();
 		}
 		return(o);
 	}
@@ -62,24 +69,26 @@ public class TimeStampedHashMap<K, V> extends HashMap<K, V> {
 		return(rv);
 	}
 
-	// Mark a get
+	// Mark a put
 	private void markPut() {
-		lastPut=System.currentTimeMillis();
-		timestamp=lastPut;
+		long now=System.currentTimeMillis();
+		lastPut=now;
+		timestamp=now;
 
 		// Update the stats
-		puts++;
-		synchronized(this) {
-			if(size()>watermark) {
-				watermark=size();
-			}
+		puts.incrementAndGet();
+		long s=size();
+		long w=watermark.get();
+		while(s > w && !watermark.compareAndSet(w, s)) {
+			w=watermark.get();
 		}
 	}
 
 	// Mark a get
 	private void markGet() {
-		lastGet=System.currentTimeMillis();
-		timestamp=lastGet;
+		long now=System.currentTimeMillis();
+		lastGet=now;
+		timestamp=now;
 	}
 
 	/**
@@ -132,7 +141,7 @@ public class TimeStampedHashMap<K, V> extends HashMap<K, V> {
 	 * actually there).
 	 */
 	public long getHits() {
-		return(hits);
+		return(hits.get());
 	}
 
 	/**
@@ -140,21 +149,21 @@ public class TimeStampedHashMap<K, V> extends HashMap<K, V> {
 	 * actually there).
 	 */
 	public long getMisses() {
-		return(misses);
+		return(misses.get());
 	}
 
 	/**
 	 * Get the watermark (maximum number of objects seen at any one time).
 	 */
 	public long getWatermark() {
-		return(watermark);
+		return(watermark.get());
 	}
 
 	/**
 	 * Get the total number of put() invocations.
 	 */
 	public long getNumPuts() {
-		return(puts);
+		return(puts.get());
 	}
 
 }
@@ -56,6 +56,76 @@ public class CacheClearListenerTest extends TestCase {
 		c.stopRunning();
 	}
 
+	public void testBatchClear() throws Exception {
+		SpyCache sc=SpyCache.getInstance();
+		sc.store("batch_a1", "X", 10000);
+		sc.store("batch_a2", "X", 10000);
+		sc.store("batch_b", "X", 10000);
+		sc.store("batch_\u00e9", "X", 10000);
+		sc.store("other", "X", 10000);
+
+		final BlockingQueue<DatagramPacket> q=
+			new ArrayBlockingQueue<DatagramPacket>(8);
+		InetAddress addr=InetAddress.getByAddress(
+				new byte[]{(byte) 224, 0, 0, 1});
+		int port=1984;
+		CacheClearRequestListener c=new CacheClearRequestListener(addr, port) {
+			@Override
+			protected MulticastSocket makeMCastSocket(int p)
+				throws IOException {
+				return new LoopbackMulticastSocket(q);
+			}
+		};
+
+		byte[] data="batch_a\nbatch_a1\nbatch_b\nbatch_\u00e9\n"
+			.getBytes("UTF-8");
+		q.put(new DatagramPacket(data, data.length, addr, port));
+		Thread.sleep(100);
+
+		assertNull(sc.get("batch_a1"));
+		assertNull(sc.get("batch_a2"));
+		assertNull(sc.get("batch_b"));
+		assertNull(sc.get("batch_\u00e9"));
+		assertEquals("X", sc.get("other"));
+		assertTrue(c.toString().endsWith("processed 4 requests"));
+
+		c.stopRunning();
+	}
+
+	public void testEmptyDatagramClearsAll() throws Exception {
+		SpyCache sc=SpyCache.getInstance();
+		sc.store("empty_a", "X", 10000);
+		sc.store("empty_b", "X", 10000);
+
+		final BlockingQueue<DatagramPacket> q=
+			new ArrayBlockingQueue<DatagramPacket>(8);
+		InetAddress addr=InetAddress.getByAddress(
+				new byte[]{(byte) 224, 0, 0, 1});
+		int port=1984;
+		CacheClearRequestListener c=new CacheClearRequestListener(addr, port) {
+			@Override
+			protected MulticastSocket makeMCastSocket(int p)
+				throws IOException {
+				return new LoopbackMulticastSocket(q);
+			}
+			@Override
+			public void run() {
+				// Packets are handed to flush directly.
+			}
+		};
+
+		// Empty segments alone don't clear anything.
+		byte[] data="\n\n".getBytes("UTF-8");
+		c.flush(new DatagramPacket(data, data.length, addr, port));
+		assertEquals("X", sc.get("empty_a"));
+
+		c.flush(new DatagramPacket(new byte[0], 0, addr, port));
+		assertNull(sc.get("empty_a"));
+		assertNull(sc.get("empty_b"));
+
+		c.stopRunning();
+	}
+
     // This is a multicast socket that doesn't use the network.
     private static class LoopbackMulticastSocket extends MulticastSocket {
 
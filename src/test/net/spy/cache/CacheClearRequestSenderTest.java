@@ -0,0 +1,153 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.cache;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Test the cache clear request sender.
+ */
+public class CacheClearRequestSenderTest extends TestCase {
+
+	private DatagramSocket socket=null;
+	private CacheClearRequestSender sender=null;
+
+	@Override
+	protected void setUp() throws Exception {
+		InetAddress lo=InetAddress.getByName("127.0.0.1");
+		socket=new DatagramSocket(0, lo);
+		socket.setSoTimeout(5000);
+		sender=new CacheClearRequestSender(lo, socket.getLocalPort(), 60000);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		sender.close();
+		socket.close();
+		SpyCache.shutdown();
+	}
+
+	private DatagramPacket receive() throws Exception {
+		byte[] buf=new byte[2048];
+		DatagramPacket rv=new DatagramPacket(buf, buf.length);
+		socket.receive(rv);
+		return rv;
+	}
+
+	private List<String> decode(DatagramPacket p) throws Exception {
+		String s=new String(p.getData(), 0, p.getLength(), "UTF-8");
+		return Arrays.asList(s.split("\n"));
+	}
+
+	public void testInvalidArgs() throws Exception {
+		try {
+			sender.clear("a\nb");
+			fail("Allowed a prefix with a separator");
+		} catch(IllegalArgumentException e) {
+			// pass
+		}
+		try {
+			new CacheClearRequestSender(InetAddress.getByName("127.0.0.1"),
+				1984, 0);
+			fail("Allowed a zero flush interval");
+		} catch(IllegalArgumentException e) {
+			assertEquals("Invalid flush interval:  0", e.getMessage());
+		}
+	}
+
+	public void testBatching() throws Exception {
+		sender.clear("a");
+		sender.clear("b");
+		sender.clear("a");
+		sender.clear("\u00e9");
+		sender.flush();
+		assertEquals(Arrays.asList("a", "b", "\u00e9"), decode(receive()));
+		assertEquals(1, sender.getPacketsSent());
+		assertEquals(3, sender.getPrefixesSent());
+		// Nothing queued, nothing sent.
+		sender.flush();
+		assertEquals(1, sender.getPacketsSent());
+	}
+
+	public void testClearAll() throws Exception {
+		sender.clear("a");
+		sender.clear("");
+		sender.clear("b");
+		sender.flush();
+		assertEquals(0, receive().getLength());
+		assertEquals(1, sender.getPacketsSent());
+		assertEquals(1, sender.getPrefixesSent());
+	}
+
+	public void testSplitting() throws Exception {
+		List<String> expected=new ArrayList<String>();
+		for(int i=0; i<500; i++) {
+			String prefix="some_long_cache_key_prefix_" + i;
+			expected.add(prefix);
+			sender.clear(prefix);
+		}
+		sender.flush();
+		List<String> got=new ArrayList<String>();
+		while(got.size() < expected.size()) {
+			DatagramPacket p=receive();
+			assertTrue(p.getLength() <= CacheClearRequestListener.MAX_DATAGRAM);
+			got.addAll(decode(p));
+		}
+		assertEquals(expected, got);
+		assertTrue(sender.getPacketsSent() > 1);
+		assertEquals(500, sender.getPrefixesSent());
+	}
+
+	public void testInterval() throws Exception {
+		CacheClearRequestSender s=new CacheClearRequestSender(
+			InetAddress.getByName("127.0.0.1"), socket.getLocalPort(), 50);
+		s.clear("timed");
+		assertEquals(Arrays.asList("timed"), decode(receive()));
+		s.close();
+	}
+
+	public void testRoundTrip() throws Exception {
+		SpyCache sc=SpyCache.getInstance();
+		sc.store("rt_a", "X", 10000);
+		sc.store("rt_b", "X", 10000);
+		sc.store("rt_c", "X", 10000);
+		CacheClearRequestListener listener=new CacheClearRequestListener(
+			InetAddress.getByName("224.0.0.1"), 0) {
+			@Override
+			protected MulticastSocket makeMCastSocket(int p)
+				throws IOException {
+				return new MulticastSocket() {
+					@Override
+					public void joinGroup(InetAddress a) {
+						// not on the network
+					}
+					@Override
+					public void leaveGroup(InetAddress a) {
+						// not on the network
+					}
+				};
+			}
+			@Override
+			public void run() {
+				// Packets are handed to flush directly.
+			}
+		};
+		sender.clear("rt_a");
+		sender.clear("rt_b");
+		sender.flush();
+		listener.flush(receive());
+		assertNull(sc.get("rt_a"));
+		assertNull(sc.get("rt_b"));
+		assertEquals("X", sc.get("rt_c"));
+		listener.stopRunning();
+	}
+}
@@ -0,0 +1,230 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+/**
+ * Test the asynchronous cache event dispatcher.
+ */
+public class CacheEventDispatcherTest extends TestCase {
+
+	private CacheEventDispatcher dispatcher=null;
+
+	@Override
+	protected void tearDown() {
+		if(dispatcher != null) {
+			dispatcher.shutdown();
+		}
+	}
+
+	private void waitForDelivery(long n) throws Exception {
+		for(int i=0; i<500 && dispatcher.getDispatched() < n; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(n, dispatcher.getDispatched());
+	}
+
+	public void testInvalidArgs() {
+		try {
+			new CacheEventDispatcher(0, 10,
+				CacheEventDispatcher.OverflowPolicy.BLOCK);
+			fail("Allowed zero threads");
+		} catch(IllegalArgumentException e) {
+			assertEquals("Invalid thread count:  0", e.getMessage());
+		}
+		try {
+			new CacheEventDispatcher(1, 0,
+				CacheEventDispatcher.OverflowPolicy.BLOCK);
+			fail("Allowed zero capacity");
+		} catch(IllegalArgumentException e) {
+			assertEquals("Invalid capacity:  0", e.getMessage());
+		}
+		try {
+			new CacheEventDispatcher(1, 10, 0,
+				CacheEventDispatcher.OverflowPolicy.BLOCK);
+			fail("Allowed a zero batch size");
+		} catch(IllegalArgumentException e) {
+			assertEquals("Invalid batch size:  0", e.getMessage());
+		}
+	}
+
+	public void testOrderedPerKey() throws Exception {
+		dispatcher=new CacheEventDispatcher(4, 100,
+			CacheEventDispatcher.OverflowPolicy.BLOCK);
+		RecordingDelegate rd=new RecordingDelegate();
+		for(int i=0; i<1000; i++) {
+			String key="k" + (i % 10);
+			Cachable c=new SpyCache.SpyCacheItem(key, i, 10000);
+			if(i % 2 == 0) {
+				dispatcher.cached(key, c, rd);
+			} else {
+				dispatcher.uncached(key, c, rd);
+			}
+		}
+		waitForDelivery(1000);
+		assertEquals(0, dispatcher.getQueueDepth());
+		assertEquals(0, dispatcher.getDropped());
+		for(int k=0; k<10; k++) {
+			List<Integer> seen=rd.get("k" + k);
+			assertEquals(100, seen.size());
+			List<Integer> sorted=new ArrayList<Integer>(seen);
+			Collections.sort(sorted);
+			assertEquals(sorted, seen);
+		}
+	}
+
+	public void testDropNewest() throws Exception {
+		dispatcher=new CacheEventDispatcher(1, 2,
+			CacheEventDispatcher.OverflowPolicy.DROP_NEWEST);
+		BlockingDelegate bd=new BlockingDelegate();
+		fill(bd, 10);
+		assertEquals(2, dispatcher.getQueueDepth());
+		assertEquals(7, dispatcher.getDropped());
+		bd.release.countDown();
+		waitForDelivery(3);
+		assertEquals(3, bd.delivered.size());
+		assertEquals(Integer.valueOf(2), bd.delivered.get(2));
+	}
+
+	public void testDropOldest() throws Exception {
+		dispatcher=new CacheEventDispatcher(1, 2,
+			CacheEventDispatcher.OverflowPolicy.DROP_OLDEST);
+		BlockingDelegate bd=new BlockingDelegate();
+		fill(bd, 10);
+		assertEquals(7, dispatcher.getDropped());
+		bd.release.countDown();
+		waitForDelivery(3);
+		assertEquals(Integer.valueOf(9), bd.delivered.get(2));
+	}
+
+	public void testDropOldestKeepsUncached() throws Exception {
+		dispatcher=new CacheEventDispatcher(1, 2,
+			CacheEventDispatcher.OverflowPolicy.DROP_OLDEST);
+		BlockingDelegate bd=new BlockingDelegate();
+		fill(bd, 2);
+		dispatcher.uncached("k", new SpyCache.SpyCacheItem("k", 2, 1000), bd);
+		// Each of these pushes out the oldest cached event.
+		dispatcher.cached("k", new SpyCache.SpyCacheItem("k", 3, 1000), bd);
+		dispatcher.uncached("k", new SpyCache.SpyCacheItem("k", 4, 1000), bd);
+		// Only uncached events are queued, so this one goes.
+		dispatcher.cached("k", new SpyCache.SpyCacheItem("k", 5, 1000), bd);
+		assertEquals(3, dispatcher.getDropped());
+		bd.release.countDown();
+		waitForDelivery(3);
+		assertEquals(Arrays.asList(0, -2, -4), bd.delivered);
+	}
+
+	public void testDropNewestKeepsUncached() throws Exception {
+		dispatcher=new CacheEventDispatcher(1, 2,
+			CacheEventDispatcher.OverflowPolicy.DROP_NEWEST);
+		final BlockingDelegate bd=new BlockingDelegate();
+		fill(bd, 3);
+		dispatcher.cached("k", new SpyCache.SpyCacheItem("k", 3, 1000), bd);
+		assertEquals(1, dispatcher.getDropped());
+		// This waits for room rather than being dropped.
+		Thread t=new Thread() {
+			@Override
+			public void run() {
+				dispatcher.uncached("k",
+					new SpyCache.SpyCacheItem("k", 4, 1000), bd);
+			}
+		};
+		t.start();
+		Thread.sleep(50);
+		assertTrue(t.isAlive());
+		bd.release.countDown();
+		t.join(5000);
+		waitForDelivery(4);
+		assertEquals(1, dispatcher.getDropped());
+		assertEquals(Arrays.asList(0, 1, 2, -4), bd.delivered);
+	}
+
+	public void testCallerRuns() throws Exception {
+		dispatcher=new CacheEventDispatcher(1, 2,
+			CacheEventDispatcher.OverflowPolicy.CALLER_RUNS);
+		BlockingDelegate bd=new BlockingDelegate();
+		fill(bd, 10);
+		assertEquals(0, dispatcher.getDropped());
+		// The first is stuck in the worker, two are queued, the rest ran.
+		assertEquals(7, dispatcher.getDispatched());
+		bd.release.countDown();
+		waitForDelivery(10);
+	}
+
+	// Deliver one event that blocks the worker, give it a moment to get
+	// stuck, then queue the rest.
+	private void fill(BlockingDelegate bd, int n) throws Exception {
+		for(int i=0; i<n; i++) {
+			dispatcher.cached("k", new SpyCache.SpyCacheItem("k", i, 1000), bd);
+			if(i == 0) {
+				bd.started.await();
+			}
+		}
+	}
+
+	public void testShutdownDrains() throws Exception {
+		dispatcher=new CacheEventDispatcher(2, 100,
+			CacheEventDispatcher.OverflowPolicy.BLOCK);
+		RecordingDelegate rd=new RecordingDelegate();
+		for(int i=0; i<50; i++) {
+			dispatcher.cached("k" + i, new SpyCache.SpyCacheItem("k", i, 1000),
+				rd);
+		}
+		dispatcher.shutdown();
+		waitForDelivery(50);
+	}
+
+	static class RecordingDelegate implements CacheDelegate {
+		private final Map<String, List<Integer>> seen=
+			new HashMap<String, List<Integer>>();
+		public synchronized List<Integer> get(String key) {
+			return seen.get(key);
+		}
+		private synchronized void record(String key, Cachable value) {
+			List<Integer> l=seen.get(key);
+			if(l == null) {
+				l=new ArrayList<Integer>();
+				seen.put(key, l);
+			}
+			l.add((Integer)value.getCachedObject());
+		}
+		public void cachedObject(String key, Cachable value) {
+			record(key, value);
+		}
+		public void uncachedObject(String key, Cachable value) {
+			record(key, value);
+		}
+	}
+
+	// Blocks in the worker thread until released.
+	static class BlockingDelegate implements CacheDelegate {
+		final CountDownLatch started=new CountDownLatch(1);
+		final CountDownLatch release=new CountDownLatch(1);
+		final List<Integer> delivered=
+			Collections.synchronizedList(new ArrayList<Integer>());
+		String blockOn="CacheEventDispatcher";
+		public void cachedObject(String key, Cachable value) {
+			if(Thread.currentThread().getName().startsWith(blockOn)) {
+				started.countDown();
+				try {
+					release.await();
+				} catch(InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}
+			delivered.add((Integer)value.getCachedObject());
+		}
+		public void uncachedObject(String key, Cachable value) {
+			delivered.add(-(Integer)value.getCachedObject());
+		}
+	}
+}
@@ -4,9 +4,14 @@
 
 package net.spy.cache;
 
+import java.io.File;
 import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
 
 import junit.framework.TestCase;
+import net.spy.cache.CacheStats.EvictionCause;
+import net.spy.stat.CounterStat;
+import net.spy.stat.Stats;
 
 /**
  * Test the cache system.
@@ -23,6 +28,7 @@ public class CacheTest extends TestCase {
 	 */
 	@Override
 	protected void setUp() {
+		Stats.setInstance(null);
 		cache=SpyCache.getInstance();
 	}
 
@@ -139,15 +145,194 @@ public class CacheTest extends TestCase {
 		assertEquals(4, td.cached);
 	}
 
+	public void testBounded() {
+		TestDelegate td=new TestDelegate();
+		cache.setDelegate(td);
+		cache.setMaximumSize(20);
+		assertEquals(20, cache.getMaximumWeight());
+		for(int i=0; i<100; i++) {
+			cache.store("bounded" + i, i, 10000);
+		}
+		assertEquals(100, td.cached);
+		assertEquals(80, td.uncached);
+		assertEquals(20, cache.cacheStore.size());
+		cache.setMaximumSize(0);
+		assertEquals(0, cache.getMaximumWeight());
+	}
+
+	public void testGetOrLoad() throws Exception {
+		TestDelegate td=new TestDelegate();
+		cache.setDelegate(td);
+		CacheLoader<String, RuntimeException> loader=
+			new CacheLoader<String, RuntimeException>() {
+				public String load() {
+					return "loaded" + (++val);
+				}
+			};
+		assertEquals("loaded1", cache.getOrLoad("gol", loader, 10000));
+		assertEquals("loaded1", cache.getOrLoad("gol", loader, 10000));
+		assertEquals(1, td.cached);
+		assertEquals("loaded1", cache.get("gol"));
+	}
+
+	public void testCollectedValuesPurged() throws Exception {
+		TestDelegate td=new TestDelegate();
+		cache.setDelegate(td);
+		cache.store("w", new WeakReference<Object>(new Object()), 100000);
+		for(int i=0; i<100 && cache.cacheStore.containsKey("w"); i++) {
+			System.gc();
+			Thread.sleep(50);
+			// Writes purge what's been collected.
+			cache.store("s" + i, "strong", 100000);
+		}
+		assertFalse(cache.cacheStore.containsKey("w"));
+		assertEquals(1, td.uncached);
+		assertEquals(1,
+			cache.getStats().getEvictions(EvictionCause.COLLECTED));
+	}
+
+	public void testClearedReferenceExpired() {
+		WeakReference<Object> ref=new WeakReference<Object>("x");
+		SpyCache.SpyCacheItem i=new SpyCache.SpyCacheItem("k", ref, 100000);
+		assertFalse(i.isExpired());
+		ref.clear();
+		assertTrue(i.isExpired());
+	}
+
+	public void testStats() throws Exception {
+		CacheStats stats=cache.getStats();
+		assertEquals("SpyCache", stats.getName());
+		cache.setMaximumSize(20);
+		CacheLoader<String, RuntimeException> loader=
+			new CacheLoader<String, RuntimeException>() {
+				public String load() {
+					return "loaded";
+				}
+			};
+		assertEquals("loaded", cache.getOrLoad("st", loader, 10000));
+		assertEquals("loaded", cache.getOrLoad("st", loader, 10000));
+		assertNull(cache.get("missing"));
+		assertEquals(1, stats.getHits());
+		assertEquals(2, stats.getMisses());
+		assertEquals(1, stats.getLoads());
+		assertEquals(0, stats.getLoadFailures());
+		for(int i=0; i<100; i++) {
+			cache.store("stats" + i, i, 10000);
+		}
+		assertEquals(81, stats.getEvictions(EvictionCause.SIZE));
+		assertEquals(20, stats.getSize());
+		assertEquals(20, stats.getWeight());
+		assertEquals(81, ((CounterStat)Stats.getStat(
+			"net.spy.cache.SpyCache.evictions.size")).getCount());
+	}
+
+	public void testUncacheLike() {
+		cache.store("cachedb_a", "a", 10000);
+		cache.store("cachedb_b", "b", 10000);
+		cache.store("cachedc", "c", 10000);
+		cache.uncacheLike("cachedb_");
+		assertNull(cache.get("cachedb_a"));
+		assertNull(cache.get("cachedb_b"));
+		assertEquals("c", cache.get("cachedc"));
+		// Uncached and restored keys are still found.
+		cache.uncache("cachedc");
+		cache.store("cachedc", "c2", 10000);
+		cache.uncacheLike("cached");
+		assertNull(cache.get("cachedc"));
+	}
+
+	public void testInvalidateTag() {
+		TestDelegate td=new TestDelegate();
+		cache.setDelegate(td);
+		cache.store("q1", "one", 10000, "users", "groups");
+		cache.store("q2", "two", 10000, "users");
+		cache.store("q3", "three", 10000, "groups");
+		cache.store("q4", "four", 10000);
+		cache.invalidateTag("users");
+		assertNull(cache.get("q1"));
+		assertNull(cache.get("q2"));
+		assertEquals("three", cache.get("q3"));
+		assertEquals("four", cache.get("q4"));
+		assertEquals(2, td.uncached);
+		// Replacing an entry replaces its tags.
+		cache.store("q3", "three again", 10000);
+		cache.invalidateTag("groups");
+		assertEquals("three again", cache.get("q3"));
+		assertEquals(0, cache.tagIndex.size());
+		// Removing a tagged entry cleans up after it.
+		cache.store("q5", "five", 10000, "sessions");
+		assertEquals(1, cache.tagIndex.size());
+		cache.uncacheLike("q5");
+		assertEquals(0, cache.tagIndex.size());
+	}
+
+	public void testAsyncEvents() throws Exception {
+		TestDelegate td=new TestDelegate();
+		cache.setDelegate(td);
+		CacheEventDispatcher d=new CacheEventDispatcher(2, 100,
+			CacheEventDispatcher.OverflowPolicy.BLOCK);
+		cache.setEventDispatcher(d);
+		assertSame(d, cache.getEventDispatcher());
+		for(int i=0; i<10; i++) {
+			cache.store("async" + i, i, 10000);
+		}
+		cache.uncacheLike("async");
+		for(int i=0; i<100 && d.getDispatched() < 20; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(10, td.cached);
+		assertEquals(10, td.uncached);
+		cache.setEventDispatcher(null);
+		d.shutdown();
+	}
+
 	static class TestDelegate implements CacheDelegate  {
-		public int cached=0;
-		public int uncached=0;
-		public void cachedObject(String key, Cachable value) {
+		public volatile int cached=0;
+		public volatile int uncached=0;
+		public synchronized void cachedObject(String key, Cachable value) {
 			cached++;
 			String.valueOf(value);
 		}
-		public void uncachedObject(String key, Cachable value) {
+		public synchronized void uncachedObject(String key,
+			Cachable value) {
 			uncached++;
 		}
 	}
+
+	/**
+	 * Test saving and restoring a snapshot.
+	 */
+	public void testSnapshot() throws Exception {
+		File f=File.createTempFile("spycache", ".snapshot");
+		try {
+			cache.store("a", "1", 60000);
+			cache.store("short", "2", 50);
+			String weak="4";
+			cache.store("weak", new WeakReference<Object>(weak), 60000);
+			cache.store("cachable", new AbstractCachable("cachable", "3") {
+				public boolean isExpired() {
+					return false;
+				}
+			});
+			assertEquals(3, cache.snapshot(f));
+			Thread.sleep(100);
+			SpyCache.shutdown();
+			cache=SpyCache.getInstance();
+			assertEquals(2, cache.restore(f, 1).get().intValue());
+			assertEquals("1", cache.get("a"));
+			// Restored weakly, as it was stored.
+			for(int i=0; i<100 && cache.get("weak") != null; i++) {
+				System.gc();
+				Thread.sleep(10);
+			}
+			assertNull(cache.get("weak"));
+			assertNull(cache.get("short"));
+			assertNull(cache.get("cachable"));
+			// Restored entries are indexed like any other.
+			cache.uncacheLike("a");
+			assertNull(cache.get("a"));
+		} finally {
+			f.delete();
+		}
+	}
 }
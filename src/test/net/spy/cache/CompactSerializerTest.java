@@ -0,0 +1,136 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.cache;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Test the compact serializer.
+ */
+public class CompactSerializerTest extends TestCase {
+
+	private CompactSerializer ser=null;
+
+	@Override
+	protected void setUp() {
+		ser=new CompactSerializer();
+	}
+
+	private Object roundTrip(Object o) throws IOException {
+		ByteBuffer b=ByteBuffer.wrap(ser.serialize(o));
+		Object rv=ser.deserialize(b);
+		assertFalse("Left over bytes", b.hasRemaining());
+		return rv;
+	}
+
+	private void assertRoundTrip(Object o) throws IOException {
+		Object got=roundTrip(o);
+		assertEquals(o, got);
+		if(o != null) {
+			assertSame(o.getClass(), got.getClass());
+		}
+	}
+
+	public void testScalars() throws Exception {
+		assertRoundTrip(null);
+		assertRoundTrip("");
+		assertRoundTrip("hello");
+		assertRoundTrip("caf\u00e9 \u20ac \ud834\udd1e \u0000");
+		assertRoundTrip(Boolean.TRUE);
+		assertRoundTrip(Boolean.FALSE);
+		assertRoundTrip(new Byte((byte)-3));
+		assertRoundTrip(new Short(Short.MIN_VALUE));
+		assertRoundTrip(new Character('\uffff'));
+		assertRoundTrip(new Integer(0));
+		assertRoundTrip(new Integer(Integer.MIN_VALUE));
+		assertRoundTrip(new Integer(Integer.MAX_VALUE));
+		assertRoundTrip(new Long(Long.MIN_VALUE));
+		assertRoundTrip(new Long(Long.MAX_VALUE));
+		assertRoundTrip(new Float(-1.5f));
+		assertRoundTrip(new Double(Double.NaN));
+		assertRoundTrip(new BigDecimal("-12345678901234567890.0042"));
+		assertRoundTrip(new BigInteger("98765432109876543210"));
+	}
+
+	public void testDates() throws Exception {
+		long now=System.currentTimeMillis();
+		assertRoundTrip(new java.util.Date(now));
+		assertRoundTrip(new java.sql.Date(now));
+		assertRoundTrip(new java.sql.Time(now));
+		Timestamp ts=new Timestamp(now);
+		ts.setNanos(123456789);
+		assertRoundTrip(ts);
+		assertRoundTrip(new java.util.Date(-now));
+	}
+
+	public void testBytes() throws Exception {
+		byte[] b=new byte[1000];
+		for(int i=0; i<b.length; i++) {
+			b[i]=(byte)i;
+		}
+		assertTrue(Arrays.equals(b, (byte[])roundTrip(b)));
+		assertEquals(0, ((byte[])roundTrip(new byte[0])).length);
+	}
+
+	public void testRows() throws Exception {
+		Object[] row=new Object[]{new Integer(42), "name", null,
+			new Timestamp(1000), new BigDecimal("1.25"),
+			new Object[]{"nested", new Long(7)}};
+		Object[] got=(Object[])roundTrip(row);
+		assertEquals(row.length, got.length);
+		for(int i=0; i<row.length - 1; i++) {
+			assertEquals(row[i], got[i]);
+		}
+		assertTrue(Arrays.equals((Object[])row[5], (Object[])got[5]));
+	}
+
+	public void testFallback() throws Exception {
+		ArrayList<String> l=new ArrayList<String>();
+		l.add("a");
+		l.add("b");
+		assertRoundTrip(l);
+		// Within an array, too.
+		Object[] got=(Object[])roundTrip(new Object[]{l, "after"});
+		assertEquals(l, got[0]);
+		assertEquals("after", got[1]);
+	}
+
+	public void testSmallerThanJava() throws Exception {
+		Object[] row=new Object[]{new Integer(42), "some text",
+			new Timestamp(1000), new BigDecimal("1.25"), Boolean.TRUE};
+		int compact=ser.serialize(row).length;
+		int java=new JavaSerializer().serialize(row).length;
+		assertTrue(compact + " isn't much smaller than " + java,
+			compact * 4 < java);
+	}
+
+	public void testInvalid() throws Exception {
+		byte[] b=ser.serialize(new Long(Long.MAX_VALUE));
+		try {
+			ser.deserialize(ByteBuffer.wrap(b, 0, b.length - 1));
+			fail("Decoded a truncated long");
+		} catch(IOException e) {
+			assertEquals("Truncated value", e.getMessage());
+		}
+		try {
+			ser.deserialize(ByteBuffer.wrap(new byte[]{99}));
+			fail("Decoded an invalid type");
+		} catch(IOException e) {
+			assertEquals("Invalid type:  99", e.getMessage());
+		}
+		try {
+			ser.deserialize(ByteBuffer.wrap(new byte[]{2, 100, 0}));
+			fail("Decoded an invalid length");
+		} catch(IOException e) {
+			assertEquals("Invalid length:  50", e.getMessage());
+		}
+	}
+}
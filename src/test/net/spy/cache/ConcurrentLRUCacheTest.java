@@ -0,0 +1,213 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.cache;
+
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import net.spy.cache.CacheStats.EvictionCause;
+import net.spy.test.SyncThread;
+
+/**
+ * Test the concurrent LRU cache.
+ */
+public class ConcurrentLRUCacheTest extends TestCase {
+
+	public void testInvalidSize() {
+		try {
+			ConcurrentLRUCache<String, String> c=
+				new ConcurrentLRUCache<String, String>(-1);
+			fail("Allowed a negative size:  " + c);
+		} catch(IllegalArgumentException e) {
+			assertEquals("Invalid size:  -1", e.getMessage());
+		}
+	}
+
+	public void testBasicLRU() {
+		Integer zero=new Integer(0);
+		ConcurrentLRUCache<Integer, Integer> cache=
+			new ConcurrentLRUCache<Integer, Integer>(10);
+
+		assertNull("Zero shouldn't be there.", cache.get(zero));
+
+		// Keep this value up-to-date
+		cache.put(zero, zero);
+		assertNotNull("Zero should be there.", cache.get(zero));
+
+		for(int i=1; i<100; i++) {
+			assertTrue("Cache size exceeded valid size", cache.size() <= 10);
+			Integer ii=new Integer(i);
+			assertNull(cache.get(ii));
+			cache.put(ii, ii);
+			assertNotNull(cache.get(zero));
+			assertNotNull(cache.get(ii));
+
+			if(i>10) {
+				assertNull(cache.get(new Integer(i-10)));
+			}
+		}
+		assertEquals(10, cache.size());
+	}
+
+	public void testManyReads() {
+		ConcurrentLRUCache<Integer, Integer> cache=
+			new ConcurrentLRUCache<Integer, Integer>(10);
+		for(int i=0; i<10; i++) {
+			cache.put(i, i);
+		}
+		// Enough reads to fill the buffer, with 0 read last.
+		for(int i=0; i<10000; i++) {
+			int k=(i + 1) % 10;
+			assertEquals(new Integer(k), cache.get(k));
+		}
+		cache.put(10, 10);
+		assertEquals(new Integer(0), cache.get(0));
+		assertFalse(cache.containsKey(1));
+		assertEquals(10, cache.size());
+	}
+
+	public void testReferenceLRU() {
+		ConcurrentLRUCache<String, SoftReference<String>> cache=
+			new ConcurrentLRUCache<String, SoftReference<String>>(10);
+		cache.put("a", new SoftReference<String>("a"));
+		cache.put("b", new SoftReference<String>(null));
+		assertEquals("a", cache.get("a"));
+		assertNull(cache.get("b"));
+		assertTrue(cache.containsKey("b"));
+	}
+
+	public void testCollectedValuesPurged() throws Exception {
+		ConcurrentLRUCache<String, Object> cache=
+			new ConcurrentLRUCache<String, Object>(10);
+		cache.put("w", new WeakReference<Object>(new Object()));
+		for(int i=0; i<100 && cache.containsKey("w"); i++) {
+			System.gc();
+			Thread.sleep(50);
+			cache.put("s", "strong");
+		}
+		assertFalse(cache.containsKey("w"));
+		assertEquals(1,
+			cache.getStats().getEvictions(EvictionCause.COLLECTED));
+		assertEquals(1, cache.size());
+	}
+
+	public void testRemoveAndClear() {
+		ConcurrentLRUCache<String, String> cache=
+			new ConcurrentLRUCache<String, String>(3);
+		cache.put("a", "1");
+		assertEquals("1", cache.put("a", "2"));
+		cache.put("b", "3");
+		assertEquals("2", cache.remove("a"));
+		assertNull(cache.remove("a"));
+		assertEquals(1, cache.size());
+		cache.put("c", "4");
+		cache.put("d", "5");
+		cache.put("e", "6");
+		assertEquals(3, cache.size());
+		assertFalse(cache.containsKey("b"));
+
+		Set<String> keys=new HashSet<String>();
+		for(Iterator<Map.Entry<String, String>> i=cache.entrySet().iterator();
+			i.hasNext();) {
+			Map.Entry<String, String> me=i.next();
+			keys.add(me.getKey());
+			if(me.getKey().equals("c")) {
+				i.remove();
+			}
+		}
+		assertEquals(3, keys.size());
+		assertEquals(2, cache.size());
+		assertFalse(cache.containsKey("c"));
+
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertTrue(cache.isEmpty());
+		cache.put("f", "7");
+		assertEquals("7", cache.get("f"));
+	}
+
+	public void testCacheListener() {
+		ConcurrentLRUCache<Object, Object> cache=
+			new ConcurrentLRUCache<Object, Object>(10);
+
+		TestListener tl=new TestListener();
+		cache.put("listener", tl);
+		for(int i=1; i<100; i++) {
+			Integer ii=new Integer(i);
+			assertNull(cache.get(ii));
+			cache.put(ii, ii);
+			assertNotNull(cache.get(ii));
+		}
+		assertNull(cache.get("listener"));
+		assertEquals(1, tl.cached);
+		assertEquals(1, tl.uncached.get());
+		assertEquals(90, cache.getStats().getEvictions(EvictionCause.SIZE));
+		assertEquals(99, cache.getStats().getHits());
+		assertEquals(100, cache.getStats().getMisses());
+	}
+
+	public void testConcurrentUse() throws Throwable {
+		final ConcurrentLRUCache<Integer, Object> cache=
+			new ConcurrentLRUCache<Integer, Object>(100);
+		final TestListener[] listeners=new TestListener[1000];
+		for(int i=0; i<listeners.length; i++) {
+			listeners[i]=new TestListener();
+		}
+		final AtomicInteger next=new AtomicInteger(0);
+		SyncThread.getDistinctResultCount(8, new Callable<Object>() {
+			public Object call() throws Exception {
+				for(int i=0; i<20000; i++) {
+					int k=i % 200;
+					if(cache.get(k) == null) {
+						int n=next.getAndIncrement();
+						if(n < listeners.length) {
+							cache.put(k, listeners[n]);
+						} else {
+							cache.put(k, "v" + k);
+						}
+					}
+					if(i % 1000 == 0) {
+						cache.remove(k);
+					}
+				}
+				return null;
+			}});
+		assertTrue(cache.size() <= 100);
+		// Everything that's gone was told so exactly once.
+		for(TestListener tl : listeners) {
+			assertTrue(tl.uncached.get() <= 1);
+		}
+		int count=0;
+		for(Map.Entry<Integer, Object> me : cache.entrySet()) {
+			assertNotNull(cache.get(me.getKey()));
+			count++;
+		}
+		assertEquals(cache.size(), count);
+	}
+
+	private static final class TestListener implements CacheListener {
+
+		public int cached=0;
+		public final AtomicInteger uncached=new AtomicInteger(0);
+
+		public TestListener() {
+			super();
+		}
+
+		public void cachedEvent(Object key) {
+			cached++;
+		}
+
+		public void uncachedEvent(Object key) {
+			uncached.incrementAndGet();
+		}
+	}
+
+}
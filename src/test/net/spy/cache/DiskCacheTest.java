@@ -6,11 +6,14 @@ package net.spy.cache;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import junit.framework.Test;
 import junit.framework.TestCase;
@@ -68,6 +71,7 @@ public class DiskCacheTest extends TestCase {
 	 */
 	@Override
 	protected void tearDown() throws Exception {
+		cache.close();
 		cache = null;
 		SpyUtil.rmDashR(new File(tmpdir));
 		tmpdir=null;
@@ -207,6 +211,311 @@ public class DiskCacheTest extends TestCase {
 			pairs.size(), cache.size());
 	}
 
+	/**
+	 * Test replacing and removing values.
+	 */
+	public void testReplaceAndRemove() throws Exception {
+		assertNull(cache.put("k", "v1"));
+		assertEquals("v1", cache.get("k"));
+		assertEquals("v1", cache.put("k", "v2"));
+		assertEquals("v2", cache.get("k"));
+		assertEquals(1, cache.size());
+		assertTrue(cache.containsKey("k"));
+		assertEquals("v2", cache.remove("k"));
+		assertNull(cache.get("k"));
+		assertFalse(cache.containsKey("k"));
+		assertEquals(0, cache.size());
+		assertNull(cache.remove("k"));
+	}
+
+	/**
+	 * Test that reopening a cache finds what was stored.
+	 */
+	public void testReopen() throws Exception {
+		Map<String, String> pairs=initCache();
+		String gone=pairs.keySet().iterator().next();
+		cache.remove(gone);
+		pairs.remove(gone);
+		cache.put("replaced", "first");
+		cache.put("replaced", "second");
+		pairs.put("replaced", "second");
+		cache.close();
+
+		cache=new DiskCache(getTmpDir());
+		assertEquals(pairs.size(), cache.size());
+		assertNull(cache.get(gone));
+		for(Map.Entry<String, String> me : pairs.entrySet()) {
+			assertEquals(me.getValue(), cache.get(me.getKey()));
+		}
+	}
+
+	/**
+	 * Test compaction keeps live values and drops the rest.
+	 */
+	public void testCompaction() throws Exception {
+		cache.close();
+		cache=new DiskCache(getTmpDir(), 10, 4096);
+		for(int round=0; round<10; round++) {
+			for(int i=0; i<50; i++) {
+				cache.put("k" + i, "value " + round + " " + i);
+			}
+		}
+		long before=cache.store.getDiskSize();
+		assertTrue(cache.compact() > 0);
+		assertTrue(cache.store.getDiskSize() < before);
+		assertEquals(50, cache.size());
+		for(int i=0; i<50; i++) {
+			assertEquals("value 9 " + i, cache.get("k" + i));
+		}
+		cache.close();
+		cache=new DiskCache(getTmpDir(), 10, 4096);
+		assertEquals(50, cache.size());
+		for(int i=0; i<50; i++) {
+			assertEquals("value 9 " + i, cache.get("k" + i));
+		}
+	}
+
+	/**
+	 * Test entries with a time to live.
+	 */
+	public void testTTL() throws Exception {
+		cache.put("short", "v", 50);
+		cache.put("long", "v", 60000);
+		assertEquals("v", cache.get("short"));
+		assertTrue(cache.containsKey("short"));
+		Thread.sleep(100);
+		// Even though it's still in the LRU cache.
+		assertNull(cache.get("short"));
+		assertFalse(cache.containsKey("short"));
+		assertEquals("v", cache.get("long"));
+		assertEquals(1, cache.evict());
+		assertEquals(1, cache.size());
+		try {
+			cache.put("bad", "v", -1);
+			fail("Allowed a negative TTL");
+		} catch(IllegalArgumentException e) {
+			assertEquals("Invalid TTL:  -1", e.getMessage());
+		}
+	}
+
+	/**
+	 * Test the entry and byte limits.
+	 */
+	public void testLimits() throws Exception {
+		assertEquals(0, cache.getMaximumSize());
+		assertEquals(0, cache.getMaximumBytes());
+		for(int i=0; i<20; i++) {
+			cache.put("k" + i, "v" + i);
+		}
+		assertEquals(0, cache.evict());
+		Thread.sleep(20);
+		assertEquals("v3", cache.get("k3"));
+		cache.setMaximumSize(10);
+		assertEquals(10, cache.evict());
+		assertEquals(10, cache.size());
+		assertEquals("v3", cache.get("k3"));
+		cache.setMaximumSize(0);
+		cache.setMaximumBytes(1);
+		assertEquals(10, cache.evict());
+		assertEquals(0, cache.size());
+		// Evicted values aren't served from the LRU cache.
+		assertNull(cache.get("k3"));
+		try {
+			cache.setMaximumSize(-1);
+			fail("Allowed a negative size");
+		} catch(IllegalArgumentException e) {
+			assertEquals("Invalid maximum size:  -1", e.getMessage());
+		}
+		try {
+			cache.setMaximumBytes(-1);
+			fail("Allowed a negative byte count");
+		} catch(IllegalArgumentException e) {
+			assertEquals("Invalid maximum bytes:  -1", e.getMessage());
+		}
+	}
+
+	/**
+	 * Test the statistics.
+	 */
+	public void testStats() throws Exception {
+		CacheStats stats=cache.getStats();
+		cache.put("short", "v", 50);
+		for(int i=0; i<10; i++) {
+			cache.put("k" + i, "v" + i);
+		}
+		assertEquals("v", cache.get("short"));
+		assertNull(cache.get("missing"));
+		assertEquals(1, stats.getHits());
+		assertEquals(1, stats.getMisses());
+		assertEquals(11, stats.getSize());
+		long weight=stats.getWeight();
+		assertTrue(weight > 0);
+		Thread.sleep(100);
+		cache.setMaximumSize(5);
+		assertEquals(6, cache.evict());
+		assertEquals(1, stats.getEvictions(CacheStats.EvictionCause.EXPIRED));
+		assertEquals(5, stats.getEvictions(CacheStats.EvictionCause.SIZE));
+		assertEquals(5, stats.getSize());
+		assertTrue(stats.getWeight() < weight);
+	}
+
+	/**
+	 * Test staging writes in write-behind mode.
+	 */
+	public void testWriteBehind() throws Exception {
+		cache.put("existing", "old");
+		cache.put("doomed", "v");
+		// Long enough that nothing's written in the background.
+		cache.setWriteBehind(60000);
+		assertEquals("old", cache.put("existing", "new"));
+		cache.put("k", "v1");
+		cache.put("k", "v2");
+		cache.put("short", "v", 1);
+		assertEquals("v", cache.remove("doomed"));
+		assertEquals("new", cache.get("existing"));
+		assertEquals("v2", cache.get("k"));
+		assertTrue(cache.containsKey("k"));
+		assertNull(cache.get("doomed"));
+		assertFalse(cache.containsKey("doomed"));
+		Thread.sleep(10);
+		assertNull(cache.get("short"));
+		assertFalse(cache.store.containsKey("k"));
+		assertTrue(cache.store.containsKey("doomed"));
+		cache.flush();
+		assertTrue(cache.store.containsKey("k"));
+		assertFalse(cache.store.containsKey("doomed"));
+		cache.put("unflushed", "v");
+		cache.close();
+
+		cache=new DiskCache(getTmpDir());
+		assertEquals("new", cache.get("existing"));
+		assertEquals("v2", cache.get("k"));
+		assertEquals("v", cache.get("unflushed"));
+		assertNull(cache.get("doomed"));
+		assertNull(cache.get("short"));
+		try {
+			cache.setWriteBehind(-1);
+			fail("Allowed a negative delay");
+		} catch(IllegalArgumentException e) {
+			assertEquals("Invalid write delay:  -1", e.getMessage());
+		}
+	}
+
+	/**
+	 * Test staged writes are written in the background.
+	 */
+	public void testBackgroundWrites() throws Exception {
+		cache.setWriteBehind(10);
+		for(int i=0; i<100; i++) {
+			cache.put("k" + i, "v" + i);
+		}
+		for(int i=0; i<100 && cache.store.size() < 100; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(100, cache.store.size());
+		cache.setWriteBehind(0);
+		cache.put("direct", "v");
+		assertTrue(cache.store.containsKey("direct"));
+	}
+
+	/**
+	 * Test a direct write replaces a value left staged by a failed write.
+	 */
+	public void testDirectWriteReplacesStaged() throws Exception {
+		cache.setWriteBehind(60000);
+		cache.put("k", new Unwritable());
+		cache.put("ok", "v");
+		try {
+			cache.setWriteBehind(0);
+			fail("Wrote an unwritable value");
+		} catch(IOException e) {
+			// expected
+		}
+		assertTrue(cache.store.containsKey("ok"));
+		cache.put("k", "v2");
+		assertEquals("v2", cache.get("k"));
+		cache.flush();
+		assertEquals("v2", cache.get("k"));
+		cache.remove("k");
+		assertNull(cache.get("k"));
+	}
+
+	/**
+	 * Test a put racing with write-behind being turned off isn't hidden or
+	 * overwritten by an older staged value.
+	 */
+	public void testWriteBehindOffRace() throws Exception {
+		final AtomicBoolean done=new AtomicBoolean(false);
+		final Exception[] failure=new Exception[1];
+		Thread toggler=new Thread() {
+			@Override
+			public void run() {
+				try {
+					while(!done.get()) {
+						cache.setWriteBehind(60000);
+						Thread.yield();
+						cache.setWriteBehind(0);
+					}
+				} catch(Exception e) {
+					failure[0]=e;
+				}
+			}
+		};
+		toggler.start();
+		String last=null;
+		try {
+			for(int i=0; i<20000; i++) {
+				last="v" + i;
+				cache.put("k", last);
+				assertEquals(last, cache.get("k"));
+			}
+		} finally {
+			done.set(true);
+			toggler.join();
+		}
+		assertNull(failure[0]);
+		cache.flush();
+		cache.close();
+		cache=new DiskCache(getTmpDir());
+		assertEquals(last, cache.get("k"));
+	}
+
+	/**
+	 * Test turning write-behind off stops the writer and turning it back
+	 * on starts a new one.
+	 */
+	public void testWriterStops() throws Exception {
+		cache.setWriteBehind(10);
+		Thread w=cache.writer;
+		assertNotNull(w);
+		cache.setWriteBehind(20);
+		assertSame(w, cache.writer);
+		cache.setWriteBehind(0);
+		assertNull(cache.writer);
+		w.join(1000);
+		assertFalse(w.isAlive());
+
+		cache.setWriteBehind(10);
+		assertNotNull(cache.writer);
+		assertNotSame(w, cache.writer);
+		cache.put("k", "v");
+		for(int i=0; i<100 && !cache.store.containsKey("k"); i++) {
+			Thread.sleep(10);
+		}
+		assertTrue(cache.store.containsKey("k"));
+	}
+
+	/**
+	 * Test not returning previous values.
+	 */
+	public void testNoPreviousValue() throws Exception {
+		cache.setReturnPrevious(false);
+		assertNull(cache.put("k", "v1"));
+		assertNull(cache.put("k", "v2"));
+		assertNull(cache.remove("k"));
+		assertFalse(cache.containsKey("k"));
+	}
+
 	/**
 	 * Test cache walking.
 	 */
@@ -248,5 +557,12 @@ public class DiskCacheTest extends TestCase {
 
 	}
 
+	// A value that can't be written.
+	private static class Unwritable implements Serializable {
+		private static final long serialVersionUID=1L;
+		private void writeObject(ObjectOutputStream out) throws IOException {
+			throw new IOException("Can't write this");
+		}
+	}
 
 }
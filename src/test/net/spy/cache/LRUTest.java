@@ -3,11 +3,13 @@
 package net.spy.cache;
 
 import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
 import java.util.Collections;
 
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
+import net.spy.cache.CacheStats.EvictionCause;
 
 /**
  * Test the LRU cache implementation
@@ -62,6 +64,44 @@ public class LRUTest extends TestCase {
 		}
 	}
 
+	/**
+	 * Test the LRU cache's statistics.
+	 */
+	public void testStats() {
+		LRUCache<String, Object> cache=new LRUCache<String, Object>(2);
+		CacheStats stats=cache.getStats();
+		assertNull(stats.getName());
+		cache.put("a", "a");
+		cache.put("b", new SoftReference<Object>(null));
+		cache.put("c", "c");
+		assertNull(cache.get("a"));
+		assertNull(cache.get("b"));
+		assertEquals("c", cache.get("c"));
+		assertEquals(1, stats.getHits());
+		assertEquals(2, stats.getMisses());
+		assertEquals(1, stats.getEvictions(EvictionCause.SIZE));
+		assertEquals(2, stats.getSize());
+		assertEquals(2, stats.getWeight());
+	}
+
+	/**
+	 * Test that entries whose values were collected are removed.
+	 */
+	public void testCollectedValuesPurged() throws Exception {
+		LRUCache<String, Object> cache=new LRUCache<String, Object>(10);
+		cache.put("w", new WeakReference<Object>(new Object()));
+		for(int i=0; i<100 && cache.containsKey("w"); i++) {
+			System.gc();
+			Thread.sleep(50);
+			cache.put("s", "strong");
+		}
+		assertFalse(cache.containsKey("w"));
+		assertEquals(1,
+			cache.getStats().getEvictions(EvictionCause.COLLECTED));
+		assertEquals("strong", cache.remove("s"));
+		assertTrue(cache.isEmpty());
+	}
+
 	/**
 	 * Perform reference LRU testing.
 	 */
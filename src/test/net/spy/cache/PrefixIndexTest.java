@@ -0,0 +1,170 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.cache;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import net.spy.test.SyncThread;
+
+/**
+ * Test the prefix index.
+ */
+public class PrefixIndexTest extends TestCase {
+
+	private PrefixIndex index=null;
+
+	@Override
+	protected void setUp() {
+		index=new PrefixIndex();
+	}
+
+	private void assertKeys(String prefix, String... expected) {
+		Set<String> e=new HashSet<String>(Arrays.asList(expected));
+		List<String> got=index.keysStartingWith(prefix);
+		assertEquals("Duplicates in " + got, got.size(),
+			new HashSet<String>(got).size());
+		assertEquals(e, new HashSet<String>(got));
+	}
+
+	public void testEmpty() {
+		assertKeys("");
+		assertKeys("a");
+	}
+
+	public void testSplitting() {
+		index.add("cachedb_select 1");
+		index.add("cachedb_select 2");
+		index.add("cachedb_");
+		index.add("cache");
+		index.add("dbcache_prepared_1");
+		assertKeys("", "cachedb_select 1", "cachedb_select 2", "cachedb_",
+			"cache", "dbcache_prepared_1");
+		assertKeys("c", "cachedb_select 1", "cachedb_select 2", "cachedb_",
+			"cache");
+		assertKeys("cachedb", "cachedb_select 1", "cachedb_select 2",
+			"cachedb_");
+		assertKeys("cachedb_select 1", "cachedb_select 1");
+		assertKeys("cachedb_select 3");
+		assertKeys("cachez");
+		assertKeys("d", "dbcache_prepared_1");
+		assertKeys("x");
+	}
+
+	public void testDuplicateAdd() {
+		index.add("abc");
+		index.add("abc");
+		assertKeys("a", "abc");
+	}
+
+	public void testRemoval() {
+		index.add("abc");
+		index.add("abd");
+		index.add("ab");
+		index.remove("abc");
+		assertKeys("a", "abd", "ab");
+		index.remove("ab");
+		assertKeys("a", "abd");
+		// Removing things that aren't there
+		index.remove("ab");
+		index.remove("abx");
+		index.remove("q");
+		index.remove("abdx");
+		assertKeys("a", "abd");
+		index.remove("abd");
+		assertKeys("");
+		index.add("abd");
+		assertKeys("ab", "abd");
+	}
+
+	public void testPruning() {
+		int baseline=index.nodeCount();
+		for(int i=0; i<10000; i++) {
+			index.add("cachedb_select * from t where id=" + i);
+		}
+		assertTrue(index.nodeCount() > 10000);
+		for(int i=0; i<10000; i++) {
+			index.remove("cachedb_select * from t where id=" + i);
+		}
+		assertKeys("");
+		assertEquals(baseline, index.nodeCount());
+	}
+
+	public void testMerging() {
+		index.add("abc");
+		index.add("abd");
+		// root, ab, c, d
+		assertEquals(4, index.nodeCount());
+		index.remove("abd");
+		// root, abc
+		assertEquals(2, index.nodeCount());
+		assertKeys("ab", "abc");
+		index.add("ab");
+		index.add("abd");
+		index.remove("ab");
+		assertEquals(4, index.nodeCount());
+		assertKeys("a", "abc", "abd");
+		index.remove("abc");
+		assertEquals(2, index.nodeCount());
+		assertKeys("a", "abd");
+		index.add("abcd");
+		index.add("abce");
+		index.add("abx");
+		index.remove("abx");
+		index.remove("abd");
+		// root, abc, d, e
+		assertEquals(4, index.nodeCount());
+		assertKeys("abc", "abcd", "abce");
+	}
+
+	public void testEmptyKey() {
+		index.add("");
+		index.add("a");
+		assertKeys("", "", "a");
+		index.remove("");
+		assertKeys("", "a");
+	}
+
+	public void testConcurrentRemoves() throws Throwable {
+		for(int i=0; i<100; i++) {
+			index.add("key_" + i);
+		}
+		final int baseline=index.nodeCount();
+		final AtomicInteger ids=new AtomicInteger(0);
+		SyncThread.getDistinctResultCount(8, new Callable<Object>() {
+			public Object call() throws Exception {
+				int id=ids.getAndIncrement();
+				for(int round=0; round<5; round++) {
+					for(int i=0; i<500; i++) {
+						index.add("key_" + i + "_" + id);
+					}
+					for(int i=0; i<500; i++) {
+						index.remove("key_" + i + "_" + id);
+					}
+				}
+				return null;
+			}});
+		assertEquals(100, index.keysStartingWith("key_").size());
+		assertEquals(baseline, index.nodeCount());
+	}
+
+	public void testConcurrentAdds() throws Throwable {
+		final AtomicInteger ids=new AtomicInteger(0);
+		SyncThread.getDistinctResultCount(8, new Callable<Object>() {
+			public Object call() throws Exception {
+				int id=ids.getAndIncrement();
+				for(int i=0; i<500; i++) {
+					index.add("key_" + i + "_" + id);
+					index.add("key_" + i);
+				}
+				return null;
+			}});
+		assertEquals(8 * 500 + 500, index.keysStartingWith("key_").size());
+		assertEquals(8 + 1, index.keysStartingWith("key_499").size());
+	}
+}
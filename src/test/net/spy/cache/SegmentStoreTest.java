@@ -0,0 +1,422 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.cache;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+import net.spy.test.SyncThread;
+import net.spy.util.PwGen;
+import net.spy.util.SpyUtil;
+
+/**
+ * Test the segment store.
+ */
+public class SegmentStoreTest extends TestCase {
+
+	private File dir=null;
+	private Serializer ser=null;
+	private SegmentStore store=null;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir=new File("/tmp/segtest-" + PwGen.getPass(16));
+		ser=new JavaSerializer();
+		store=new SegmentStore(dir, 1024, ser);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		store.close();
+		SpyUtil.rmDashR(dir);
+	}
+
+	private void put(String k, String v) throws Exception {
+		store.put(k, ser.serialize(k), ser.serialize(v));
+	}
+
+	private Object get(String k) throws Exception {
+		ByteBuffer b=store.get(k);
+		return b == null ? null : ser.deserialize(b);
+	}
+
+	public void testBasics() throws Exception {
+		assertNull(get("a"));
+		put("a", "1");
+		put("b", "2");
+		put("a", "3");
+		assertEquals("3", get("a"));
+		assertEquals("2", get("b"));
+		assertEquals(2, store.size());
+		assertTrue(store.remove("a", ser.serialize("a")));
+		assertFalse(store.remove("a", ser.serialize("a")));
+		assertNull(get("a"));
+		assertEquals(1, store.size());
+	}
+
+	public void testRolling() throws Exception {
+		for(int i=0; i<100; i++) {
+			put("k" + i, "v" + i);
+		}
+		assertTrue(store.getSegmentCount() > 1);
+		for(int i=0; i<100; i++) {
+			assertEquals("v" + i, get("k" + i));
+		}
+	}
+
+	public void testRecovery() throws Exception {
+		for(int i=0; i<100; i++) {
+			put("k" + i, "v" + i);
+		}
+		for(int i=0; i<100; i+=2) {
+			store.remove("k" + i, ser.serialize("k" + i));
+		}
+		put("k1", "replaced");
+		store.close();
+		store=new SegmentStore(dir, 1024, ser);
+		assertEquals(50, store.size());
+		assertEquals("replaced", get("k1"));
+		assertNull(get("k0"));
+		assertEquals("v99", get("k99"));
+	}
+
+	public void testManifest() throws Exception {
+		for(int i=0; i<100; i++) {
+			put("k" + i, "v" + i);
+		}
+		store.close();
+		assertTrue(new File(dir, SegmentManifest.NAME).exists());
+		store=new SegmentStore(dir, 1024, ser);
+		assertEquals(100, store.size());
+		// Written after the last checkpoint and replayed from the segments.
+		put("k0", "replaced");
+		store.remove("k1", ser.serialize("k1"));
+		put("new", "value");
+		store.force();
+		SegmentStore crashed=store;
+		store=new SegmentStore(dir, 1024, ser);
+		crashed.close();
+		assertEquals(100, store.size());
+		assertEquals("replaced", get("k0"));
+		assertNull(get("k1"));
+		assertEquals("value", get("new"));
+		assertEquals("v99", get("k99"));
+	}
+
+	public void testCorruptManifest() throws Exception {
+		for(int i=0; i<100; i++) {
+			put("k" + i, "v" + i);
+		}
+		store.close();
+		File mf=new File(dir, SegmentManifest.NAME);
+		RandomAccessFile raf=new RandomAccessFile(mf, "rw");
+		raf.seek(raf.length() / 2);
+		raf.write(0xff ^ raf.read());
+		raf.close();
+		store=new SegmentStore(dir, 1024, ser);
+		assertEquals(100, store.size());
+		assertEquals("v42", get("k42"));
+		// And it's rewritten.
+		assertNotNull(SegmentManifest.read(dir));
+	}
+
+	public void testStaleManifest() throws Exception {
+		for(int round=0; round<5; round++) {
+			for(int i=0; i<20; i++) {
+				put("k" + i, "v" + round + "." + i);
+			}
+		}
+		store.checkpoint();
+		File mf=new File(dir, SegmentManifest.NAME);
+		byte[] old=new byte[(int)mf.length()];
+		RandomAccessFile raf=new RandomAccessFile(mf, "r");
+		raf.readFully(old);
+		raf.close();
+		assertTrue(store.compact(0.5) > 0);
+		store.close();
+		// Put back the manifest from before the compaction.
+		raf=new RandomAccessFile(mf, "rw");
+		raf.setLength(0);
+		raf.write(old);
+		raf.close();
+		store=new SegmentStore(dir, 1024, ser);
+		assertEquals(20, store.size());
+		assertEquals("v4.7", get("k7"));
+	}
+
+	public void testTornWrite() throws Exception {
+		put("a", "1");
+		put("b", "2");
+		store.close();
+		// Chop the last record in half as a crash mid-write would.
+		File seg=new File(dir, "00000001" + SegmentStore.SUFFIX);
+		RandomAccessFile raf=new RandomAccessFile(seg, "rw");
+		raf.setLength(raf.length() - 5);
+		raf.close();
+		store=new SegmentStore(dir, 1024, ser);
+		assertEquals(1, store.size());
+		assertEquals("1", get("a"));
+		assertNull(get("b"));
+		// And it keeps working from there.
+		put("b", "3");
+		store.close();
+		store=new SegmentStore(dir, 1024, ser);
+		assertEquals("3", get("b"));
+	}
+
+	public void testCorruptRecord() throws Exception {
+		put("a", "1");
+		long end=store.getDiskSize();
+		put("b", "2");
+		put("c", "3");
+		store.close();
+		File seg=new File(dir, "00000001" + SegmentStore.SUFFIX);
+		RandomAccessFile raf=new RandomAccessFile(seg, "rw");
+		raf.seek(end + 20);
+		raf.write(0xff ^ raf.read());
+		raf.close();
+		// Without a manifest, the records are all checked.
+		SegmentManifest.remove(dir);
+		store=new SegmentStore(dir, 1024, ser);
+		assertEquals("1", get("a"));
+		assertNull(get("b"));
+		assertNull(get("c"));
+	}
+
+	public void testCompaction() throws Exception {
+		for(int round=0; round<5; round++) {
+			for(int i=0; i<20; i++) {
+				put("k" + i, "v" + round + "." + i);
+			}
+		}
+		store.remove("k0", ser.serialize("k0"));
+		int segs=store.getSegmentCount();
+		assertTrue(store.compact(0.5) > 0);
+		assertTrue(store.getSegmentCount() < segs);
+		assertEquals(19, store.size());
+		assertNull(get("k0"));
+		for(int i=1; i<20; i++) {
+			assertEquals("v4." + i, get("k" + i));
+		}
+		store.close();
+		store=new SegmentStore(dir, 1024, ser);
+		assertEquals(19, store.size());
+		assertNull(get("k0"));
+		assertEquals("v4.19", get("k19"));
+	}
+
+	public void testTombstonesDropped() throws Exception {
+		StringBuilder sb=new StringBuilder();
+		for(int i=0; i<600; i++) {
+			sb.append('x');
+		}
+		String big=sb.toString();
+		// Two records per segment:  the doomed keys in the first, live
+		// ones in the second.
+		put("k0", big);
+		put("k1", big);
+		put("live0", big);
+		put("live1", big);
+		assertEquals(2, store.getSegmentCount());
+		// The tombstones go in the third with more live values.
+		store.remove("k0", ser.serialize("k0"));
+		store.remove("k1", ser.serialize("k1"));
+		put("f0", big);
+		put("f1", big);
+		put("f2", big);
+		assertEquals(4, store.getSegmentCount());
+
+		// The first segment goes, so the tombstones aren't needed even
+		// though the older second segment is still there.
+		assertEquals(2, store.compact(0.01));
+		assertEquals(store.getLiveBytes() + 4 * store.getSegmentCount(),
+			store.getDiskSize());
+		assertEquals(0, store.compact(0.01));
+
+		store.close();
+		store=new SegmentStore(dir, 1024, ser);
+		assertEquals(5, store.size());
+		assertNull(get("k0"));
+		assertNull(get("k1"));
+		assertEquals(big, get("live0"));
+		assertEquals(big, get("f1"));
+	}
+
+	public void testMappedReads() throws Exception {
+		for(int i=0; i<200; i++) {
+			put("k" + i, "v" + i);
+		}
+		assertTrue(store.getSegmentCount() > 4);
+		store.setMaxMappings(3);
+		for(int i=0; i<200; i++) {
+			assertEquals("v" + i, get("k" + i));
+		}
+		assertEquals(3, store.getMappingCount());
+		// Reading a mapped value doesn't disturb the mapping.
+		assertEquals("v0", get("k0"));
+		assertEquals("v0", get("k0"));
+		store.setMaxMappings(0);
+		assertEquals(0, store.getMappingCount());
+		for(int i=0; i<200; i++) {
+			assertEquals("v" + i, get("k" + i));
+		}
+		assertEquals(0, store.getMappingCount());
+		try {
+			store.setMaxMappings(-1);
+			fail("Allowed a negative mapping count");
+		} catch(IllegalArgumentException e) {
+			assertEquals("Invalid mapping count:  -1", e.getMessage());
+		}
+	}
+
+	public void testReadDuringCompaction() throws Throwable {
+		for(int i=0; i<50; i++) {
+			put("k" + i, "v" + i);
+		}
+		final AtomicBoolean running=new AtomicBoolean(true);
+		Thread compactor=new Thread() {
+			@Override
+			public void run() {
+				try {
+					while(running.get()) {
+						for(int i=0; i<50; i+=5) {
+							put("k" + i, "v" + i);
+						}
+						store.compact(0.1);
+					}
+				} catch(Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		compactor.start();
+		int n=SyncThread.getDistinctResultCount(4, new Callable<Object>() {
+			public Object call() throws Exception {
+				for(int r=0; r<20; r++) {
+					for(int i=0; i<50; i++) {
+						assertEquals("v" + i, get("k" + i));
+					}
+				}
+				return Boolean.TRUE;
+			}});
+		running.set(false);
+		compactor.join();
+		assertEquals(1, n);
+	}
+
+	public void testExpiration() throws Exception {
+		long now=System.currentTimeMillis();
+		store.put("old", ser.serialize("old"), ser.serialize("v"), now - 1);
+		store.put("new", ser.serialize("new"), ser.serialize("v"),
+			now + 60000);
+		put("forever", "v");
+		assertNull(get("old"));
+		assertFalse(store.containsKey("old"));
+		assertFalse(store.touch("old"));
+		assertEquals("v", get("new"));
+		assertTrue(store.touch("new"));
+		assertEquals(3, store.size());
+		// The expiration survives a reopen, through the manifest or not.
+		store.close();
+		store=new SegmentStore(dir, 1024, ser);
+		assertNull(get("old"));
+		store.close();
+		SegmentManifest.remove(dir);
+		store=new SegmentStore(dir, 1024, ser);
+		assertNull(get("old"));
+		assertEquals("v", get("new"));
+		assertEquals(1, store.evict(0, 0, now));
+		assertEquals(2, store.size());
+		assertEquals(1, store.evict(0, 0, now + 60000));
+		assertEquals(1, store.size());
+		assertEquals("v", get("forever"));
+	}
+
+	public void testEvictByCount() throws Exception {
+		for(int i=0; i<10; i++) {
+			put("k" + i, "v" + i);
+		}
+		Thread.sleep(20);
+		for(int i=0; i<5; i++) {
+			assertEquals("v" + i, get("k" + i));
+		}
+		assertEquals(0, store.evict(0, 10, System.currentTimeMillis()));
+		assertEquals(5, store.evict(0, 5, System.currentTimeMillis()));
+		assertEquals(5, store.size());
+		for(int i=0; i<5; i++) {
+			assertEquals("v" + i, get("k" + i));
+			assertNull(get("k" + (i + 5)));
+		}
+		// Evictions are permanent.
+		store.close();
+		store=new SegmentStore(dir, 1024, ser);
+		assertEquals(5, store.size());
+		assertNull(get("k9"));
+	}
+
+	public void testEvictByBytes() throws Exception {
+		for(int i=0; i<100; i++) {
+			put("k" + i, "v" + i);
+		}
+		long total=store.getLiveBytes();
+		assertEquals(0, store.evict(total, 0, System.currentTimeMillis()));
+		store.evict(total / 10, 0, System.currentTimeMillis());
+		assertTrue(store.getLiveBytes() <= total / 10);
+		assertTrue(store.size() >= 9);
+		assertTrue(store.size() <= 10);
+	}
+
+	public void testBoundedEviction() throws Exception {
+		int n=SegmentStore.EVICTION_LIMIT + 100;
+		for(int i=0; i<n; i++) {
+			put("k" + i, "v");
+		}
+		Thread.sleep(20);
+		assertEquals("v", get("k0"));
+		long now=System.currentTimeMillis();
+		assertEquals(SegmentStore.EVICTION_LIMIT, store.evict(0, 10, now));
+		assertEquals(100, store.size());
+		assertEquals(90, store.evict(0, 10, now));
+		assertEquals(10, store.size());
+		// The only recently read key is never the oldest in a sample.
+		assertEquals("v", get("k0"));
+	}
+
+	public void testCompression() throws Exception {
+		StringBuilder sb=new StringBuilder();
+		for(int i=0; i<200; i++) {
+			sb.append("repetitive ");
+		}
+		String big=sb.toString();
+		put("before", big);
+		long uncompressed=store.getLiveBytes();
+		store.setCompressionThreshold(100);
+		put("after", big);
+		put("small", "x");
+		assertTrue(store.getLiveBytes() - uncompressed < uncompressed / 4);
+		assertEquals(big, get("before"));
+		assertEquals(big, get("after"));
+		assertEquals("x", get("small"));
+		// Read back through a mapping and from the segments alone.
+		store.close();
+		SegmentManifest.remove(dir);
+		store=new SegmentStore(dir, 1024, ser);
+		assertEquals(big, get("after"));
+		for(int i=0; i<20; i++) {
+			put("k" + i, "v" + i);
+		}
+		assertTrue(store.getSegmentCount() > 1);
+		assertEquals(big, get("after"));
+		try {
+			store.setCompressionThreshold(-1);
+			fail("Allowed a negative threshold");
+		} catch(IllegalArgumentException e) {
+			assertEquals("Invalid compression threshold:  -1",
+				e.getMessage());
+		}
+	}
+}
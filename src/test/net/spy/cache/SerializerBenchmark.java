@@ -0,0 +1,98 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.cache;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.sql.Timestamp;
+
+/**
+ * Compare the size and the encode and decode cost of the serializers on
+ * cached result set rows.
+ *
+ * <p>
+ *  Usage:  SerializerBenchmark [iterations] [rows]
+ * </p>
+ *
+ * <p>
+ *  Times are thread CPU time where the VM supports it, otherwise wall
+ *  clock time, averaged over the iterations after an equal number of
+ *  warmup iterations.
+ * </p>
+ */
+public class SerializerBenchmark {
+
+	private static final ThreadMXBean THREADS=
+		ManagementFactory.getThreadMXBean();
+
+	private final Object value;
+	private final int iterations;
+
+	/**
+	 * Get a SerializerBenchmark.
+	 *
+	 * @param its the number of timed iterations
+	 * @param rows the number of rows in the value
+	 */
+	public SerializerBenchmark(int its, int rows) {
+		super();
+		iterations=its;
+		value=makeRows(rows);
+	}
+
+	// Rows shaped like a typical query result.
+	private static Object[] makeRows(int n) {
+		Object[] rv=new Object[n];
+		long base=1136073600000L;
+		for(int i=0; i<n; i++) {
+			Timestamp ts=new Timestamp(base + i * 60000L);
+			rv[i]=new Object[]{new Integer(i), "customer " + i,
+				i % 7 == 0 ? null : "active", ts,
+				new BigDecimal(i + ".25"), Boolean.valueOf(i % 2 == 0),
+				new Long(base + i)};
+		}
+		return rv;
+	}
+
+	private static long now() {
+		return THREADS.isCurrentThreadCpuTimeSupported()
+			? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+	}
+
+	/**
+	 * Measure one serializer and print the results.
+	 */
+	public void run(String name, Serializer ser) throws IOException {
+		byte[] encoded=ser.serialize(value);
+		// Warm up, then time.
+		long encode=0;
+		long decode=0;
+		for(int pass=0; pass<2; pass++) {
+			long start=now();
+			for(int i=0; i<iterations; i++) {
+				encoded=ser.serialize(value);
+			}
+			encode=now() - start;
+			start=now();
+			for(int i=0; i<iterations; i++) {
+				ser.deserialize(ByteBuffer.wrap(encoded));
+			}
+			decode=now() - start;
+		}
+		System.out.println(name + ":  " + encoded.length + " bytes, encode "
+			+ (encode / iterations) + "ns, decode "
+			+ (decode / iterations) + "ns");
+	}
+
+	public static void main(String args[]) throws Exception {
+		int its=args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int rows=args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		SerializerBenchmark b=new SerializerBenchmark(its, rows);
+		System.out.println(rows + " rows, " + its + " iterations");
+		b.run("JavaSerializer", new JavaSerializer());
+		b.run("CompactSerializer", new CompactSerializer());
+	}
+}
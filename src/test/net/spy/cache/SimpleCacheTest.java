@@ -2,11 +2,21 @@
 
 package net.spy.cache;
 
+import java.io.File;
 import java.lang.ref.SoftReference;
 import java.lang.ref.WeakReference;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.TestCase;
+import net.spy.cache.CacheStats.EvictionCause;
+import net.spy.stat.ComputingStat;
+import net.spy.stat.CounterStat;
+import net.spy.stat.GaugeStat;
+import net.spy.stat.Stats;
 import net.spy.test.SyncThread;
 
 /**
@@ -23,6 +33,7 @@ public class SimpleCacheTest extends TestCase {
 	 */
 	@Override
 	protected void setUp() {
+		Stats.setInstance(null);
 		cache=SimpleCache.getInstance();
 	}
 
@@ -102,6 +113,298 @@ public class SimpleCacheTest extends TestCase {
 		assertNull(cache.get("x"));
 	}
 
+	public void testCollectedValuesPurged() throws Exception {
+		cache.store("w", new WeakReference<Object>(new Object()), 100000);
+		cache.store("s", "strong", 100000);
+		for(int i=0; i<100 && cache.size() > 1; i++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+		// Removed by the sweep without being asked for.
+		assertEquals(1, cache.size());
+		assertEquals(1,
+			cache.getStats().getEvictions(EvictionCause.COLLECTED));
+		assertEquals("strong", cache.get("s"));
+	}
+
+	public void testReplacementOutlivesOriginalTimeout() throws Exception {
+		cache.store("r", "first", 100);
+		cache.store("r", "second", 5000);
+		Thread.sleep(300);
+		assertEquals("second", cache.get("r"));
+	}
+
+	public void testSupersededValuesReleased() throws Exception {
+		WeakReference<Object> replaced=new WeakReference<Object>(
+			storeObject("replaced"));
+		cache.store("replaced", "new", 100000);
+		WeakReference<Object> removed=new WeakReference<Object>(
+			storeObject("removed"));
+		cache.remove("removed");
+		// Nothing else refers to them, so the wheel mustn't either.
+		for(int i=0; i<100 && (replaced.get() != null
+			|| removed.get() != null); i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertNull(replaced.get());
+		assertNull(removed.get());
+	}
+
+	// Store a new object with a long timeout and return it.
+	private Object storeObject(String key) {
+		Object rv=new Object();
+		cache.store(key, rv, 100000);
+		return rv;
+	}
+
+	public void testConditionalRemove() {
+		cache.store("c", "value", 1000);
+		assertFalse(cache.remove("c", "other"));
+		assertEquals("value", cache.get("c"));
+		assertTrue(cache.remove("c", "value"));
+		assertNull(cache.get("c"));
+	}
+
+	public void testBounded() {
+		try {
+			cache.setMaximumSize(-1);
+			fail("Allowed a negative maximum size");
+		} catch(IllegalArgumentException e) {
+			assertEquals("Invalid maximum size:  -1", e.getMessage());
+		}
+		assertEquals(0, cache.getMaximumWeight());
+		cache.setMaximumSize(50);
+		assertEquals(50, cache.getMaximumWeight());
+		for(int i=0; i<1000; i++) {
+			cache.store("k" + i, i, 10000);
+		}
+		assertEquals(50, cache.size());
+		cache.setMaximumSize(0);
+		assertEquals(0, cache.getMaximumWeight());
+	}
+
+	public void testWeighted() {
+		SizeEstimatingWeigher w=new SizeEstimatingWeigher();
+		cache.setMaximumWeight(100000, w);
+		assertEquals(100000, cache.getMaximumWeight());
+		for(int i=0; i<100; i++) {
+			cache.store("small" + i, "x", 10000);
+		}
+		long smallWeight=cache.getWeight();
+		assertTrue(smallWeight > 0);
+		for(int i=0; i<10; i++) {
+			cache.store("big" + i, new byte[40000], 10000);
+		}
+		assertTrue(cache.getWeight() <= 100000);
+		cache.setMaximumWeight(0, null);
+		assertEquals(0, cache.getWeight());
+	}
+
+	public void testGetOrLoad() throws Throwable {
+		final AtomicInteger loads=new AtomicInteger(0);
+		final CacheLoader<String, Exception> loader=
+			new CacheLoader<String, Exception>() {
+				public String load() throws Exception {
+					loads.incrementAndGet();
+					Thread.sleep(100);
+					return "loaded";
+				}
+			};
+		int n=SyncThread.getDistinctResultCount(20, new Callable<Object>() {
+			public Object call() throws Exception {
+				return cache.getOrLoad("sf", loader, 10000);
+			}});
+		assertEquals(1, n);
+		assertEquals(1, loads.get());
+		assertEquals("loaded", cache.get("sf"));
+		// Already there, so no more loading.
+		assertEquals("loaded", cache.getOrLoad("sf", loader, 10000));
+		assertEquals(1, loads.get());
+	}
+
+	public void testRecursiveLoad() throws Exception {
+		final CacheLoader<String, Exception> inner=
+			new CacheLoader<String, Exception>() {
+				public String load() throws Exception {
+					// Loading the outer key from within its own load.
+					return cache.getOrLoad("outer",
+						new CacheLoader<String, Exception>() {
+							public String load() {
+								return "never";
+							}
+						}, 10000);
+				}
+			};
+		try {
+			cache.getOrLoad("outer", new CacheLoader<String, Exception>() {
+					public String load() throws Exception {
+						return "outer+" + cache.getOrLoad("inner", inner,
+							10000);
+					}
+				}, 10000);
+			fail("Allowed a recursive load");
+		} catch(IllegalStateException e) {
+			assertEquals("Recursive load of outer", e.getMessage());
+		}
+		assertNull(cache.get("outer"));
+		assertNull(cache.get("inner"));
+		// Loading other keys from a load is fine.
+		assertEquals("a+b", cache.getOrLoad("a",
+			new CacheLoader<String, Exception>() {
+				public String load() throws Exception {
+					return "a+" + cache.getOrLoad("b",
+						new CacheLoader<String, Exception>() {
+							public String load() {
+								return "b";
+							}
+						}, 10000);
+				}
+			}, 10000));
+	}
+
+	public void testGetOrLoadSoftly() throws Exception {
+		Object o=cache.getOrLoad("soft",
+			new CacheLoader<Object, RuntimeException>() {
+				public Object load() {
+					return "softly";
+				}
+			}, 10000, true);
+		assertEquals("softly", o);
+		assertEquals("softly", cache.get("soft"));
+	}
+
+	public void testGetOrLoadFailure() throws Exception {
+		try {
+			cache.getOrLoad("fail", new CacheLoader<String, Exception>() {
+					public String load() throws Exception {
+						throw new Exception("failed load");
+					}
+				}, 10000);
+			fail("Expected the load to fail");
+		} catch(Exception e) {
+			assertEquals("failed load", e.getMessage());
+		}
+		assertNull(cache.get("fail"));
+		// Null loads aren't cached either.
+		assertNull(cache.getOrLoad("fail",
+			new CacheLoader<String, RuntimeException>() {
+				public String load() {
+					return null;
+				}
+			}, 10000));
+		assertEquals("ok", cache.getOrLoad("fail",
+			new CacheLoader<String, RuntimeException>() {
+				public String load() {
+					return "ok";
+				}
+			}, 10000));
+	}
+
+	public void testStats() throws Exception {
+		CacheStats stats=cache.getStats();
+		assertEquals("SimpleCache", stats.getName());
+		assertTrue(Double.isNaN(stats.getHitRate()));
+		cache.setMaximumSize(10);
+		assertNull(cache.get("s"));
+		cache.store("s", "x", 10000);
+		assertEquals("x", cache.get("s"));
+		assertEquals(1, stats.getHits());
+		assertEquals(1, stats.getMisses());
+		assertEquals(0.5, stats.getHitRate(), 0.0001);
+		assertEquals(1, stats.getSize());
+		assertEquals(1, stats.getWeight());
+
+		assertEquals("y", cache.getOrLoad("t",
+			new CacheLoader<String, RuntimeException>() {
+				public String load() {
+					return "y";
+				}
+			}, 10000));
+		try {
+			cache.getOrLoad("u", new CacheLoader<String, Exception>() {
+					public String load() throws Exception {
+						throw new Exception("failed load");
+					}
+				}, 10000);
+			fail("Expected the load to fail");
+		} catch(Exception e) {
+			assertEquals("failed load", e.getMessage());
+		}
+		// A load is one miss, not another for the check after waiting.
+		assertEquals(3, stats.getMisses());
+		assertEquals(1, stats.getLoads());
+		assertEquals(1, stats.getLoadFailures());
+		assertEquals(2, stats.getLoadTime().getCount());
+
+		cache.store("short", "z", 10);
+		Thread.sleep(50);
+		assertNull(cache.get("short"));
+		cache.store("ref", new WeakReference<Object>(new Object()), 10000);
+		System.gc();
+		assertNull(cache.get("ref"));
+		for(int i=0; i<100; i++) {
+			cache.store("k" + i, i, 10000);
+		}
+		assertEquals(1, stats.getEvictions(EvictionCause.EXPIRED));
+		assertEquals(1, stats.getEvictions(EvictionCause.COLLECTED));
+		assertTrue(stats.getEvictions(EvictionCause.SIZE) > 0);
+		assertEquals(10, stats.getSize());
+
+		// Published stats
+		assertEquals(1, ((CounterStat)Stats.getStat(
+			"net.spy.cache.SimpleCache.hits")).getCount());
+		assertEquals(5, ((CounterStat)Stats.getStat(
+			"net.spy.cache.SimpleCache.misses")).getCount());
+		assertEquals(2, ((ComputingStat)Stats.getStat(
+			"net.spy.cache.SimpleCache.loads.time")).getCount());
+		assertEquals(10, ((GaugeStat)Stats.getStat(
+			"net.spy.cache.SimpleCache.size")).getValue());
+
+		cache.publishStats("other");
+		assertNotSame(stats, cache.getStats());
+		assertEquals(0, cache.getStats().getHits());
+		try {
+			cache.publishStats(null);
+			fail("Allowed a null name");
+		} catch(NullPointerException e) {
+			assertEquals("Invalid stats name <null>", e.getMessage());
+		}
+	}
+
+	public void testInvalidateTag() {
+		cache.store("q1", "one", 10000, "users", "groups");
+		cache.store("q2", "two", 10000, "users");
+		cache.store("q3", "three", 10000, "groups");
+		cache.invalidateTag("users");
+		assertNull(cache.get("q1"));
+		assertNull(cache.get("q2"));
+		assertEquals("three", cache.get("q3"));
+		cache.invalidateTag("nothing");
+		assertEquals("three", cache.get("q3"));
+		cache.remove("q3");
+		assertEquals(0, cache.tagIndex.size());
+	}
+
+	public void testTagsExpire() throws Exception {
+		cache.store("e1", "one", 100, "expiring");
+		cache.store("e2", "two", 10000, "lasting");
+		Thread.sleep(400);
+		assertEquals(1, cache.tagIndex.size());
+		assertTrue(cache.tagIndex.get("expiring").isEmpty());
+		assertEquals("two", cache.get("e2"));
+	}
+
+	public void testTagsEvicted() {
+		cache.setMaximumSize(10);
+		for(int i=0; i<100; i++) {
+			cache.store("t" + i, i, 10000, "tag" + i);
+		}
+		assertEquals(10, cache.size());
+		assertEquals(10, cache.tagIndex.size());
+		cache.setMaximumSize(0);
+	}
+
 	public void testClearing() {
 		String key="testKey";
 		assertNull("Shouldn't have a value for " + key, cache.get(key));
@@ -113,4 +416,79 @@ public class SimpleCacheTest extends TestCase {
 		assertNull(cache.get(key));
 	}
 
+
+	public void testSnapshot() throws Exception {
+		File f=File.createTempFile("simplecache", ".snapshot");
+		try {
+			cache.store("a", "1", Long.MAX_VALUE);
+			cache.store("b", new Integer(2), 60000);
+			cache.store("short", "gone", 50);
+			cache.store("soft", new SoftReference<Object>("3"), 60000);
+			String weak="4";
+			cache.store("weak", new WeakReference<Object>(weak), 60000);
+			cache.store("unserializable", new Object(), 60000);
+			assertEquals(5, cache.snapshot(f));
+			Thread.sleep(100);
+
+			// Values come back held the way they were stored.
+			final Map<String, Object> restored=
+				new ConcurrentHashMap<String, Object>();
+			new SnapshotFile(f).restore(1, new SnapshotFile.Sink() {
+				public boolean restore(String k, Object v, long e) {
+					restored.put(k, v);
+					return true;
+				}}).get(10, TimeUnit.SECONDS);
+			assertEquals("1", restored.get("a"));
+			assertEquals(new Integer(2), restored.get("b"));
+			assertTrue(restored.get("soft") instanceof SoftReference);
+			assertEquals("3", ((SoftReference<?>)restored.get("soft")).get());
+			assertTrue(restored.get("weak") instanceof WeakReference);
+			restored.clear();
+
+			SimpleCache.setInstance(null);
+			cache=SimpleCache.getInstance();
+			cache.store("a", "newer", 60000);
+			assertEquals(3, cache.restore(f, 2).get(10, TimeUnit.SECONDS)
+				.intValue());
+			assertEquals("newer", cache.get("a"));
+			assertEquals(new Integer(2), cache.get("b"));
+			assertEquals("3", cache.get("soft"));
+			assertNull(cache.get("short"));
+			assertNull(cache.get("unserializable"));
+			// Only weakly held after the restore, so it can be collected.
+			for(int i=0; i<100 && cache.get("weak") != null; i++) {
+				System.gc();
+				Thread.sleep(10);
+			}
+			assertNull(cache.get("weak"));
+		} finally {
+			f.delete();
+		}
+	}
+
+	public void testRestoreMissing() throws Exception {
+		File f=new File("/tmp/no-such-snapshot-" + System.nanoTime());
+		assertEquals(0, cache.restore(f, 1).get().intValue());
+	}
+
+	public void testLargeSnapshot() throws Exception {
+		File f=File.createTempFile("simplecache", ".snapshot");
+		try {
+			for(int i=0; i<5000; i++) {
+				cache.store("k" + i, new Object[]{"v", new Integer(i)},
+					60000);
+			}
+			cache.scheduleSnapshots(f, 10);
+			for(int i=0; i<100 && f.length() == 0; i++) {
+				Thread.sleep(10);
+			}
+			SimpleCache.setInstance(null);
+			cache=SimpleCache.getInstance();
+			assertEquals(5000, cache.restore(f, 4).get().intValue());
+			Object[] row=(Object[])cache.get("k4321");
+			assertEquals(new Integer(4321), row[1]);
+		} finally {
+			f.delete();
+		}
+	}
 }
@@ -0,0 +1,56 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.cache;
+
+import java.lang.ref.SoftReference;
+
+import junit.framework.TestCase;
+
+/**
+ * Test the size estimating weigher.
+ */
+public class SizeEstimatingWeigherTest extends TestCase {
+
+	private SizeEstimatingWeigher weigher=null;
+
+	@Override
+	protected void setUp() {
+		weigher=new SizeEstimatingWeigher();
+	}
+
+	public void testInvalidDefault() {
+		try {
+			SizeEstimatingWeigher w=new SizeEstimatingWeigher(-1);
+			fail("Allowed a negative default size:  " + w);
+		} catch(IllegalArgumentException e) {
+			assertEquals("Invalid default size:  -1", e.getMessage());
+		}
+	}
+
+	public void testStrings() {
+		int a=weigher.weigh("k", "a");
+		int b=weigher.weigh("k", "abcdefghijk");
+		assertEquals(20, b - a);
+	}
+
+	public void testBytes() {
+		int a=weigher.weigh("k", new byte[10]);
+		int b=weigher.weigh("k", new byte[1010]);
+		assertEquals(1000, b - a);
+	}
+
+	public void testReferences() {
+		byte[] bytes=new byte[1000];
+		int direct=weigher.weigh("k", bytes);
+		int ref=weigher.weigh("k", new SoftReference<byte[]>(bytes));
+		assertTrue(ref > direct);
+	}
+
+	public void testDefault() {
+		assertEquals(64, weigher.getDefaultSize());
+		int base=weigher.weigh("k", null);
+		assertEquals(64, weigher.weigh("k", new Object()) - base);
+		assertEquals(128,
+			new SizeEstimatingWeigher(128).weigh("k", new Object()) - base);
+	}
+}
@@ -0,0 +1,93 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.cache;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import net.spy.test.SyncThread;
+
+/**
+ * Test the tag index.
+ */
+public class TagIndexTest extends TestCase {
+
+	private TagIndex<Object> index=null;
+
+	@Override
+	protected void setUp() {
+		index=new TagIndex<Object>();
+	}
+
+	private void assertKeys(String tag, String... expected) {
+		assertEquals(new HashSet<String>(Arrays.asList(expected)),
+			index.get(tag).keySet());
+	}
+
+	public void testEmpty() {
+		assertKeys("a");
+		assertEquals(0, index.size());
+	}
+
+	public void testTagging() {
+		Object o1=new Object();
+		Object o2=new Object();
+		index.update("k1", o1, new String[]{"a", "b"});
+		index.update("k2", o2, new String[]{"b"});
+		assertKeys("a", "k1");
+		assertKeys("b", "k1", "k2");
+		assertSame(o1, index.get("a").get("k1"));
+		assertEquals(2, index.size());
+	}
+
+	public void testReplacement() {
+		Object o1=new Object();
+		Object o2=new Object();
+		index.update("k", o1, new String[]{"a", "b"});
+		index.update("k", o2, new String[]{"b", "c"});
+		assertKeys("a");
+		assertKeys("b", "k");
+		assertKeys("c", "k");
+		assertSame(o2, index.get("b").get("k"));
+		// Removing the replaced owner does nothing.
+		index.remove("k", o1);
+		assertKeys("b", "k");
+		// Untagged replacements drop the tags.
+		index.update("k", new Object(), new String[0]);
+		assertKeys("b");
+		assertEquals(0, index.size());
+	}
+
+	public void testRemoval() {
+		Object o=new Object();
+		index.update("k", o, new String[]{"a"});
+		index.remove("k", o);
+		assertKeys("a");
+		assertEquals(0, index.size());
+		// Removing something never indexed is harmless.
+		index.remove("x", o);
+	}
+
+	public void testConcurrentChurn() throws Throwable {
+		final AtomicInteger ids=new AtomicInteger(0);
+		SyncThread.getDistinctResultCount(8, new Callable<Object>() {
+			public Object call() throws Exception {
+				int id=ids.incrementAndGet();
+				for(int i=0; i<1000; i++) {
+					String key="k" + id + "_" + (i % 10);
+					Object o=new Object();
+					index.update(key, o, new String[]{"shared"});
+					index.remove(key, o);
+				}
+				index.update("last" + id, this, new String[]{"shared"});
+				return null;
+			}});
+		Map<String, Object> m=index.get("shared");
+		assertEquals(8, m.size());
+		assertEquals(1, index.size());
+	}
+}
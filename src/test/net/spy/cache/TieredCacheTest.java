@@ -0,0 +1,160 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.cache;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+import net.spy.util.PwGen;
+import net.spy.util.SpyUtil;
+
+/**
+ * Test the tiered cache.
+ */
+public class TieredCacheTest extends TestCase {
+
+	private File dir=null;
+	private DiskCache disk=null;
+	private SimpleCache memory=null;
+	private TieredCache cache=null;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir=new File("/tmp/tiertest-" + PwGen.getPass(16));
+		disk=new DiskCache(dir.getPath());
+		memory=new SimpleCache();
+		memory.setMaximumSize(10);
+		cache=new TieredCache(memory, disk);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		cache.shutdown();
+		memory.shutdown();
+		disk.close();
+		SpyUtil.rmDashR(dir);
+	}
+
+	public void testDemotion() throws Exception {
+		for(int i=0; i<50; i++) {
+			cache.store("k" + i, "v" + i, Long.MAX_VALUE);
+		}
+		assertTrue(memory.size() <= 10);
+		assertEquals(50, memory.size() + disk.size());
+		assertEquals(disk.size(), cache.getDemotions());
+		cache.setPromotionPolicy(TieredCache.PromotionPolicy.NEVER);
+		for(int i=0; i<50; i++) {
+			assertEquals("v" + i, cache.get("k" + i));
+		}
+		assertEquals(50, cache.getMemoryHits() + cache.getDiskHits());
+		assertEquals(cache.getDiskHits(), cache.getMemoryMisses());
+		assertEquals(0, cache.getDiskMisses());
+		assertEquals(0, cache.getPromotions());
+		assertNull(cache.get("missing"));
+		assertEquals(1, cache.getDiskMisses());
+	}
+
+	public void testPromotion() throws Exception {
+		disk.put("k", "v");
+		assertEquals("v", cache.get("k"));
+		assertEquals(1, cache.getPromotions());
+		assertFalse(disk.containsKey("k"));
+		assertEquals("v", memory.get("k"));
+		assertEquals("v", cache.get("k"));
+		assertEquals(1, cache.getMemoryHits());
+		assertEquals(1, cache.getDiskHits());
+	}
+
+	public void testRepeatedPromotion() throws Exception {
+		cache.setPromotionPolicy(TieredCache.PromotionPolicy.REPEATED);
+		disk.put("k", "v");
+		assertEquals("v", cache.get("k"));
+		assertEquals(0, cache.getPromotions());
+		assertTrue(disk.containsKey("k"));
+		assertEquals("v", cache.get("k"));
+		assertEquals(1, cache.getPromotions());
+		assertFalse(disk.containsKey("k"));
+	}
+
+	public void testTimeoutsCarry() throws Exception {
+		disk.put("k", "v", 50);
+		assertEquals("v", cache.get("k"));
+		assertEquals(1, cache.getPromotions());
+		Thread.sleep(100);
+		assertNull(cache.get("k"));
+	}
+
+	public void testStoreReplacesDisk() throws Exception {
+		disk.put("k", "old");
+		cache.store("k", "new", Long.MAX_VALUE);
+		assertFalse(disk.containsKey("k"));
+		assertEquals("new", cache.get("k"));
+		assertEquals("new", cache.remove("k"));
+		assertNull(cache.get("k"));
+		disk.put("k", "disk");
+		assertEquals("disk", cache.remove("k"));
+		assertFalse(disk.containsKey("k"));
+	}
+
+	public void testUnserializableDropped() throws Exception {
+		for(int i=0; i<50; i++) {
+			cache.store("k" + i, new Object(), Long.MAX_VALUE);
+		}
+		assertEquals(0, disk.size());
+		assertEquals(0, cache.getDemotions());
+	}
+
+	public void testRemoveBeforeDemotion() throws Exception {
+		for(int i=0; i<10; i++) {
+			cache.store("k" + i, "v" + i, Long.MAX_VALUE);
+		}
+		// Evict something without demoting it.
+		memory.store("k10", "v10", Long.MAX_VALUE);
+		for(int i=0; i<=10; i++) {
+			assertEquals("v" + i, cache.get("k" + i));
+		}
+		for(int i=0; i<=10; i++) {
+			assertEquals("v" + i, cache.remove("k" + i));
+		}
+		cache.demote();
+		assertEquals(0, disk.size());
+		assertEquals(0, memory.size());
+	}
+
+	public void testConcurrentRemoves() throws Exception {
+		Thread[] threads=new Thread[4];
+		for(int t=0; t<threads.length; t++) {
+			final String prefix="t" + t + ".";
+			threads[t]=new Thread() {
+				@Override
+				public void run() {
+					for(int i=0; i<2000; i++) {
+						cache.store(prefix + i, "v", Long.MAX_VALUE);
+						if(i >= 5) {
+							cache.remove(prefix + (i - 5));
+						}
+					}
+					for(int i=1995; i<2000; i++) {
+						cache.remove(prefix + i);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for(Thread t : threads) {
+			t.join();
+		}
+		cache.demote();
+		assertEquals(0, disk.size());
+		assertEquals(0, memory.size());
+	}
+
+	public void testInvalidSize() throws Exception {
+		try {
+			TieredCache tc=new TieredCache(0, disk);
+			fail("Allowed a zero size memory tier:  " + tc);
+		} catch(IllegalArgumentException e) {
+			assertEquals("Invalid maximum size:  0", e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,131 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.cache;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Test the timing wheel.
+ */
+public class TimingWheelTest extends TestCase {
+
+	private long now=0;
+	private TimingWheel<Item> wheel=null;
+
+	@Override
+	protected void setUp() {
+		now=System.currentTimeMillis();
+		wheel=new TimingWheel<Item>(10, 8);
+	}
+
+	public void testInvalidConstruction() {
+		try {
+			TimingWheel<Item> w=new TimingWheel<Item>(0, 8);
+			fail("Allowed a zero tick:  " + w);
+		} catch(IllegalArgumentException e) {
+			assertEquals("Invalid tick:  0", e.getMessage());
+		}
+		try {
+			TimingWheel<Item> w=new TimingWheel<Item>(10, 0);
+			fail("Allowed an empty wheel:  " + w);
+		} catch(IllegalArgumentException e) {
+			assertEquals("Invalid wheel size:  0", e.getMessage());
+		}
+	}
+
+	public void testExpiration() {
+		Item a=new Item(now + 25);
+		Item b=new Item(now + 55);
+		wheel.schedule(a, a.getExpiration());
+		wheel.schedule(b, b.getExpiration());
+
+		assertTrue(wheel.advance(now + 10).isEmpty());
+		List<Item> expired=wheel.advance(now + 30);
+		assertEquals(1, expired.size());
+		assertSame(a, expired.get(0));
+		expired=wheel.advance(now + 60);
+		assertEquals(1, expired.size());
+		assertSame(b, expired.get(0));
+		assertTrue(wheel.advance(now + 100).isEmpty());
+	}
+
+	public void testBeyondOneRevolution() {
+		// The wheel only covers 80ms, so this has to be carried around.
+		Item a=new Item(now + 500);
+		wheel.schedule(a, a.getExpiration());
+		for(long t=now; t < now + 500; t+=10) {
+			assertTrue("Expired early at " + (t - now),
+				wheel.advance(t).isEmpty());
+		}
+		List<Item> expired=wheel.advance(now + 510);
+		assertEquals(1, expired.size());
+		assertSame(a, expired.get(0));
+	}
+
+	public void testLongIdle() {
+		Item a=new Item(now + 500);
+		wheel.schedule(a, a.getExpiration());
+		List<Item> expired=wheel.advance(now + 5000);
+		assertEquals(1, expired.size());
+		assertSame(a, expired.get(0));
+	}
+
+	public void testScheduleInThePast() {
+		wheel.advance(now + 100);
+		Item a=new Item(now);
+		wheel.schedule(a, a.getExpiration());
+		List<Item> expired=wheel.advance(now + 120);
+		assertEquals(1, expired.size());
+		assertSame(a, expired.get(0));
+	}
+
+	public void testCancel() {
+		Item a=new Item(now + 25);
+		Item b=new Item(now + 25);
+		TimingWheel.Node<Item> na=wheel.schedule(a, a.getExpiration());
+		TimingWheel.Node<Item> nb=wheel.schedule(b, b.getExpiration());
+		assertTrue(wheel.cancel(na));
+		assertFalse(wheel.cancel(na));
+		List<Item> expired=wheel.advance(now + 40);
+		assertEquals(1, expired.size());
+		assertSame(b, expired.get(0));
+		assertFalse(wheel.cancel(nb));
+	}
+
+	public void testCancelCarried() {
+		Item a=new Item(now + 500);
+		Item b=new Item(now + 500);
+		TimingWheel.Node<Item> na=wheel.schedule(a, a.getExpiration());
+		wheel.schedule(b, b.getExpiration());
+		// Carry them around once, then cancel one from its new slot.
+		assertTrue(wheel.advance(now + 80).isEmpty());
+		assertTrue(wheel.cancel(na));
+		List<Item> expired=wheel.advance(now + 510);
+		assertEquals(1, expired.size());
+		assertSame(b, expired.get(0));
+	}
+
+	public void testCancelledWhileCarried() {
+		Item a=new Item(now + 500);
+		TimingWheel.Node<Item> na=wheel.schedule(a, a.getExpiration());
+		// Cancelled after being taken off one slot, before being put on
+		// the next.
+		na.cancelled=true;
+		assertTrue(wheel.advance(now + 80).isEmpty());
+		assertNull(na.slot);
+		assertTrue(wheel.advance(now + 510).isEmpty());
+	}
+
+	private static final class Item implements TimingWheel.Timed {
+		private final long exp;
+		public Item(long e) {
+			super();
+			exp=e;
+		}
+		public long getExpiration() {
+			return exp;
+		}
+	}
+}
@@ -0,0 +1,163 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.cache;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import junit.framework.TestCase;
+import net.spy.test.SyncThread;
+
+/**
+ * Test the window TinyLFU policy and its frequency sketch.
+ */
+public class TinyLfuPolicyTest extends TestCase {
+
+	public void testInvalidMaximum() {
+		try {
+			TinyLfuPolicy<String> p=new TinyLfuPolicy<String>(0);
+			fail("Allowed a zero maximum:  " + p);
+		} catch(IllegalArgumentException e) {
+			assertEquals("Invalid maximum size:  0", e.getMessage());
+		}
+	}
+
+	public void testSketch() {
+		FrequencySketch fs=new FrequencySketch(100);
+		assertEquals(0, fs.frequency("a"));
+		for(int i=0; i<5; i++) {
+			fs.increment("a");
+		}
+		assertEquals(5, fs.frequency("a"));
+		// Counters saturate rather than wrap.
+		for(int i=0; i<50; i++) {
+			fs.increment("b");
+		}
+		assertEquals(15, fs.frequency("b"));
+	}
+
+	public void testSketchAging() {
+		FrequencySketch fs=new FrequencySketch(10);
+		for(int i=0; i<8; i++) {
+			fs.increment("hot");
+		}
+		assertEquals(8, fs.frequency("hot"));
+		// Enough distinct additions to trigger a reset.
+		for(int i=0; i<200; i++) {
+			fs.increment("cold" + i);
+		}
+		assertTrue(fs.frequency("hot") < 8);
+	}
+
+	public void testSketchGrowth() {
+		FrequencySketch fs=new FrequencySketch(4);
+		for(int i=0; i<10; i++) {
+			for(int j=0; j<=i % 5; j++) {
+				fs.increment("k" + i);
+			}
+		}
+		int[] before=new int[10];
+		for(int i=0; i<before.length; i++) {
+			before[i]=fs.frequency("k" + i);
+		}
+		fs.ensureCapacity(1000);
+		for(int i=0; i<before.length; i++) {
+			assertEquals("k" + i, before[i], fs.frequency("k" + i));
+		}
+		// Smaller doesn't shrink it.
+		fs.ensureCapacity(2);
+		assertEquals(before[3], fs.frequency("k3"));
+	}
+
+	public void testGrowthKeepsFrequencies() {
+		TinyLfuPolicy<String> p=new TinyLfuPolicy<String>(10000);
+		p.recordWrite("hot");
+		for(int i=0; i<10; i++) {
+			p.recordAccess("hot");
+		}
+		// Enough keys to grow the sketch several times over.
+		for(int i=0; i<1000; i++) {
+			p.recordWrite("k" + i);
+		}
+		assertTrue(p.sketchFrequency("hot") > 5);
+	}
+
+	public void testConcurrentReads() throws Throwable {
+		final TinyLfuPolicy<Integer> p=new TinyLfuPolicy<Integer>(100);
+		for(int i=0; i<100; i++) {
+			p.recordWrite(i);
+		}
+		SyncThread.getDistinctResultCount(8, new Callable<Object>() {
+			public Object call() throws Exception {
+				for(int i=0; i<10000; i++) {
+					p.recordAccess(i % 100);
+					if(i % 100 == 0) {
+						p.recordWrite(1000 + i);
+					}
+				}
+				return null;
+			}});
+		assertTrue(p.size() <= 100);
+		assertEquals(p.size(), p.weight());
+	}
+
+	public void testBounded() {
+		TinyLfuPolicy<Integer> p=new TinyLfuPolicy<Integer>(100);
+		Set<Integer> present=new HashSet<Integer>();
+		for(int i=0; i<1000; i++) {
+			present.add(i);
+			present.removeAll(p.recordWrite(i));
+			assertTrue(p.size() <= 100);
+		}
+		assertEquals(100, p.size());
+		assertEquals(100, present.size());
+	}
+
+	public void testScanResistance() {
+		TinyLfuPolicy<String> p=new TinyLfuPolicy<String>(100);
+		Set<String> present=new HashSet<String>();
+		// Establish a hot working set.
+		for(int i=0; i<50; i++) {
+			String k="hot" + i;
+			present.add(k);
+			present.removeAll(p.recordWrite(k));
+		}
+		for(int round=0; round<5; round++) {
+			for(int i=0; i<50; i++) {
+				p.recordAccess("hot" + i);
+			}
+		}
+		// Now a long scan of one-hit wonders while the hot set stays in use.
+		for(int i=0; i<10000; i++) {
+			String k="scan" + i;
+			present.add(k);
+			present.removeAll(p.recordWrite(k));
+			if(i % 100 == 0) {
+				for(int j=0; j<50; j++) {
+					p.recordAccess("hot" + j);
+				}
+			}
+		}
+		for(int i=0; i<50; i++) {
+			assertTrue("Lost hot" + i, present.contains("hot" + i));
+		}
+	}
+
+	public void testRemoval() {
+		TinyLfuPolicy<String> p=new TinyLfuPolicy<String>(10);
+		p.recordWrite("a");
+		assertEquals(1, p.size());
+		p.recordRemoval("a");
+		assertEquals(0, p.size());
+		// Removing something unknown is fine.
+		p.recordRemoval("b");
+		assertEquals(0, p.size());
+		List<String> evicted=p.recordWrite("a");
+		assertTrue(evicted.isEmpty());
+		// Rewriting a known key doesn't add anything.
+		p.recordWrite("a");
+		assertEquals(1, p.size());
+	}
+}
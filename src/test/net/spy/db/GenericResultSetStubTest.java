@@ -0,0 +1,269 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.db;
+
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+
+import org.jmock.Mock;
+import org.jmock.MockObjectTestCase;
+import org.jmock.core.Stub;
+import org.jmock.core.stub.StubSequence;
+
+/**
+ * Test the columnar storage of GenericResultSetStub.
+ */
+public class GenericResultSetStubTest extends MockObjectTestCase {
+
+	private ResultSet getResultSet(int[] types, Object[][] rows) {
+		Mock rsmd=mock(ResultSetMetaData.class);
+		rsmd.stubs().method("getColumnCount").will(returnValue(types.length));
+		for(int i=0; i<types.length; i++) {
+			rsmd.stubs().method("getColumnName").with(eq(i + 1))
+				.will(returnValue("col" + (i + 1)));
+			rsmd.stubs().method("getColumnType").with(eq(i + 1))
+				.will(returnValue(types[i]));
+		}
+
+		Mock rs=mock(ResultSet.class);
+		rs.stubs().method("getMetaData").will(returnValue(rsmd.proxy()));
+		ArrayList<Stub> nexts=new ArrayList<Stub>();
+		for(int i=0; i<rows.length; i++) {
+			nexts.add(returnValue(true));
+		}
+		nexts.add(returnValue(false));
+		rs.stubs().method("next").will(new StubSequence(nexts));
+		for(int i=0; i<types.length; i++) {
+			ArrayList<Stub> values=new ArrayList<Stub>();
+			for(Object[] row : rows) {
+				values.add(returnValue(row[i]));
+			}
+			rs.stubs().method("getObject").with(eq(i + 1))
+				.will(new StubSequence(values));
+		}
+		rs.stubs().method("wasNull").will(returnValue(false));
+		return (ResultSet)rs.proxy();
+	}
+
+	private CachedResultSetStub getStub() throws SQLException {
+		return new CachedResultSetStub(getResultSet(
+			new int[]{Types.INTEGER, Types.BIGINT, Types.DOUBLE,
+				Types.VARCHAR},
+			new Object[][]{
+				{new Integer(1), new Long(10), new Double(1.5), "a"},
+				{null, null, null, null},
+				{new Integer(-3), new Long(Long.MAX_VALUE),
+					new Double(-2.25), "c"}}));
+	}
+
+	public void testPrimitiveColumns() throws Exception {
+		CachedResultSetStub rs=getStub();
+		assertEquals(3, rs.getNumRows());
+		assertEquals(4, rs.getNumColumns());
+
+		assertTrue(rs.next());
+		assertEquals(1, rs.getInt(1));
+		assertFalse(rs.wasNull());
+		assertEquals(new Integer(1), rs.getObject("col1"));
+		assertEquals("1", rs.getString(1));
+		assertEquals(1.0d, rs.getDouble(1));
+		assertEquals(10L, rs.getLong(2));
+		assertEquals(new Long(10), rs.getObject(2));
+		assertEquals(10, rs.getInt("col2"));
+		assertEquals(1.5d, rs.getDouble(3));
+		assertEquals(1.5f, rs.getFloat(3));
+		assertEquals(new Double(1.5), rs.getObject(3));
+		assertEquals("1.5", rs.getString(3));
+		assertEquals("a", rs.getString(4));
+
+		assertTrue(rs.next());
+		for(int i=1; i<=4; i++) {
+			assertNull(rs.getObject(i));
+			assertTrue(rs.wasNull());
+		}
+		assertEquals(0, rs.getInt(1));
+		assertTrue(rs.wasNull());
+		assertEquals(0L, rs.getLong(2));
+		assertEquals(0.0d, rs.getDouble(3));
+		assertNull(rs.getString(2));
+
+		assertTrue(rs.next());
+		assertEquals(-3, rs.getInt(1));
+		assertEquals(-3L, rs.getLong(1));
+		assertEquals((short)-3, rs.getShort(1));
+		assertEquals(Long.MAX_VALUE, rs.getLong(2));
+		assertEquals(-2.25d, rs.getDouble(3));
+		assertEquals("c", rs.getObject(4));
+
+		assertFalse(rs.next());
+	}
+
+	public void testErrors() throws Exception {
+		CachedResultSetStub rs=getStub();
+		try {
+			fail("Got a value with no current row:  " + rs.getInt(1));
+		} catch(SQLException e) {
+			assertEquals("No current result.", e.getMessage());
+		}
+		assertTrue(rs.next());
+		try {
+			fail("Got column 5:  " + rs.getInt(5));
+		} catch(SQLException e) {
+			assertEquals("There are only 4 columns in this set.",
+				e.getMessage());
+		}
+		try {
+			fail("Got a string as a number:  " + rs.getInt(4));
+		} catch(SQLException e) {
+			assertTrue(e.getMessage(),
+				e.getMessage().startsWith("Error getting Number value:  "));
+		}
+	}
+
+	public void testUnexpectedClass() throws Exception {
+		// The driver says INTEGER but returns something else partway in.
+		CachedResultSetStub rs=new CachedResultSetStub(getResultSet(
+			new int[]{Types.INTEGER},
+			new Object[][]{{new Integer(1)}, {null},
+				{new BigDecimal("2.5")}}));
+		assertTrue(rs.next());
+		assertEquals(new Integer(1), rs.getObject(1));
+		assertTrue(rs.next());
+		assertNull(rs.getObject(1));
+		assertTrue(rs.wasNull());
+		assertTrue(rs.next());
+		assertEquals(new BigDecimal("2.5"), rs.getObject(1));
+		assertEquals(2, rs.getInt(1));
+		assertEquals(2.5d, rs.getDouble(1));
+	}
+
+	public void testCopies() throws Exception {
+		CachedResultSetStub rs=getStub();
+		CachedResultSetStub c1=rs.newCopy();
+		CachedResultSetStub c2=rs.newCopy();
+		assertEquals(2, rs.numCopies());
+		assertTrue(c1.next());
+		assertTrue(c1.next());
+		assertTrue(c2.next());
+		assertEquals(1, c2.getInt(1));
+		assertTrue(c1.next());
+		assertEquals(-3, c1.getInt(1));
+		assertFalse(c1.next());
+		assertTrue(c2.next());
+		assertEquals(0, c2.getInt(1));
+		assertTrue(c2.wasNull());
+	}
+
+	public void testPrimitivesWeighLess() throws Exception {
+		Object[][] rows=new Object[100][];
+		for(int i=0; i<rows.length; i++) {
+			rows[i]=new Object[]{new Integer(i)};
+		}
+		ResultSetWeigher w=new ResultSetWeigher();
+		int ints=w.weigh("k", new CachedResultSetStub(
+			getResultSet(new int[]{Types.INTEGER}, rows)));
+		int objects=w.weigh("k", new CachedResultSetStub(
+			getResultSet(new int[]{Types.NUMERIC}, rows)));
+		assertTrue(ints + " should be less than " + objects, ints < objects);
+	}
+
+	private Object[][] getLabels(int rows, int distinct) {
+		Object[][] rv=new Object[rows][];
+		for(int i=0; i<rows; i++) {
+			rv[i]=new Object[]{i % 10 == 0 ? null : "label" + (i % distinct)};
+		}
+		return rv;
+	}
+
+	private int weigh(GenericResultSetStub rs) {
+		return new ResultSetWeigher().weigh("k", rs);
+	}
+
+	public void testDictionaryEncoding() throws Exception {
+		int[] types={Types.VARCHAR};
+		Object[][] rows=getLabels(100, 3);
+		CachedResultSetStub plain=new CachedResultSetStub(
+			getResultSet(types, rows));
+		CachedResultSetStub encoded=new CachedResultSetStub(
+			getResultSet(types, rows), 16);
+		for(int i=0; i<rows.length; i++) {
+			assertTrue(plain.next());
+			assertTrue(encoded.next());
+			assertEquals(rows[i][0], encoded.getObject(1));
+			assertEquals(rows[i][0], encoded.getString("col1"));
+			assertEquals(plain.getString(1), encoded.getString(1));
+			assertEquals(rows[i][0] == null, encoded.wasNull());
+		}
+		assertFalse(encoded.next());
+		assertTrue(weigh(encoded) + " should be less than " + weigh(plain),
+			weigh(encoded) < weigh(plain));
+
+		// Copies share the dictionary.
+		CachedResultSetStub copy=encoded.newCopy();
+		copy.resetResults();
+		assertTrue(copy.next());
+		assertNull(copy.getString(1));
+		assertTrue(copy.next());
+		assertEquals("label1", copy.getString(1));
+	}
+
+	public void testDictionaryTooSmall() throws Exception {
+		int[] types={Types.VARCHAR};
+		// More distinct values than allowed
+		assertEquals(
+			weigh(new CachedResultSetStub(getResultSet(types,
+				getLabels(100, 20)))),
+			weigh(new CachedResultSetStub(getResultSet(types,
+				getLabels(100, 20)), 16)));
+		// Too many distinct values for the number of rows
+		assertEquals(
+			weigh(new CachedResultSetStub(getResultSet(types,
+				getLabels(10, 9)))),
+			weigh(new CachedResultSetStub(getResultSet(types,
+				getLabels(10, 9)), 16)));
+	}
+
+	public void testDictionaryMixedClasses() throws Exception {
+		long now=System.currentTimeMillis();
+		Object[][] rows=new Object[][]{
+			{new java.util.Date(now)}, {new java.sql.Timestamp(now)},
+			{new java.util.Date(now)}, {new java.util.Date(now)}};
+		CachedResultSetStub rs=new CachedResultSetStub(
+			getResultSet(new int[]{Types.TIMESTAMP}, rows), 16);
+		for(int i=0; i<rows.length; i++) {
+			assertTrue(rs.next());
+			assertSame(rows[i][0].getClass(), rs.getObject(1).getClass());
+		}
+	}
+
+	public void testPrimitivesNotEncoded() throws Exception {
+		int[] types={Types.INTEGER};
+		Object[][] rows=new Object[100][];
+		for(int i=0; i<rows.length; i++) {
+			rows[i]=new Object[]{new Integer(i % 2)};
+		}
+		CachedResultSetStub rs=new CachedResultSetStub(
+			getResultSet(types, rows), 16);
+		assertEquals(weigh(new CachedResultSetStub(getResultSet(types, rows))),
+			weigh(rs));
+		assertTrue(rs.next());
+		assertTrue(rs.next());
+		assertEquals(1, rs.getInt(1));
+	}
+
+	public void testInvalidDictionarySize() throws Exception {
+		for(int i : new int[]{-1, 65537}) {
+			try {
+				CachedResultSetStub rs=new CachedResultSetStub(
+					getResultSet(new int[]{Types.VARCHAR}, getLabels(4, 2)), i);
+				fail("Allowed dictionary size " + i + ":  " + rs);
+			} catch(IllegalArgumentException e) {
+				assertEquals("Invalid dictionary size:  " + i, e.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,68 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.db;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Types;
+import java.util.ArrayList;
+
+import org.jmock.Mock;
+import org.jmock.MockObjectTestCase;
+import org.jmock.core.Stub;
+import org.jmock.core.stub.StubSequence;
+
+/**
+ * Test the result set weigher.
+ */
+public class ResultSetWeigherTest extends MockObjectTestCase {
+
+	private ResultSet getResultSet(int rows) {
+		Mock rsmd=mock(ResultSetMetaData.class);
+		rsmd.stubs().method("getColumnCount").will(returnValue(3));
+		rsmd.stubs().method("getColumnName").will(returnValue("col"));
+		rsmd.stubs().method("getColumnType").will(returnValue(Types.VARCHAR));
+
+		Mock rs=mock(ResultSet.class);
+		rs.stubs().method("getMetaData").will(returnValue(rsmd.proxy()));
+		ArrayList<Stub> nexts=new ArrayList<Stub>();
+		for(int i=0; i<rows; i++) {
+			nexts.add(returnValue(true));
+		}
+		nexts.add(returnValue(false));
+		rs.stubs().method("next").will(new StubSequence(nexts));
+		rs.stubs().method("getObject").will(returnValue("x"));
+		rs.stubs().method("wasNull").will(returnValue(false));
+		return (ResultSet)rs.proxy();
+	}
+
+	public void testCounts() throws Exception {
+		CachedResultSetStub crs=new CachedResultSetStub(getResultSet(5));
+		assertEquals(5, crs.getNumRows());
+		assertEquals(3, crs.getNumColumns());
+	}
+
+	public void testWeights() throws Exception {
+		ResultSetWeigher w=new ResultSetWeigher();
+		int small=w.weigh("k", new CachedResultSetStub(getResultSet(1)));
+		int big=w.weigh("k", new CachedResultSetStub(getResultSet(100)));
+		assertTrue(small > 0);
+		// Each row costs a reference and an assumed cell per column.
+		assertEquals(99 * 3 * (8 + 32), big - small);
+		// Each column also has a fixed array overhead, so one row weighs
+		// a little more relative to a hundred than it did as a row array.
+		assertTrue("Expected " + big + " to be much bigger than " + small,
+			big > small * 40);
+		// Other things are handled by the parent.
+		assertEquals(w.weigh("k", "abc") - w.weigh("k", "a"), 4);
+	}
+
+	public void testInvalidCellSize() {
+		try {
+			ResultSetWeigher w=new ResultSetWeigher(-1);
+			fail("Allowed a negative cell size:  " + w);
+		} catch(IllegalArgumentException e) {
+			assertEquals("Invalid cell size:  -1", e.getMessage());
+		}
+	}
+}
@@ -3,12 +3,14 @@
 
 package net.spy.db;
 
+import java.math.BigDecimal;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Types;
 import java.util.Map;
 
 import net.spy.db.sp.SelectPrimaryKey;
@@ -129,6 +131,220 @@ public class SPTTest extends MockObjectTestCase {
 		testCallSequence(new boolean[] { false, true });
 	}
 
+	/**
+	 * Test handing rows to a RowHandler as they're read.
+	 */
+	public void testStreaming() throws Exception {
+		stMock.expects(once()).method("setQueryTimeout");
+		stMock.expects(once()).method("setMaxRows");
+		stMock.expects(once()).method("setFetchSize").with(eq(50));
+
+		BooleanTest bt = new BooleanTest(conn);
+		bt.setFetchSize(50);
+		assertEquals(50, bt.getFetchSize());
+		bt.setABoolean(true);
+
+		connMock.expects(once())
+				.method("prepareStatement")
+				.will(returnValue(stMock.proxy()));
+		Mock mdMock=mock(DatabaseMetaData.class);
+		mdMock.stubs()
+			.method("getDatabaseProductName")
+			.will(returnValue("Unknown database"));
+		connMock.stubs()
+				.method("getMetaData")
+				.will(returnValue(mdMock.proxy()));
+
+		Mock rsmdMock=mock(ResultSetMetaData.class);
+		rsmdMock.stubs().method("getColumnCount").will(returnValue(1));
+		rsmdMock.stubs().method("getColumnName").will(
+			returnValue("a_boolean"));
+		rsmdMock.stubs().method("getColumnTypeName").will(returnValue("BIT"));
+		Mock rsMock = mock(ResultSet.class);
+		rsMock.stubs().method("getMetaData").will(
+			returnValue(rsmdMock.proxy()));
+		rsMock.stubs().method("next").will(returnValue(true));
+		rsMock.stubs().method("getBoolean").with(eq(1))
+			.will(returnValue(true));
+		rsMock.expects(once()).method("close");
+		stMock.expects(once()).method("setBoolean").with(eq(1), eq(true));
+		stMock.expects(once())
+			  .method("executeQuery")
+			  .will(returnValue(rsMock.proxy()));
+
+		// Stop after the second row
+		final int[] seen={0};
+		int rows=bt.executeQuery(new RowHandler() {
+			public boolean handleRow(ResultSet rs) throws SQLException {
+				assertTrue(rs.getBoolean(1));
+				return ++seen[0] < 2;
+			}
+		});
+		assertEquals(2, rows);
+		assertEquals(2, seen[0]);
+
+		try {
+			bt.executeQuery((RowHandler)null);
+			fail("Accepted a null handler");
+		} catch(NullPointerException e) {
+			assertEquals("Invalid handler <null>", e.getMessage());
+		}
+
+		stMock.expects(once()).method("close");
+		bt.close();
+	}
+
+	/**
+	 * Test running the same instance and statement again after a reset.
+	 */
+	public void testResetAndRebind() throws Exception {
+		stMock.expects(once()).method("setQueryTimeout");
+		stMock.expects(once()).method("setMaxRows");
+
+		BooleanTest bt = new BooleanTest(conn);
+
+		// The statement is only prepared once.
+		connMock.expects(once())
+				.method("prepareStatement")
+				.will(returnValue(stMock.proxy()));
+		Mock mdMock=mock(DatabaseMetaData.class);
+		mdMock.stubs()
+			.method("getDatabaseProductName")
+			.will(returnValue("Unknown database"));
+		connMock.stubs()
+				.method("getMetaData")
+				.will(returnValue(mdMock.proxy()));
+
+		Mock rsmdMock=mock(ResultSetMetaData.class);
+		rsmdMock.stubs().method("getColumnCount").will(returnValue(1));
+		rsmdMock.stubs().method("getColumnName").will(
+			returnValue("a_boolean"));
+		rsmdMock.stubs().method("getColumnTypeName").will(returnValue("BIT"));
+		Mock rsMock = mock(ResultSet.class);
+		rsMock.stubs().method("getMetaData").will(
+			returnValue(rsmdMock.proxy()));
+		stMock.stubs()
+			  .method("executeQuery")
+			  .will(returnValue(rsMock.proxy()));
+
+		stMock.expects(once()).method("setBoolean").with(eq(1), eq(true));
+		bt.setABoolean(true);
+		bt.executeQuery();
+
+		stMock.expects(once()).method("clearParameters");
+		bt.reset();
+		try {
+			bt.executeQuery();
+			fail("Ran without the required argument");
+		} catch(SQLException e) {
+			assertTrue(e.getMessage(),
+				e.getMessage().startsWith("Required argument "));
+		}
+
+		stMock.expects(once()).method("setBoolean").with(eq(1), eq(false));
+		bt.setABoolean(false);
+		bt.executeQuery();
+
+		// Instances of a class share a binding plan.
+		BooleanTest other = new BooleanTest(conn);
+		assertSame(BindingPlan.get(BooleanTest.class, bt.getParameters()),
+			BindingPlan.get(BooleanTest.class, other.getParameters()));
+
+		stMock.expects(once()).method("close");
+		bt.close();
+	}
+
+	/**
+	 * Test a reset DBSP checks its arguments on every run and rebuilds its
+	 * statement when the optional arguments change.
+	 */
+	public void testResetWithOptionalArgs() throws Exception {
+		Mock st2Mock=mock(PreparedStatement.class);
+		stMock.stubs().method("setQueryTimeout");
+		stMock.stubs().method("setMaxRows");
+		st2Mock.stubs().method("setQueryTimeout");
+		st2Mock.stubs().method("setMaxRows");
+
+		OptionalArgSP sp=new OptionalArgSP(conn);
+
+		connMock.expects(once())
+				.method("prepareStatement")
+				.with(eq("exec test_sp \t@a=?"))
+				.will(returnValue(stMock.proxy()));
+		stMock.expects(once()).method("setInt").with(eq(1), eq(1));
+		stMock.expects(once()).method("executeUpdate")
+			.will(returnValue(1));
+		sp.set("a", 1);
+		assertEquals(1, sp.executeUpdate());
+
+		// Same arguments, same statement.
+		stMock.expects(once()).method("clearParameters");
+		sp.reset();
+		stMock.expects(once()).method("setInt").with(eq(1), eq(2));
+		stMock.expects(once()).method("executeUpdate")
+			.will(returnValue(1));
+		sp.set("a", 2);
+		assertEquals(1, sp.executeUpdate());
+
+		// The required argument is still checked.
+		stMock.expects(once()).method("clearParameters");
+		sp.reset();
+		try {
+			sp.executeUpdate();
+			fail("Ran without the required argument");
+		} catch(SQLException e) {
+			assertTrue(e.getMessage(),
+				e.getMessage().startsWith("Required argument "));
+		}
+
+		// An optional argument needs a new statement.
+		stMock.expects(once()).method("close");
+		connMock.expects(once())
+				.method("prepareStatement")
+				.with(eq("exec test_sp \t@a=?,\n\t@b=?"))
+				.will(returnValue(st2Mock.proxy()));
+		st2Mock.expects(once()).method("setInt").with(eq(1), eq(3));
+		st2Mock.expects(once()).method("setString").with(eq(2), eq("x"));
+		st2Mock.expects(once()).method("executeUpdate")
+			.will(returnValue(1));
+		sp.set("a", 3);
+		sp.set("b", "x");
+		assertEquals(1, sp.executeUpdate());
+
+		st2Mock.expects(once()).method("close");
+		sp.close();
+	}
+
+	/**
+	 * Test the binders for each type.
+	 */
+	public void testBinders() throws Exception {
+		PreparedStatement pst=(PreparedStatement)stMock.proxy();
+		stMock.expects(once()).method("setInt").with(eq(1), eq(13));
+		BindingPlan.Binder.forType(Types.INTEGER).bind(pst, 1, 13);
+		stMock.expects(once()).method("setLong").with(eq(2), eq(13L));
+		BindingPlan.Binder.forType(Types.BIGINT).bind(pst, 2, 13L);
+		stMock.expects(once()).method("setShort")
+			.with(eq(3), eq((short)2));
+		BindingPlan.Binder.forType(Types.TINYINT).bind(pst, 3, 2);
+		stMock.expects(once()).method("setString").with(eq(4), eq("x"));
+		BindingPlan.Binder.forType(Types.VARCHAR).bind(pst, 4, "x");
+		stMock.expects(once()).method("setBigDecimal")
+			.with(eq(5), eq(new BigDecimal("1.5000")));
+		BindingPlan.Binder.forType(Types.DECIMAL).bind(pst, 5,
+			new BigDecimal("1.5"));
+		stMock.expects(once()).method("setNull")
+			.with(eq(6), eq(Types.VARCHAR));
+		BindingPlan.Binder.forType(Types.NULL).bind(pst, 6,
+			new DBNull(Types.VARCHAR));
+		try {
+			BindingPlan.Binder.forType(Types.ARRAY).bind(pst, 7, null);
+			fail("Bound an array");
+		} catch(SQLException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Whoops"));
+		}
+	}
+
 	private void runQuerySelectorTest(SpyConfig conf) throws Exception {
 		DialectTest dt=new DialectTest(conf);
 		dt.setAnInt(13);
@@ -359,4 +575,13 @@ public class SPTTest extends MockObjectTestCase {
 		}
 	}
 
+	// A stored procedure with a required and an optional argument.
+	private static class OptionalArgSP extends DBSP {
+		public OptionalArgSP(Connection c) throws SQLException {
+			super(c);
+			setSPName("test_sp");
+			setRequired("a", Types.INTEGER);
+			setOptional("b", Types.VARCHAR);
+		}
+	}
 }
@@ -0,0 +1,242 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.pool;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import net.spy.stat.Stats;
+
+import org.jmock.Mock;
+import org.jmock.MockObjectTestCase;
+
+/**
+ * Test the prepared statement cache.
+ */
+public class StatementCacheTest extends MockObjectTestCase {
+
+	private Mock connMock=null;
+	private Connection conn=null;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		Stats.setInstance(null);
+		connMock=mock(Connection.class);
+		conn=StatementCache.wrap((Connection)connMock.proxy(), 2, "test");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		Stats.setInstance(null);
+		super.tearDown();
+	}
+
+	private long getCount(String which) {
+		return Stats.getCounterStat("net.spy.pool.test.statements." + which)
+			.getCount();
+	}
+
+	// Expect the given query to be prepared once, returning the given mock.
+	private Mock expectPrepare(String sql) {
+		Mock rv=mock(PreparedStatement.class, sql);
+		connMock.expects(once()).method("prepareStatement")
+			.with(eq(sql), eq(ResultSet.TYPE_FORWARD_ONLY),
+				eq(ResultSet.CONCUR_READ_ONLY))
+			.will(returnValue(rv.proxy()));
+		return rv;
+	}
+
+	public void testInvalid() {
+		try {
+			fail("Wrapped null:  " + StatementCache.wrap(null, 1, "x"));
+		} catch(NullPointerException e) {
+			assertEquals("Invalid connection <null>", e.getMessage());
+		}
+		try {
+			fail("Wrapped with no room:  " + StatementCache.wrap(conn, 0, "x"));
+		} catch(IllegalArgumentException e) {
+			assertEquals("Invalid size:  0", e.getMessage());
+		}
+	}
+
+	public void testReuse() throws Exception {
+		Mock pst=expectPrepare("select 1");
+		pst.expects(atLeastOnce()).method("setInt").with(eq(1), eq(42));
+		pst.expects(atLeastOnce()).method("clearParameters");
+
+		PreparedStatement p1=conn.prepareStatement("select 1");
+		p1.setInt(1, 42);
+		assertSame(conn, p1.getConnection());
+		p1.close();
+		assertTrue(p1.isClosed());
+		// Closing again doesn't return it twice.
+		p1.close();
+		try {
+			p1.setInt(1, 42);
+			fail("Used a closed statement");
+		} catch(SQLException e) {
+			assertEquals("Statement is closed", e.getMessage());
+		}
+
+		PreparedStatement p2=conn.prepareStatement("select 1",
+			ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		assertNotSame(p1, p2);
+		assertFalse(p2.isClosed());
+		p2.setInt(1, 42);
+		p2.close();
+
+		assertEquals(1, getCount("hits"));
+		assertEquals(1, getCount("misses"));
+		assertEquals(0, getCount("evictions"));
+	}
+
+	public void testInUse() throws Exception {
+		Mock pst1=expectPrepare("select 1");
+		PreparedStatement p1=conn.prepareStatement("select 1");
+
+		// While the first is in use, the same query gets its own statement
+		// that's closed when it's returned.
+		Mock pst2=expectPrepare("select 1");
+		PreparedStatement p2=conn.prepareStatement("select 1");
+		pst2.expects(once()).method("close");
+		p2.close();
+
+		pst1.expects(once()).method("clearParameters");
+		p1.close();
+		PreparedStatement p3=conn.prepareStatement("select 1");
+		pst1.expects(once()).method("clearParameters");
+		p3.close();
+
+		assertEquals(1, getCount("hits"));
+		assertEquals(2, getCount("misses"));
+	}
+
+	public void testEviction() throws Exception {
+		Mock pst1=expectPrepare("select 1");
+		pst1.stubs().method("clearParameters");
+		conn.prepareStatement("select 1").close();
+		Mock pst2=expectPrepare("select 2");
+		pst2.stubs().method("clearParameters");
+		conn.prepareStatement("select 2").close();
+
+		// Using the first makes the second the least recently used.
+		conn.prepareStatement("select 1").close();
+
+		Mock pst3=expectPrepare("select 3");
+		pst2.expects(once()).method("close");
+		PreparedStatement p3=conn.prepareStatement("select 3");
+		conn.prepareStatement("select 1").close();
+
+		// A statement evicted while in use is closed when it's returned.
+		Mock pst4=expectPrepare("select 4");
+		PreparedStatement p4=conn.prepareStatement("select 4");
+		pst3.expects(once()).method("close");
+		pst4.expects(once()).method("clearParameters");
+		p3.close();
+		p4.close();
+
+		assertEquals(2, getCount("evictions"));
+		assertEquals(2, getCount("hits"));
+		assertEquals(4, getCount("misses"));
+	}
+
+	public void testRestoreLimits() throws Exception {
+		Mock pst=expectPrepare("select 1");
+		pst.stubs().method("clearParameters");
+		pst.stubs().method("getMaxRows").will(returnValue(0));
+		pst.expects(once()).method("setMaxRows").with(eq(10)).id("limit");
+		pst.expects(once()).method("setMaxRows").with(eq(20)).after("limit")
+			.id("again");
+		pst.expects(once()).method("setMaxRows").with(eq(0)).after("again");
+
+		PreparedStatement p=conn.prepareStatement("select 1");
+		p.setMaxRows(10);
+		p.setMaxRows(20);
+		p.close();
+
+		conn.prepareStatement("select 1").close();
+		assertEquals(1, getCount("hits"));
+	}
+
+	public void testUnrestorable() throws Exception {
+		Mock pst=expectPrepare("select 1");
+		pst.stubs().method("clearParameters");
+		pst.expects(once()).method("setCursorName").with(eq("c"));
+		pst.expects(once()).method("close");
+
+		PreparedStatement p=conn.prepareStatement("select 1");
+		p.setCursorName("c");
+		p.close();
+
+		// It's prepared over again.
+		Mock pst2=expectPrepare("select 1");
+		pst2.stubs().method("clearParameters");
+		conn.prepareStatement("select 1").close();
+		assertEquals(0, getCount("hits"));
+		assertEquals(2, getCount("misses"));
+	}
+
+	public void testUnexecutedBatchCleared() throws Exception {
+		Mock pst=expectPrepare("insert into t values(?)");
+		pst.stubs().method("clearParameters");
+		pst.expects(once()).method("setInt").with(eq(1), eq(1));
+		pst.expects(once()).method("addBatch");
+		pst.expects(once()).method("clearBatch");
+
+		PreparedStatement p=conn.prepareStatement("insert into t values(?)");
+		p.setInt(1, 1);
+		p.addBatch();
+		p.close();
+
+		// The next user doesn't inherit the batch, and it isn't cleared
+		// again when nothing was added.
+		conn.prepareStatement("insert into t values(?)").close();
+		assertEquals(1, getCount("hits"));
+	}
+
+	public void testResultsClosed() throws Exception {
+		Mock pst=expectPrepare("select 1");
+		Mock rs=mock(ResultSet.class);
+		pst.expects(once()).method("executeQuery")
+			.will(returnValue(rs.proxy()));
+		pst.stubs().method("clearParameters");
+		rs.expects(once()).method("close");
+
+		PreparedStatement p=conn.prepareStatement("select 1");
+		assertSame(rs.proxy(), p.executeQuery());
+		p.close();
+	}
+
+	public void testConnectionClose() throws Exception {
+		Mock pst1=expectPrepare("select 1");
+		pst1.stubs().method("clearParameters");
+		conn.prepareStatement("select 1").close();
+		Mock pst2=expectPrepare("select 2");
+		PreparedStatement p2=conn.prepareStatement("select 2");
+
+		pst1.expects(once()).method("close");
+		connMock.expects(once()).method("close");
+		conn.close();
+
+		// The one in use is closed when it's returned.
+		pst2.expects(once()).method("close");
+		p2.close();
+
+		try {
+			fail("Prepared after close:  " + conn.prepareStatement("x"));
+		} catch(SQLException e) {
+			assertEquals("Connection is closed", e.getMessage());
+		}
+	}
+
+	public void testDelegation() throws Exception {
+		connMock.expects(once()).method("getAutoCommit")
+			.will(returnValue(true));
+		assertTrue(conn.getAutoCommit());
+		assertEquals(conn, conn);
+		assertEquals(System.identityHashCode(conn), conn.hashCode());
+	}
+}
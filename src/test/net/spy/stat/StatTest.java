@@ -37,6 +37,21 @@ public class StatTest extends TestCase {
 		assertEquals(1, n);
 	}
 
+	public void testConcurrentCounter() throws Throwable {
+		final CounterStat cs=new CounterStat();
+		SyncThread.getDistinctResultCount(10, new Callable<Object>() {
+			public Object call() throws Exception {
+				for(int i=0; i<1000; i++) {
+					cs.increment();
+					cs.increment(2);
+				}
+				return null;
+			}});
+		assertEquals(30000, cs.getCount());
+		cs.setValue(5);
+		assertEquals(5, cs.getCount());
+	}
+
     public void testCounterStat() {
         CounterStat cs=new CounterStat();
         cs.setName("st.test");
@@ -65,6 +80,25 @@ public class StatTest extends TestCase {
         assertEquals("st.test=101", String.valueOf(cs));
     }
 
+    public void testGaugeStat() {
+        final long[] value={42};
+        GaugeStat gs=new GaugeStat();
+        gs.setName("st.gauge");
+        assertEquals(0, gs.getValue());
+        assertEquals("st.gauge=0", String.valueOf(gs));
+
+        gs.setSource(new GaugeStat.Source() {
+            public long getValue() {
+                return value[0];
+            }});
+        assertEquals(42, gs.getValue());
+        value[0]=13;
+        assertEquals("st.gauge=13", String.valueOf(gs));
+
+        gs.setSource(null);
+        assertEquals("0", gs.getStat());
+    }
+
     private void assertComputingStat(ComputingStat cs, long count, double sum,
             double min, double avg, double davg, double max, double stddev) {
         assertEquals(count, cs.getCount());
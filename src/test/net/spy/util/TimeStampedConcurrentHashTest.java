@@ -0,0 +1,112 @@
+// Copyright (c) 2006  Dustin Sallings <dustin@spy.net>
+
+package net.spy.util;
+
+import java.util.concurrent.Callable;
+
+import junit.framework.TestCase;
+import net.spy.test.SyncThread;
+
+/**
+ * Test the concurrent timestamped hash.
+ */
+public class TimeStampedConcurrentHashTest extends TestCase {
+
+	/**
+	 * Get an instance of TimeStampedConcurrentHashTest.
+	 */
+	public TimeStampedConcurrentHashTest(String name) {
+		super(name);
+	}
+
+	/**
+	 * Test the basic hashtable operations.
+	 */
+	public void testOperations() throws Exception {
+		TimeStampedConcurrentHashMap<String, String> m
+			=new TimeStampedConcurrentHashMap<String, String>(0);
+		long originalTimestamp=m.getTimestamp();
+		assertEquals(originalTimestamp, m.getLastGet());
+		assertEquals(originalTimestamp, m.getLastPut());
+
+		assertEquals(0, m.getWatermark());
+		assertEquals(0, m.getNumPuts());
+
+		Thread.sleep(50);
+
+		m.put("test", "blah");
+		assertEquals(m.getTimestamp(), m.getLastPut());
+		assertFalse(originalTimestamp == m.getTimestamp());
+		assertEquals(originalTimestamp, m.getLastGet());
+		assertEquals(1, m.getNumPuts());
+
+		Thread.sleep(50);
+
+		assertEquals("blah", m.get("test"));
+		assertEquals(m.getTimestamp(), m.getLastGet());
+		assertFalse(m.getTimestamp() == m.getLastPut());
+
+		Thread.sleep(50);
+
+		long ts=m.getTimestamp();
+		assertNull(m.get("missing"));
+		assertEquals(m.getTimestamp(), m.getLastGet());
+		assertFalse(m.getTimestamp() == ts);
+		assertEquals(1, m.getWatermark());
+
+		ts=m.getTimestamp();
+		long putAge=m.getPutAge();
+		long getAge=m.getGetAge();
+		long useAge=m.getUseAge();
+
+		Thread.sleep(50);
+		assertTrue(m.getPutAge() - putAge >= 50);
+		assertTrue(m.getGetAge() - getAge >= 50);
+		assertTrue(m.getUseAge() - useAge >= 50);
+	}
+
+	/**
+	 * Test that accesses within the resolution don't update the times.
+	 */
+	public void testResolution() throws Exception {
+		TimeStampedConcurrentHashMap<String, String> m
+			=new TimeStampedConcurrentHashMap<String, String>(3600000);
+		long originalTimestamp=m.getTimestamp();
+		Thread.sleep(50);
+		m.put("test", "blah");
+		assertEquals("blah", m.get("test"));
+		assertNull(m.get("missing"));
+		assertEquals(originalTimestamp, m.getTimestamp());
+		assertEquals(originalTimestamp, m.getLastGet());
+		assertEquals(originalTimestamp, m.getLastPut());
+		assertEquals(1, m.getNumPuts());
+		assertTrue(m.getUseAge() >= 50);
+
+		try {
+			fail("Allowed a negative resolution:  "
+				+ new TimeStampedConcurrentHashMap<String, String>(-1));
+		} catch(IllegalArgumentException e) {
+			assertEquals("Invalid resolution:  -1", e.getMessage());
+		}
+	}
+
+	/**
+	 * Make sure the stats don't lose updates under concurrent access.
+	 */
+	public void testConcurrentStats() throws Throwable {
+		final TimeStampedConcurrentHashMap<Integer, Integer> m
+			=new TimeStampedConcurrentHashMap<Integer, Integer>();
+		SyncThread.getDistinctResultCount(10, new Callable<Object>() {
+			public Object call() throws Exception {
+				for(int i=0; i<1000; i++) {
+					m.put(i, i);
+					m.get(i);
+					m.get(-1);
+				}
+				return null;
+			}});
+		assertEquals(10000, m.getNumPuts());
+		assertEquals(1000, m.getWatermark());
+	}
+
+}
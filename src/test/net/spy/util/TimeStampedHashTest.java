@@ -2,7 +2,10 @@
 
 package net.spy.util;
 
+import java.util.concurrent.Callable;
+
 import junit.framework.TestCase;
+import net.spy.test.SyncThread;
 
 /**
  * Test the timestamped hash.
@@ -67,4 +70,23 @@ public class TimeStampedHashTest extends TestCase {
 		assertTrue(m.getUseAge() - useAge >= 50);
 	}
 
+	/**
+	 * Test that the counters stay accurate across threads.
+	 */
+	public void testConcurrentCounts() throws Throwable {
+		final TimeStampedHashMap<String, String> m
+			=new TimeStampedHashMap<String, String>();
+		m.put("test", "blah");
+		SyncThread.getDistinctResultCount(10, new Callable<Object>() {
+			public Object call() throws Exception {
+				for(int i=0; i<10000; i++) {
+					m.get("test");
+					m.get("missing");
+				}
+				return null;
+			}});
+		assertEquals(100000, m.getHits());
+		assertEquals(100000, m.getMisses());
+	}
+
 }